@@ -1,11 +1,27 @@
 package com.openbiometrix.capture;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is base CaptureBuffer that is used to transmit captured data from CaptureDevices to
- * CaptureViews.  The CaptureBuffer is implmenented as an ArrayBlockingQueue of type T items.
+ * CaptureViews.  The CaptureBuffer is implemented as a bounded queue of type T items.
+ *
+ * A consumer that handles ControlEvents, such as changes of the device's state, can turn on a
+ * small control lane next to the data, whose events are always taken first.  While an event is
+ * waiting, take() and poll() return null at once, without taking data, and the consumer gets the
+ * event with pollControl().  So a consumer notices that the device stopped within one take,
+ * rather than after the data queued before it.  The lane is off by default, so a consumer that
+ * only loops on take() never sees a null; its buffer ignores the events.  Either way, with flush
+ * on control, or for a FLUSH event, the data waiting when an event arrives is dropped.
+ *
+ * Items can be put and taken in batches with putAll(), drainTo() and drain(), which take the
+ * lock and wake the other side once per batch rather than once per item.
  *
  * Created by petebyhre on 4/10/17.
  */
@@ -15,6 +31,11 @@ public class CaptureBuffer<T>
 	public final static long DEFAULT_PUT_TIMEOUT_MS = 50;
 	public final static long DEFAULT_TAKE_TIMEOUT_MS = 200;
 
+	/**
+	 * Most control events kept.  If a consumer does not take them, the oldest are dropped.
+	 */
+	public final static int CONTROL_CAPACITY = 16;
+
 
 	/**
 	 * Create a CaptureBuffer with the default values.
@@ -35,13 +56,44 @@ public class CaptureBuffer<T>
 	}
 
 	/**
-	 * Set the capacity of the buffer.
+	 * Set the capacity of the buffer.  Items beyond the new capacity are dropped.
 	 *
 	 * @param capacity
 	 */
 	public void setQueueCapacity(int capacity)
 	{
-		mQueue = new ArrayBlockingQueue<T>(capacity);
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		List<T> dropped = new ArrayList<T>();
+		mLock.lock();
+		try
+		{
+			Object[] items = new Object[capacity];
+			int count = 0;
+			while (mCount > 0)
+			{
+				T item = dequeue();
+				if (count < capacity)
+				{
+					items[count++] = item;
+				}
+				else
+				{
+					dropped.add(item);
+				}
+			}
+			mItems = items;
+			mHead = 0;
+			mCount = count;
+			mNotFull.signalAll();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+		discard(dropped);
 	}
 
 	/**
@@ -52,19 +104,26 @@ public class CaptureBuffer<T>
 	 */
 	public void put(T buffer) throws InterruptedException
 	{
-		if (mQueue != null)
+		mLock.lock();
+		try
 		{
-			try
-			{
-				mQueue.put(buffer);
-				mPutSuccessCount++;
-			}
-			catch (InterruptedException ex)
+			while (mCount == mItems.length)
 			{
-				mPutFailCount++;
-				throw ex;
+				mNotFull.await();
 			}
+			enqueue(buffer);
+			mPutSuccessCount++;
 		}
+		catch (InterruptedException ex)
+		{
+			mPutFailCount++;
+			throw ex;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+		notifyPut();
 	}
 
 	/**
@@ -73,62 +132,415 @@ public class CaptureBuffer<T>
 	 *
 	 * @param buffer
 	 * @param timeout
+	 * @return false if the buffer was still full when the timeout expired.
+	 * @throws InterruptedException
+	 */
+	public boolean put(T buffer, long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		mLock.lock();
+		try
+		{
+			while (mCount == mItems.length)
+			{
+				if (nanos <= 0)
+				{
+					mPutFailCount++;
+					return false;
+				}
+				nanos = mNotFull.awaitNanos(nanos);
+			}
+			enqueue(buffer);
+			mPutSuccessCount++;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+		notifyPut();
+		return true;
+	}
+
+	/**
+	 * Put several items in the buffer, such as the faces found in one frame.  If the buffer is
+	 * full, it waits up to timeout milliseconds in all for room.  Items that do not fit are
+	 * counted as lost and left to the caller.
+	 *
+	 * @param items
+	 * @param timeout
+	 * @return Number of items put, from the start of items.
 	 * @throws InterruptedException
 	 */
-	public void put(T buffer, long timeout) throws InterruptedException
+	public int putAll(Collection<? extends T> items, long timeout) throws InterruptedException
 	{
-		if (mQueue != null)
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		int count = 0;
+		mLock.lock();
+		try
 		{
-			if (mQueue.offer(buffer, timeout, TimeUnit.MILLISECONDS) == true)
+			for (T item : items)
 			{
-				mPutSuccessCount++;
+				while (mCount == mItems.length && nanos > 0)
+				{
+					nanos = mNotFull.awaitNanos(nanos);
+				}
+				if (mCount == mItems.length)
+				{
+					mPutFailCount += items.size() - count;
+					break;
+				}
+				mItems[(mHead + mCount) % mItems.length] = item;
+				mCount++;
+				count++;
 			}
-			else
+		}
+		finally
+		{
+			mPutSuccessCount += count;
+			if (count > 0)
 			{
-				mPutFailCount++;
+				mNotEmpty.signalAll();
 			}
+			mLock.unlock();
+		}
+		if (count > 0)
+		{
+			notifyPut();
 		}
+		return count;
 	}
 
 	/**
 	 * Gets the oldest item from the buffer and returns it.  The item is removed from the buffer.
 	 * If there are no items in the buffer, the call blocks until there is an item to get.
 	 *
-	 * @return The oldest item in the queue.
+	 * @return The oldest item in the queue, or null if a control event is waiting.
 	 * @throws InterruptedException
 	 */
 	public T take() throws InterruptedException
 	{
-		if (mQueue != null)
+		mLock.lock();
+		try
 		{
-			return mQueue.take();
+			while (mCount == 0 && mControl.isEmpty())
+			{
+				mNotEmpty.await();
+			}
+			return mControl.isEmpty() ? dequeue() : null;
+		}
+		finally
+		{
+			mLock.unlock();
 		}
-		return null;
 	}
 
 	/**
 	 * Get the oldest item in the buffer, but only wait until the default timeout expires.
 	 *
-	 * @return The oldest item in the queue or null if timeout expires.
+	 * @return The oldest item in the queue or null if timeout expires or a control event is
+	 *         waiting.
 	 * @throws InterruptedException
 	 */
 	public T poll() throws InterruptedException
 	{
-		if (mQueue != null)
+		return poll(DEFAULT_TAKE_TIMEOUT_MS);
+	}
+
+	/**
+	 * Get the oldest item in the buffer, waiting up to timeout milliseconds for one.  With a
+	 * timeout of 0 it does not wait.
+	 *
+	 * @param timeout
+	 * @return The oldest item in the queue or null if timeout expires or a control event is
+	 *         waiting.
+	 * @throws InterruptedException
+	 */
+	public T poll(long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		mLock.lock();
+		try
+		{
+			while (mCount == 0 && mControl.isEmpty())
+			{
+				if (nanos <= 0)
+				{
+					return null;
+				}
+				nanos = mNotEmpty.awaitNanos(nanos);
+			}
+			return mControl.isEmpty() ? dequeue() : null;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Take up to max of the oldest items without waiting.  Nothing is taken while a control
+	 * event is waiting.
+	 *
+	 * @param out Receives the items
+	 * @param max
+	 * @return Number of items taken.
+	 */
+	public int drainTo(Collection<? super T> out, int max)
+	{
+		mLock.lock();
+		try
+		{
+			int count = takeAvailable(max);
+			for (int i = 0; i < count; i++)
+			{
+				out.add(dequeueNoSignal());
+			}
+			return count;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Take up to max of the oldest items into a reused array without waiting.  Nothing is taken
+	 * while a control event is waiting.
+	 *
+	 * @param out Receives the items from index 0
+	 * @param max At most out.length
+	 * @return Number of items taken.
+	 */
+	public int drainTo(T[] out, int max)
+	{
+		mLock.lock();
+		try
+		{
+			int count = takeAvailable(Math.min(max, out.length));
+			for (int i = 0; i < count; i++)
+			{
+				out[i] = dequeueNoSignal();
+			}
+			return count;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Take up to max of the oldest items, waiting up to timeout milliseconds for the first.
+	 *
+	 * @param out Receives the items
+	 * @param max
+	 * @param timeout
+	 * @return Number of items taken, 0 if the timeout expired or a control event is waiting.
+	 * @throws InterruptedException
+	 */
+	public int drain(Collection<? super T> out, int max, long timeout) throws InterruptedException
+	{
+		if (!await(timeout))
 		{
-			return mQueue.poll(DEFAULT_TAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			return 0;
 		}
-		return null;
+		return drainTo(out, max);
+	}
+
+	/**
+	 * Take up to max of the oldest items into a reused array, waiting up to timeout milliseconds
+	 * for the first.
+	 *
+	 * @param out Receives the items from index 0
+	 * @param max At most out.length
+	 * @param timeout
+	 * @return Number of items taken, 0 if the timeout expired or a control event is waiting.
+	 * @throws InterruptedException
+	 */
+	public int drain(T[] out, int max, long timeout) throws InterruptedException
+	{
+		if (!await(timeout))
+		{
+			return 0;
+		}
+		return drainTo(out, max);
+	}
+
+	/**
+	 * Put a control event in the buffer ahead of the data, if the buffer has a control lane.
+	 * This never waits.  A FLUSH event, or any event with flush on control, drops the data
+	 * waiting in the buffer, whether or not it has a lane.
+	 *
+	 * @param event
+	 */
+	public void putControl(ControlEvent event)
+	{
+		List<T> dropped = null;
+		mLock.lock();
+		try
+		{
+			if (mFlushOnControl || event.kind == ControlEvent.Kind.FLUSH)
+			{
+				dropped = new ArrayList<T>(mCount);
+				while (mCount > 0)
+				{
+					dropped.add(dequeue());
+				}
+				mFlushCount += dropped.size();
+				mNotFull.signalAll();
+			}
+			if (mControlLane)
+			{
+				if (mControl.size() == CONTROL_CAPACITY)
+				{
+					mControl.poll();
+				}
+				mControl.add(event);
+				mNotEmpty.signalAll();
+			}
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+		if (dropped != null)
+		{
+			discard(dropped);
+		}
+		notifyPut();
+	}
+
+	/**
+	 * Take the oldest control event without waiting.
+	 *
+	 * @return The event, or null if there is none.
+	 */
+	public ControlEvent pollControl()
+	{
+		mLock.lock();
+		try
+		{
+			return mControl.poll();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Turn the control lane on or off.  With it on, take(), poll() and the drains return nothing
+	 * while a control event is waiting, and the consumer must take the events with
+	 * pollControl().  Turning it off drops the events waiting.
+	 *
+	 * @param enabled
+	 */
+	public void setControlLane(boolean enabled)
+	{
+		mLock.lock();
+		try
+		{
+			mControlLane = enabled;
+			if (!enabled)
+			{
+				mControl.clear();
+			}
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public boolean hasControlLane()
+	{
+		mLock.lock();
+		try
+		{
+			return mControlLane;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Set whether a control event drops the data waiting in the buffer, so the consumer does not
+	 * work through data from before a pause or stop.
+	 *
+	 * @param flush
+	 */
+	public void setFlushOnControl(boolean flush)
+	{
+		mLock.lock();
+		try
+		{
+			mFlushOnControl = flush;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public boolean isFlushOnControl()
+	{
+		mLock.lock();
+		try
+		{
+			return mFlushOnControl;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Number of items dropped by control events.
+	 */
+	public long getFlushedCount()
+	{
+		mLock.lock();
+		try
+		{
+			return mFlushCount;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Set a listener that is run after each item or control event is put in the buffer, on the
+	 * thread that put it, or null for none.  This lets a consumer drain the buffer on an executor
+	 * when items arrive, instead of blocking a thread of its own in take().  It must be quick.
+	 *
+	 * @param listener
+	 */
+	public void setPutListener(Runnable listener)
+	{
+		mPutListener = listener;
 	}
 
 	/**
 	 * Check to see if the buffer is empty.
 	 *
-	 * @return true if the buffer is empty, else false.
+	 * @return true if there are no items or control events in the buffer, else false.
 	 */
 	public boolean isEmpty()
 	{
-		return mQueue.isEmpty();
+		mLock.lock();
+		try
+		{
+			return mCount == 0 && mControl.isEmpty();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
 	}
 
 	/**
@@ -148,8 +560,124 @@ public class CaptureBuffer<T>
 		return ((float) mPutFailCount /(float) mPutSuccessCount) * 100.0f;
 	}
 
+	/**
+	 * Called with each item dropped from the buffer without being taken, such as by a flush,
+	 * so that a subclass can release it.  Called without the lock held.
+	 *
+	 * @param item
+	 */
+	protected void onDiscard(T item)
+	{
+	}
+
+
+	/**
+	 * Called with the lock.
+	 */
+	private void enqueue(T item)
+	{
+		mItems[(mHead + mCount) % mItems.length] = item;
+		mCount++;
+		mNotEmpty.signal();
+	}
+
+	/**
+	 * Called with the lock, when there is an item.
+	 */
+	private T dequeue()
+	{
+		T item = dequeueNoSignal();
+		mNotFull.signal();
+		return item;
+	}
+
+	/**
+	 * Wait up to timeout milliseconds for an item or a control event.
+	 *
+	 * @return false if the timeout expired.
+	 */
+	private boolean await(long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		mLock.lock();
+		try
+		{
+			while (mCount == 0 && mControl.isEmpty())
+			{
+				if (nanos <= 0)
+				{
+					return false;
+				}
+				nanos = mNotEmpty.awaitNanos(nanos);
+			}
+			return true;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Number of items a drain of at most max may take, with the producers woken once for all of
+	 * them.  Called with the lock.
+	 */
+	private int takeAvailable(int max)
+	{
+		if (!mControl.isEmpty())
+		{
+			return 0;
+		}
+		int count = Math.min(max, mCount);
+		if (count > 0)
+		{
+			mNotFull.signalAll();
+		}
+		return count;
+	}
+
+	/**
+	 * Called with the lock, when there is an item.  The caller wakes the producers.
+	 */
+	@SuppressWarnings("unchecked")
+	private T dequeueNoSignal()
+	{
+		T item = (T) mItems[mHead];
+		mItems[mHead] = null;
+		mHead = (mHead + 1) % mItems.length;
+		mCount--;
+		return item;
+	}
+
+	private void discard(List<T> items)
+	{
+		for (T item : items)
+		{
+			onDiscard(item);
+		}
+	}
+
+	private void notifyPut()
+	{
+		Runnable listener = mPutListener;
+		if (listener != null)
+		{
+			listener.run();
+		}
+	}
+
 
-	private ArrayBlockingQueue<T> 	mQueue = null;
-	private long 					mPutSuccessCount = 0;
-	private long 					mPutFailCount = 0;
+	private final ReentrantLock 	mLock = new ReentrantLock();
+	private final Condition 		mNotEmpty = mLock.newCondition();
+	private final Condition 		mNotFull = mLock.newCondition();
+	private Object[] 				mItems = new Object[0];
+	private int 					mHead = 0;
+	private int 					mCount = 0;
+	private final ArrayDeque<ControlEvent> mControl = new ArrayDeque<ControlEvent>();
+	private boolean 				mControlLane = false;
+	private boolean 				mFlushOnControl = false;
+	private long 					mFlushCount = 0;
+	private volatile Runnable 		mPutListener = null;
+	private volatile long 			mPutSuccessCount = 0;
+	private volatile long 			mPutFailCount = 0;
 }
@@ -7,11 +7,33 @@ package com.openbiometrix.capture;
 import android.content.Context;
 import android.util.Log;
 
+import com.openbiometrix.capture.crypto.EncryptedCaptureWriter;
+import com.openbiometrix.capture.dedupe.DuplicateSuppressor;
 import com.openbiometrix.capture.exception.DeviceStateException;
 import com.openbiometrix.capture.exception.InvalidDeviceBuffer;
+import com.openbiometrix.capture.session.CaptureSession;
+import com.openbiometrix.capture.spool.CaptureSpool;
+import com.openbiometrix.capture.spool.SpoolEntry;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+import com.openbiometrix.capture.store.RetentionManager;
+import com.openbiometrix.capture.stream.ListenerDispatcher;
+import com.openbiometrix.capture.stream.Publisher;
 import com.openbiometrix.capture.ui.CaptureView;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+
+import javax.crypto.SecretKey;
 
 
 /**
@@ -22,7 +44,8 @@ import java.util.Vector;
  * wav audio data.
  *
  * The specific capture device implementation streams this data through to any capture viewers
- * that are attached to it through a blocking queue.
+ * that are attached to it through a blocking queue.  A device may also publish the data to
+ * subscribers that request it, without a View or a thread of their own.
  */
 public abstract class CaptureDevice
 {
@@ -90,6 +113,28 @@ public abstract class CaptureDevice
 	 */
 	public abstract void addViewer(CaptureView viewer)  throws InvalidDeviceBuffer;
 
+	/**
+	 * The stream of data the device captures, for subscribers that do not need a View.  Each
+	 * subscriber gets only what it requests.
+	 *
+	 * @return The publisher, or null if the device does not publish its data.
+	 */
+	public Publisher<?> getPublisher()
+	{
+		return null;
+	}
+
+	/**
+	 * The listeners called with the data the device captures, on an executor each chooses, or
+	 * on the capture thread itself.  For consumers light enough not to need a buffer or a View.
+	 *
+	 * @return The dispatcher, or null if the device does not call listeners.
+	 */
+	public ListenerDispatcher<?> getListenerDispatcher()
+	{
+		return null;
+	}
+
 	/**
 	 * Remove a viewer from the list of active CaptureView objects.
 	 *
@@ -192,27 +237,489 @@ public abstract class CaptureDevice
 
 	/**
 	 * Some devices store the captured content.  If so, then this function tells how many files
-	 * were saved by the device.
+	 * saved by the device are still kept, not counting those removed by retention.
 	 *
 	 * @return Number of files saved by the device.
 	 */
 	public int getCapturedFileCount()
 	{
-		return mCapturedFiles == null ? 0 : mCapturedFiles.size();
+		CaptureStore store = getCaptureStore();
+		return store == null ? 0 : store.size();
 	}
 
 	/**
 	 * If the capture device saves captured files, then this provides information about those files.
+	 * The list is a view over the index of the capture store, so files are only looked up as they
+	 * are accessed.  Use getCaptureStore() to query captures by session, time or quality.
+	 *
+	 * @return A list of files captured by the device, or null if the device does not save files.
+	 */
+	public List<CaptureFile> getCapturedFiles()
+	{
+		CaptureStore store = getCaptureStore();
+		return store == null ? null : store.getFiles();
+	}
+
+	/**
+	 * Set the spool that captured data is appended to.  A spool survives the process going down,
+	 * and a SpoolUploader can send its captures off the device.  Captures that are also saved to
+	 * the capture store are kept there by its RetentionManager until the spool has sent them.
+	 *
+	 * @param spool The spool to use, or null to stop spooling captures.
+	 */
+	public void setCaptureSpool(CaptureSpool spool)
+	{
+		CaptureSpool old;
+		synchronized (this)
+		{
+			old = mCaptureSpool;
+			mCaptureSpool = spool;
+		}
+		if (old == spool)
+		{
+			return;
+		}
+		if (old != null)
+		{
+			old.removeListener(mSpoolListener);
+		}
+		if (spool != null)
+		{
+			spool.addListener(mSpoolListener);
+		}
+		synchronized (mUnsent)
+		{
+			mUnsent.clear();
+			mUnsentSwept = false;
+		}
+	}
+
+	/**
+	 * Get the spool that captured data is appended to, or null if captures are not spooled.
+	 */
+	public synchronized CaptureSpool getCaptureSpool()
+	{
+		return mCaptureSpool;
+	}
+
+	/**
+	 * Set the store that captured data is saved to as files.  A RetentionManager is started for
+	 * the store, with no quotas until they are set through getRetentionManager().
+	 *
+	 * @param store The store to use, or null to stop saving files.
+	 */
+	public void setCaptureStore(CaptureStore store)
+	{
+		RetentionManager old;
+		synchronized (this)
+		{
+			if (store == mCaptureStore)
+			{
+				return;
+			}
+			mCaptureStore = store;
+			old = mRetentionManager;
+			mRetentionManager = store == null ? null : new RetentionManager(store);
+			if (mRetentionManager != null)
+			{
+				mRetentionManager.start();
+			}
+		}
+		synchronized (mUnsent)
+		{
+			mUnsent.clear();
+			mUnsentSwept = false;
+		}
+
+		if (old != null)
+		{
+			try
+			{
+				old.stop();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Get the manager that keeps the capture store within its size, count and age quotas, or
+	 * null if files are not saved.
+	 */
+	public synchronized RetentionManager getRetentionManager()
+	{
+		return mRetentionManager;
+	}
+
+	/**
+	 * Get the store that captured data is saved to, or null if files are not saved.
+	 */
+	public synchronized CaptureStore getCaptureStore()
+	{
+		return mCaptureStore;
+	}
+
+	/**
+	 * Set the key that captures saved to the capture store and the capture spool are encrypted
+	 * with.  Captures are encrypted as they are written, so the plaintext never reaches the
+	 * disk.  Encryption uses AES-GCM, which needs API level 19 or later.
+	 *
+	 * @param key AES key, or null to save captures unencrypted.
+	 * @throws UnsupportedOperationException If a key is given below API level 19.
+	 */
+	public synchronized void setCaptureKey(SecretKey key)
+	{
+		if (key != null && !EncryptedCaptureWriter.isSupported())
+		{
+			throw new UnsupportedOperationException("Encrypted captures need API level 19 or later");
+		}
+		mCaptureKey = key;
+	}
+
+	/**
+	 * Set the suppressor that drops or marks captures that look almost the same as a recent
+	 * capture of the session.
+	 *
+	 * @param suppressor The suppressor, or null to keep every capture.
+	 */
+	public synchronized void setDuplicateSuppressor(DuplicateSuppressor suppressor)
+	{
+		mDuplicateSuppressor = suppressor;
+	}
+
+	/**
+	 * Get the duplicate suppressor, for its metrics, or null if none is set.
+	 */
+	public synchronized DuplicateSuppressor getDuplicateSuppressor()
+	{
+		return mDuplicateSuppressor;
+	}
+
+	/**
+	 * Set the id that captures saved from now on are tagged with in the capture store.
+	 *
+	 * @param sessionId
+	 */
+	public synchronized void setSessionId(long sessionId)
+	{
+		mSessionId = sessionId;
+	}
+
+	/**
+	 * Get the id that captures are tagged with in the capture store.
+	 */
+	public synchronized long getSessionId()
+	{
+		return mSessionId;
+	}
+
+	/**
+	 * Set the session that the device's samples are merged into, or null for none.  Called by
+	 * CaptureSession.addDevice() and removeDevice().
 	 *
-	 * @return A list of files captured by the device.
+	 * @param session
+	 */
+	public synchronized void setCaptureSession(CaptureSession session)
+	{
+		mCaptureSession = session;
+	}
+
+	/**
+	 * Get the session the device belongs to, or null if it is not in one.
 	 */
-	public Vector<CaptureFile> getCapturedFiles()
+	public synchronized CaptureSession getCaptureSession()
 	{
-		return mCapturedFiles;
+		return mCaptureSession;
 	}
 
 	/**
-	 * Set the current state of the capture device.
+	 * Set the executor that background work of the device, such as saving captures, runs on, or
+	 * null for the device to start its own threads.  Set by CaptureDeviceManager to the device's
+	 * lane of the shared worker pool.  Work that blocks for long, such as a warm-up that waits on
+	 * the camera, keeps a thread of its own rather than hold a worker of the pool.
+	 *
+	 * @param executor
+	 */
+	public synchronized void setExecutor(Executor executor)
+	{
+		mExecutor = executor;
+	}
+
+	/**
+	 * Get the executor for background work, or null if the device starts its own threads.
+	 */
+	public synchronized Executor getExecutor()
+	{
+		return mExecutor;
+	}
+
+	/**
+	 * Store captured data.  The data is saved as a file in the capture store if there is one, and
+	 * appended to the capture spool if there is one, in both encrypted if a capture key is set.
+	 * This does disk I/O and should not be called on the UI thread.
+	 * <p>
+	 * If a duplicate suppressor is set and the record carries a perceptual hash, a capture that
+	 * looks almost the same as a recent one is dropped or marked before anything is written.
+	 *
+	 * @param data The captured data
+	 * @param record Metadata of the capture, such as its media type, timestamp and the bounds
+	 *               and quality of the subject.  The session id is set by the device.
+	 * @return The saved file, or null if there is no capture store or the capture was dropped as
+	 *         a duplicate.
+	 * @throws IOException
+	 */
+	protected CaptureFile saveCapture(byte[] data, CaptureRecord record) throws IOException
+	{
+		CaptureSpool spool;
+		CaptureStore store;
+		SecretKey key;
+		DuplicateSuppressor suppressor;
+		synchronized (this)
+		{
+			spool = mCaptureSpool;
+			store = mCaptureStore;
+			key = mCaptureKey;
+			suppressor = mDuplicateSuppressor;
+			record.sessionId = mSessionId;
+		}
+
+		if (suppressor != null && record.perceptualHash != 0
+				&& suppressor.isDuplicate(record.sessionId, record.perceptualHash, record.quality))
+		{
+			if (suppressor.getAction() == DuplicateSuppressor.Action.DROP)
+			{
+				return null;
+			}
+			record.flags |= CaptureRecord.FLAG_DUPLICATE;
+		}
+
+		if (store == null)
+		{
+			if (spool != null)
+			{
+				if (key == null)
+				{
+					spool.append(data, record.mediaType);
+				}
+				else
+				{
+					spoolEncrypted(spool, data, null, record.mediaType, key);
+				}
+			}
+			return null;
+		}
+
+		if (spool != null)
+		{
+			record.flags |= CaptureRecord.FLAG_UNSENT;
+		}
+		CaptureFile saved = store.save(data, record, key);
+		if (spool != null)
+		{
+			spoolSaved(spool, store, record, data, saved, key);
+		}
+		return saved;
+	}
+
+	/**
+	 * Store captured data that was streamed to a file, such as a voice recording.  The file is
+	 * added to the capture store and appended to the capture spool if there is one, in both
+	 * encrypted if a capture key is set.  It is streamed, never read into memory whole.  This
+	 * does disk I/O and should not be called on the UI thread.
+	 *
+	 * @param file The finished file, normally made with CaptureStore.createPartFile()
+	 * @param record Metadata of the capture.  The session id is set by the device.
+	 * @return The saved file, or null if there is no capture store, in which case the file is
+	 *         deleted.
+	 * @throws IOException
+	 */
+	protected CaptureFile saveCaptureFile(File file, CaptureRecord record) throws IOException
+	{
+		CaptureSpool spool;
+		CaptureStore store;
+		SecretKey key;
+		synchronized (this)
+		{
+			spool = mCaptureSpool;
+			store = mCaptureStore;
+			key = mCaptureKey;
+			record.sessionId = mSessionId;
+		}
+
+		if (store == null)
+		{
+			try
+			{
+				if (spool != null)
+				{
+					if (key == null)
+					{
+						spool.append(file, record.mediaType);
+					}
+					else
+					{
+						spoolEncrypted(spool, null, file, record.mediaType, key);
+					}
+				}
+			}
+			finally
+			{
+				file.delete();
+			}
+			return null;
+		}
+
+		// the store moves or encrypts the file, and the spool copies what it holds
+		if (spool != null)
+		{
+			record.flags |= CaptureRecord.FLAG_UNSENT;
+		}
+		CaptureFile saved = store.add(file, record, key);
+		if (spool != null)
+		{
+			spoolSaved(spool, store, record, null, saved, key);
+		}
+		return saved;
+	}
+
+	/**
+	 * Append a capture that was saved to the store, marked unsent, to the spool.  It stays
+	 * unsent, which keeps the RetentionManager from removing it, until the spool acknowledges it.
+	 *
+	 * @param data The capture data if it is in memory, or null to copy the saved file
+	 */
+	private void spoolSaved(CaptureSpool spool, CaptureStore store, CaptureRecord record, byte[] data,
+			CaptureFile saved, SecretKey key) throws IOException
+	{
+		// held until the entry is tracked, so an acknowledgement cannot arrive first
+		synchronized (mUnsent)
+		{
+			SpoolEntry entry;
+			try
+			{
+				if (key == null)
+				{
+					entry = data != null ? spool.append(data, record.mediaType) : spool.append(saved, record.mediaType);
+				}
+				else
+				{
+					entry = spool.append(saved, record.mediaType + EncryptedCaptureWriter.MEDIA_TYPE_PARAMETER);
+				}
+			}
+			catch (IOException ex)
+			{
+				// nothing will acknowledge it, so retention may have it
+				store.markSent(record);
+				throw ex;
+			}
+			CaptureRecord unsent = new CaptureRecord();
+			unsent.set(record);
+			mUnsent.put(entry.getSequence(), unsent);
+		}
+	}
+
+	/**
+	 * Mark the captures the spool has sent as sent in the store.  Once the spool is empty every
+	 * capture is marked sent, which also releases those left unsent when the process last ended.
+	 */
+	private void onSpoolAcknowledged(List<SpoolEntry> entries)
+	{
+		CaptureSpool spool;
+		CaptureStore store;
+		synchronized (this)
+		{
+			spool = mCaptureSpool;
+			store = mCaptureStore;
+		}
+
+		List<CaptureRecord> sent = new ArrayList<CaptureRecord>(entries.size());
+		boolean sweep;
+		synchronized (mUnsent)
+		{
+			for (SpoolEntry entry : entries)
+			{
+				CaptureRecord record = mUnsent.remove(entry.getSequence());
+				if (record != null)
+				{
+					sent.add(record);
+				}
+			}
+			sweep = !mUnsentSwept && mUnsent.isEmpty() && spool != null && spool.getPendingCount() == 0;
+			if (sweep)
+			{
+				mUnsentSwept = true;
+			}
+		}
+
+		if (store != null)
+		{
+			for (CaptureRecord record : sent)
+			{
+				store.markSent(record);
+			}
+			if (sweep)
+			{
+				store.markAllSent();
+			}
+		}
+	}
+
+	/**
+	 * Append a capture to the spool encrypted, when there is no encrypted copy in a store to
+	 * append, by way of a file staged in the spool's directory.
+	 *
+	 * @param data The capture data, or null to read it from source
+	 * @param source File holding the capture data, if data is null
+	 */
+	private static SpoolEntry spoolEncrypted(CaptureSpool spool, byte[] data, File source, String mediaType, SecretKey key)
+			throws IOException
+	{
+		File temp = spool.createTempFile("capture");
+		try
+		{
+			OutputStream out = new EncryptedCaptureWriter(temp, key);
+			try
+			{
+				if (data != null)
+				{
+					out.write(data);
+				}
+				else
+				{
+					InputStream in = new FileInputStream(source);
+					try
+					{
+						byte[] buffer = new byte[EncryptedCaptureWriter.DEFAULT_CHUNK_SIZE];
+						int read;
+						while ((read = in.read(buffer)) > 0)
+						{
+							out.write(buffer, 0, read);
+						}
+					}
+					finally
+					{
+						in.close();
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			return spool.append(temp, mediaType + EncryptedCaptureWriter.MEDIA_TYPE_PARAMETER);
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Set the current state of the capture device.  The change is put in the control lane of
+	 * each viewer's buffer that has one, ahead of the data waiting there, and each viewer is
+	 * told.
 	 *
 	 * @param state
 	 */
@@ -220,8 +727,14 @@ public abstract class CaptureDevice
 	{
 		mState = state;
 
+		ControlEvent event = ControlEvent.state(state);
 		for (CaptureView viewer : mViewerList)
 		{
+			CaptureBuffer buffer = viewer.getCaptureBuffer();
+			if (buffer != null)
+			{
+				buffer.putControl(event);
+			}
 			viewer.onStateChanged(state);
 		}
 		Log.d(TAG, "setState: " + mState);
@@ -237,8 +750,27 @@ public abstract class CaptureDevice
 
 
 	protected Vector<CaptureView> 	mViewerList = new Vector<CaptureView>();
-	protected Vector<CaptureFile> 	mCapturedFiles = null;
 	private State 					mState = State.UNINITIALIZED;
 	private State 					mPausedState = State.UNINITIALIZED;
+	private CaptureSpool 			mCaptureSpool = null;
+	private CaptureStore 			mCaptureStore = null;
+	private RetentionManager 		mRetentionManager = null;
+	private SecretKey 				mCaptureKey = null;
+	private DuplicateSuppressor 	mDuplicateSuppressor = null;
+	private long 					mSessionId = 0;
+	private CaptureSession 			mCaptureSession = null;
+	private Executor 				mExecutor = null;
+
+	// the store entries of the captures waiting in the spool, by spool sequence number
+	private final Map<Long, CaptureRecord> 	mUnsent = new HashMap<Long, CaptureRecord>();
+	private boolean 						mUnsentSwept = false;
+	private final CaptureSpool.Listener 	mSpoolListener = new CaptureSpool.Listener()
+	{
+		@Override
+		public void onAcknowledged(List<SpoolEntry> entries)
+		{
+			onSpoolAcknowledged(entries);
+		}
+	};
 
 }
\ No newline at end of file
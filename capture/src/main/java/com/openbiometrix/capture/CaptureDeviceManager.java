@@ -0,0 +1,234 @@
+package com.openbiometrix.capture;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.openbiometrix.capture.work.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps the capture devices of a station, such as a camera and a microphone, and one shared
+ * WorkerPool for their background work, sized to the cores, so several devices together do not
+ * start more threads than the cores can run.
+ *
+ * Each device registered gets a lane of the pool with a weight, and the lane is set as the
+ * device's executor.  Viewers and other consumers of a device can run on the same lane, such as
+ * a FaceCaptureView given getExecutor().  Lanes share the workers by their weights, so a burst
+ * of storage work of one device does not stall the preview of another with a higher weight.
+ */
+public class CaptureDeviceManager
+{
+	private final static String TAG = "CaptureDeviceManager";
+
+	/**
+	 * Create a manager whose pool has one worker per core.
+	 */
+	public CaptureDeviceManager()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threadCount Number of worker threads of the shared pool
+	 */
+	public CaptureDeviceManager(int threadCount)
+	{
+		mPool = new WorkerPool(threadCount, "CaptureWorker");
+	}
+
+	/**
+	 * Register a device with the default weight.
+	 *
+	 * @param device
+	 */
+	public void register(CaptureDevice device)
+	{
+		register(device, WorkerPool.DEFAULT_WEIGHT);
+	}
+
+	/**
+	 * Register a device.
+	 *
+	 * @param device
+	 * @param weight Its share of the worker pool relative to the other devices, at least 1
+	 * @throws IllegalArgumentException If a device with the same id is registered.
+	 */
+	public void register(CaptureDevice device, int weight)
+	{
+		WorkerPool.Lane lane;
+		synchronized (this)
+		{
+			if (mDevices.containsKey(device.getId()))
+			{
+				throw new IllegalArgumentException("A device with id " + device.getId() + " is already registered");
+			}
+			lane = mPool.createLane(device.getId(), weight);
+			mDevices.put(device.getId(), device);
+			mLanes.put(device.getId(), lane);
+		}
+		device.setExecutor(lane);
+	}
+
+	/**
+	 * Unregister a device.  Work it still has queued on the pool is dropped.
+	 *
+	 * @param device
+	 */
+	public void unregister(CaptureDevice device)
+	{
+		WorkerPool.Lane lane;
+		synchronized (this)
+		{
+			if (mDevices.get(device.getId()) != device)
+			{
+				return;
+			}
+			mDevices.remove(device.getId());
+			lane = mLanes.remove(device.getId());
+		}
+		device.setExecutor(null);
+		mPool.removeLane(lane);
+	}
+
+	/**
+	 * Get a registered device by its id, or null if there is none.
+	 *
+	 * @param id
+	 */
+	public synchronized CaptureDevice getDevice(String id)
+	{
+		return mDevices.get(id);
+	}
+
+	/**
+	 * All registered devices, in the order they were registered.
+	 */
+	public synchronized List<CaptureDevice> getDevices()
+	{
+		return new ArrayList<CaptureDevice>(mDevices.values());
+	}
+
+	/**
+	 * The registered devices of one type.
+	 *
+	 * @param type
+	 */
+	public synchronized List<CaptureDevice> getDevices(CaptureDevice.Type type)
+	{
+		List<CaptureDevice> devices = new ArrayList<CaptureDevice>();
+		for (CaptureDevice device : mDevices.values())
+		{
+			if (device.getType() == type)
+			{
+				devices.add(device);
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * The lane of the shared pool for a device's work, or null if the device is not registered.
+	 *
+	 * @param device
+	 */
+	public synchronized WorkerPool.Lane getExecutor(CaptureDevice device)
+	{
+		return mDevices.get(device.getId()) == device ? mLanes.get(device.getId()) : null;
+	}
+
+	/**
+	 * The shared pool, for its utilization and the counts of each lane.
+	 */
+	public WorkerPool getWorkerPool()
+	{
+		return mPool;
+	}
+
+	/**
+	 * The fraction of the shared workers' time spent on the devices' work.
+	 */
+	public float getUtilization()
+	{
+		return mPool.getUtilization();
+	}
+
+	/**
+	 * Initialize all the registered devices at the same time, each on its own thread, since
+	 * opening a camera or microphone mostly waits on the hardware.  Blocks until all are done.
+	 *
+	 * @param ctx Android Application Context
+	 * @return true if every device initialized, else false.  A device that throws counts as
+	 *         not initialized, and what it threw is logged.
+	 * @throws InterruptedException
+	 */
+	public boolean initializeAll(final Context ctx) throws InterruptedException
+	{
+		List<CaptureDevice> devices = getDevices();
+		if (devices.isEmpty())
+		{
+			return true;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(devices.size());
+		try
+		{
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (final CaptureDevice device : devices)
+			{
+				futures.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call()
+					{
+						return device.initialize(ctx);
+					}
+				}));
+			}
+
+			boolean initialized = true;
+			for (int i = 0; i < futures.size(); i++)
+			{
+				try
+				{
+					initialized &= futures.get(i).get();
+				}
+				catch (ExecutionException ex)
+				{
+					Log.e(TAG, "Unable to initialize " + devices.get(i).getId(), ex.getCause());
+					initialized = false;
+				}
+			}
+			return initialized;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Destroy and unregister all the devices, and stop the shared pool.
+	 */
+	public void shutdown()
+	{
+		for (CaptureDevice device : getDevices())
+		{
+			device.destroy();
+			unregister(device);
+		}
+		mPool.shutdown();
+	}
+
+
+	private final WorkerPool 						mPool;
+	private final Map<String, CaptureDevice> 		mDevices = new LinkedHashMap<String, CaptureDevice>();
+	private final Map<String, WorkerPool.Lane> 		mLanes = new LinkedHashMap<String, WorkerPool.Lane>();
+}
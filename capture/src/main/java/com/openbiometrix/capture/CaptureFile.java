@@ -68,6 +68,26 @@ public class CaptureFile extends File
 		return m_mediaType;
 	}
 
+	/**
+	 * Set whether the file was written encrypted by an EncryptedCaptureWriter.
+	 * @param encrypted
+	 */
+	public void setEncrypted(boolean encrypted)
+	{
+		m_encrypted = encrypted;
+	}
+
+	/**
+	 * Whether the file was written encrypted.  An encrypted file is read with an
+	 * EncryptedCaptureReader.
+	 * @return
+	 */
+	public boolean isEncrypted()
+	{
+		return m_encrypted;
+	}
+
 
 	private String m_mediaType = "*/*";
+	private boolean m_encrypted = false;
 }
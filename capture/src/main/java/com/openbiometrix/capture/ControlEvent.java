@@ -0,0 +1,73 @@
+package com.openbiometrix.capture;
+
+/**
+ * An event that is sent to a viewer ahead of the data waiting in its CaptureBuffer, such as a
+ * change of the device's state.  Events are not changed once made, so one event can be put in
+ * the buffers of several viewers.
+ */
+public class ControlEvent
+{
+	/**
+	 * What an event is about.
+	 */
+	public enum Kind
+	{
+		/**
+		 * The device changed to state.
+		 */
+		STATE,
+
+		/**
+		 * The configuration of the device changed to value.
+		 */
+		CONFIG,
+
+		/**
+		 * The data waiting in the buffer is stale and was dropped.
+		 */
+		FLUSH
+	}
+
+
+	/**
+	 * @param kind
+	 * @param state The new state of the device, for a STATE event.
+	 * @param value The new configuration, for a CONFIG event.
+	 */
+	public ControlEvent(Kind kind, CaptureDevice.State state, Object value)
+	{
+		this.kind = kind;
+		this.state = state;
+		this.value = value;
+		this.timestamp = System.nanoTime();
+	}
+
+	public static ControlEvent state(CaptureDevice.State state)
+	{
+		return new ControlEvent(Kind.STATE, state, null);
+	}
+
+	public static ControlEvent config(Object value)
+	{
+		return new ControlEvent(Kind.CONFIG, null, value);
+	}
+
+	public static ControlEvent flush()
+	{
+		return new ControlEvent(Kind.FLUSH, null, null);
+	}
+
+	@Override
+	public String toString()
+	{
+		return kind == Kind.STATE ? "STATE " + state : kind == Kind.CONFIG ? "CONFIG " + value : "FLUSH";
+	}
+
+
+	public final Kind 					kind;
+	public final CaptureDevice.State 	state;
+	public final Object 				value;
+
+	// System.nanoTime() when the event was made
+	public final long 					timestamp;
+}
@@ -5,10 +5,6 @@ package com.openbiometrix.capture;
  */
 
 import android.content.Context;
-import android.hardware.Camera;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraManager;
-import android.os.Build;
 import android.util.Log;
 import android.view.SurfaceView;
 import android.view.View;
@@ -19,14 +15,45 @@ import com.google.android.gms.vision.Tracker;
 import com.google.android.gms.vision.face.Face;
 import com.google.android.gms.vision.face.FaceDetector;
 import com.google.android.gms.vision.face.LargestFaceFocusingProcessor;
+import com.openbiometrix.capture.camera.CameraCapabilities;
+import com.openbiometrix.capture.camera.CameraCapabilityCache;
+import com.openbiometrix.capture.camera.CameraProbe;
+import com.openbiometrix.capture.codec.BurstWriter;
+import com.openbiometrix.capture.codec.CaptureCodec;
+import com.openbiometrix.capture.codec.Lz4Nv21Codec;
+import com.openbiometrix.capture.codec.YuvFrame;
+import com.openbiometrix.capture.dedupe.DuplicateSuppressor;
 import com.openbiometrix.capture.exception.DeviceStateException;
+import com.openbiometrix.capture.face.FaceAligner;
+import com.openbiometrix.capture.image.FrameRotation;
+import com.openbiometrix.capture.image.GrayImage;
+import com.openbiometrix.capture.image.GrayImagePool;
+import com.openbiometrix.capture.liveness.BlinkLivenessDetector;
+import com.openbiometrix.capture.quality.FrameQuality;
+import com.openbiometrix.capture.quality.FrameQualityAnalyzer;
+import com.openbiometrix.capture.quality.FrameQualityPool;
+import com.openbiometrix.capture.recording.FaceHistory;
+import com.openbiometrix.capture.session.CaptureSession;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
 import com.openbiometrix.capture.exception.InvalidDeviceBuffer;
 import com.openbiometrix.capture.exception.NoDeviceFoundException;
 import com.openbiometrix.capture.ui.CaptureView;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static android.hardware.Camera.CameraInfo.CAMERA_FACING_FRONT;
 import static com.openbiometrix.capture.CaptureDevice.Type.CAMERA;
 
 
@@ -36,6 +63,23 @@ import static com.openbiometrix.capture.CaptureDevice.Type.CAMERA;
  */
 public class FaceCaptureDevice extends CaptureDevice implements CameraSource.PictureCallback
 {
+	public final static int ALIGNED_FACE_POOL_SIZE = 8;
+	public final static int QUALITY_POOL_SIZE = 8;
+
+	private final static String CAMERA_CAPABILITIES_FILE = "camera-capabilities";
+
+	/**
+	 * The preview wanted.  The nearest size and rate the camera supports are used.
+	 */
+	public final static int PREVIEW_WIDTH = 640;
+	public final static int PREVIEW_HEIGHT = 480;
+	public final static float PREVIEW_FPS = 30.0f;
+
+	/**
+	 * How long the camera is kept running while paused, by default.
+	 */
+	public final static long DEFAULT_WARM_PAUSE_TIMEOUT_MS = 10000;
+
 	/**
 	 * A string identifier that uniquely identifies this capture device.
 	 */
@@ -96,7 +140,8 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 
 	/**
 	 * Initialize a camera with default characteristics and attach a face detector that will only
-	 * pick out the largest face in the frame.
+	 * pick out the largest face in the frame.  If warmUp() was called, this waits for it to
+	 * finish; otherwise it warms up and waits.
 	 *
 	 * @param ctx Android Application Context
 	 * @param config JSON string that defines the configuration to be used to initialize the device.
@@ -105,99 +150,396 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 	@Override
 	public boolean initialize(Context ctx, String config)
 	{
+		//TODO: add in json parsing of config string to get capture parameters
 		try
 		{
-			//TODO: add in json parsing of config string to get capture parameters
-
-			FaceDetector detector = new FaceDetector.Builder(ctx)
-					.setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
-					.setProminentFaceOnly(true)
-					.build();
-
-			detector.setProcessor(new LargestFaceFocusingProcessor.Builder(detector, new FaceTracker())
-					.build());
+			return warmUp(ctx).get();
+		}
+		catch (ExecutionException ex)
+		{
+			Log.e(TAG, "Unable to initialize the camera.", ex.getCause());
+			return false;
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 
-			if (!detector.isOperational())
+	/**
+	 * Initialize the device in the background, so the app can start it early, such as when the
+	 * process starts, and the capture screen opens without waiting for it.  The face detector is
+	 * built while another thread finds the camera and opens the capture store.  The warm-up runs
+	 * on threads of its own, not the device's executor: it blocks for hundreds of milliseconds,
+	 * which would hold a worker of the shared pool that the per-frame work of every device
+	 * needs.  Calling this again returns the same future until
+	 * the device is destroyed, unless the warm-up failed or was cancelled, in which case it starts
+	 * again.  The time each stage took is kept in getStartupMetrics().
+	 *
+	 * @param ctx Android Application Context
+	 * @return Completes with true if the device initialized, else false.
+	 */
+	public synchronized Future<Boolean> warmUp(final Context ctx)
+	{
+		if (m_warmUp != null && !hasFailed(m_warmUp))
+		{
+			return m_warmUp;
+		}
+		m_startupMetrics.restart();
+		FutureTask<Boolean> warmUp = new FutureTask<Boolean>(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
 			{
-				// Note: The first time that an app using face API is installed on a device, GMS will
-				// download a native library to the device in order to do detection.  Usually this
-				// completes before the app is run for the first time.  But if that download has not yet
-				// completed, then the above call will not detect any faces.
-				//
-				// isOperational() can be used to check if the required native library is currently
-				// available.  The detector will automatically become operational once the library
-				// download completes on device.
-				Log.w(TAG, "Face detector dependencies are not yet available.");
+				try
+				{
+					return warmUpNow(ctx);
+				}
+				catch (Exception ex)
+				{
+					Log.e(TAG, "Unable to initialize the camera.", ex);
+					return false;
+				}
 			}
+		});
+		m_warmUp = warmUp;
+		new Thread(warmUp, "FaceWarmUp").start();
+		return warmUp;
+	}
 
-			m_cameraSource = new CameraSource.Builder(ctx, detector)
-					.setRequestedPreviewSize(640, 480)
-					.setFacing(getCameraSource(ctx))
-					.setRequestedFps(30.0f)
-					.build();
-
+	/**
+	 * Whether a warm-up has ended without initializing the device.
+	 */
+	private static boolean hasFailed(Future<Boolean> warmUp)
+	{
+		if (!warmUp.isDone())
+		{
+			return false;
+		}
+		if (warmUp.isCancelled())
+		{
+			return true;
+		}
+		try
+		{
+			return !warmUp.get();
+		}
+		catch (ExecutionException ex)
+		{
 			return true;
 		}
-		catch (Exception ex)
+		catch (InterruptedException ex)
 		{
-			ex.printStackTrace();
+			Thread.currentThread().interrupt();
 			return false;
 		}
 	}
 
 	/**
-	 * Use the front facing camera if available.  If there is no front camera, choose the last
-	 * available internal camera.
-	 *
-	 * @return
+	 * The stream of detected faces, for subscribers that do not need a View.  A subscriber must
+	 * release() each FaceSample it gets, as a viewer does.
+	 */
+	@Override
+	public FaceSamplePublisher getPublisher()
+	{
+		return m_publisher;
+	}
+
+	/**
+	 * The listeners called with each detected face.  A listener added with DIRECT is called on
+	 * the detector thread before the sample is queued for the viewers, so it must be quick.
 	 */
-	private int getCameraSource(Context ctx) throws CameraAccessException
+	@Override
+	public FaceSampleDispatcher getListenerDispatcher()
 	{
-		int bestCamera = -1;
+		return m_dispatcher;
+	}
 
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
-		{
-			CameraManager manager = (CameraManager) ctx.getSystemService(Context.CAMERA_SERVICE);
+	/**
+	 * The time each stage of the startup took, from the start of the warm-up to the first face.
+	 */
+	public StartupMetrics getStartupMetrics()
+	{
+		return m_startupMetrics;
+	}
+
+	/**
+	 * Build the detector and the camera source.  Runs on the warm-up thread.
+	 */
+	boolean warmUpNow(final Context ctx) throws Exception
+	{
+		// a new session starts each time the device is initialized
+		setSessionId(System.currentTimeMillis());
 
-			for (String camera : manager.getCameraIdList())
+		// find the camera and open the store while the detector is built, which takes longest
+		FutureTask<CameraCapabilityCache> camera = new FutureTask<CameraCapabilityCache>(new Callable<CameraCapabilityCache>()
+		{
+			@Override
+			public CameraCapabilityCache call() throws Exception
 			{
-				try
+				CameraCapabilityCache capabilities = loadCameraCapabilities(ctx);
+				m_startupMetrics.mark(StartupMetrics.Stage.CAMERA_RESOLVED);
+				if (getCaptureStore() == null)
 				{
-					int curCamera = Integer.parseInt(camera);
-					// 0 is rear facing camera, 1 is front.
-					if (curCamera == 1)
+					try
 					{
-						return curCamera;
+						setCaptureStore(new CaptureStore(new File(ctx.getFilesDir(), "captures")));
+					}
+					catch (IOException ex)
+					{
+						Log.e(TAG, "Unable to open the capture store.  Pictures will not be saved.", ex);
 					}
-					bestCamera = curCamera;
-				}
-				catch (NumberFormatException ex)
-				{
-					// do nothing.  this is an external camera.
 				}
+				return capabilities;
 			}
-			return bestCamera;
+		});
+		new Thread(camera, "FaceWarmUpCamera").start();
+
+		FaceDetector faceDetector = new FaceDetector.Builder(ctx)
+				.setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
+				.setLandmarkType(FaceDetector.ALL_LANDMARKS)
+				.setProminentFaceOnly(true)
+				.build();
+
+		// wrap the detector so the trackers can get at the frame the face was found in
+		FaceFrameDetector detector = new FaceFrameDetector(faceDetector);
+		detector.setFrameListener(new BurstFrameListener());
+		detector.setProcessor(new LargestFaceFocusingProcessor.Builder(detector, new FaceTracker())
+				.build());
+
+		// a new session starts with an empty history
+		FaceHistory history = getFaceHistory();
+		if (history != null)
+		{
+			history.clear();
 		}
-		else
+
+		m_startupMetrics.mark(StartupMetrics.Stage.DETECTOR_READY);
+
+		CameraCapabilityCache capabilities;
+		try
+		{
+			capabilities = camera.get();
+		}
+		catch (ExecutionException ex)
+		{
+			detector.release();
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		}
+
+		// once the detector has been operational, its library is installed and it stays so
+		if (!capabilities.isDetectorOperational() && detector.isOperational())
+		{
+			capabilities.setDetectorOperational(true);
+			saveCameraCapabilities(capabilities);
+		}
+		else if (!capabilities.isDetectorOperational())
 		{
-			int numCameras= Camera.getNumberOfCameras();
-			for(int i=0;i<numCameras;i++)
+			// Note: The first time that an app using face API is installed on a device, GMS will
+			// download a native library to the device in order to do detection.  Usually this
+			// completes before the app is run for the first time.  But if that download has not yet
+			// completed, then the above call will not detect any faces.
+			//
+			// isOperational() can be used to check if the required native library is currently
+			// available.  The detector will automatically become operational once the library
+			// download completes on device.
+			Log.w(TAG, "Face detector dependencies are not yet available.");
+		}
+
+		// use the front camera if there is one, at settings it supports; without its parameters
+		// the settings wanted are asked for and the camera picks the nearest
+		CameraCapabilities selected = capabilities.selectCamera(CameraCapabilities.FACING_FRONT);
+		if (selected == null)
+		{
+			detector.release();
+			throw new NoDeviceFoundException();
+		}
+		int[] size = new int[2];
+		selected.choosePreviewSize(PREVIEW_WIDTH, PREVIEW_HEIGHT, size);
+		CameraSource cameraSource = new CameraSource.Builder(ctx, detector)
+				.setRequestedPreviewSize(size[0], size[1])
+				.setFacing(selected.getFacing())
+				.setRequestedFps(selected.chooseFps(PREVIEW_FPS))
+				.build();
+
+		m_startupMetrics.mark(StartupMetrics.Stage.INITIALIZED);
+		Log.i(TAG, "Warmed up: " + m_startupMetrics);
+		onWarmedUp(detector, cameraSource);
+		return true;
+	}
+
+	/**
+	 * Hand the detector and camera source built by a warm-up to the device, and start the
+	 * preview if it was asked for while warming up.  A stop() since then cancels that request.
+	 */
+	void onWarmedUp(FaceFrameDetector detector, CameraSource cameraSource)
+	{
+		boolean startPreview;
+		synchronized (this)
+		{
+			m_detector = detector;
+			m_cameraSource = cameraSource;
+			startPreview = m_previewPending;
+			m_previewPending = false;
+		}
+		if (startPreview)
+		{
+			startPreview();
+		}
+	}
+
+	/**
+	 * Enable alignment of detected faces.  Each FaceSample sent to the viewers will carry the
+	 * face warped to the canonical eye position and size of the aligner.  Alignment runs on the
+	 * detector thread, so the aligner must not be used elsewhere while it is set.
+	 *
+	 * @param aligner The aligner to use, or null to disable alignment.
+	 */
+	public synchronized void setFaceAligner(FaceAligner aligner)
+	{
+		m_alignedFacePool = aligner == null ? null :
+				new GrayImagePool(aligner.getOutputWidth(), aligner.getOutputHeight(), ALIGNED_FACE_POOL_SIZE);
+		m_faceAligner = aligner;
+	}
+
+	/**
+	 * Get the aligner used on detected faces, or null if alignment is not enabled.
+	 */
+	public FaceAligner getFaceAligner()
+	{
+		return m_faceAligner;
+	}
+
+	/**
+	 * Set the analyzer used to measure the sharpness and exposure of each detected face.  The
+	 * measurements are attached to every FaceSample sent to the viewers.  Quality analysis is
+	 * enabled by default and runs on the detector thread.
+	 *
+	 * @param analyzer The analyzer to use, or null to disable quality analysis.
+	 */
+	public synchronized void setFrameQualityAnalyzer(FrameQualityAnalyzer analyzer)
+	{
+		m_qualityAnalyzer = analyzer;
+	}
+
+	/**
+	 * Get the analyzer used to measure face quality, or null if quality analysis is disabled.
+	 */
+	public FrameQualityAnalyzer getFrameQualityAnalyzer()
+	{
+		return m_qualityAnalyzer;
+	}
+
+	/**
+	 * Set whether burst frames whose face region the quality analyzer does not find acceptable
+	 * are dropped before they are encoded, so blurred or badly exposed frames are never stored
+	 * or uploaded.  A dropped frame still counts against the burst.  On by default; it has no
+	 * effect while quality analysis is disabled.
+	 *
+	 * @param reject
+	 */
+	public synchronized void setRejectPoorFrames(boolean reject)
+	{
+		m_rejectPoorFrames = reject;
+	}
+
+	/**
+	 * Whether burst frames of poor quality are dropped.
+	 */
+	public synchronized boolean isRejectPoorFrames()
+	{
+		return m_rejectPoorFrames;
+	}
+
+	/**
+	 * Number of burst frames dropped because of their quality.
+	 */
+	public int getRejectedFrameCount()
+	{
+		return m_rejectedFrames.get();
+	}
+
+	/**
+	 * Enable blink based liveness detection.  The eye open probabilities of every detected face
+	 * are fed to the detector on the detector thread, and the current decision for the face track
+	 * is attached to each FaceSample sent to the viewers.
+	 *
+	 * @param detector The liveness detector to use, or null to disable liveness detection.
+	 */
+	public synchronized void setLivenessDetector(BlinkLivenessDetector detector)
+	{
+		m_livenessDetector = detector;
+	}
+
+	/**
+	 * Get the liveness detector, or null if liveness detection is not enabled.
+	 */
+	public BlinkLivenessDetector getLivenessDetector()
+	{
+		return m_livenessDetector;
+	}
+
+	/**
+	 * Set the history that every detected face is recorded in.  The history is kept until the
+	 * device is initialized again, so it can be queried after the capture has stopped.  A
+	 * history with the default capacity is used unless this is called.
+	 *
+	 * @param history The history to use, or null to stop recording faces.
+	 */
+	public synchronized void setFaceHistory(FaceHistory history)
+	{
+		m_faceHistory = history;
+	}
+
+	/**
+	 * Get the history of detected faces, or null if faces are not being recorded.
+	 */
+	public synchronized FaceHistory getFaceHistory()
+	{
+		return m_faceHistory;
+	}
+
+	/**
+	 * Read the capabilities of the cameras from the cache, or probe the cameras if the cache is
+	 * missing or was written before the system or the app was upgraded.  Runs on the warm-up
+	 * camera thread.
+	 */
+	private CameraCapabilityCache loadCameraCapabilities(Context ctx)
+	{
+		CameraCapabilityCache capabilities = new CameraCapabilityCache(
+				new File(ctx.getCacheDir(), CAMERA_CAPABILITIES_FILE), CameraProbe.fingerprint(ctx));
+		if (capabilities.load())
+		{
+			if (capabilities.isComplete())
 			{
-				Camera.CameraInfo info = new Camera.CameraInfo();
-				Camera.getCameraInfo(i, info);
-				if(CAMERA_FACING_FRONT == info.facing)
-				{
-					return CameraSource.CAMERA_FACING_FRONT;
-				}
-				bestCamera = info.facing;
+				return capabilities;
 			}
+			// a camera another app had open last time is opened again; the rest are kept
+			capabilities.setCameras(CameraProbe.probeMissing(capabilities.getCameras()));
 		}
-		// no camera found;
-		if (bestCamera == -1)
+		else
 		{
-			throw new NoDeviceFoundException();
+			capabilities.setCameras(CameraProbe.probe());
+		}
+		saveCameraCapabilities(capabilities);
+		return capabilities;
+	}
+
+	/**
+	 * Save the capabilities, including the facing of a camera that could not be opened to read
+	 * its parameters, whose parameters are probed again next time.
+	 */
+	private void saveCameraCapabilities(CameraCapabilityCache capabilities)
+	{
+		try
+		{
+			capabilities.save();
+		}
+		catch (IOException ex)
+		{
+			Log.w(TAG, "Unable to save the camera capabilities.", ex);
 		}
-		return bestCamera;
 	}
 
 	/**
@@ -206,19 +548,50 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 	@Override
 	public void destroy()
 	{
+		synchronized (this)
+		{
+			// the next initialize() warms up again
+			m_warmUp = null;
+			m_previewPending = false;
+			cancelColdStop();
+			if (m_pauseTimer != null)
+			{
+				m_pauseTimer.shutdown();
+				m_pauseTimer = null;
+			}
+		}
+		m_publisher.complete();
 		if (m_cameraSource != null)
 		{
 			m_cameraSource.release();
 		}
+
+		try
+		{
+			closeBurstWriter();
+		}
+		catch (InterruptedException ex)
+		{
+			Log.w(TAG, "Interrupted while saving burst frames.");
+		}
 	}
 
 	/**
 	 * Starts the preview of a device.  This can be useful for devices that provide feedback prior
-	 * to actually capturing data.
+	 * to actually capturing data.  If the device is still warming up, the preview starts as soon
+	 * as it is ready.
 	 */
 	@Override
 	public void startPreview()
 	{
+		synchronized (this)
+		{
+			if (m_cameraSource == null && m_warmUp != null && !m_warmUp.isDone())
+			{
+				m_previewPending = true;
+				return;
+			}
+		}
 		if (m_cameraSource != null)
 		{
 			try
@@ -231,6 +604,7 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 					if (v instanceof SurfaceView)
 					{
 						m_cameraSource.start(((SurfaceView)v).getHolder());
+						m_startupMetrics.mark(StartupMetrics.Stage.CAMERA_OPEN);
 						setState(State.PREVIEW_STARTED);
 						break;
 					}
@@ -256,29 +630,149 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 	}
 
 	/**
+	 * Capture the next preview frames as they are, without waiting for the camera to take and
+	 * encode a picture.  The frames are encoded with the burst codec and saved in the background.
+	 * If frames come faster than they can be saved, some are dropped rather than slowing the
+	 * preview; the burst writer counts them.
+	 *
+	 * @param frameCount Number of frames to capture
+	 */
+	public void startBurstCapture(int frameCount)
+	{
+		synchronized (this)
+		{
+			if (m_burstWriter == null)
+			{
+				m_burstWriter = new BurstWriter(m_burstCodec, BurstWriter.DEFAULT_BUFFER_COUNT, new BurstWriter.Sink()
+				{
+					@Override
+					public void save(byte[] data, CaptureRecord record) throws IOException
+					{
+						saveCapture(data, record);
+					}
+				});
+			}
+			m_burstRemaining = frameCount;
+		}
+	}
+
+	/**
+	 * Set the codec that burst frames are saved with.  The default stores them as LZ4 compressed
+	 * NV21, which keeps up with the camera; a CaptureTranscoder can turn them into JPEGs later.
+	 *
+	 * @param codec
+	 * @throws InterruptedException If interrupted while frames of the last burst are saved.
+	 */
+	public void setBurstCodec(CaptureCodec codec) throws InterruptedException
+	{
+		synchronized (this)
+		{
+			m_burstCodec = codec;
+		}
+		closeBurstWriter();
+	}
+
+	/**
+	 * End the burst, if any, and wait for its frames to be saved.  The next burst starts a new
+	 * writer with the burst codec.
+	 */
+	private void closeBurstWriter() throws InterruptedException
+	{
+		BurstWriter writer;
+		synchronized (this)
+		{
+			writer = m_burstWriter;
+			m_burstWriter = null;
+			m_burstRemaining = 0;
+		}
+		if (writer != null)
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * The writer of burst frames, for its counts and timings, or null if there has been no burst.
+	 */
+	public synchronized BurstWriter getBurstWriter()
+	{
+		return m_burstWriter;
+	}
+
+	/**
+	 * Save the picture in the background, since the camera calls this on the UI thread.  It is
+	 * saved on the device's executor if it has one.
 	 *
-	 * @param picture
+	 * @param picture JPEG image data
 	 */
 	@Override
-	public void onPictureTaken(byte[] picture)
+	public void onPictureTaken(final byte[] picture)
 	{
 		Log.d(TAG, "Picture Taken!!!");
-		// TODO: Save file to temp storage and save in capturedFiles collection
+
+		// tag the picture with the face that was in view when it was taken
+		final CaptureRecord record = new CaptureRecord();
+		synchronized (this)
+		{
+			record.set(m_lastFace);
+		}
+		record.mediaType = "image/jpeg";
+		record.timestamp = System.currentTimeMillis();
+
+		Runnable save = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					saveCapture(picture, record);
+				}
+				catch (IOException ex)
+				{
+					Log.e(TAG, "Unable to save picture.", ex);
+				}
+			}
+		};
+		Executor executor = getExecutor();
+		if (executor != null)
+		{
+			executor.execute(save);
+		}
+		else
+		{
+			new Thread(save, "FaceCaptureSave").start();
+		}
 	}
 
 	/**
-	 * Pause the preview stream from the camera
+	 * Pause the preview.  The camera keeps running, but its frames are dropped before faces are
+	 * detected in them and nothing is sent to the viewers, so resume() does not have to open the
+	 * camera again and the viewers keep their consumers.  If the device stays paused for longer
+	 * than the warm pause timeout, the camera is stopped and resume() starts it again.
 	 */
 	public void pause()
 	{
 		switch (getState())
 		{
 			case PREVIEW_STARTED:
-				setState(State.PAUSED);
-				if (m_cameraSource != null)
+				synchronized (this)
 				{
-					m_cameraSource.stop();
+					m_resumeStart = 0;
+					if (m_detector != null)
+					{
+						m_detector.setGated(true);
+					}
+					if (m_warmPauseTimeout > 0)
+					{
+						scheduleColdStop();
+					}
+					else
+					{
+						stopCamera();
+					}
 				}
+				setState(State.PAUSED);
 				break;
 
 			case STOPPED:
@@ -291,7 +785,9 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 	}
 
 	/**
-	 * Resume the preview from the camera
+	 * Resume the preview.  After a warm pause the frames flow again from the next one; after the
+	 * camera was stopped it is started again.  The time to the first frame is kept in
+	 * getResumeLatency().
 	 */
 	public void resume()
 	{
@@ -305,16 +801,48 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 				throw new DeviceStateException();
 
 			case PAUSED:
-				startPreview();
+				boolean warm;
+				synchronized (this)
+				{
+					cancelColdStop();
+					warm = !m_cameraStopped;
+					m_cameraStopped = false;
+					m_resumeWarm = warm;
+					m_resumeStart = System.nanoTime();
+					if (m_detector != null)
+					{
+						m_detector.setGated(false);
+					}
+				}
+				if (warm)
+				{
+					setState(State.PREVIEW_STARTED);
+				}
+				else
+				{
+					startPreview();
+				}
 				break;
 		}
 	}
 
 	/**
-	 * Stop the camera.
+	 * Stop the camera.  A preview waiting for the warm-up to finish is not started.
 	 */
 	public void stop()
 	{
+		synchronized (this)
+		{
+			// the surface the preview was asked for is likely gone
+			m_previewPending = false;
+			cancelColdStop();
+			m_cameraStopped = false;
+			m_resumeStart = 0;
+			if (m_detector != null)
+			{
+				m_detector.setGated(false);
+			}
+		}
 		if (m_cameraSource != null)
 		{
 			m_cameraSource.stop();
@@ -322,6 +850,102 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 		setState(State.STOPPED);
 	}
 
+	/**
+	 * Set how long the camera keeps running while the device is paused.  After that the camera
+	 * is stopped, which frees it and saves power, and resuming takes as long as opening it.
+	 *
+	 * @param millis Timeout in milliseconds, or 0 to stop the camera as soon as it is paused.
+	 */
+	public synchronized void setWarmPauseTimeout(long millis)
+	{
+		m_warmPauseTimeout = millis;
+	}
+
+	public synchronized long getWarmPauseTimeout()
+	{
+		return m_warmPauseTimeout;
+	}
+
+	/**
+	 * Time in milliseconds from the last resume() to the first frame after it, or -1 if there
+	 * has not been one.
+	 */
+	public long getResumeLatency()
+	{
+		return m_resumeLatency;
+	}
+
+	/**
+	 * Whether the last resume() found the camera still running.
+	 */
+	public synchronized boolean wasLastResumeWarm()
+	{
+		return m_resumeWarm;
+	}
+
+	/**
+	 * Stop the camera once the warm pause timeout passes, unless resumed before then.  Called
+	 * with the lock.
+	 */
+	private void scheduleColdStop()
+	{
+		cancelColdStop();
+		if (m_pauseTimer == null)
+		{
+			m_pauseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					// must not keep the process alive for a stop that is no longer needed
+					Thread thread = new Thread(runnable, "FacePauseTimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		m_coldStop = m_pauseTimer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (FaceCaptureDevice.this)
+				{
+					if (getState() == State.PAUSED && m_coldStop != null)
+					{
+						Log.d(TAG, "Paused for " + m_warmPauseTimeout + " ms, stopping the camera.");
+						m_coldStop = null;
+						stopCamera();
+					}
+				}
+			}
+		}, m_warmPauseTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancel the pending cold stop, if any.  Called with the lock.
+	 */
+	private void cancelColdStop()
+	{
+		if (m_coldStop != null)
+		{
+			m_coldStop.cancel(false);
+			m_coldStop = null;
+		}
+	}
+
+	/**
+	 * Stop the camera while paused.  Called with the lock.
+	 */
+	private void stopCamera()
+	{
+		m_cameraStopped = true;
+		if (m_cameraSource != null)
+		{
+			m_cameraSource.stop();
+		}
+	}
+
 
 	/**
 	 * Add a CaptureView that will present the data captured by the device.  All viewers receive
@@ -369,6 +993,117 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 	}
 
 
+	/**
+	 * Hash the face region of the current frame.  Called on the detector thread.
+	 *
+	 * @return The hash, or 0 if there is no frame.
+	 */
+	private long hashFace(DuplicateSuppressor suppressor, float left, float top, float width, float height)
+	{
+		GrayImage frame = m_detector.getFrameImage();
+		if (frame == null)
+		{
+			return 0;
+		}
+		FrameRotation.toSensorRect(left, top, left + width, top + height, m_detector.getFrameRotation(),
+				frame.getWidth(), frame.getHeight(), m_hashRoi);
+		return suppressor.hash(frame, (int) m_hashRoi[0], (int) m_hashRoi[1],
+				(int) (m_hashRoi[2] - m_hashRoi[0]), (int) (m_hashRoi[3] - m_hashRoi[1]));
+	}
+
+
+	//==============================================================================================
+	// Burst Capture
+	//==============================================================================================
+
+	/**
+	 * Copies preview frames into the burst writer while a burst is running.  This runs on the
+	 * detector thread, so it only copies; encoding and saving happen on the writer thread.
+	 */
+	private class BurstFrameListener implements FaceFrameDetector.FrameListener
+	{
+		@Override
+		public void onFrame(FaceFrameDetector detector)
+		{
+			m_startupMetrics.mark(StartupMetrics.Stage.FIRST_FRAME);
+			long resumeStart = m_resumeStart;
+			if (resumeStart != 0)
+			{
+				m_resumeStart = 0;
+				m_resumeLatency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resumeStart);
+				Log.i(TAG, "Resumed in " + m_resumeLatency + " ms");
+			}
+
+			BurstWriter writer;
+			CaptureRecord record;
+			synchronized (FaceCaptureDevice.this)
+			{
+				if (m_burstRemaining <= 0 || m_burstWriter == null)
+				{
+					return;
+				}
+				m_burstRemaining--;
+				writer = m_burstWriter;
+				record = new CaptureRecord();
+				record.set(m_lastFace);
+			}
+
+			// a blurred or badly exposed frame is not worth encoding, storing and uploading
+			if (!isAcceptable(detector, record))
+			{
+				m_rejectedFrames.incrementAndGet();
+				return;
+			}
+
+			// hash this frame where the face was last seen, so near identical frames are dropped
+			DuplicateSuppressor suppressor = getDuplicateSuppressor();
+			if (suppressor != null && record.width > 0)
+			{
+				record.perceptualHash = hashFace(suppressor, record.left, record.top, record.width, record.height);
+			}
+
+			YuvFrame frame = writer.obtainFrame();
+			if (frame == null)
+			{
+				return;
+			}
+			if (detector.copyFrame(frame))
+			{
+				writer.submit(frame, record);
+			}
+			else
+			{
+				writer.releaseFrame(frame);
+			}
+		}
+
+		/**
+		 * Measure the frame where the face was last seen, and check it against the thresholds of
+		 * the quality analyzer.  A frame is acceptable if it cannot be measured.
+		 */
+		private boolean isAcceptable(FaceFrameDetector detector, CaptureRecord record)
+		{
+			FrameQualityAnalyzer analyzer;
+			synchronized (FaceCaptureDevice.this)
+			{
+				analyzer = m_rejectPoorFrames ? m_qualityAnalyzer : null;
+			}
+			GrayImage frame;
+			if (analyzer == null || record.width <= 0 || (frame = detector.getFrameImage()) == null)
+			{
+				return true;
+			}
+
+			FrameRotation.toSensorRect(record.left, record.top, record.left + record.width, record.top + record.height,
+					detector.getFrameRotation(), frame.getWidth(), frame.getHeight(), mRoi);
+			analyzer.analyze(frame, (int) mRoi[0], (int) mRoi[1], (int) (mRoi[2] - mRoi[0]), (int) (mRoi[3] - mRoi[1]), mQuality);
+			return analyzer.isAcceptable(mQuality);
+		}
+
+		private final float[] 		mRoi = new float[4];
+		private final FrameQuality 	mQuality = new FrameQuality();
+	}
+
 
 	//==============================================================================================
 	// Graphic Face Tracker
@@ -397,14 +1132,18 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 
 		}
 
+		private final float[] 	mRoi = new float[4];
+		private int 			mFaceId = -1;
+
 		/**
 		 * Start tracking the detected face instance within the face overlay.
 		 */
 		@Override
 		public void onNewItem(int faceId, Face item)
 		{
-			// nothing to do here for simple face detection.  The detector only tracks the
-			// most prominent face in the view.
+			// The detector only tracks the most prominent face in the view, so there is only
+			// ever one face id to remember.
+			mFaceId = faceId;
 		}
 
 		/**
@@ -413,18 +1152,187 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 		@Override
 		public void onUpdate(FaceDetector.Detections<Face> detectionResults, Face face)
 		{
+			if (m_startupMetrics.mark(StartupMetrics.Stage.FIRST_FACE))
+			{
+				Log.i(TAG, "Startup: " + m_startupMetrics);
+			}
+			FaceSample sample = new FaceSample(face, m_detector.getFrameTimestamp());
+			sample.stamp(PipelineLatency.Stage.FRAME, m_detector.getFrameNanoTime());
+			sample.stamp(PipelineLatency.Stage.DETECTED);
+			FaceHistory history = getFaceHistory();
+			if (history != null)
+			{
+				history.add(face, sample.getFrameTimestamp());
+			}
+			measureQuality(sample);
+			checkLiveness(sample);
+			alignFace(sample);
+			rememberFace(sample);
+
+			CaptureSession session = getCaptureSession();
+			if (session != null)
+			{
+				sample.retain();
+				session.offer(FaceCaptureDevice.this, m_detector.getFrameNanoTime(), sample);
+			}
+			if (m_publisher.hasSubscribers())
+			{
+				m_publisher.publish(sample);
+			}
+			if (m_dispatcher.hasListeners())
+			{
+				m_dispatcher.dispatch(sample);
+			}
+
+			if (!mViewerList.isEmpty())
+			{
+				sample.stamp(PipelineLatency.Stage.ENQUEUED);
+			}
 			try
 			{
 				for (CaptureView viewer : mViewerList)
 				{
-					viewer.getCaptureBuffer().put(face);
-
+					sample.retain();
+					try
+					{
+						viewer.getCaptureBuffer().put(sample);
+					}
+					catch (InterruptedException e)
+					{
+						sample.release();
+						throw e;
+					}
 				}
 			}
 			catch (InterruptedException e)
 			{
 				e.printStackTrace();
 			}
+			finally
+			{
+				sample.release();
+			}
+		}
+
+		/**
+		 * Measure the sharpness and exposure of the face region if quality analysis is enabled.
+		 */
+		private void measureQuality(FaceSample sample)
+		{
+			FrameQualityAnalyzer analyzer;
+			synchronized (FaceCaptureDevice.this)
+			{
+				analyzer = m_qualityAnalyzer;
+			}
+			if (analyzer == null)
+			{
+				return;
+			}
+
+			GrayImage frame = m_detector.getFrameImage();
+			if (frame == null)
+			{
+				return;
+			}
+
+			Face face = sample.getFace();
+			float left = face.getPosition().x;
+			float top = face.getPosition().y;
+			FrameRotation.toSensorRect(left, top, left + face.getWidth(), top + face.getHeight(),
+					m_detector.getFrameRotation(), frame.getWidth(), frame.getHeight(), mRoi);
+
+			FrameQuality quality = m_qualityPool.acquire();
+			analyzer.analyze(frame, (int) mRoi[0], (int) mRoi[1], (int) (mRoi[2] - mRoi[0]), (int) (mRoi[3] - mRoi[1]), quality);
+			sample.setQuality(quality, m_qualityPool);
+		}
+
+		/**
+		 * Keep the bounds and sharpness of the face so a picture taken now can be tagged with them.
+		 */
+		private void rememberFace(FaceSample sample)
+		{
+			Face face = sample.getFace();
+			long hash = 0;
+			DuplicateSuppressor suppressor = getDuplicateSuppressor();
+			if (suppressor != null)
+			{
+				hash = hashFace(suppressor, face.getPosition().x, face.getPosition().y, face.getWidth(), face.getHeight());
+			}
+
+			synchronized (FaceCaptureDevice.this)
+			{
+				m_lastFace.setBounds(face.getPosition().x, face.getPosition().y, face.getWidth(), face.getHeight());
+				m_lastFace.quality = sample.getQuality() == null ? 0 : sample.getQuality().getSharpness();
+				m_lastFace.perceptualHash = hash;
+			}
+		}
+
+		/**
+		 * Clear the remembered face, so that a capture taken once it has gone carries neither its
+		 * bounds nor its hash and is not dropped as a duplicate of the last capture of it.
+		 */
+		private void forgetFace()
+		{
+			synchronized (FaceCaptureDevice.this)
+			{
+				m_lastFace.setBounds(0, 0, 0, 0);
+				m_lastFace.quality = 0;
+				m_lastFace.perceptualHash = 0;
+			}
+		}
+
+		/**
+		 * Feed the eye open probabilities to the liveness detector if liveness detection is enabled.
+		 */
+		private void checkLiveness(FaceSample sample)
+		{
+			BlinkLivenessDetector detector;
+			synchronized (FaceCaptureDevice.this)
+			{
+				detector = m_livenessDetector;
+			}
+			if (detector == null)
+			{
+				return;
+			}
+
+			Face face = sample.getFace();
+			sample.setLiveness(detector.update(face.getId(), sample.getFrameTimestamp(),
+					face.getIsLeftEyeOpenProbability(), face.getIsRightEyeOpenProbability()));
+		}
+
+		/**
+		 * Align the face of the sample into a pooled image if alignment is enabled.
+		 */
+		private void alignFace(FaceSample sample)
+		{
+			FaceAligner aligner;
+			GrayImagePool pool;
+			synchronized (FaceCaptureDevice.this)
+			{
+				aligner = m_faceAligner;
+				pool = m_alignedFacePool;
+			}
+			if (aligner == null)
+			{
+				return;
+			}
+
+			GrayImage frame = m_detector.getFrameImage();
+			if (frame == null)
+			{
+				return;
+			}
+
+			GrayImage aligned = pool.acquire();
+			if (aligner.align(frame, sample.getFace(), m_detector.getFrameRotation(), aligned))
+			{
+				sample.setAlignedFace(aligned, pool);
+			}
+			else
+			{
+				pool.release(aligned);
+			}
 		}
 
 		/**
@@ -433,7 +1341,7 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 		@Override
 		public void onMissing(FaceDetector.Detections<Face> detectionResults)
 		{
-			// nothing to do here for simple face detection.
+			forgetFace();
 		}
 
 		/**
@@ -443,9 +1351,44 @@ public class FaceCaptureDevice extends CaptureDevice implements CameraSource.Pic
 		@Override
 		public void onDone()
 		{
-			// nothing to do here for simple face detection
+			forgetFace();
+			BlinkLivenessDetector detector;
+			synchronized (FaceCaptureDevice.this)
+			{
+				detector = m_livenessDetector;
+			}
+			if (detector != null)
+			{
+				detector.removeTrack(mFaceId);
+			}
 		}
 	}
 
-	private CameraSource m_cameraSource = null;
+	private CameraSource 		m_cameraSource = null;
+	private FaceFrameDetector 	m_detector = null;
+	private FaceAligner 		m_faceAligner = null;
+	private GrayImagePool 		m_alignedFacePool = null;
+	private FrameQualityAnalyzer m_qualityAnalyzer = new FrameQualityAnalyzer();
+	private final FrameQualityPool m_qualityPool = new FrameQualityPool(QUALITY_POOL_SIZE);
+	private BlinkLivenessDetector m_livenessDetector = null;
+	private FaceHistory 		m_faceHistory = new FaceHistory();
+	private final CaptureRecord m_lastFace = new CaptureRecord();
+	private CaptureCodec 		m_burstCodec = new Lz4Nv21Codec();
+	private BurstWriter 		m_burstWriter = null;
+	private int 				m_burstRemaining = 0;
+	private boolean 			m_rejectPoorFrames = true;
+	private final AtomicInteger m_rejectedFrames = new AtomicInteger();
+	private final float[] 		m_hashRoi = new float[4];
+	private final StartupMetrics m_startupMetrics = new StartupMetrics();
+	private Future<Boolean> 	m_warmUp = null;
+	private boolean 			m_previewPending = false;
+	private long 				m_warmPauseTimeout = DEFAULT_WARM_PAUSE_TIMEOUT_MS;
+	private ScheduledExecutorService m_pauseTimer = null;
+	private ScheduledFuture<?> 	m_coldStop = null;
+	private boolean 			m_cameraStopped = false;
+	private boolean 			m_resumeWarm = false;
+	private volatile long 		m_resumeStart = 0;
+	private volatile long 		m_resumeLatency = -1;
+	private final FaceSamplePublisher m_publisher = new FaceSamplePublisher();
+	private final FaceSampleDispatcher m_dispatcher = new FaceSampleDispatcher();
 }
@@ -1,14 +1,13 @@
 package com.openbiometrix.capture;
 
-import com.google.android.gms.vision.face.Face;
-
 /**
- * Convenience class to define a CaptureBuffer of type Face
+ * Convenience class to define a CaptureBuffer of type FaceSample.  Flush on control is on, since
+ * faces from before a pause or stop are of no use, and the samples it drops are released.
  *
  * Created by petebyhre on 4/10/17.
  */
 
-public class FaceDetectorBuffer extends CaptureBuffer<Face>
+public class FaceDetectorBuffer extends CaptureBuffer<FaceSample>
 {
 	/**
 	 * Default constructor
@@ -16,6 +15,7 @@ public class FaceDetectorBuffer extends CaptureBuffer<Face>
 	public FaceDetectorBuffer()
 	{
 		super();
+		setFlushOnControl(true);
 	}
 
 	/**
@@ -26,5 +26,12 @@ public class FaceDetectorBuffer extends CaptureBuffer<Face>
 	public FaceDetectorBuffer(int capacity)
 	{
 		super(capacity);
+		setFlushOnControl(true);
+	}
+
+	@Override
+	protected void onDiscard(FaceSample sample)
+	{
+		sample.release();
 	}
 }
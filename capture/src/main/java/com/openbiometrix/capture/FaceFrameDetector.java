@@ -0,0 +1,212 @@
+package com.openbiometrix.capture;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+import com.openbiometrix.capture.codec.YuvFrame;
+import com.openbiometrix.capture.image.GrayImage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a FaceDetector so the frame that faces were detected in is available to the trackers.
+ * The CameraSource calls detect() and then the processor on the same thread, so while a tracker
+ * is being updated the frame returned by getFrameImage() is the frame the face came from.
+ *
+ * The frame image is only valid on the detector thread during the tracker callbacks.
+ */
+class FaceFrameDetector extends Detector<Face>
+{
+	/**
+	 * Told about every frame before faces are detected in it, on the detector thread.
+	 */
+	interface FrameListener
+	{
+		void onFrame(FaceFrameDetector detector);
+	}
+
+	/**
+	 * @param delegate The detector that does the actual face detection.
+	 */
+	FaceFrameDetector(FaceDetector delegate)
+	{
+		mDelegate = delegate;
+	}
+
+	/**
+	 * Detect the faces in a frame and pass them to the processor, unless gated.  A gated frame is
+	 * dropped here rather than passed on with no faces, which would end the face being tracked.
+	 */
+	@Override
+	public void receiveFrame(Frame frame)
+	{
+		if (mGated)
+		{
+			mFrame = null;
+			return;
+		}
+		super.receiveFrame(frame);
+	}
+
+	@Override
+	public SparseArray<Face> detect(Frame frame)
+	{
+		mFrame = frame;
+		mFrameNanoTime = System.nanoTime();
+		mFrameImageValid = false;
+		FrameListener listener = mFrameListener;
+		if (listener != null)
+		{
+			listener.onFrame(this);
+		}
+		return mDelegate.detect(frame);
+	}
+
+	@Override
+	public boolean isOperational()
+	{
+		return mDelegate.isOperational();
+	}
+
+	@Override
+	public boolean setFocus(int id)
+	{
+		return mDelegate.setFocus(id);
+	}
+
+	@Override
+	public void release()
+	{
+		mDelegate.release();
+		mFrame = null;
+		super.release();
+	}
+
+	/**
+	 * Set the listener told about each frame, or null for none.
+	 *
+	 * @param listener
+	 */
+	void setFrameListener(FrameListener listener)
+	{
+		mFrameListener = listener;
+	}
+
+	/**
+	 * Stop or start detecting faces.  While gated, frames are dropped before the frame listener,
+	 * the detector and the processor see them, so the camera can keep running at little cost and
+	 * the trackers carry on where they were when the gate opens.
+	 *
+	 * @param gated
+	 */
+	void setGated(boolean gated)
+	{
+		mGated = gated;
+	}
+
+	/**
+	 * Copy the current frame.  The camera delivers NV21 frames; if the frame data only holds
+	 * the luminance, the copy is a Y8 frame.
+	 *
+	 * @param out
+	 * @return false if there is no current frame.
+	 */
+	boolean copyFrame(YuvFrame out)
+	{
+		if (mFrame == null)
+		{
+			return false;
+		}
+		Frame.Metadata metadata = mFrame.getMetadata();
+		int width = metadata.getWidth();
+		int height = metadata.getHeight();
+		ByteBuffer data = mFrame.getGrayscaleImageData().duplicate();
+		data.rewind();
+		int format = data.remaining() >= YuvFrame.getLength(width, height, YuvFrame.NV21) ? YuvFrame.NV21 : YuvFrame.Y8;
+
+		out.allocate(width, height, format);
+		data.get(out.data, 0, out.getLength());
+		out.rotation = metadata.getRotation();
+		out.timestamp = metadata.getTimestampMillis();
+		return true;
+	}
+
+	/**
+	 * Timestamp in milliseconds of the current frame.
+	 */
+	long getFrameTimestamp()
+	{
+		return mFrame == null ? 0 : mFrame.getMetadata().getTimestampMillis();
+	}
+
+	/**
+	 * System.nanoTime() when the current frame reached the detector, which is a monotonic clock
+	 * shared with the other devices, unlike the camera's frame timestamp.
+	 */
+	long getFrameNanoTime()
+	{
+		return mFrameNanoTime;
+	}
+
+	/**
+	 * Rotation of the current frame.  One of the Frame.ROTATION_* values.
+	 */
+	int getFrameRotation()
+	{
+		return mFrame == null ? Frame.ROTATION_0 : mFrame.getMetadata().getRotation();
+	}
+
+	/**
+	 * Get the luminance of the current frame in sensor orientation.  When the frame data is
+	 * backed by an array, no copy is made.
+	 *
+	 * @return The frame image, or null if there is no current frame.
+	 */
+	GrayImage getFrameImage()
+	{
+		if (mFrame == null)
+		{
+			return null;
+		}
+		if (mFrameImageValid)
+		{
+			return mFrameImage;
+		}
+
+		Frame.Metadata metadata = mFrame.getMetadata();
+		int width = metadata.getWidth();
+		int height = metadata.getHeight();
+		ByteBuffer data = mFrame.getGrayscaleImageData();
+
+		if (data.hasArray())
+		{
+			mFrameImage.set(data.array(), data.arrayOffset(), width, height, width);
+		}
+		else
+		{
+			if (mScratch.length < width * height)
+			{
+				mScratch = new byte[width * height];
+			}
+			ByteBuffer dup = data.duplicate();
+			dup.rewind();
+			dup.get(mScratch, 0, width * height);
+			mFrameImage.set(mScratch, 0, width, height, width);
+		}
+		mFrameImageValid = true;
+		return mFrameImage;
+	}
+
+
+	private final FaceDetector 	mDelegate;
+	private final GrayImage 	mFrameImage = new GrayImage(new byte[0], 0, 0, 0, 0);
+	private byte[] 				mScratch = new byte[0];
+	private Frame 				mFrame = null;
+	private long 				mFrameNanoTime = 0;
+	private boolean 			mFrameImageValid = false;
+	private volatile FrameListener mFrameListener = null;
+	private volatile boolean 	mGated = false;
+}
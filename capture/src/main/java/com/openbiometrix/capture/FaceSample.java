@@ -0,0 +1,197 @@
+package com.openbiometrix.capture;
+
+import com.google.android.gms.vision.face.Face;
+import com.openbiometrix.capture.image.GrayImage;
+import com.openbiometrix.capture.image.GrayImagePool;
+import com.openbiometrix.capture.liveness.BlinkLivenessDetector;
+import com.openbiometrix.capture.quality.FrameQuality;
+import com.openbiometrix.capture.quality.FrameQualityPool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A single face detected by a FaceCaptureDevice along with the information the device derived
+ * from the frame the face was found in.  This is what is streamed through a FaceDetectorBuffer.
+ *
+ * Some of the derived data, such as the aligned face image and the quality measurements, is
+ * held in pooled buffers.  Every
+ * viewer that takes a FaceSample from its buffer must call release() once it is done with it so
+ * the buffers can be reused.
+ *
+ * A sample also carries the System.nanoTime() at which the device got it to each stage of the
+ * pipeline, for a PipelineLatency to measure where the time between the camera and the UI goes.
+ * The stages after ENQUEUED differ for each viewer, so the viewers keep those times themselves.
+ */
+public class FaceSample
+{
+	private final static int STAGE_COUNT = PipelineLatency.Stage.values().length;
+
+
+	/**
+	 * Create a sample for a detected face.  The sample starts with one reference that belongs
+	 * to the creator.
+	 *
+	 * @param face The detected face
+	 * @param frameTimestamp Timestamp in milliseconds of the frame the face was detected in
+	 */
+	public FaceSample(Face face, long frameTimestamp)
+	{
+		mFace = face;
+		mFrameTimestamp = frameTimestamp;
+	}
+
+	/**
+	 * The face as reported by the face detector.
+	 */
+	public Face getFace()
+	{
+		return mFace;
+	}
+
+	/**
+	 * Timestamp in milliseconds of the frame the face was detected in.
+	 */
+	public long getFrameTimestamp()
+	{
+		return mFrameTimestamp;
+	}
+
+	/**
+	 * Record that the sample reached a stage now, unless it already did.  Only the device
+	 * stamps a sample, since its viewers share it.
+	 *
+	 * @param stage
+	 */
+	public void stamp(PipelineLatency.Stage stage)
+	{
+		stamp(stage, System.nanoTime());
+	}
+
+	/**
+	 * Record that the sample reached a stage at a time, unless it already did.
+	 *
+	 * @param stage
+	 * @param nanoTime The System.nanoTime() at which it was reached
+	 */
+	public void stamp(PipelineLatency.Stage stage, long nanoTime)
+	{
+		mStageTimes.compareAndSet(stage.ordinal(), 0, nanoTime);
+	}
+
+	/**
+	 * The System.nanoTime() at which the sample reached a stage, or 0 if it has not.
+	 *
+	 * @param stage
+	 */
+	public long getStageTime(PipelineLatency.Stage stage)
+	{
+		return mStageTimes.get(stage.ordinal());
+	}
+
+	/**
+	 * The face aligned to the canonical eye position and size, or null if alignment is not
+	 * enabled on the device or the face could not be aligned.  The image is only valid until
+	 * release() is called.
+	 */
+	public GrayImage getAlignedFace()
+	{
+		return mAlignedFace;
+	}
+
+	/**
+	 * Attach the aligned face image.  The image is returned to the pool when the last reference
+	 * to this sample is released.
+	 *
+	 * @param image
+	 * @param pool
+	 */
+	public void setAlignedFace(GrayImage image, GrayImagePool pool)
+	{
+		mAlignedFace = image;
+		mAlignedFacePool = pool;
+	}
+
+	/**
+	 * Sharpness and exposure of the face region of the frame, or null if quality analysis is not
+	 * enabled on the device.  The measurements are only valid until release() is called.
+	 */
+	public FrameQuality getQuality()
+	{
+		return mQuality;
+	}
+
+	/**
+	 * Attach the quality measurements of the face region.  They are returned to the pool when
+	 * the last reference to this sample is released.
+	 *
+	 * @param quality
+	 * @param pool The pool the measurements came from, or null if they are not pooled.
+	 */
+	public void setQuality(FrameQuality quality, FrameQualityPool pool)
+	{
+		mQuality = quality;
+		mQualityPool = pool;
+	}
+
+	/**
+	 * The liveness decision for the face track as of this sample, or null if liveness detection
+	 * is not enabled on the device.
+	 */
+	public BlinkLivenessDetector.Liveness getLiveness()
+	{
+		return mLiveness;
+	}
+
+	/**
+	 * Attach the liveness decision for the face track.
+	 *
+	 * @param liveness
+	 */
+	public void setLiveness(BlinkLivenessDetector.Liveness liveness)
+	{
+		mLiveness = liveness;
+	}
+
+	/**
+	 * Add a reference to this sample.  Called once for each buffer the sample is put in.
+	 */
+	public void retain()
+	{
+		mRefCount.incrementAndGet();
+	}
+
+	/**
+	 * Release a reference to this sample.  When the last reference is released, any pooled
+	 * buffers are given back and must no longer be used.
+	 */
+	public void release()
+	{
+		if (mRefCount.decrementAndGet() == 0)
+		{
+			if (mAlignedFacePool != null)
+			{
+				mAlignedFacePool.release(mAlignedFace);
+			}
+			mAlignedFace = null;
+			mAlignedFacePool = null;
+			if (mQualityPool != null)
+			{
+				mQualityPool.release(mQuality);
+			}
+			mQuality = null;
+			mQualityPool = null;
+		}
+	}
+
+
+	private final Face 			mFace;
+	private final long 			mFrameTimestamp;
+	private final AtomicInteger mRefCount = new AtomicInteger(1);
+	private final AtomicLongArray mStageTimes = new AtomicLongArray(STAGE_COUNT);
+	private FrameQuality 		mQuality = null;
+	private FrameQualityPool 	mQualityPool = null;
+	private BlinkLivenessDetector.Liveness mLiveness = null;
+	private GrayImage 			mAlignedFace = null;
+	private GrayImagePool 		mAlignedFacePool = null;
+}
@@ -0,0 +1,35 @@
+package com.openbiometrix.capture;
+
+import android.util.Log;
+
+import com.openbiometrix.capture.stream.CaptureListener;
+import com.openbiometrix.capture.stream.ListenerDispatcher;
+
+/**
+ * Convenience class to define a ListenerDispatcher of type FaceSample.  A sample is kept while
+ * a call with it is queued on an executor, and released after the call, so a listener must not
+ * keep or release it.  A listener that throws is logged.
+ */
+public class FaceSampleDispatcher extends ListenerDispatcher<FaceSample>
+{
+	@Override
+	protected void onRetain(FaceSample sample)
+	{
+		sample.retain();
+	}
+
+	@Override
+	protected void onRelease(FaceSample sample)
+	{
+		sample.release();
+	}
+
+	@Override
+	protected void onListenerError(CaptureListener<? super FaceSample> listener, RuntimeException error)
+	{
+		Log.w(TAG, "Face sample listener failed.", error);
+	}
+
+
+	private final static String TAG = "FaceSampleDispatcher";
+}
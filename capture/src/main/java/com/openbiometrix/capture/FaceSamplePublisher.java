@@ -0,0 +1,22 @@
+package com.openbiometrix.capture;
+
+import com.openbiometrix.capture.stream.CapturePublisher;
+
+/**
+ * Convenience class to define a CapturePublisher of type FaceSample.  Each subscriber is given
+ * its own reference on the samples it gets, and must release() them like a viewer does.
+ */
+public class FaceSamplePublisher extends CapturePublisher<FaceSample>
+{
+	@Override
+	protected void onRetain(FaceSample sample)
+	{
+		sample.retain();
+	}
+
+	@Override
+	protected void onDiscard(FaceSample sample)
+	{
+		sample.release();
+	}
+}
@@ -0,0 +1,309 @@
+package com.openbiometrix.capture;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How long face samples spend in each stage of the pipeline from the camera to the UI, from the
+ * times the device stamps on each FaceSample and those its viewer keeps.  Each stage has a histogram of the time from the stage
+ * before it, and there is one of the whole way from the frame to the UI, so a lag can be put
+ * down to the detector, the buffer or the UI thread.
+ *
+ * A sample is shared by every viewer of a device, so it only carries the times of the stages up
+ * to ENQUEUED.  Each viewer keeps the times it took and delivered the sample itself and passes
+ * them to record(), so its histograms are of its own samples.
+ *
+ * The histograms have log2 buckets of microseconds and are kept with atomic counters, so
+ * samples can be recorded from any thread without a lock.  The time record() itself takes is
+ * measured too, so the cost of the measuring is known.
+ */
+public class PipelineLatency
+{
+	/**
+	 * The stages a FaceSample goes through, in order.  The device stamps the times of the stages
+	 * up to ENQUEUED on the sample, and the viewer keeps those of the stages after it.
+	 */
+	public enum Stage
+	{
+		/**
+		 * The frame the face is in reached the detector.
+		 */
+		FRAME,
+
+		/**
+		 * The detector reported the face.
+		 */
+		DETECTED,
+
+		/**
+		 * The sample was put in the buffer of a viewer.
+		 */
+		ENQUEUED,
+
+		/**
+		 * The viewer took the sample from its buffer.  Kept by the viewer, not on the sample.
+		 */
+		DEQUEUED,
+
+		/**
+		 * The sample was handed to the viewer on the UI thread.  Kept by the viewer, not on the
+		 * sample.
+		 */
+		DELIVERED
+	}
+
+	/**
+	 * Number of buckets in a histogram.  Bucket i counts times from 2^i up to 2^(i+1)
+	 * microseconds, with the first also counting anything shorter and the last anything longer.
+	 */
+	public final static int BUCKETS = 32;
+
+	private final static Stage[] STAGES = Stage.values();
+
+
+	public PipelineLatency()
+	{
+		for (int i = 0; i < mStages.length; i++)
+		{
+			mStages[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * Record the times stamped on a sample by the device, with the times one viewer took the
+	 * sample from its buffer and delivered it.  A stage without a time is left out, and the
+	 * stage after it is timed from the last one that has one.
+	 *
+	 * @param sample
+	 * @param dequeued The System.nanoTime() at which the viewer took the sample, or 0 if unknown
+	 * @param delivered The System.nanoTime() at which the viewer was handed the sample, or 0 if
+	 *                  unknown
+	 */
+	public void record(FaceSample sample, long dequeued, long delivered)
+	{
+		long start = System.nanoTime();
+		long first = 0;
+		long last = 0;
+		int stamped = 0;
+		for (Stage stage : STAGES)
+		{
+			long time = stage == Stage.DEQUEUED ? dequeued
+					: stage == Stage.DELIVERED ? delivered : sample.getStageTime(stage);
+			if (time == 0)
+			{
+				continue;
+			}
+			if (stamped++ == 0)
+			{
+				first = time;
+			}
+			else
+			{
+				mStages[stage.ordinal()].add(time - last);
+			}
+			last = time;
+		}
+		if (stamped > 1)
+		{
+			mTotal.add(last - first);
+		}
+		mOverhead.addAndGet(System.nanoTime() - start);
+		mRecordCount.incrementAndGet();
+	}
+
+	/**
+	 * The times from the stage before to a stage.  That of FRAME, being the first, is empty.
+	 *
+	 * @param stage
+	 */
+	public Histogram get(Stage stage)
+	{
+		return mStages[stage.ordinal()];
+	}
+
+	/**
+	 * The times from the first stage stamped on a sample to the last, usually from FRAME to
+	 * DELIVERED.
+	 */
+	public Histogram getTotal()
+	{
+		return mTotal;
+	}
+
+	/**
+	 * Mean time in milliseconds record() took.
+	 */
+	public double getAverageOverhead()
+	{
+		long count = mRecordCount.get();
+		return count == 0 ? 0 : mOverhead.get() / 1e6 / count;
+	}
+
+	/**
+	 * Clear the histograms.  A record() that runs at the same time may be partly kept.
+	 */
+	public void reset()
+	{
+		for (Histogram histogram : mStages)
+		{
+			histogram.reset();
+		}
+		mTotal.reset();
+		mOverhead.set(0);
+		mRecordCount.set(0);
+	}
+
+	/**
+	 * The mean and 95th percentile of each stage and the total, such as
+	 * "DETECTED 31.2/48.1 ms, ENQUEUED 0.1/0.1 ms, ..., total 52.7/96.0 ms".
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder();
+		for (Stage stage : STAGES)
+		{
+			Histogram histogram = get(stage);
+			if (histogram.getCount() > 0)
+			{
+				histogram.append(text.append(stage).append(' '));
+				text.append(", ");
+			}
+		}
+		mTotal.append(text.append("total "));
+		return text.toString();
+	}
+
+
+	/**
+	 * A histogram of times, in log2 buckets of microseconds.
+	 */
+	public static class Histogram
+	{
+		Histogram()
+		{
+		}
+
+		/**
+		 * Add a time.
+		 *
+		 * @param nanos Time in nanoseconds
+		 */
+		public void add(long nanos)
+		{
+			if (nanos < 0)
+			{
+				nanos = 0;
+			}
+			mBuckets.incrementAndGet(bucket(nanos / 1000));
+			mCount.incrementAndGet();
+			mSum.addAndGet(nanos);
+			long max;
+			while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos))
+			{
+				// another thread raised it first; try again
+			}
+		}
+
+		public long getCount()
+		{
+			return mCount.get();
+		}
+
+		/**
+		 * Mean time in milliseconds.
+		 */
+		public double getAverage()
+		{
+			long count = mCount.get();
+			return count == 0 ? 0 : mSum.get() / 1e6 / count;
+		}
+
+		/**
+		 * Longest time in milliseconds.
+		 */
+		public double getMax()
+		{
+			return mMax.get() / 1e6;
+		}
+
+		/**
+		 * Time in milliseconds that a fraction of the times are within, to the top of the bucket
+		 * it falls in, so up to twice the actual time.
+		 *
+		 * @param fraction Such as 0.95 for the 95th percentile
+		 */
+		public double getPercentile(double fraction)
+		{
+			long count = mCount.get();
+			if (count == 0)
+			{
+				return 0;
+			}
+			long target = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += mBuckets.get(i);
+				if (seen >= target)
+				{
+					return Math.min((1L << (i + 1)) / 1e3, getMax());
+				}
+			}
+			return getMax();
+		}
+
+		/**
+		 * The count of each bucket.
+		 */
+		public long[] getBuckets()
+		{
+			long[] buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				buckets[i] = mBuckets.get(i);
+			}
+			return buckets;
+		}
+
+		void reset()
+		{
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				mBuckets.set(i, 0);
+			}
+			mCount.set(0);
+			mSum.set(0);
+			mMax.set(0);
+		}
+
+		void append(StringBuilder text)
+		{
+			text.append(String.format(Locale.US, "%.1f/%.1f ms", getAverage(), getPercentile(0.95)));
+		}
+
+		/**
+		 * The bucket of a time in microseconds.
+		 */
+		static int bucket(long micros)
+		{
+			if (micros <= 1)
+			{
+				return 0;
+			}
+			return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		}
+
+		private final AtomicLongArray 	mBuckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong 		mCount = new AtomicLong();
+		private final AtomicLong 		mSum = new AtomicLong();
+		private final AtomicLong 		mMax = new AtomicLong();
+	}
+
+
+	private final Histogram[] 	mStages = new Histogram[STAGES.length];
+	private final Histogram 	mTotal = new Histogram();
+	private final AtomicLong 	mOverhead = new AtomicLong();
+	private final AtomicLong 	mRecordCount = new AtomicLong();
+}
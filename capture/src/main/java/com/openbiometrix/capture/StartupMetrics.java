@@ -0,0 +1,99 @@
+package com.openbiometrix.capture;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How long a capture device took to get from the start of its warm-up to each stage of the
+ * startup, such as the first frame and the first face.  Each stage is recorded the first time it
+ * is reached after restart(), so marking a stage again, as every frame does, costs one read.
+ * Safe to mark from any thread.
+ */
+public class StartupMetrics
+{
+	/**
+	 * The stages of the startup of a FaceCaptureDevice, in the order they are usually reached.
+	 */
+	public enum Stage
+	{
+		DETECTOR_READY,
+		CAMERA_RESOLVED,
+		INITIALIZED,
+		CAMERA_OPEN,
+		FIRST_FRAME,
+		FIRST_FACE
+	}
+
+	private final static Stage[] STAGES = Stage.values();
+
+
+	public StartupMetrics()
+	{
+		restart();
+	}
+
+	/**
+	 * Start timing again from now, with no stage reached.
+	 */
+	public void restart()
+	{
+		mStart = System.nanoTime();
+		for (int i = 0; i < STAGES.length; i++)
+		{
+			mTimes.set(i, -1);
+		}
+	}
+
+	/**
+	 * Record that a stage was reached, unless it already was.
+	 *
+	 * @param stage
+	 * @return true if this is the first time the stage was reached.
+	 */
+	public boolean mark(Stage stage)
+	{
+		int index = stage.ordinal();
+		if (mTimes.get(index) >= 0)
+		{
+			return false;
+		}
+		return mTimes.compareAndSet(index, -1, Math.max(System.nanoTime() - mStart, 0));
+	}
+
+	/**
+	 * Time in milliseconds from the start to a stage, or -1 if it has not been reached.
+	 *
+	 * @param stage
+	 */
+	public long get(Stage stage)
+	{
+		long time = mTimes.get(stage.ordinal());
+		return time < 0 ? -1 : time / 1000000;
+	}
+
+	/**
+	 * The stages reached, in milliseconds from the start, such as
+	 * "DETECTOR_READY 180 ms, CAMERA_RESOLVED 12 ms, ...".
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder();
+		for (Stage stage : STAGES)
+		{
+			long time = get(stage);
+			if (time >= 0)
+			{
+				if (text.length() > 0)
+				{
+					text.append(", ");
+				}
+				text.append(stage).append(' ').append(time).append(" ms");
+			}
+		}
+		return text.toString();
+	}
+
+
+	private final AtomicLongArray 	mTimes = new AtomicLongArray(STAGES.length);
+	private volatile long 			mStart;
+}
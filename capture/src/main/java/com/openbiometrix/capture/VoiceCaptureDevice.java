@@ -0,0 +1,981 @@
+package com.openbiometrix.capture;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import com.openbiometrix.capture.audio.AudioSource;
+import com.openbiometrix.capture.audio.MicrophoneSource;
+import com.openbiometrix.capture.audio.PcmRingBuffer;
+import com.openbiometrix.capture.audio.VoiceActivityDetector;
+import com.openbiometrix.capture.audio.WavFileWriter;
+import com.openbiometrix.capture.exception.InvalidDeviceBuffer;
+import com.openbiometrix.capture.session.CaptureSession;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+import com.openbiometrix.capture.stream.CaptureListener;
+import com.openbiometrix.capture.stream.CapturePublisher;
+import com.openbiometrix.capture.stream.ListenerDispatcher;
+import com.openbiometrix.capture.ui.CaptureView;
+import com.openbiometrix.capture.ui.PcmCaptureView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Captures voice from the microphone, or any other AudioSource.  The capture thread reads the
+ * source in short chunks and writes them to a PcmRingBuffer of primitive samples.  Each viewer
+ * gets its own lossy reader of the ring, and while capturing, a recording thread reads the ring
+ * with a lossless reader and streams it to a WAV file, which is added to the capture store when
+ * the capture stops.  The recording never misses a sample: if the disk stalls for longer than
+ * the ring holds, the capture thread waits and the AudioSource's own buffer takes up the slack.
+ *
+ * With a VoiceActivityDetector, the recording keeps only the speech: each utterance is written
+ * to a WAV file of its own and added to the store as soon as it ends.
+ *
+ * The capture thread's only calls into the platform, to raise its priority and to log an
+ * error, are made through methods a subclass can override, so that with a SyntheticSource or a
+ * WavFileSource the device runs on a plain JVM.
+ */
+public class VoiceCaptureDevice extends CaptureDevice
+{
+	public final static int DEFAULT_SAMPLE_RATE = 16000;
+	public final static int DEFAULT_BUFFER_SECONDS = 10;
+
+	private final static int CHUNK_MS = 20;
+	private final static long READ_TIMEOUT_MS = 100;
+
+	/**
+	 * Notified of the utterances recorded with a VoiceActivityDetector.  Called on the recording
+	 * thread.
+	 */
+	public interface UtteranceListener
+	{
+		/**
+		 * @param timestamp Time the utterance started, including the detector's pre-roll
+		 */
+		void onUtteranceStarted(long timestamp);
+
+		/**
+		 * @param file The saved utterance, or null if there is no capture store
+		 * @param record Its metadata.  The quality is the signal to noise ratio in dB.
+		 */
+		void onUtteranceSaved(CaptureFile file, CaptureRecord record);
+	}
+
+	/**
+	 * A string identifier that uniquely identifies this capture device.
+	 */
+	@Override
+	public String getId()
+	{
+		return "com.openbiometrix.capture.VoiceCaptureDevice";
+	}
+
+	/**
+	 * A formatted name for the capture device.
+	 */
+	@Override
+	public final String getName()
+	{
+		return "Voice Capture Device";
+	}
+
+	/**
+	 * Version number for the capure device.
+	 */
+	@Override
+	public String getVersion()
+	{
+		return "1.0";
+	}
+
+	/**
+	 * Vendor that created the capture device.
+	 */
+	@Override
+	public String getVendor()
+	{
+		return "OpenBiometrix";
+	}
+
+	/**
+	 * Type of the capture device.
+	 */
+	@Override
+	public Type getType()
+	{
+		return Type.MICROPHONE;
+	}
+
+	/**
+	 * Set where audio comes from.  Must be called before the device is initialized.  The
+	 * default is the microphone at DEFAULT_SAMPLE_RATE.
+	 *
+	 * @param source
+	 */
+	public synchronized void setAudioSource(AudioSource source)
+	{
+		mSource = source;
+	}
+
+	/**
+	 * Get the source of the audio, or null if the device is not initialized and none was set.
+	 */
+	public synchronized AudioSource getAudioSource()
+	{
+		return mSource;
+	}
+
+	/**
+	 * Set a detector that trims recordings to the speech, or null to record everything.  It takes
+	 * effect from the next startCapture(), and must match the sample rate and channel count of
+	 * the audio source.  The device sets its listener while recording.
+	 *
+	 * @param detector
+	 */
+	public synchronized void setVoiceActivityDetector(VoiceActivityDetector detector)
+	{
+		mDetector = detector;
+	}
+
+	public synchronized VoiceActivityDetector getVoiceActivityDetector()
+	{
+		return mDetector;
+	}
+
+	/**
+	 * The stream of captured audio, for subscribers that do not need a View, as chunks of
+	 * interleaved PCM of about 20 ms.  A chunk is shared with the other subscribers and the
+	 * capture session, so it must not be changed.
+	 */
+	@Override
+	public CapturePublisher<short[]> getPublisher()
+	{
+		return mPublisher;
+	}
+
+	/**
+	 * The listeners called with each chunk of captured audio, shared as with the subscribers.
+	 * A listener added with DIRECT is called on the capture thread, so it must be quick.
+	 */
+	@Override
+	public ListenerDispatcher<short[]> getListenerDispatcher()
+	{
+		return mDispatcher;
+	}
+
+	/**
+	 * Set the listener notified of utterances, or null for none.
+	 *
+	 * @param listener
+	 */
+	public synchronized void setUtteranceListener(UtteranceListener listener)
+	{
+		mUtteranceListener = listener;
+	}
+
+	/**
+	 * Initialize the microphone, unless another audio source was set.
+	 *
+	 * @param ctx Android Application Context
+	 * @return true if successful, else false.
+	 */
+	@Override
+	public boolean initialize(Context ctx)
+	{
+		return initialize(ctx, null);
+	}
+
+	/**
+	 * Initialize the microphone, unless another audio source was set, and the ring buffer that
+	 * carries its samples.
+	 *
+	 * @param ctx Android Application Context
+	 * @param config JSON string that defines the configuration to be used to initialize the device.
+	 * @return true if successful, else false.
+	 */
+	@Override
+	public boolean initialize(Context ctx, String config)
+	{
+		// a new session starts each time the device is initialized
+		setSessionId(System.currentTimeMillis());
+		if (getCaptureStore() == null)
+		{
+			try
+			{
+				setCaptureStore(new CaptureStore(new File(ctx.getFilesDir(), "captures")));
+			}
+			catch (IOException ex)
+			{
+				Log.e(TAG, "Unable to open the capture store.  Recordings will not be saved.", ex);
+			}
+		}
+
+		synchronized (this)
+		{
+			if (mSource == null)
+			{
+				mSource = new MicrophoneSource(DEFAULT_SAMPLE_RATE);
+			}
+			if (mRing == null)
+			{
+				mRing = new PcmRingBuffer(mSource.getSampleRate() * mSource.getChannelCount() * DEFAULT_BUFFER_SECONDS);
+				for (CaptureView viewer : mViewerList)
+				{
+					openViewerReader((PcmCaptureView) viewer);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Open a reader of the audio, for consumers other than viewers such as voice activity
+	 * detection.  It starts at the next sample captured.
+	 *
+	 * @param lossless Whether the capture waits for the reader rather than let it miss samples.
+	 *                 A lossless reader must keep up, or it stalls the capture.
+	 * @return The reader, or null if the device is not initialized.
+	 */
+	public synchronized PcmRingBuffer.Reader openReader(boolean lossless)
+	{
+		return mRing == null ? null : mRing.openReader(lossless);
+	}
+
+	/**
+	 * The ring that captured samples are written to, for its counts, or null if the device is
+	 * not initialized.
+	 */
+	public synchronized PcmRingBuffer getPcmBuffer()
+	{
+		return mRing;
+	}
+
+	/**
+	 * Uninitializes the capture device and releases any held resources.
+	 */
+	@Override
+	public void destroy()
+	{
+		stop();
+
+		synchronized (this)
+		{
+			if (mSource != null)
+			{
+				mSource.release();
+			}
+			if (mRing != null)
+			{
+				mRing.close();
+				mRing = null;
+			}
+			for (PcmRingBuffer.Reader reader : mViewerReaders.values())
+			{
+				reader.close();
+			}
+			mViewerReaders.clear();
+		}
+		mPublisher.complete();
+	}
+
+	/**
+	 * Start capturing audio and passing it to the viewers, without recording it.
+	 */
+	@Override
+	public void startPreview()
+	{
+		try
+		{
+			startCaptureThread();
+			setState(State.PREVIEW_STARTED);
+		}
+		catch (IOException ex)
+		{
+			Log.e(TAG, "Unable to start the audio source.", ex);
+		}
+	}
+
+	/**
+	 * Start recording.  The recording is saved when stopCapture() or stop() is called.
+	 */
+	@Override
+	public void startCapture()
+	{
+		CaptureStore store = getCaptureStore();
+		if (store == null)
+		{
+			Log.w(TAG, "There is no capture store to record to.");
+			return;
+		}
+
+		try
+		{
+			startCaptureThread();
+			synchronized (this)
+			{
+				if (mRecording != null)
+				{
+					return;
+				}
+				if (mDetector != null && (mDetector.getSampleRate() != mSource.getSampleRate()
+						|| mDetector.getChannelCount() != mSource.getChannelCount()))
+				{
+					throw new IOException("The voice activity detector does not match the audio source");
+				}
+				mRecording = new Recording(store, mRing.openReader(true), mDetector, mUtteranceListener);
+				mRecording.start();
+			}
+			setState(State.CAPTURE_STARTED);
+		}
+		catch (IOException ex)
+		{
+			Log.e(TAG, "Unable to start recording.", ex);
+		}
+	}
+
+	/**
+	 * Stop recording and save the recording.  Audio keeps being captured for the viewers.  This
+	 * does disk I/O and should not be called on the UI thread.
+	 *
+	 * @return The saved recording, or with a voice activity detector the last utterance saved.
+	 *         Null if the device was not recording or nothing was saved.
+	 * @throws IOException If the recording could not be written or saved.
+	 * @throws InterruptedException
+	 */
+	public CaptureFile stopCapture() throws IOException, InterruptedException
+	{
+		Recording recording;
+		synchronized (this)
+		{
+			recording = mRecording;
+			mRecording = null;
+		}
+		if (recording == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return recording.finish();
+		}
+		finally
+		{
+			if (getState() == State.CAPTURE_STARTED)
+			{
+				setState(State.PREVIEW_STARTED);
+			}
+		}
+	}
+
+	/**
+	 * Pause capturing.  A recording stays open, and carries on when the device is resumed.
+	 */
+	@Override
+	public void pause()
+	{
+		super.pause();
+		stopCaptureThread();
+	}
+
+	/**
+	 * Resume capturing after a pause.
+	 */
+	@Override
+	public void resume()
+	{
+		if (getState() == State.PAUSED)
+		{
+			try
+			{
+				startCaptureThread();
+			}
+			catch (IOException ex)
+			{
+				Log.e(TAG, "Unable to restart the audio source.", ex);
+				return;
+			}
+		}
+		super.resume();
+	}
+
+	/**
+	 * Stop capturing, and save the recording if there is one.
+	 */
+	@Override
+	public void stop()
+	{
+		try
+		{
+			stopCapture();
+		}
+		catch (IOException ex)
+		{
+			Log.e(TAG, "Unable to save the recording.", ex);
+		}
+		catch (InterruptedException ex)
+		{
+			Log.w(TAG, "Interrupted while saving the recording.");
+			Thread.currentThread().interrupt();
+		}
+		stopCaptureThread();
+		setState(State.STOPPED);
+	}
+
+	/**
+	 * Add a PcmCaptureView that will present the audio captured by the device.
+	 *
+	 * @param viewer
+	 * @throws InvalidDeviceBuffer If the viewer is not a PcmCaptureView.
+	 */
+	@Override
+	public synchronized void addViewer(CaptureView viewer) throws InvalidDeviceBuffer
+	{
+		if (viewer == null)
+		{
+			throw new IllegalArgumentException("Viewer cannot be null");
+		}
+		if (!(viewer instanceof PcmCaptureView))
+		{
+			String[] args = new String[2];
+			args[0] = "com.openbiometrix.capture.ui.PcmCaptureView";
+			args[1] = viewer.getClass().getName();
+			throw new InvalidDeviceBuffer(args);
+		}
+
+		mViewerList.add(viewer);
+		if (mRing != null)
+		{
+			openViewerReader((PcmCaptureView) viewer);
+		}
+	}
+
+	/**
+	 * Remove a viewer and close its reader.
+	 *
+	 * @param viewer
+	 */
+	@Override
+	public synchronized void removeViewer(CaptureView viewer)
+	{
+		super.removeViewer(viewer);
+		PcmRingBuffer.Reader reader = mViewerReaders.remove(viewer);
+		if (reader != null)
+		{
+			reader.close();
+		}
+	}
+
+
+	private void openViewerReader(PcmCaptureView viewer)
+	{
+		PcmRingBuffer.Reader reader = mRing.openReader(false);
+		mViewerReaders.put(viewer, reader);
+		viewer.onPcmReaderOpened(reader, mSource.getSampleRate(), mSource.getChannelCount());
+	}
+
+
+	//==============================================================================================
+	// Audio Capture
+	//==============================================================================================
+
+	/**
+	 * Start the source and the thread that copies it to the ring, if they are not running.
+	 */
+	private synchronized void startCaptureThread() throws IOException
+	{
+		if (mRing == null)
+		{
+			throw new IOException("The device is not initialized");
+		}
+		if (mCaptureThread != null)
+		{
+			return;
+		}
+		mSource.start();
+		mCaptureStop = false;
+		mCaptureThread = new Thread(new CaptureRunnable(mSource, mRing), "VoiceCapture");
+		mCaptureThread.start();
+	}
+
+	/**
+	 * Stop the source and wait for the capture thread to finish.
+	 */
+	private void stopCaptureThread()
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			thread = mCaptureThread;
+			mCaptureThread = null;
+			mCaptureStop = true;
+			if (mSource != null)
+			{
+				mSource.stop();
+			}
+		}
+		if (thread != null)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized boolean isCaptureStopping()
+	{
+		return mCaptureStop;
+	}
+
+	/**
+	 * Give the capture thread the priority of audio, so the source is read on time.  Called on
+	 * the capture thread as it starts.
+	 */
+	protected void setCaptureThreadPriority()
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+	}
+
+	/**
+	 * Report the error that ended the capture thread.  Called on the capture thread.
+	 *
+	 * @param error An IOException from the source, or an InterruptedException
+	 */
+	protected void onCaptureError(Exception error)
+	{
+		if (error instanceof InterruptedException)
+		{
+			Log.w(TAG, "Audio capture interrupted.");
+		}
+		else
+		{
+			Log.e(TAG, "Unable to read the audio source.", error);
+		}
+	}
+
+	/**
+	 * Note where in the ring a run of the capture thread starts and when its first sample was
+	 * captured, so that a recording can time its samples across pauses.
+	 */
+	private synchronized void startSegment(long position, long time)
+	{
+		mSegmentPosition = position;
+		mSegmentTime = time;
+		if (mRecording != null)
+		{
+			mRecording.addSegment(position, time);
+		}
+	}
+
+	/**
+	 * Copies chunks of the source to the ring until the source ends or the capture stops.
+	 */
+	private class CaptureRunnable implements Runnable
+	{
+		CaptureRunnable(AudioSource source, PcmRingBuffer ring)
+		{
+			mRunSource = source;
+			mRunRing = ring;
+		}
+
+		@Override
+		public void run()
+		{
+			setCaptureThreadPriority();
+			int samplesPerSecond = mRunSource.getSampleRate() * mRunSource.getChannelCount();
+			int length = Math.max(mRunSource.getSampleRate() * CHUNK_MS / 1000, 1) * mRunSource.getChannelCount();
+			short[] chunk = new short[length];
+			boolean started = false;
+			try
+			{
+				while (!isCaptureStopping())
+				{
+					int read = mRunSource.read(chunk, 0, chunk.length);
+					if (read < 0)
+					{
+						break;
+					}
+					if (!started && read > 0)
+					{
+						startSegment(mRunRing.getWritePosition(), System.currentTimeMillis() - read * 1000L / samplesPerSecond);
+						started = true;
+					}
+					mRunRing.write(chunk, 0, read);
+
+					// a session, the subscribers and the listeners share a copy; the session's is
+					// stamped with when the chunk started
+					CaptureSession session = getCaptureSession();
+					if ((session != null || mPublisher.hasSubscribers() || mDispatcher.hasListeners())
+							&& read > 0)
+					{
+						short[] copy = Arrays.copyOf(chunk, read);
+						if (session != null)
+						{
+							long start = System.nanoTime() - read * 1000000000L / samplesPerSecond;
+							session.offer(VoiceCaptureDevice.this, start, copy);
+						}
+						mPublisher.publish(copy);
+						mDispatcher.dispatch(copy);
+					}
+				}
+			}
+			catch (IOException ex)
+			{
+				onCaptureError(ex);
+			}
+			catch (InterruptedException ex)
+			{
+				onCaptureError(ex);
+			}
+		}
+
+		private final AudioSource 	mRunSource;
+		private final PcmRingBuffer mRunRing;
+	}
+
+
+	//==============================================================================================
+	// Recording
+	//==============================================================================================
+
+	/**
+	 * A recording in progress: a thread that streams a lossless reader of the ring to a WAV file.
+	 * With a voice activity detector, the thread passes the ring through the detector instead,
+	 * and writes each utterance to a WAV file of its own, which is saved when the utterance ends.
+	 */
+	private class Recording implements Runnable, VoiceActivityDetector.Listener
+	{
+		Recording(CaptureStore store, PcmRingBuffer.Reader reader, VoiceActivityDetector detector,
+				UtteranceListener listener) throws IOException
+		{
+			mStore = store;
+			mReader = reader;
+			mDetector = detector;
+			mListener = listener;
+			mSampleRate = mSource.getSampleRate();
+			mChannelCount = mSource.getChannelCount();
+			mStartTime = System.currentTimeMillis();
+			mReaderStart = reader.getPosition();
+			if (mSegmentPosition >= 0)
+			{
+				addSegment(mSegmentPosition, mSegmentTime);
+			}
+			if (detector == null)
+			{
+				open(mStartTime);
+			}
+			else
+			{
+				detector.reset();
+				detector.setListener(this);
+			}
+			mThread = new Thread(this, "VoiceRecording");
+		}
+
+		void start()
+		{
+			mThread.start();
+		}
+
+		/**
+		 * Note the start of a run of the capture thread.
+		 *
+		 * @param position Position in the ring of its first sample
+		 * @param time Time its first sample was captured
+		 */
+		void addSegment(long position, long time)
+		{
+			synchronized (mSegments)
+			{
+				mSegments.add(new long[] { position, time });
+			}
+		}
+
+		/**
+		 * Write what was captured up to now and save it.
+		 *
+		 * @return The saved file, or the last utterance saved
+		 */
+		CaptureFile finish() throws IOException, InterruptedException
+		{
+			PcmRingBuffer ring;
+			synchronized (VoiceCaptureDevice.this)
+			{
+				ring = mRing;
+			}
+			mStopPosition = ring == null ? mReader.getPosition() : ring.getWritePosition();
+			mThread.join();
+			mReader.close();
+			if (mError == null)
+			{
+				if (mDetector != null)
+				{
+					// ends and saves an utterance in progress
+					mDetector.flush();
+				}
+				else
+				{
+					save();
+				}
+			}
+			if (mDetector != null)
+			{
+				mDetector.setListener(null);
+			}
+			if (mError != null)
+			{
+				discard();
+				throw mError;
+			}
+			return mLastFile;
+		}
+
+		@Override
+		public void run()
+		{
+			short[] chunk = new short[8192];
+			try
+			{
+				long left;
+				while ((left = mStopPosition - mReader.getPosition()) > 0)
+				{
+					int read = mReader.read(chunk, 0, (int) Math.min(chunk.length, left), READ_TIMEOUT_MS);
+					if (read < 0)
+					{
+						break;
+					}
+					if (mDetector != null)
+					{
+						mDetector.process(chunk, 0, read);
+						if (mError != null)
+						{
+							mReader.close();
+							break;
+						}
+					}
+					else
+					{
+						mWriter.write(chunk, 0, read);
+					}
+				}
+			}
+			catch (IOException ex)
+			{
+				mError = ex;
+				// let the capture carry on without this recording
+				mReader.close();
+			}
+			catch (InterruptedException ex)
+			{
+				mError = new IOException("Recording interrupted");
+			}
+		}
+
+		@Override
+		public void onUtteranceStart(long position)
+		{
+			if (mError != null)
+			{
+				return;
+			}
+			try
+			{
+				open(getSampleTime(position));
+			}
+			catch (IOException ex)
+			{
+				mError = ex;
+				return;
+			}
+			if (mListener != null)
+			{
+				mListener.onUtteranceStarted(mRecord.timestamp);
+			}
+		}
+
+		@Override
+		public void onUtteranceSamples(short[] samples, int offset, int length)
+		{
+			if (mWriter == null)
+			{
+				return;
+			}
+			try
+			{
+				mWriter.write(samples, offset, length);
+			}
+			catch (IOException ex)
+			{
+				mError = ex;
+				discard();
+			}
+		}
+
+		@Override
+		public void onUtteranceEnd(long position)
+		{
+			if (mWriter == null)
+			{
+				return;
+			}
+			CaptureRecord record = mRecord;
+			record.quality = mDetector.getUtteranceSnr();
+			try
+			{
+				save();
+			}
+			catch (IOException ex)
+			{
+				mError = ex;
+				return;
+			}
+			if (mListener != null)
+			{
+				mListener.onUtteranceSaved(mLastFile, record);
+			}
+		}
+
+		/**
+		 * The time a sample was captured, counted in samples from the start of the run of the
+		 * capture thread it belongs to, so the time the device spent paused is not lost.
+		 *
+		 * @param position Position of the sample from the start of the recording
+		 */
+		private long getSampleTime(long position)
+		{
+			long ringPosition = mReaderStart + position;
+			long[] segment = null;
+			synchronized (mSegments)
+			{
+				for (long[] candidate : mSegments)
+				{
+					if (segment == null || candidate[0] <= ringPosition)
+					{
+						segment = candidate;
+					}
+				}
+			}
+			if (segment == null)
+			{
+				return mStartTime + position / mChannelCount * 1000 / mSampleRate;
+			}
+			return segment[1] + (ringPosition - segment[0]) / mChannelCount * 1000 / mSampleRate;
+		}
+
+		/**
+		 * Start a WAV file in the store directory.
+		 */
+		private void open(long timestamp) throws IOException
+		{
+			File file = mStore.createPartFile("voice-");
+			try
+			{
+				mWriter = new WavFileWriter(file, mSampleRate, mChannelCount);
+			}
+			catch (IOException ex)
+			{
+				file.delete();
+				throw ex;
+			}
+			mFile = file;
+			mRecord = new CaptureRecord();
+			mRecord.mediaType = WavFileWriter.MEDIA_TYPE;
+			mRecord.timestamp = timestamp;
+		}
+
+		/**
+		 * Close the current WAV file and add it to the store.
+		 */
+		private void save() throws IOException
+		{
+			WavFileWriter writer = mWriter;
+			File file = mFile;
+			mWriter = null;
+			mFile = null;
+			try
+			{
+				writer.close();
+			}
+			catch (IOException ex)
+			{
+				file.delete();
+				throw ex;
+			}
+			mLastFile = saveCaptureFile(file, mRecord);
+		}
+
+		/**
+		 * Close and delete the current WAV file, if there is one.
+		 */
+		private void discard()
+		{
+			if (mWriter == null)
+			{
+				return;
+			}
+			try
+			{
+				mWriter.close();
+			}
+			catch (IOException ex)
+			{
+				// the file is deleted anyway
+			}
+			mFile.delete();
+			mWriter = null;
+			mFile = null;
+		}
+
+		private final CaptureStore 				mStore;
+		private final PcmRingBuffer.Reader 		mReader;
+		private final VoiceActivityDetector 	mDetector;
+		private final UtteranceListener 		mListener;
+		private final int 						mSampleRate;
+		private final int 						mChannelCount;
+		private final long 						mStartTime;
+		private final long 						mReaderStart;
+		private final List<long[]> 				mSegments = new ArrayList<long[]>();
+		private final Thread 					mThread;
+		private volatile long 					mStopPosition = Long.MAX_VALUE;
+		private volatile IOException 			mError = null;
+
+		// the file being written, which is only used on the recording thread until it is joined
+		private File 							mFile = null;
+		private WavFileWriter 					mWriter = null;
+		private CaptureRecord 					mRecord = null;
+		private CaptureFile 					mLastFile = null;
+	}
+
+
+	private AudioSource 								mSource = null;
+	private PcmRingBuffer 								mRing = null;
+	private final Map<CaptureView, PcmRingBuffer.Reader> mViewerReaders = new HashMap<CaptureView, PcmRingBuffer.Reader>();
+	private Thread 										mCaptureThread = null;
+	private boolean 									mCaptureStop = false;
+	private long 										mSegmentPosition = -1;
+	private long 										mSegmentTime;
+	private Recording 									mRecording = null;
+	private VoiceActivityDetector 						mDetector = null;
+	private UtteranceListener 							mUtteranceListener = null;
+	private final CapturePublisher<short[]> 			mPublisher = new CapturePublisher<short[]>();
+	private final ListenerDispatcher<short[]> 			mDispatcher = new ListenerDispatcher<short[]>()
+	{
+		@Override
+		protected void onListenerError(CaptureListener<? super short[]> listener, RuntimeException error)
+		{
+			Log.w(TAG, "Audio listener failed.", error);
+		}
+	};
+}
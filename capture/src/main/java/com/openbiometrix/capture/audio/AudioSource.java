@@ -0,0 +1,49 @@
+package com.openbiometrix.capture.audio;
+
+import java.io.IOException;
+
+/**
+ * A source of 16 bit PCM audio for a VoiceCaptureDevice, such as the microphone, or a file or
+ * synthetic signal when testing.  Samples of multiple channels are interleaved.
+ */
+public interface AudioSource
+{
+	/**
+	 * Samples per second of each channel.
+	 */
+	int getSampleRate();
+
+	/**
+	 * Number of interleaved channels.
+	 */
+	int getChannelCount();
+
+	/**
+	 * Start delivering samples.
+	 *
+	 * @throws IOException If the source cannot be opened.
+	 */
+	void start() throws IOException;
+
+	/**
+	 * Read the next samples, blocking until some are available.
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length Maximum number of samples to read
+	 * @return The number of samples read, or -1 at the end of the source.
+	 * @throws IOException
+	 */
+	int read(short[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Stop delivering samples.  A read blocked in another thread returns.  The source can be
+	 * started again.
+	 */
+	void stop();
+
+	/**
+	 * Release any held resources.
+	 */
+	void release();
+}
@@ -0,0 +1,107 @@
+package com.openbiometrix.capture.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+
+/**
+ * Mono 16 bit audio from the microphone, tuned for speech.  Needs the RECORD_AUDIO permission.
+ */
+public class MicrophoneSource implements AudioSource
+{
+	/**
+	 * Time in milliseconds of audio that the AudioRecord buffers, so that samples are not lost
+	 * while the capture thread is held up.
+	 */
+	public final static int BUFFER_MS = 500;
+
+
+	/**
+	 * @param sampleRate Samples per second, such as 16000 or 48000
+	 */
+	public MicrophoneSource(int sampleRate)
+	{
+		mSampleRate = sampleRate;
+	}
+
+	@Override
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+	@Override
+	public int getChannelCount()
+	{
+		return 1;
+	}
+
+	@Override
+	public synchronized void start() throws IOException
+	{
+		if (mRecord == null)
+		{
+			int minSize = AudioRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO,
+					AudioFormat.ENCODING_PCM_16BIT);
+			if (minSize <= 0)
+			{
+				throw new IOException("Sample rate " + mSampleRate + " is not supported");
+			}
+			int size = Math.max(minSize, mSampleRate * 2 * BUFFER_MS / 1000);
+			AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, mSampleRate,
+					AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, size);
+			if (record.getState() != AudioRecord.STATE_INITIALIZED)
+			{
+				record.release();
+				throw new IOException("Unable to open the microphone");
+			}
+			mRecord = record;
+		}
+		mRecord.startRecording();
+	}
+
+	@Override
+	public int read(short[] buffer, int offset, int length) throws IOException
+	{
+		AudioRecord record;
+		synchronized (this)
+		{
+			record = mRecord;
+		}
+		if (record == null)
+		{
+			return -1;
+		}
+		int read = record.read(buffer, offset, length);
+		if (read < 0)
+		{
+			throw new IOException("Microphone read failed with error " + read);
+		}
+		return read;
+	}
+
+	@Override
+	public synchronized void stop()
+	{
+		if (mRecord != null)
+		{
+			mRecord.stop();
+		}
+	}
+
+	@Override
+	public synchronized void release()
+	{
+		if (mRecord != null)
+		{
+			mRecord.release();
+			mRecord = null;
+		}
+	}
+
+
+	private final int 		mSampleRate;
+	private AudioRecord 	mRecord = null;
+}
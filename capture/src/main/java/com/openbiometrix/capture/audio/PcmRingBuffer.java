@@ -0,0 +1,326 @@
+package com.openbiometrix.capture.audio;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ring of 16 bit PCM samples with one writer and any number of readers, each with its own
+ * cursor.  Samples are copied in and out of a single short array, so nothing is boxed or
+ * allocated per chunk, and the writer and readers only share volatile positions: no lock is
+ * taken to move data.  A monitor is only used to sleep when a reader has nothing to read or
+ * the writer has no room, and the other side only touches it when someone is asleep.
+ *
+ * There are two kinds of reader:
+ *
+ *  - A lossless reader never misses a sample.  The writer waits for it when the ring is full,
+ *    so it is used for recording, where the ring gives the reader time to ride out a slow disk.
+ *  - A lossy reader never holds up the writer.  If it falls a whole ring behind, it skips to the
+ *    oldest samples still in the ring and the skipped samples are counted.  Used for level
+ *    meters and other views.
+ *
+ * Positions count samples from the start of the ring, so they also give the time of a sample.
+ */
+public class PcmRingBuffer
+{
+	/**
+	 * @param capacity Number of samples the ring holds.  Rounded up to a power of two.
+	 */
+	public PcmRingBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mSamples = new short[size];
+		mMask = size - 1;
+	}
+
+	/**
+	 * Number of samples the ring holds.
+	 */
+	public int getCapacity()
+	{
+		return mSamples.length;
+	}
+
+	/**
+	 * Open a reader that starts at the next sample written.
+	 *
+	 * @param lossless Whether the writer waits for this reader rather than let it miss samples
+	 */
+	public Reader openReader(boolean lossless)
+	{
+		Reader reader = new Reader(lossless, mWritePosition);
+		mReaders.add(reader);
+		return reader;
+	}
+
+	/**
+	 * Append samples.  Called by the single writer thread.  Waits while a lossless reader is a
+	 * whole ring behind.
+	 *
+	 * @param samples
+	 * @param offset
+	 * @param length
+	 * @throws InterruptedException
+	 */
+	public void write(short[] samples, int offset, int length) throws InterruptedException
+	{
+		int capacity = mSamples.length;
+		while (length > 0)
+		{
+			int count = Math.min(length, capacity);
+			long position = mWritePosition;
+			waitForRoom(position + count - capacity);
+
+			// claim the slots first, so a lossy reader knows they are being overwritten
+			mWriteLimit = position + count;
+			int start = (int) (position & mMask);
+			int first = Math.min(count, capacity - start);
+			System.arraycopy(samples, offset, mSamples, start, first);
+			System.arraycopy(samples, offset + first, mSamples, 0, count - first);
+
+			// publish the samples, then wake any reader that went to sleep before they arrived
+			mWritePosition = position + count;
+			if (mSleepers.get() > 0)
+			{
+				synchronized (mSignal)
+				{
+					mSignal.notifyAll();
+				}
+			}
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Position of the next sample written, which is the number of samples written so far.
+	 */
+	public long getWritePosition()
+	{
+		return mWritePosition;
+	}
+
+	/**
+	 * Number of times the writer had to wait for a lossless reader.
+	 */
+	public long getStallCount()
+	{
+		return mStallCount;
+	}
+
+	/**
+	 * Total time in milliseconds the writer spent waiting for lossless readers.
+	 */
+	public long getStallTime()
+	{
+		return mStallTime / 1000000;
+	}
+
+	/**
+	 * Mark the end of the samples.  Readers read what is left and then get -1.
+	 */
+	public void close()
+	{
+		mClosed = true;
+		synchronized (mSignal)
+		{
+			mSignal.notifyAll();
+		}
+	}
+
+
+	/**
+	 * Wait until every lossless reader has read past the given position.
+	 */
+	private void waitForRoom(long needed) throws InterruptedException
+	{
+		if (slowestLosslessPosition() >= needed)
+		{
+			return;
+		}
+
+		long start = System.nanoTime();
+		mStallCount++;
+		synchronized (mSignal)
+		{
+			mSleepers.incrementAndGet();
+			try
+			{
+				while (slowestLosslessPosition() < needed)
+				{
+					mSignal.wait(10);
+				}
+			}
+			finally
+			{
+				mSleepers.decrementAndGet();
+			}
+		}
+		mStallTime += System.nanoTime() - start;
+	}
+
+	private long slowestLosslessPosition()
+	{
+		long slowest = Long.MAX_VALUE;
+		for (Reader reader : mReaders)
+		{
+			if (reader.mLossless)
+			{
+				slowest = Math.min(slowest, reader.mPosition);
+			}
+		}
+		return slowest;
+	}
+
+
+	/**
+	 * A cursor into the ring, used by a single thread.
+	 */
+	public class Reader
+	{
+		Reader(boolean lossless, long position)
+		{
+			mLossless = lossless;
+			mPosition = position;
+		}
+
+		/**
+		 * Read the next samples, waiting up to timeout milliseconds for some to be written.
+		 *
+		 * @param buffer
+		 * @param offset
+		 * @param length Maximum number of samples to read
+		 * @param timeout Time in milliseconds, or 0 to return at once
+		 * @return The number of samples read, 0 if none arrived in time, or -1 if the ring is
+		 *         closed and every sample has been read.
+		 * @throws InterruptedException
+		 */
+		public int read(short[] buffer, int offset, int length, long timeout) throws InterruptedException
+		{
+			if (available() == 0)
+			{
+				if (mClosed)
+				{
+					return -1;
+				}
+				if (timeout <= 0 || !await(timeout))
+				{
+					return mClosed && available() == 0 ? -1 : 0;
+				}
+			}
+
+			int capacity = mSamples.length;
+			long position = mPosition;
+			long written = mWritePosition;
+			// the oldest sample that is not being overwritten, counting a chunk still being copied in
+			long oldest = mWriteLimit - capacity;
+			if (!mLossless && position < oldest)
+			{
+				mOverrunCount += oldest - position;
+				position = oldest;
+			}
+			int count = (int) Math.min(length, written - position);
+			int start = (int) (position & mMask);
+			int first = Math.min(count, capacity - start);
+			System.arraycopy(mSamples, start, buffer, offset, first);
+			System.arraycopy(mSamples, 0, buffer, offset + first, count - first);
+
+			if (!mLossless && mWriteLimit - position > capacity)
+			{
+				// the writer came round while the samples were copied, so they may be torn
+				mPosition = position;
+				return read(buffer, offset, length, 0);
+			}
+
+			mPosition = position + count;
+			if (mLossless && mSleepers.get() > 0)
+			{
+				synchronized (mSignal)
+				{
+					mSignal.notifyAll();
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Number of samples written that this reader has not read.
+		 */
+		public int available()
+		{
+			return (int) Math.min(mWritePosition - mPosition, mSamples.length);
+		}
+
+		/**
+		 * Position of the next sample this reader reads.
+		 */
+		public long getPosition()
+		{
+			return mPosition;
+		}
+
+		/**
+		 * Number of samples a lossy reader skipped because it fell behind.
+		 */
+		public long getOverrunCount()
+		{
+			return mOverrunCount;
+		}
+
+		/**
+		 * Stop reading.  The writer no longer waits for this reader.
+		 */
+		public void close()
+		{
+			mReaders.remove(this);
+			synchronized (mSignal)
+			{
+				mSignal.notifyAll();
+			}
+		}
+
+
+		/**
+		 * Sleep until there are samples to read, the ring is closed or the timeout expires.
+		 */
+		private boolean await(long timeout) throws InterruptedException
+		{
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			synchronized (mSignal)
+			{
+				mSleepers.incrementAndGet();
+				try
+				{
+					long wait;
+					while (available() == 0 && !mClosed
+							&& (wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0)
+					{
+						mSignal.wait(wait);
+					}
+				}
+				finally
+				{
+					mSleepers.decrementAndGet();
+				}
+			}
+			return available() > 0;
+		}
+
+		private final boolean 	mLossless;
+		private volatile long 	mPosition;
+		private long 			mOverrunCount = 0;
+	}
+
+
+	private final short[] 		mSamples;
+	private final int 			mMask;
+	private final List<Reader> 	mReaders = new CopyOnWriteArrayList<Reader>();
+	private final Object 		mSignal = new Object();
+	private final AtomicInteger mSleepers = new AtomicInteger();
+	private volatile long 		mWritePosition = 0;
+	private volatile long 		mWriteLimit = 0;
+	private volatile boolean 	mClosed = false;
+	private volatile long 		mStallCount = 0;
+	private volatile long 		mStallTime = 0;
+}
@@ -0,0 +1,135 @@
+package com.openbiometrix.capture.audio;
+
+/**
+ * A mono sine tone, for testing without a microphone.  Each sample is a known function of its
+ * position, so a test can check that none were lost or reordered.
+ */
+public class SyntheticSource implements AudioSource
+{
+	/**
+	 * @param sampleRate Samples per second
+	 * @param frequency Frequency of the tone in Hz
+	 * @param amplitude Peak value of the samples, up to 32767
+	 * @param duration Length of the signal in milliseconds, or 0 for no end
+	 */
+	public SyntheticSource(int sampleRate, float frequency, int amplitude, long duration)
+	{
+		mSampleRate = sampleRate;
+		mFrequency = frequency;
+		mAmplitude = amplitude;
+		mLength = duration * sampleRate / 1000;
+	}
+
+	/**
+	 * Deliver samples no faster than a microphone would, rather than as fast as they are read.
+	 *
+	 * @param realTime
+	 */
+	public synchronized void setRealTime(boolean realTime)
+	{
+		mRealTime = realTime;
+	}
+
+	/**
+	 * The value of a sample.
+	 *
+	 * @param position Position of the sample from the start of the signal
+	 */
+	public short getSample(long position)
+	{
+		double phase = 2 * Math.PI * mFrequency * (position % mSampleRate) / mSampleRate;
+		return (short) Math.round(mAmplitude * Math.sin(phase));
+	}
+
+	@Override
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+	@Override
+	public int getChannelCount()
+	{
+		return 1;
+	}
+
+	@Override
+	public synchronized void start()
+	{
+		mStopped = false;
+		mStartTime = System.nanoTime();
+		mStartPosition = mPosition;
+	}
+
+	@Override
+	public int read(short[] buffer, int offset, int length)
+	{
+		long position;
+		synchronized (this)
+		{
+			if (mStopped || (mLength > 0 && mPosition >= mLength))
+			{
+				return -1;
+			}
+			if (mLength > 0)
+			{
+				length = (int) Math.min(length, mLength - mPosition);
+			}
+			if (mRealTime)
+			{
+				// wait until the last sample would have been recorded
+				long due = mStartTime + (mPosition - mStartPosition + length) * 1000000000L / mSampleRate;
+				long wait = due - System.nanoTime();
+				while (wait > 0 && !mStopped)
+				{
+					try
+					{
+						wait(wait / 1000000, (int) (wait % 1000000));
+					}
+					catch (InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						return -1;
+					}
+					wait = due - System.nanoTime();
+				}
+				if (mStopped)
+				{
+					return -1;
+				}
+			}
+			position = mPosition;
+			mPosition += length;
+		}
+
+		for (int i = 0; i < length; i++)
+		{
+			buffer[offset + i] = getSample(position + i);
+		}
+		return length;
+	}
+
+	@Override
+	public synchronized void stop()
+	{
+		mStopped = true;
+		notifyAll();
+	}
+
+	@Override
+	public void release()
+	{
+		stop();
+	}
+
+
+	private final int 		mSampleRate;
+	private final float 	mFrequency;
+	private final int 		mAmplitude;
+	private final long 		mLength;
+	private boolean 		mRealTime = false;
+	private boolean 		mStopped = true;
+	private long 			mPosition = 0;
+	private long 			mStartPosition = 0;
+	private long 			mStartTime;
+}
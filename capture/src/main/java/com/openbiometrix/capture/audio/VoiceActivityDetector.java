@@ -0,0 +1,413 @@
+package com.openbiometrix.capture.audio;
+
+/**
+ * Finds the speech in a stream of 16 bit PCM and passes on only the utterances, so silence is
+ * not stored or uploaded.  The stream is cut into 10 ms frames, and each frame is classified
+ * from two cheap measurements:
+ *
+ *  - Energy, in dB, against a noise floor that follows the quietest recent frames.  A frame is
+ *    loud enough when it is the threshold above the floor and above the minimum level.
+ *  - The zero crossing rate.  Voiced speech crosses zero far less often than hiss and fan
+ *    noise, so a loud frame that crosses too often only counts if it is very loud, such as a
+ *    fricative.
+ *
+ * Decisions are smoothed with a hangover: an utterance starts after ONSET_FRAMES speech frames
+ * in a row and ends after the hangover time without speech, so short pauses between words do
+ * not split it.  The audio from the pre-roll time before the start is kept, so the soft start
+ * of the first word is not cut off.
+ *
+ * All buffers are allocated up front, so process() does not allocate.  Not thread safe.
+ */
+public class VoiceActivityDetector
+{
+	/**
+	 * Receives the utterances found.  Called on the thread that calls process() and flush().
+	 */
+	public interface Listener
+	{
+		/**
+		 * An utterance started.
+		 *
+		 * @param position Position in the stream of the first sample of the utterance, including
+		 *                 the pre-roll
+		 */
+		void onUtteranceStart(long position);
+
+		/**
+		 * Samples of the current utterance, in order.
+		 *
+		 * @param samples Only valid until this call returns
+		 * @param offset
+		 * @param length
+		 */
+		void onUtteranceSamples(short[] samples, int offset, int length);
+
+		/**
+		 * The current utterance ended.
+		 *
+		 * @param position Position in the stream after the last sample of the utterance
+		 */
+		void onUtteranceEnd(long position);
+	}
+
+	public final static int FRAME_MS = 10;
+	public final static int ONSET_FRAMES = 3;
+
+	public final static float DEFAULT_THRESHOLD_DB = 12.0f;
+	public final static float DEFAULT_MIN_LEVEL_DB = 35.0f;
+	public final static float DEFAULT_MAX_ZERO_CROSSING_RATE = 0.35f;
+	public final static int DEFAULT_HANGOVER_MS = 300;
+	public final static int DEFAULT_PRE_ROLL_MS = 200;
+
+	private final static int MAX_PRE_ROLL_MS = 1000;
+
+	// how fast the noise floor follows quieter and louder frames, per frame
+	private final static float FLOOR_FALL = 0.2f;
+	private final static float FLOOR_RISE = 0.005f;
+
+
+	/**
+	 * @param sampleRate Samples per second of each channel
+	 * @param channelCount Number of interleaved channels.  The channels are averaged.
+	 */
+	public VoiceActivityDetector(int sampleRate, int channelCount)
+	{
+		mSampleRate = sampleRate;
+		mChannelCount = channelCount;
+		mFrame = new short[Math.max(sampleRate * FRAME_MS / 1000, 1) * channelCount];
+		mPreRoll = new short[(MAX_PRE_ROLL_MS / FRAME_MS + ONSET_FRAMES) * mFrame.length];
+		setHangover(DEFAULT_HANGOVER_MS);
+		setPreRoll(DEFAULT_PRE_ROLL_MS);
+		reset();
+	}
+
+	/**
+	 * Set the receiver of the utterances.
+	 *
+	 * @param listener
+	 */
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+	public int getChannelCount()
+	{
+		return mChannelCount;
+	}
+
+	/**
+	 * Set how far above the noise floor, and above what level, a frame has to be to be speech.
+	 * Levels are in dB of the mean square sample, so full scale is about 90 dB.
+	 *
+	 * @param thresholdDb
+	 * @param minLevelDb
+	 */
+	public void setThresholds(float thresholdDb, float minLevelDb)
+	{
+		mThresholdDb = thresholdDb;
+		mMinLevelDb = minLevelDb;
+	}
+
+	/**
+	 * Set the highest fraction of samples that change sign for a frame that is not very loud
+	 * to be speech.
+	 *
+	 * @param rate
+	 */
+	public void setMaxZeroCrossingRate(float rate)
+	{
+		mMaxZeroCrossingRate = rate;
+	}
+
+	/**
+	 * Set how long the speech has to stop for the utterance to end.
+	 *
+	 * @param hangover Time in milliseconds
+	 */
+	public void setHangover(int hangover)
+	{
+		mHangoverFrames = Math.max(hangover / FRAME_MS, 1);
+	}
+
+	/**
+	 * Set how much audio before the start of the speech is kept.
+	 *
+	 * @param preRoll Time in milliseconds, up to one second
+	 */
+	public void setPreRoll(int preRoll)
+	{
+		mPreRollSamples = (Math.min(Math.max(preRoll, 0), MAX_PRE_ROLL_MS) / FRAME_MS) * mFrame.length;
+	}
+
+	/**
+	 * Start a new stream.  An utterance in progress is dropped without an end event.
+	 */
+	public void reset()
+	{
+		mPosition = 0;
+		mFrameLength = 0;
+		mPreRollStart = 0;
+		mPreRollLength = 0;
+		mFloorDb = -1;
+		mInSpeech = false;
+		mSpeechFrames = 0;
+		mSilentFrames = 0;
+		mFrameCount = 0;
+		mSpeechSampleCount = 0;
+		mUtteranceCount = 0;
+	}
+
+	/**
+	 * Process the next samples of the stream.
+	 *
+	 * @param samples Interleaved samples
+	 * @param offset
+	 * @param length
+	 */
+	public void process(short[] samples, int offset, int length)
+	{
+		short[] frame = mFrame;
+		while (length > 0)
+		{
+			int count = Math.min(length, frame.length - mFrameLength);
+			System.arraycopy(samples, offset, frame, mFrameLength, count);
+			mFrameLength += count;
+			offset += count;
+			length -= count;
+			if (mFrameLength == frame.length)
+			{
+				processFrame();
+				mFrameLength = 0;
+			}
+		}
+	}
+
+	/**
+	 * End the stream.  An utterance in progress gets the partial frame and ends.
+	 */
+	public void flush()
+	{
+		if (mInSpeech)
+		{
+			if (mFrameLength > 0)
+			{
+				emit(mFrame, 0, mFrameLength);
+				mPosition += mFrameLength;
+			}
+			endUtterance(mPosition);
+		}
+		mFrameLength = 0;
+	}
+
+	/**
+	 * Whether an utterance is in progress.
+	 */
+	public boolean isInSpeech()
+	{
+		return mInSpeech;
+	}
+
+	/**
+	 * The current noise floor in dB.
+	 */
+	public float getNoiseFloor()
+	{
+		return mFloorDb;
+	}
+
+	/**
+	 * Signal to noise ratio in dB of the current or last utterance: its mean frame level over
+	 * the noise floor when it started.
+	 */
+	public float getUtteranceSnr()
+	{
+		return mUtteranceFrames == 0 ? 0 : (float) (mUtteranceLevelSum / mUtteranceFrames) - mUtteranceFloorDb;
+	}
+
+	/**
+	 * Number of frames processed since the stream started.
+	 */
+	public long getFrameCount()
+	{
+		return mFrameCount;
+	}
+
+	/**
+	 * Number of utterances found since the stream started.
+	 */
+	public int getUtteranceCount()
+	{
+		return mUtteranceCount;
+	}
+
+	/**
+	 * The fraction of the stream that was passed on as utterances.
+	 */
+	public float getSpeechRatio()
+	{
+		return mPosition == 0 ? 0 : (float) mSpeechSampleCount / mPosition;
+	}
+
+
+	private void processFrame()
+	{
+		short[] frame = mFrame;
+		int channels = mChannelCount;
+		long energy = 0;
+		int crossings = 0;
+		int previous = 0;
+		for (int i = 0; i < frame.length; i += channels)
+		{
+			int sample = frame[i];
+			for (int c = 1; c < channels; c++)
+			{
+				sample += frame[i + c];
+			}
+			sample /= channels;
+			energy += sample * sample;
+			if ((sample ^ previous) < 0)
+			{
+				crossings++;
+			}
+			previous = sample;
+		}
+		int count = frame.length / channels;
+		float levelDb = (float) (10 * Math.log10((double) energy / count + 1));
+		float crossingRate = (float) crossings / count;
+
+		if (mFloorDb < 0)
+		{
+			mFloorDb = levelDb;
+		}
+		float threshold = Math.max(mFloorDb + mThresholdDb, mMinLevelDb);
+		boolean speech = levelDb > threshold
+				&& (crossingRate <= mMaxZeroCrossingRate || levelDb > threshold + mThresholdDb);
+
+		// the floor only follows frames that are not speech, quickly down and slowly up
+		if (!speech && !mInSpeech)
+		{
+			mFloorDb += (levelDb - mFloorDb) * (levelDb < mFloorDb ? FLOOR_FALL : FLOOR_RISE);
+		}
+		mFrameCount++;
+
+		long frameStart = mPosition;
+		mPosition += frame.length;
+		if (mInSpeech)
+		{
+			emit(frame, 0, frame.length);
+			mUtteranceLevelSum += levelDb;
+			mUtteranceFrames++;
+			mSilentFrames = speech ? 0 : mSilentFrames + 1;
+			if (mSilentFrames >= mHangoverFrames)
+			{
+				endUtterance(mPosition);
+			}
+			return;
+		}
+
+		addPreRoll(frame);
+		mSpeechFrames = speech ? mSpeechFrames + 1 : 0;
+		if (mSpeechFrames >= ONSET_FRAMES)
+		{
+			startUtterance(frameStart + frame.length);
+		}
+	}
+
+	/**
+	 * Start an utterance with the pre-roll and the onset frames, which end at position.
+	 */
+	private void startUtterance(long position)
+	{
+		int keep = Math.min(mPreRollSamples + ONSET_FRAMES * mFrame.length, mPreRollLength);
+		mInSpeech = true;
+		mSilentFrames = 0;
+		mSpeechFrames = 0;
+		mUtteranceCount++;
+		mUtteranceFloorDb = mFloorDb;
+		mUtteranceLevelSum = 0;
+		mUtteranceFrames = 0;
+		if (mListener != null)
+		{
+			mListener.onUtteranceStart(position - keep);
+		}
+
+		// the oldest kept samples first, in up to two pieces
+		int capacity = mPreRoll.length;
+		int start = (mPreRollStart + mPreRollLength - keep) % capacity;
+		int first = Math.min(keep, capacity - start);
+		emit(mPreRoll, start, first);
+		if (keep > first)
+		{
+			emit(mPreRoll, 0, keep - first);
+		}
+		mPreRollStart = 0;
+		mPreRollLength = 0;
+	}
+
+	private void endUtterance(long position)
+	{
+		mInSpeech = false;
+		mSilentFrames = 0;
+		if (mListener != null)
+		{
+			mListener.onUtteranceEnd(position);
+		}
+	}
+
+	private void emit(short[] samples, int offset, int length)
+	{
+		mSpeechSampleCount += length;
+		if (length > 0 && mListener != null)
+		{
+			mListener.onUtteranceSamples(samples, offset, length);
+		}
+	}
+
+	private void addPreRoll(short[] frame)
+	{
+		int capacity = mPreRoll.length;
+		int end = (mPreRollStart + mPreRollLength) % capacity;
+		int first = Math.min(frame.length, capacity - end);
+		System.arraycopy(frame, 0, mPreRoll, end, first);
+		System.arraycopy(frame, first, mPreRoll, 0, frame.length - first);
+		mPreRollLength += frame.length;
+		if (mPreRollLength > capacity)
+		{
+			mPreRollStart = (mPreRollStart + mPreRollLength - capacity) % capacity;
+			mPreRollLength = capacity;
+		}
+	}
+
+
+	private final int 		mSampleRate;
+	private final int 		mChannelCount;
+	private Listener 		mListener = null;
+	private final short[] 	mFrame;
+	private final short[] 	mPreRoll;
+	private float 			mThresholdDb = DEFAULT_THRESHOLD_DB;
+	private float 			mMinLevelDb = DEFAULT_MIN_LEVEL_DB;
+	private float 			mMaxZeroCrossingRate = DEFAULT_MAX_ZERO_CROSSING_RATE;
+	private int 			mHangoverFrames;
+	private int 			mPreRollSamples;
+
+	private long 			mPosition;
+	private int 			mFrameLength;
+	private int 			mPreRollStart;
+	private int 			mPreRollLength;
+	private float 			mFloorDb;
+	private boolean 		mInSpeech;
+	private int 			mSpeechFrames;
+	private int 			mSilentFrames;
+	private float 			mUtteranceFloorDb;
+	private double 			mUtteranceLevelSum;
+	private int 			mUtteranceFrames;
+	private long 			mFrameCount;
+	private long 			mSpeechSampleCount;
+	private int 			mUtteranceCount;
+}
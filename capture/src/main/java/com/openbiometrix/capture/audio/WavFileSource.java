@@ -0,0 +1,185 @@
+package com.openbiometrix.capture.audio;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Plays back a 16 bit PCM WAV file as if it were being recorded, for testing and for running
+ * recorded sessions through the capture pipeline again.
+ */
+public class WavFileSource implements AudioSource
+{
+	/**
+	 * Read the format of a WAV file.
+	 *
+	 * @param file
+	 * @throws IOException If the file is not 16 bit PCM WAV.
+	 */
+	public WavFileSource(File file) throws IOException
+	{
+		mFile = file;
+		DataInputStream in = open();
+		in.close();
+	}
+
+	@Override
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+	@Override
+	public int getChannelCount()
+	{
+		return mChannelCount;
+	}
+
+	@Override
+	public synchronized void start() throws IOException
+	{
+		if (mIn == null)
+		{
+			mIn = open();
+		}
+	}
+
+	@Override
+	public int read(short[] buffer, int offset, int length) throws IOException
+	{
+		DataInputStream in;
+		synchronized (this)
+		{
+			in = mIn;
+		}
+		if (in == null || mRemaining <= 0)
+		{
+			return -1;
+		}
+
+		int count = (int) Math.min(length, mRemaining);
+		if (mBytes.length < count * 2)
+		{
+			mBytes = new byte[count * 2];
+		}
+		int read = in.read(mBytes, 0, count * 2);
+		if (read < 0)
+		{
+			throw new EOFException(mFile + " is truncated");
+		}
+		if ((read & 1) != 0)
+		{
+			in.readFully(mBytes, read, 1);
+			read++;
+		}
+		count = read / 2;
+		for (int i = 0; i < count; i++)
+		{
+			buffer[offset + i] = (short) ((mBytes[2 * i] & 0xff) | (mBytes[2 * i + 1] << 8));
+		}
+		mRemaining -= count;
+		return count;
+	}
+
+	@Override
+	public void stop()
+	{
+		// a file does not block, so there is nothing to wake
+	}
+
+	@Override
+	public synchronized void release()
+	{
+		if (mIn != null)
+		{
+			try
+			{
+				mIn.close();
+			}
+			catch (IOException ex)
+			{
+				// nothing more can be done with the file
+			}
+			mIn = null;
+		}
+	}
+
+
+	/**
+	 * Open the file and read up to the start of the samples.
+	 */
+	private DataInputStream open() throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+		try
+		{
+			int riff = in.readInt();
+			skip(in, 4);
+			if (riff != 0x52494646 || in.readInt() != 0x57415645)	// "RIFF", "WAVE"
+			{
+				throw new IOException(mFile + " is not a WAV file");
+			}
+			while (true)
+			{
+				int id = in.readInt();
+				long size = Integer.reverseBytes(in.readInt()) & 0xffffffffL;
+				if (id == 0x666d7420)	// "fmt "
+				{
+					int format = Short.reverseBytes(in.readShort());
+					mChannelCount = Short.reverseBytes(in.readShort());
+					mSampleRate = Integer.reverseBytes(in.readInt());
+					skip(in, 6);
+					int bits = Short.reverseBytes(in.readShort());
+					if (format != 1 || bits != 16 || mChannelCount < 1)
+					{
+						throw new IOException(mFile + " is not 16 bit PCM");
+					}
+					skip(in, size - 16);
+				}
+				else if (id == 0x64617461)	// "data"
+				{
+					if (mChannelCount == 0)
+					{
+						throw new IOException(mFile + " has no format");
+					}
+					mRemaining = size / 2;
+					return in;
+				}
+				else
+				{
+					skip(in, size + (size & 1));
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			in.close();
+			throw ex;
+		}
+	}
+
+	private static void skip(InputStream in, long count) throws IOException
+	{
+		while (count > 0)
+		{
+			long skipped = in.skip(count);
+			if (skipped <= 0)
+			{
+				throw new EOFException();
+			}
+			count -= skipped;
+		}
+	}
+
+
+	private final File 		mFile;
+	private int 			mSampleRate;
+	private int 			mChannelCount;
+	private DataInputStream mIn = null;
+	private volatile long 	mRemaining;
+	private byte[] 			mBytes = new byte[0];
+}
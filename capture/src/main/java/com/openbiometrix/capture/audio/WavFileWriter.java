@@ -0,0 +1,145 @@
+package com.openbiometrix.capture.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Streams 16 bit PCM to a WAV file as it is recorded, so a long recording is never held in
+ * memory.  The header is written with empty sizes first and filled in when the file is closed.
+ */
+public class WavFileWriter implements Closeable
+{
+	public final static String MEDIA_TYPE = "audio/wav";
+	public final static int HEADER_SIZE = 44;
+
+
+	/**
+	 * @param file The file to write, which is replaced if it exists
+	 * @param sampleRate Samples per second of each channel
+	 * @param channelCount Number of interleaved channels
+	 * @throws IOException
+	 */
+	public WavFileWriter(File file, int sampleRate, int channelCount) throws IOException
+	{
+		mFile = file;
+		mSampleRate = sampleRate;
+		mChannelCount = channelCount;
+		mOut = new FileOutputStream(file);
+		try
+		{
+			mOut.write(header(0));
+		}
+		catch (IOException ex)
+		{
+			mOut.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * The file being written.
+	 */
+	public File getFile()
+	{
+		return mFile;
+	}
+
+	/**
+	 * Append samples.
+	 *
+	 * @param samples Interleaved samples
+	 * @param offset
+	 * @param length Number of samples
+	 * @throws IOException
+	 */
+	public void write(short[] samples, int offset, int length) throws IOException
+	{
+		if (mBytes.capacity() < length * 2)
+		{
+			mBytes = ByteBuffer.allocate(length * 2).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		mBytes.clear();
+		ShortBuffer shorts = mBytes.asShortBuffer();
+		shorts.put(samples, offset, length);
+		mOut.write(mBytes.array(), 0, length * 2);
+		mSampleCount += length;
+	}
+
+	/**
+	 * Number of samples written, counting each channel.
+	 */
+	public long getSampleCount()
+	{
+		return mSampleCount;
+	}
+
+	/**
+	 * Length in milliseconds of the audio written.
+	 */
+	public long getDuration()
+	{
+		return mSampleCount / mChannelCount * 1000 / mSampleRate;
+	}
+
+	/**
+	 * Fill in the sizes in the header, sync the file to disk and close it.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (mClosed)
+		{
+			return;
+		}
+		mClosed = true;
+		try
+		{
+			mOut.getChannel().write(ByteBuffer.wrap(header(mSampleCount * 2)), 0);
+			mOut.getFD().sync();
+		}
+		finally
+		{
+			mOut.close();
+		}
+	}
+
+
+	private byte[] header(long dataLength) throws IOException
+	{
+		if (dataLength > 0xffffffffL - HEADER_SIZE)
+		{
+			throw new IOException("WAV file " + mFile + " is over 4 GB");
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x46464952);	// "RIFF"
+		header.putInt((int) (dataLength + HEADER_SIZE - 8));
+		header.putInt(0x45564157);	// "WAVE"
+		header.putInt(0x20746d66);	// "fmt "
+		header.putInt(16);
+		header.putShort((short) 1);	// PCM
+		header.putShort((short) mChannelCount);
+		header.putInt(mSampleRate);
+		header.putInt(mSampleRate * mChannelCount * 2);
+		header.putShort((short) (mChannelCount * 2));
+		header.putShort((short) 16);
+		header.putInt(0x61746164);	// "data"
+		header.putInt((int) dataLength);
+		return header.array();
+	}
+
+
+	private final File 				mFile;
+	private final int 				mSampleRate;
+	private final int 				mChannelCount;
+	private final FileOutputStream 	mOut;
+	private ByteBuffer 				mBytes = ByteBuffer.allocate(0);
+	private long 					mSampleCount = 0;
+	private boolean 				mClosed = false;
+}
@@ -0,0 +1,156 @@
+package com.openbiometrix.capture.camera;
+
+/**
+ * What one camera of the device supports: which way it faces, its preview sizes and its preview
+ * frame rate ranges.  Asking the camera for a size or rate it does not support makes it quietly
+ * pick another one, so the settings are chosen from these lists instead.
+ */
+public class CameraCapabilities
+{
+	/**
+	 * Facing of a camera, with the same values as CameraSource and Camera.CameraInfo.
+	 */
+	public final static int FACING_BACK = 0;
+	public final static int FACING_FRONT = 1;
+
+	/**
+	 * Aspect ratios that differ by less than this are the same.
+	 */
+	private final static float ASPECT_TOLERANCE = 0.01f;
+
+
+	/**
+	 * @param id Index of the camera
+	 * @param facing FACING_BACK or FACING_FRONT
+	 * @param orientation Rotation of the sensor in degrees
+	 * @param previewSizes Supported preview sizes as width, height pairs
+	 * @param fpsRanges Supported preview frame rates as minimum, maximum pairs, in frames per
+	 *                  1000 seconds like the camera reports them
+	 */
+	public CameraCapabilities(int id, int facing, int orientation, int[] previewSizes, int[] fpsRanges)
+	{
+		mId = id;
+		mFacing = facing;
+		mOrientation = orientation;
+		mPreviewSizes = previewSizes;
+		mFpsRanges = fpsRanges;
+	}
+
+	public int getId()
+	{
+		return mId;
+	}
+
+	public int getFacing()
+	{
+		return mFacing;
+	}
+
+	public int getOrientation()
+	{
+		return mOrientation;
+	}
+
+	/**
+	 * Whether the preview sizes were read.  They are missing if the camera could not be opened.
+	 */
+	public boolean hasParameters()
+	{
+		return mPreviewSizes.length > 0;
+	}
+
+	/**
+	 * Supported preview sizes as width, height pairs.
+	 */
+	public int[] getPreviewSizes()
+	{
+		return mPreviewSizes;
+	}
+
+	/**
+	 * Supported preview frame rates as minimum, maximum pairs, in frames per 1000 seconds.
+	 */
+	public int[] getFpsRanges()
+	{
+		return mFpsRanges;
+	}
+
+	/**
+	 * Choose the supported preview size nearest to the one wanted.  Sizes with the same aspect
+	 * ratio are preferred, then the nearest in area, so faces keep their shape and the detector
+	 * gets about as many pixels as asked for.
+	 *
+	 * @param width
+	 * @param height
+	 * @param size Receives the width and height chosen
+	 * @return false if the camera has no preview sizes, in which case size is set to the one wanted.
+	 */
+	public boolean choosePreviewSize(int width, int height, int[] size)
+	{
+		size[0] = width;
+		size[1] = height;
+		if (mPreviewSizes.length == 0)
+		{
+			return false;
+		}
+
+		float aspect = (float) width / height;
+		long area = (long) width * height;
+		int best = -1;
+		boolean bestAspect = false;
+		long bestDistance = Long.MAX_VALUE;
+		for (int i = 0; i < mPreviewSizes.length; i += 2)
+		{
+			int w = mPreviewSizes[i];
+			int h = mPreviewSizes[i + 1];
+			boolean sameAspect = Math.abs((float) w / h - aspect) < ASPECT_TOLERANCE;
+			long distance = Math.abs((long) w * h - area);
+			if (best < 0 || (sameAspect && !bestAspect) || (sameAspect == bestAspect && distance < bestDistance))
+			{
+				best = i;
+				bestAspect = sameAspect;
+				bestDistance = distance;
+			}
+		}
+		size[0] = mPreviewSizes[best];
+		size[1] = mPreviewSizes[best + 1];
+		return true;
+	}
+
+	/**
+	 * Choose the frame rate to ask for.  The rate wanted is kept if a supported range reaches it
+	 * or the ranges are not known, otherwise it is lowered to the fastest rate the camera
+	 * supports.
+	 *
+	 * @param fps Frames per second wanted
+	 * @return Frames per second to ask for.
+	 */
+	public float chooseFps(float fps)
+	{
+		int wanted = Math.round(fps * 1000);
+		int fastest = -1;
+		for (int i = 0; i < mFpsRanges.length; i += 2)
+		{
+			int min = mFpsRanges[i];
+			int max = mFpsRanges[i + 1];
+			if (min <= wanted && wanted <= max)
+			{
+				return fps;
+			}
+			fastest = Math.max(fastest, max);
+		}
+		if (fastest < 0 || fastest > wanted)
+		{
+			// no ranges, or every range is faster; the nearest range is used
+			return fps;
+		}
+		return fastest / 1000.0f;
+	}
+
+
+	private final int 		mId;
+	private final int 		mFacing;
+	private final int 		mOrientation;
+	private final int[] 	mPreviewSizes;
+	private final int[] 	mFpsRanges;
+}
@@ -0,0 +1,237 @@
+package com.openbiometrix.capture.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The capabilities of the device's cameras and whether the face detector was operational, kept
+ * in a small file so that they are probed once rather than every time the camera starts.  The
+ * file is written even if some cameras are missing their parameters, so that only those have to
+ * be probed again.
+ *
+ * The file is only used with the fingerprint it was written for, which should change when the
+ * system or the app is upgraded, since either can change what the cameras report.  It is written
+ * to a temporary file and renamed, so it is never half written.
+ *
+ * Not thread safe.
+ */
+public class CameraCapabilityCache
+{
+	private final static int MAGIC = 0x4f42584b;	// "OBXK"
+	private final static int VERSION = 1;
+
+
+	/**
+	 * @param file
+	 * @param fingerprint Identifies the system and app the capabilities are valid for
+	 */
+	public CameraCapabilityCache(File file, String fingerprint)
+	{
+		mFile = file;
+		mFingerprint = fingerprint;
+	}
+
+	/**
+	 * Read the capabilities from the file, if it was written for the same fingerprint.
+	 *
+	 * @return Whether the file was read.  If not, the cameras must be probed and set.
+	 */
+	public boolean load()
+	{
+		if (!mFile.exists())
+		{
+			return false;
+		}
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+			try
+			{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(mFingerprint))
+				{
+					return false;
+				}
+				boolean operational = in.readBoolean();
+				int count = in.readInt();
+				List<CameraCapabilities> cameras = new ArrayList<CameraCapabilities>(count);
+				for (int i = 0; i < count; i++)
+				{
+					int id = in.readInt();
+					int facing = in.readInt();
+					int orientation = in.readInt();
+					int[] sizes = readInts(in);
+					int[] fpsRanges = readInts(in);
+					cameras.add(new CameraCapabilities(id, facing, orientation, sizes, fpsRanges));
+				}
+				mCameras = cameras;
+				mDetectorOperational = operational;
+				return true;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			// corrupt or unreadable; probe again
+			return false;
+		}
+	}
+
+	/**
+	 * Write the capabilities to the file.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException
+	{
+		File temp = new File(mFile.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(file);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(mFingerprint);
+			out.writeBoolean(mDetectorOperational);
+			out.writeInt(mCameras.size());
+			for (CameraCapabilities camera : mCameras)
+			{
+				out.writeInt(camera.getId());
+				out.writeInt(camera.getFacing());
+				out.writeInt(camera.getOrientation());
+				writeInts(out, camera.getPreviewSizes());
+				writeInts(out, camera.getFpsRanges());
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if (!temp.renameTo(mFile))
+		{
+			temp.delete();
+			throw new IOException("Unable to write camera capabilities " + mFile);
+		}
+	}
+
+	/**
+	 * Remove the file, so the cameras are probed again.
+	 */
+	public void invalidate()
+	{
+		mFile.delete();
+		mCameras = Collections.emptyList();
+		mDetectorOperational = false;
+	}
+
+	public String getFingerprint()
+	{
+		return mFingerprint;
+	}
+
+	public List<CameraCapabilities> getCameras()
+	{
+		return mCameras;
+	}
+
+	public void setCameras(List<CameraCapabilities> cameras)
+	{
+		mCameras = new ArrayList<CameraCapabilities>(cameras);
+	}
+
+	/**
+	 * Whether the parameters of every camera were read.  A camera that could not be opened has
+	 * no preview sizes.
+	 */
+	public boolean isComplete()
+	{
+		for (CameraCapabilities camera : mCameras)
+		{
+			if (!camera.hasParameters())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the face detector was operational when last checked.  Once it is, its native
+	 * library has been downloaded and there is no need to check again.
+	 */
+	public boolean isDetectorOperational()
+	{
+		return mDetectorOperational;
+	}
+
+	public void setDetectorOperational(boolean operational)
+	{
+		mDetectorOperational = operational;
+	}
+
+	/**
+	 * Choose the camera facing the way wanted.  If there is none, choose the last camera, which
+	 * is usually the last built in one.
+	 *
+	 * @param facing CameraCapabilities.FACING_FRONT or FACING_BACK
+	 * @return The camera, or null if there are no cameras.
+	 */
+	public CameraCapabilities selectCamera(int facing)
+	{
+		CameraCapabilities best = null;
+		for (CameraCapabilities camera : mCameras)
+		{
+			if (camera.getFacing() == facing)
+			{
+				return camera;
+			}
+			best = camera;
+		}
+		return best;
+	}
+
+
+	private static int[] readInts(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > 4096)
+		{
+			throw new EOFException("Bad array length " + length);
+		}
+		int[] values = new int[length];
+		for (int i = 0; i < length; i++)
+		{
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		out.writeInt(values.length);
+		for (int value : values)
+		{
+			out.writeInt(value);
+		}
+	}
+
+
+	private final File 						mFile;
+	private final String 					mFingerprint;
+	private List<CameraCapabilities> 		mCameras = Collections.emptyList();
+	private boolean 						mDetectorOperational = false;
+}
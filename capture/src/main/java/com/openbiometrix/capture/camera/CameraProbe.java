@@ -0,0 +1,144 @@
+package com.openbiometrix.capture.camera;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Asks the cameras what they support.  Each camera is opened to read its parameters, which takes
+ * a while and fails if another app has it open, so the results are meant to be kept in a
+ * CameraCapabilityCache.  The facing and orientation are read without opening the camera, so
+ * they are always known; only the parameters of a camera that could not be opened are missing.
+ */
+public class CameraProbe
+{
+	private final static String TAG = "CameraProbe";
+
+
+	/**
+	 * Get the capabilities of every camera.  A camera that cannot be opened is still listed with
+	 * its facing, but without sizes or frame rates.
+	 *
+	 * @return The cameras, in index order.
+	 */
+	public static List<CameraCapabilities> probe()
+	{
+		int count = Camera.getNumberOfCameras();
+		List<CameraCapabilities> cameras = new ArrayList<CameraCapabilities>(count);
+		for (int id = 0; id < count; id++)
+		{
+			Camera.CameraInfo info = new Camera.CameraInfo();
+			Camera.getCameraInfo(id, info);
+			int facing = info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT
+					? CameraCapabilities.FACING_FRONT : CameraCapabilities.FACING_BACK;
+			cameras.add(probeParameters(new CameraCapabilities(id, facing, info.orientation, new int[0], new int[0])));
+		}
+		return cameras;
+	}
+
+	/**
+	 * Read the parameters of the cameras that are missing them, such as those that another app
+	 * had open when they were last probed.  The others are kept as they are.
+	 *
+	 * @param cameras
+	 * @return The cameras, in the same order.
+	 */
+	public static List<CameraCapabilities> probeMissing(List<CameraCapabilities> cameras)
+	{
+		List<CameraCapabilities> probed = new ArrayList<CameraCapabilities>(cameras.size());
+		for (CameraCapabilities camera : cameras)
+		{
+			probed.add(camera.hasParameters() ? camera : probeParameters(camera));
+		}
+		return probed;
+	}
+
+
+	/**
+	 * Open a camera to read its preview sizes and frame rates.
+	 *
+	 * @return The camera with its parameters, or as it was if it cannot be opened.
+	 */
+	private static CameraCapabilities probeParameters(CameraCapabilities capabilities)
+	{
+		int id = capabilities.getId();
+		Camera camera = null;
+		try
+		{
+			camera = Camera.open(id);
+			Camera.Parameters parameters = camera.getParameters();
+			return new CameraCapabilities(id, capabilities.getFacing(), capabilities.getOrientation(),
+					toSizes(parameters.getSupportedPreviewSizes()), toFpsRanges(parameters.getSupportedPreviewFpsRange()));
+		}
+		catch (RuntimeException ex)
+		{
+			Log.w(TAG, "Unable to open camera " + id + " to read its parameters.", ex);
+			return capabilities;
+		}
+		finally
+		{
+			if (camera != null)
+			{
+				camera.release();
+			}
+		}
+	}
+
+	/**
+	 * A fingerprint of the system build and the app version, which changes when either is
+	 * upgraded.
+	 *
+	 * @param ctx
+	 */
+	public static String fingerprint(Context ctx)
+	{
+		StringBuilder fingerprint = new StringBuilder(Build.FINGERPRINT);
+		try
+		{
+			PackageInfo info = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+			fingerprint.append('|').append(info.versionCode).append('|').append(info.lastUpdateTime);
+		}
+		catch (PackageManager.NameNotFoundException ex)
+		{
+			// our own package is always found
+		}
+		return fingerprint.toString();
+	}
+
+
+	private static int[] toSizes(List<Camera.Size> sizes)
+	{
+		if (sizes == null)
+		{
+			return new int[0];
+		}
+		int[] values = new int[sizes.size() * 2];
+		for (int i = 0; i < sizes.size(); i++)
+		{
+			values[2 * i] = sizes.get(i).width;
+			values[2 * i + 1] = sizes.get(i).height;
+		}
+		return values;
+	}
+
+	private static int[] toFpsRanges(List<int[]> ranges)
+	{
+		if (ranges == null)
+		{
+			return new int[0];
+		}
+		int[] values = new int[ranges.size() * 2];
+		for (int i = 0; i < ranges.size(); i++)
+		{
+			values[2 * i] = ranges.get(i)[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+			values[2 * i + 1] = ranges.get(i)[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+		}
+		return values;
+	}
+}
@@ -0,0 +1,333 @@
+package com.openbiometrix.capture.codec;
+
+import com.openbiometrix.capture.store.CaptureRecord;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Encodes and saves a burst of camera frames on a background thread, so the camera thread only
+ * copies each frame into a pooled buffer.  When every buffer is waiting to be saved, frames are
+ * dropped rather than making the camera wait, and counted.
+ *
+ * Frames are saved in the order they were submitted.
+ */
+public class BurstWriter
+{
+	/**
+	 * Saves an encoded frame, such as CaptureDevice.saveCapture.
+	 */
+	public interface Sink
+	{
+		/**
+		 * Called on the writer thread.
+		 *
+		 * @param data The encoded frame
+		 * @param record Metadata of the frame, with the media type of the codec
+		 * @throws IOException
+		 */
+		void save(byte[] data, CaptureRecord record) throws IOException;
+	}
+
+	public final static int DEFAULT_BUFFER_COUNT = 8;
+
+
+	/**
+	 * @param codec Codec to encode the frames with
+	 * @param bufferCount Number of frames that can wait to be saved
+	 * @param sink Where encoded frames go
+	 */
+	public BurstWriter(CaptureCodec codec, int bufferCount, Sink sink)
+	{
+		mCodec = codec;
+		mSink = sink;
+		for (int i = 0; i < bufferCount; i++)
+		{
+			mFree.add(new YuvFrame());
+		}
+	}
+
+	/**
+	 * Get a free frame buffer to copy a camera frame into.
+	 *
+	 * @return The frame, or null if every buffer is in use, in which case the frame is counted as
+	 *         dropped.
+	 */
+	public synchronized YuvFrame obtainFrame()
+	{
+		YuvFrame frame = mFree.poll();
+		if (frame == null)
+		{
+			mDroppedCount++;
+		}
+		return frame;
+	}
+
+	/**
+	 * Return a frame that was obtained but not submitted.
+	 *
+	 * @param frame
+	 */
+	public synchronized void releaseFrame(YuvFrame frame)
+	{
+		mFree.add(frame);
+	}
+
+	/**
+	 * Queue a frame to be encoded and saved.  The writer thread is started if needed.
+	 *
+	 * @param frame A frame from obtainFrame
+	 * @param record Metadata of the frame.  The media type is set to that of the codec.
+	 */
+	public synchronized void submit(YuvFrame frame, CaptureRecord record)
+	{
+		record.mediaType = mCodec.getMediaType();
+		record.timestamp = frame.timestamp;
+		mQueue.add(new Pending(frame, record));
+		if (mThread == null)
+		{
+			mThread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					writeLoop();
+				}
+			}, "BurstWriter");
+			mThread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait until every submitted frame has been saved.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void flush() throws InterruptedException
+	{
+		while (!mQueue.isEmpty() || mWriting)
+		{
+			wait();
+		}
+	}
+
+	/**
+	 * Save the frames that are queued and stop the writer thread.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			mClosed = true;
+			thread = mThread;
+			notifyAll();
+		}
+		if (thread != null)
+		{
+			thread.join();
+		}
+	}
+
+	/**
+	 * Number of frames saved.
+	 */
+	public synchronized long getSavedCount()
+	{
+		return mSavedCount;
+	}
+
+	/**
+	 * Number of frames dropped because every buffer was in use.
+	 */
+	public synchronized long getDroppedCount()
+	{
+		return mDroppedCount;
+	}
+
+	/**
+	 * Number of frames that could not be encoded or saved.
+	 */
+	public synchronized long getFailedCount()
+	{
+		return mFailedCount;
+	}
+
+	/**
+	 * Total size in bytes of the encoded frames.
+	 */
+	public synchronized long getEncodedBytes()
+	{
+		return mEncodedBytes;
+	}
+
+	/**
+	 * Average time in milliseconds taken to encode a frame.
+	 */
+	public synchronized float getAverageEncodeTime()
+	{
+		return mSavedCount == 0 ? 0 : mEncodeTime / 1e6f / mSavedCount;
+	}
+
+	/**
+	 * Average time in milliseconds taken to save an encoded frame.
+	 */
+	public synchronized float getAverageSaveTime()
+	{
+		return mSavedCount == 0 ? 0 : mSaveTime / 1e6f / mSavedCount;
+	}
+
+	/**
+	 * The last error from encoding or saving a frame, or null.
+	 */
+	public synchronized IOException getLastError()
+	{
+		return mLastError;
+	}
+
+
+	private void writeLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				Pending pending;
+				synchronized (this)
+				{
+					while (mQueue.isEmpty() && !mClosed)
+					{
+						try
+						{
+							wait();
+						}
+						catch (InterruptedException ex)
+						{
+							mClosed = true;
+						}
+					}
+					pending = mQueue.poll();
+					if (pending == null)
+					{
+						mThread = null;
+						notifyAll();
+						return;
+					}
+					mWriting = true;
+				}
+
+				write(pending);
+
+				synchronized (this)
+				{
+					mWriting = false;
+					notifyAll();
+				}
+			}
+		}
+		finally
+		{
+			// even if an error ends the thread, so flush() returns and submit() starts another
+			synchronized (this)
+			{
+				mWriting = false;
+				if (mThread == Thread.currentThread())
+				{
+					mThread = null;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Encode and save one frame.  A failure, even a runtime exception from the codec or the
+	 * sink, only fails the frame.
+	 */
+	private void write(Pending pending)
+	{
+		long start = System.nanoTime();
+		long encoded = start;
+		byte[] data = null;
+		IOException error = null;
+		boolean freed = false;
+		try
+		{
+			data = mCodec.encode(pending.frame);
+			encoded = System.nanoTime();
+			synchronized (this)
+			{
+				// the buffer is free once it is encoded
+				mFree.add(pending.frame);
+				freed = true;
+			}
+			mSink.save(data, pending.record);
+		}
+		catch (IOException ex)
+		{
+			error = ex;
+		}
+		catch (RuntimeException ex)
+		{
+			error = new IOException("Unable to write frame: " + ex, ex);
+		}
+		finally
+		{
+			if (!freed)
+			{
+				synchronized (this)
+				{
+					mFree.add(pending.frame);
+				}
+			}
+		}
+
+		synchronized (this)
+		{
+			if (error == null)
+			{
+				mSavedCount++;
+				mEncodedBytes += data.length;
+				mEncodeTime += encoded - start;
+				mSaveTime += System.nanoTime() - encoded;
+			}
+			else
+			{
+				mFailedCount++;
+				mLastError = error;
+			}
+		}
+	}
+
+
+	private static class Pending
+	{
+		Pending(YuvFrame frame, CaptureRecord record)
+		{
+			this.frame = frame;
+			this.record = record;
+		}
+
+		final YuvFrame 		frame;
+		final CaptureRecord record;
+	}
+
+
+	private final CaptureCodec 			mCodec;
+	private final Sink 					mSink;
+	private final ArrayDeque<YuvFrame> 	mFree = new ArrayDeque<YuvFrame>();
+	private final ArrayDeque<Pending> 	mQueue = new ArrayDeque<Pending>();
+	private Thread 						mThread = null;
+	private boolean 					mWriting = false;
+	private boolean 					mClosed = false;
+	private long 						mSavedCount = 0;
+	private long 						mDroppedCount = 0;
+	private long 						mFailedCount = 0;
+	private long 						mEncodedBytes = 0;
+	private long 						mEncodeTime = 0;
+	private long 						mSaveTime = 0;
+	private IOException 				mLastError = null;
+}
@@ -0,0 +1,44 @@
+package com.openbiometrix.capture.codec;
+
+import java.io.IOException;
+
+/**
+ * Turns raw camera frames into the bytes of a capture file, and back where the codec can.  A
+ * codec is identified by the MIME media type of what it writes, which is the media type given
+ * to the CaptureFile, so the codec of a capture is found with CaptureCodecs.get.
+ *
+ * Codecs are used from several threads at once, so any state they keep has to be per thread.
+ */
+public interface CaptureCodec
+{
+	/**
+	 * The MIME media type of the encoded data.
+	 */
+	String getMediaType();
+
+	/**
+	 * Whether decode is supported.
+	 */
+	boolean canDecode();
+
+	/**
+	 * Encode a frame.
+	 *
+	 * @param frame
+	 * @return The encoded data.
+	 * @throws IOException If the frame cannot be encoded.
+	 */
+	byte[] encode(YuvFrame frame) throws IOException;
+
+	/**
+	 * Decode data written by encode.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out The frame to decode into.  Its data array is replaced if it is too small.
+	 * @throws IOException If the data is not valid.
+	 * @throws UnsupportedOperationException If the codec cannot decode.
+	 */
+	void decode(byte[] data, int offset, int length, YuvFrame out) throws IOException;
+}
@@ -0,0 +1,45 @@
+package com.openbiometrix.capture.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The codecs known for each capture media type.  The raw LZ4 codec and the JPEG encoder are
+ * registered to start with, and an application can register its own.
+ */
+public final class CaptureCodecs
+{
+	private CaptureCodecs()
+	{
+	}
+
+	/**
+	 * Register a codec for its media type, replacing any codec registered for it before.
+	 *
+	 * @param codec
+	 */
+	public static synchronized void register(CaptureCodec codec)
+	{
+		sCodecs.put(codec.getMediaType(), codec);
+	}
+
+	/**
+	 * Get the codec for a media type, such as the media type of a CaptureFile.
+	 *
+	 * @param mediaType
+	 * @return The codec, or null if none is registered.
+	 */
+	public static synchronized CaptureCodec get(String mediaType)
+	{
+		return sCodecs.get(mediaType);
+	}
+
+
+	private final static Map<String, CaptureCodec> sCodecs = new HashMap<String, CaptureCodec>();
+
+	static
+	{
+		register(new Lz4Nv21Codec());
+		register(new JpegCaptureCodec());
+	}
+}
@@ -0,0 +1,325 @@
+package com.openbiometrix.capture.codec;
+
+import com.openbiometrix.capture.store.CapturePage;
+import com.openbiometrix.capture.store.CaptureQuery;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Transcodes captures in a CaptureStore from a fast codec to the codec they are kept in, such
+ * as raw frames saved during a burst to JPEG.  The background thread waits until no capture has
+ * been saved for the idle delay, so the expensive encode never competes with a burst, and stops
+ * between captures as soon as a new capture is saved.
+ *
+ * Each capture keeps its entry in the store: only its file, size and media type change.
+ */
+public class CaptureTranscoder implements CaptureStore.Listener
+{
+	public final static long DEFAULT_IDLE_DELAY = 2000;
+
+	private final static int PAGE_SIZE = 16;
+
+
+	/**
+	 * Transcode raw LZ4 frames.
+	 *
+	 * @param store
+	 * @param target Codec to transcode to
+	 * @param key AES key of the store's encrypted captures, also used for the new files, or null
+	 */
+	public CaptureTranscoder(CaptureStore store, CaptureCodec target, SecretKey key)
+	{
+		this(store, Lz4Nv21Codec.MEDIA_TYPE, target, key);
+	}
+
+	/**
+	 * @param store
+	 * @param sourceMediaType Media type of the captures to transcode.  Its codec must be
+	 *                        registered with CaptureCodecs and able to decode.
+	 * @param target Codec to transcode to
+	 * @param key AES key of the store's encrypted captures, also used for the new files, or null
+	 */
+	public CaptureTranscoder(CaptureStore store, String sourceMediaType, CaptureCodec target, SecretKey key)
+	{
+		mStore = store;
+		mSourceMediaType = sourceMediaType;
+		mTarget = target;
+		mKey = key;
+	}
+
+	/**
+	 * Set how long no capture has to be saved before transcoding starts.
+	 *
+	 * @param idleDelay Time in milliseconds
+	 */
+	public synchronized void setIdleDelay(long idleDelay)
+	{
+		mIdleDelay = idleDelay;
+		notifyAll();
+	}
+
+	/**
+	 * Start transcoding in a low priority background thread.
+	 */
+	public synchronized void start()
+	{
+		if (mThread != null)
+		{
+			return;
+		}
+		mStop = false;
+		mPending = true;
+		mStore.addListener(this);
+		mThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				transcodeLoop();
+			}
+		}, "CaptureTranscoder");
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.start();
+	}
+
+	/**
+	 * Stop the background thread and wait for it to end.  A capture that is being transcoded is
+	 * finished first.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			thread = mThread;
+			mThread = null;
+			mStop = true;
+			notifyAll();
+		}
+		mStore.removeListener(this);
+		if (thread != null)
+		{
+			thread.join();
+		}
+	}
+
+	/**
+	 * Notes the time of the capture, so transcoding waits for the device to be idle again.
+	 */
+	@Override
+	public void onCaptureSaved(CaptureRecord record)
+	{
+		synchronized (this)
+		{
+			mLastSaveTime = System.currentTimeMillis();
+			if (mSourceMediaType.equals(record.mediaType))
+			{
+				mPending = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Transcode captures on the calling thread.
+	 *
+	 * @param maxCount Largest number of captures to transcode
+	 * @return The number of captures transcoded.
+	 */
+	public int transcode(int maxCount)
+	{
+		return transcode(maxCount, false);
+	}
+
+	/**
+	 * Number of captures transcoded.
+	 */
+	public synchronized long getTranscodedCount()
+	{
+		return mTranscodedCount;
+	}
+
+	/**
+	 * Total size in bytes of the captures before they were transcoded.
+	 */
+	public synchronized long getSourceBytes()
+	{
+		return mSourceBytes;
+	}
+
+	/**
+	 * Total size in bytes of the captures after they were transcoded.
+	 */
+	public synchronized long getTargetBytes()
+	{
+		return mTargetBytes;
+	}
+
+	/**
+	 * Average time in milliseconds taken to transcode a capture.
+	 */
+	public synchronized float getAverageTime()
+	{
+		return mTranscodedCount == 0 ? 0 : mTime / 1e6f / mTranscodedCount;
+	}
+
+	/**
+	 * Number of captures that could not be transcoded and are left as they are.
+	 */
+	public synchronized int getFailedCount()
+	{
+		return mFailed.size();
+	}
+
+
+	/**
+	 * Transcode captures until the count is reached, or if whileIdle is set, a capture is saved.
+	 */
+	private int transcode(int maxCount, boolean whileIdle)
+	{
+		CaptureCodec source = CaptureCodecs.get(mSourceMediaType);
+		if (source == null || !source.canDecode())
+		{
+			throw new IllegalStateException("No codec to decode " + mSourceMediaType);
+		}
+
+		CaptureQuery query = new CaptureQuery();
+		query.setMediaType(mSourceMediaType);
+		YuvFrame frame = new YuvFrame();
+		int count = 0;
+		int start = 0;
+		while (count < maxCount && start >= 0 && !isStopping() && (!whileIdle || isIdle()))
+		{
+			CapturePage page = mStore.query(query, start, PAGE_SIZE);
+			for (CaptureRecord record : page.getRecords())
+			{
+				if (count == maxCount || isStopping() || (whileIdle && !isIdle()))
+				{
+					break;
+				}
+				if (!hasFailed(record.fileName) && transcode(source, record, frame))
+				{
+					count++;
+				}
+			}
+			start = page.getNextStart();
+		}
+		return count;
+	}
+
+	/**
+	 * Transcode one capture, keeping its entry in the store.
+	 */
+	private boolean transcode(CaptureCodec source, CaptureRecord record, YuvFrame frame)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			byte[] data = mStore.read(record, mKey);
+			source.decode(data, 0, data.length, frame);
+			byte[] encoded = mTarget.encode(frame);
+			if (!mStore.replace(record, encoded, mTarget.getMediaType(), mKey))
+			{
+				// deleted or moved by compaction since the query, so try it on the next pass
+				return false;
+			}
+
+			synchronized (this)
+			{
+				mTranscodedCount++;
+				mSourceBytes += data.length;
+				mTargetBytes += encoded.length;
+				mTime += System.nanoTime() - start;
+			}
+			return true;
+		}
+		catch (IOException ex)
+		{
+			synchronized (this)
+			{
+				mFailed.add(record.fileName);
+			}
+			return false;
+		}
+	}
+
+	private void transcodeLoop()
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				try
+				{
+					while (!mStop)
+					{
+						long idle = mLastSaveTime + mIdleDelay - System.currentTimeMillis();
+						if (mPending && idle <= 0)
+						{
+							break;
+						}
+						wait(mPending ? idle : 0);
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					return;
+				}
+				if (mStop)
+				{
+					return;
+				}
+				mPending = false;
+			}
+
+			// checked between captures, so a new burst stops the transcoding quickly
+			transcode(Integer.MAX_VALUE, true);
+			synchronized (this)
+			{
+				if (!isIdle())
+				{
+					mPending = true;
+				}
+			}
+		}
+	}
+
+	private synchronized boolean hasFailed(String fileName)
+	{
+		return mFailed.contains(fileName);
+	}
+
+	private synchronized boolean isIdle()
+	{
+		return System.currentTimeMillis() - mLastSaveTime >= mIdleDelay;
+	}
+
+	private synchronized boolean isStopping()
+	{
+		return mStop;
+	}
+
+
+	private final CaptureStore 	mStore;
+	private final String 		mSourceMediaType;
+	private final CaptureCodec 	mTarget;
+	private final SecretKey 	mKey;
+	private final Set<String> 	mFailed = new HashSet<String>();
+	private Thread 				mThread = null;
+	private boolean 			mStop = false;
+	private boolean 			mPending = false;
+	private long 				mIdleDelay = DEFAULT_IDLE_DELAY;
+	private long 				mLastSaveTime = 0;
+	private long 				mTranscodedCount = 0;
+	private long 				mSourceBytes = 0;
+	private long 				mTargetBytes = 0;
+	private long 				mTime = 0;
+}
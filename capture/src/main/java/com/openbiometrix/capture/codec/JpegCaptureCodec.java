@@ -0,0 +1,79 @@
+package com.openbiometrix.capture.codec;
+
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes frames as JPEG with the platform encoder.  JPEG files are what is normally uploaded,
+ * but encoding one takes tens of milliseconds, so during a burst frames are better stored with
+ * a fast codec and transcoded to JPEG by a CaptureTranscoder when the device is idle.
+ *
+ * The encoder cannot decode back to a raw frame.
+ */
+public class JpegCaptureCodec implements CaptureCodec
+{
+	public final static String MEDIA_TYPE = "image/jpeg";
+	public final static int DEFAULT_QUALITY = 90;
+
+
+	public JpegCaptureCodec()
+	{
+		this(DEFAULT_QUALITY);
+	}
+
+	/**
+	 * @param quality JPEG quality from 0 to 100
+	 */
+	public JpegCaptureCodec(int quality)
+	{
+		mQuality = quality;
+	}
+
+	@Override
+	public String getMediaType()
+	{
+		return MEDIA_TYPE;
+	}
+
+	@Override
+	public boolean canDecode()
+	{
+		return false;
+	}
+
+	@Override
+	public byte[] encode(YuvFrame frame) throws IOException
+	{
+		byte[] nv21 = frame.data;
+		if (frame.format == YuvFrame.Y8)
+		{
+			// the platform encoder needs chroma, so give a gray frame neutral chroma
+			nv21 = new byte[YuvFrame.getLength(frame.width, frame.height, YuvFrame.NV21)];
+			System.arraycopy(frame.data, 0, nv21, 0, frame.width * frame.height);
+			for (int i = frame.width * frame.height; i < nv21.length; i++)
+			{
+				nv21[i] = (byte) 128;
+			}
+		}
+
+		YuvImage image = new YuvImage(nv21, YuvFrame.NV21, frame.width, frame.height, null);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(frame.width * frame.height / 4);
+		if (!image.compressToJpeg(new Rect(0, 0, frame.width, frame.height), mQuality, out))
+		{
+			throw new IOException("Unable to encode " + frame.width + "x" + frame.height + " frame as JPEG");
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public void decode(byte[] data, int offset, int length, YuvFrame out)
+	{
+		throw new UnsupportedOperationException("JPEG captures cannot be decoded to raw frames");
+	}
+
+
+	private final int 	mQuality;
+}
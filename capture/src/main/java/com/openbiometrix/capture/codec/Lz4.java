@@ -0,0 +1,268 @@
+package com.openbiometrix.capture.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The LZ4 block format: a greedy compressor with a single hash table, fast enough to keep up
+ * with a camera, and its decompressor.  The output can be read by any LZ4 block decoder.
+ *
+ * Each sequence is a token, whose high and low four bits hold the literal length and the match
+ * length less four, then any extra literal length bytes, the literals, a two byte little endian
+ * match offset and any extra match length bytes.  The last sequence only has literals.
+ */
+final class Lz4
+{
+	final static int HASH_TABLE_SIZE = 1 << 14;
+
+	private final static int MIN_MATCH = 4;
+	private final static int LAST_LITERALS = 5;
+	private final static int MF_LIMIT = 12;
+	private final static int MAX_OFFSET = 65535;
+	private final static int SKIP_STRENGTH = 6;
+	private final static int HASH_SHIFT = 32 - 14;
+
+
+	private Lz4()
+	{
+	}
+
+	/**
+	 * The largest size compressing the given number of bytes can produce.
+	 *
+	 * @param length
+	 */
+	static int maxCompressedLength(int length)
+	{
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress a block.
+	 *
+	 * @param src
+	 * @param srcOffset
+	 * @param srcLength
+	 * @param dst Must have room for maxCompressedLength(srcLength) bytes
+	 * @param dstOffset
+	 * @param table Scratch hash table of HASH_TABLE_SIZE entries
+	 * @return The compressed length.
+	 */
+	static int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int[] table)
+	{
+		int srcEnd = srcOffset + srcLength;
+		int matchLimit = srcEnd - LAST_LITERALS;
+		int mfLimit = srcEnd - MF_LIMIT;
+		int anchor = srcOffset;
+		int sp = srcOffset;
+		int dp = dstOffset;
+
+		if (srcLength >= MF_LIMIT + 1)
+		{
+			Arrays.fill(table, -1);
+			table[hash(readInt(src, sp))] = sp;
+			sp++;
+
+			while (sp < mfLimit)
+			{
+				int sequence = readInt(src, sp);
+				int h = hash(sequence);
+				int ref = table[h];
+				table[h] = sp;
+				if (ref < 0 || sp - ref > MAX_OFFSET || readInt(src, ref) != sequence)
+				{
+					// step further the longer nothing matches, so noise is skipped quickly
+					sp += 1 + ((sp - anchor) >>> SKIP_STRENGTH);
+					continue;
+				}
+
+				while (sp > anchor && ref > srcOffset && src[sp - 1] == src[ref - 1])
+				{
+					sp--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (sp + matchLength < matchLimit && src[sp + matchLength] == src[ref + matchLength])
+				{
+					matchLength++;
+				}
+
+				dp = writeSequence(src, anchor, sp - anchor, sp - ref, matchLength, dst, dp);
+				sp += matchLength;
+				anchor = sp;
+				if (sp < mfLimit)
+				{
+					table[hash(readInt(src, sp - 2))] = sp - 2;
+				}
+			}
+		}
+
+		// the rest goes out as literals
+		int literals = srcEnd - anchor;
+		int token = dp++;
+		dp = writeLiteralLength(literals, dst, token, dp);
+		System.arraycopy(src, anchor, dst, dp, literals);
+		dp += literals;
+		return dp - dstOffset;
+	}
+
+	/**
+	 * Decompress a block.
+	 *
+	 * @param src
+	 * @param srcOffset
+	 * @param srcLength Length of the compressed block
+	 * @param dst
+	 * @param dstOffset
+	 * @param dstLength Length of the decompressed data
+	 * @throws IOException If the block is malformed or does not decompress to dstLength bytes.
+	 */
+	static void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+			throws IOException
+	{
+		int srcEnd = srcOffset + srcLength;
+		int dstEnd = dstOffset + dstLength;
+		int sp = srcOffset;
+		int dp = dstOffset;
+
+		while (sp < srcEnd)
+		{
+			int token = src[sp++] & 0xff;
+
+			int literals = token >>> 4;
+			if (literals == 15)
+			{
+				int b;
+				do
+				{
+					if (sp >= srcEnd)
+					{
+						throw new IOException("Truncated LZ4 block");
+					}
+					b = src[sp++] & 0xff;
+					literals += b;
+				}
+				while (b == 255);
+			}
+			if (literals > srcEnd - sp || literals > dstEnd - dp)
+			{
+				throw new IOException("Malformed LZ4 block");
+			}
+			System.arraycopy(src, sp, dst, dp, literals);
+			sp += literals;
+			dp += literals;
+			if (sp == srcEnd)
+			{
+				break;
+			}
+
+			if (srcEnd - sp < 2)
+			{
+				throw new IOException("Truncated LZ4 block");
+			}
+			int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+			sp += 2;
+			int matchLength = token & 15;
+			if (matchLength == 15)
+			{
+				int b;
+				do
+				{
+					if (sp >= srcEnd)
+					{
+						throw new IOException("Truncated LZ4 block");
+					}
+					b = src[sp++] & 0xff;
+					matchLength += b;
+				}
+				while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			int ref = dp - offset;
+			if (offset == 0 || ref < dstOffset || matchLength > dstEnd - dp)
+			{
+				throw new IOException("Malformed LZ4 block");
+			}
+
+			if (offset >= matchLength)
+			{
+				System.arraycopy(dst, ref, dst, dp, matchLength);
+				dp += matchLength;
+			}
+			else
+			{
+				// the match overlaps what it is writing, which repeats the last offset bytes
+				for (int end = dp + matchLength; dp < end; )
+				{
+					dst[dp++] = dst[ref++];
+				}
+			}
+		}
+
+		if (dp != dstEnd)
+		{
+			throw new IOException("LZ4 block decompressed to " + (dp - dstOffset) + " bytes, not " + dstLength);
+		}
+	}
+
+
+	private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength,
+			byte[] dst, int dp)
+	{
+		int token = dp++;
+		dp = writeLiteralLength(literals, dst, token, dp);
+		System.arraycopy(src, literalStart, dst, dp, literals);
+		dp += literals;
+
+		dst[dp++] = (byte) offset;
+		dst[dp++] = (byte) (offset >>> 8);
+
+		int length = matchLength - MIN_MATCH;
+		if (length >= 15)
+		{
+			dst[token] |= 15;
+			dp = writeExtraLength(length - 15, dst, dp);
+		}
+		else
+		{
+			dst[token] |= length;
+		}
+		return dp;
+	}
+
+	/**
+	 * Put the literal length in the high half of the token, with any extra length bytes after it.
+	 */
+	private static int writeLiteralLength(int length, byte[] dst, int token, int dp)
+	{
+		if (length >= 15)
+		{
+			dst[token] = (byte) 0xf0;
+			return writeExtraLength(length - 15, dst, dp);
+		}
+		dst[token] = (byte) (length << 4);
+		return dp;
+	}
+
+	private static int writeExtraLength(int length, byte[] dst, int dp)
+	{
+		while (length >= 255)
+		{
+			dst[dp++] = (byte) 255;
+			length -= 255;
+		}
+		dst[dp++] = (byte) length;
+		return dp;
+	}
+
+	private static int readInt(byte[] data, int offset)
+	{
+		return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+				| (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+	}
+
+	private static int hash(int sequence)
+	{
+		return (sequence * -1640531535) >>> HASH_SHIFT;
+	}
+}
@@ -0,0 +1,242 @@
+package com.openbiometrix.capture.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Stores raw NV21 or Y8 frames compressed with LZ4, which is many times faster than JPEG
+ * encoding, so a burst can be written at the camera frame rate and turned into JPEGs later.
+ * The format is a 32 byte little endian header and an LZ4 block:
+ *
+ *     int     magic 0x4f425852 ("OBXR")
+ *     byte    version 1
+ *     byte    flags, FLAG_DELTA if the delta filter was used
+ *     short   rotation, a Frame.ROTATION_* value
+ *     int     format, NV21 or Y8
+ *     int     width
+ *     int     height
+ *     int     length of the frame data
+ *     long    timestamp in milliseconds
+ *
+ * The optional delta filter replaces each sample with its difference from the sample to its
+ * left in the same plane, or above it at the start of a row.  It helps on clean, smoothly shaded
+ * images, but sensor noise leaves few exact repeats either way, so it is off by default.
+ */
+public class Lz4Nv21Codec implements CaptureCodec
+{
+	public final static String MEDIA_TYPE = "image/x-nv21-lz4";
+	public final static int MAGIC = 0x4f425852;	// "OBXR"
+	public final static int FLAG_DELTA = 1;
+
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 32;
+
+
+	/**
+	 * A codec that does not use the delta filter.
+	 */
+	public Lz4Nv21Codec()
+	{
+		this(false);
+	}
+
+	/**
+	 * @param delta Whether to use the delta filter
+	 */
+	public Lz4Nv21Codec(boolean delta)
+	{
+		mDelta = delta;
+	}
+
+	@Override
+	public String getMediaType()
+	{
+		return MEDIA_TYPE;
+	}
+
+	@Override
+	public boolean canDecode()
+	{
+		return true;
+	}
+
+	@Override
+	public byte[] encode(YuvFrame frame) throws IOException
+	{
+		int length = frame.getLength();
+		if (frame.data.length < length)
+		{
+			throw new IOException("Frame data is " + frame.data.length + " bytes, not " + length);
+		}
+
+		Scratch scratch = sScratch.get();
+		byte[] source = frame.data;
+		if (mDelta)
+		{
+			source = scratch.filtered(length);
+			filter(frame, source);
+		}
+
+		byte[] compressed = scratch.compressed(HEADER_SIZE + Lz4.maxCompressedLength(length));
+		int compressedLength = Lz4.compress(source, 0, length, compressed, HEADER_SIZE, scratch.table);
+
+		ByteBuffer header = ByteBuffer.wrap(compressed, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.put((byte) VERSION);
+		header.put((byte) (mDelta ? FLAG_DELTA : 0));
+		header.putShort((short) frame.rotation);
+		header.putInt(frame.format);
+		header.putInt(frame.width);
+		header.putInt(frame.height);
+		header.putInt(length);
+		header.putLong(frame.timestamp);
+
+		byte[] encoded = new byte[HEADER_SIZE + compressedLength];
+		System.arraycopy(compressed, 0, encoded, 0, encoded.length);
+		return encoded;
+	}
+
+	@Override
+	public void decode(byte[] data, int offset, int length, YuvFrame out) throws IOException
+	{
+		if (length < HEADER_SIZE)
+		{
+			throw new IOException("Not a raw frame");
+		}
+		ByteBuffer header = ByteBuffer.wrap(data, offset, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt() != MAGIC || header.get() != VERSION)
+		{
+			throw new IOException("Not a raw frame");
+		}
+		int flags = header.get();
+		int rotation = header.getShort();
+		int format = header.getInt();
+		int width = header.getInt();
+		int height = header.getInt();
+		int frameLength = header.getInt();
+		long timestamp = header.getLong();
+		if ((format != YuvFrame.NV21 && format != YuvFrame.Y8) || width <= 0 || height <= 0
+				|| frameLength != YuvFrame.getLength(width, height, format))
+		{
+			throw new IOException("Unsupported raw frame " + width + "x" + height + " format " + format);
+		}
+
+		out.allocate(width, height, format);
+		out.rotation = rotation;
+		out.timestamp = timestamp;
+		Lz4.decompress(data, offset + HEADER_SIZE, length - HEADER_SIZE, out.data, 0, frameLength);
+		if ((flags & FLAG_DELTA) != 0)
+		{
+			unfilter(out);
+		}
+	}
+
+
+	private static void filter(YuvFrame frame, byte[] out)
+	{
+		filter(frame.data, out, 0, frame.width, frame.height, 1);
+		if (frame.format == YuvFrame.NV21)
+		{
+			filter(frame.data, out, frame.width * frame.height, 2 * ((frame.width + 1) / 2), (frame.height + 1) / 2, 2);
+		}
+	}
+
+	/**
+	 * Replace each sample of a plane with its difference from the previous sample of the same
+	 * channel, which is step bytes to the left, or the sample above at the start of a row.
+	 */
+	private static void filter(byte[] in, byte[] out, int offset, int rowBytes, int rows, int step)
+	{
+		for (int i = 0; i < step; i++)
+		{
+			out[offset + i] = in[offset + i];
+		}
+		for (int x = step; x < rowBytes; x++)
+		{
+			out[offset + x] = (byte) (in[offset + x] - in[offset + x - step]);
+		}
+		for (int y = 1; y < rows; y++)
+		{
+			int row = offset + y * rowBytes;
+			for (int i = 0; i < step; i++)
+			{
+				out[row + i] = (byte) (in[row + i] - in[row + i - rowBytes]);
+			}
+			for (int x = row + step, end = row + rowBytes; x < end; x++)
+			{
+				out[x] = (byte) (in[x] - in[x - step]);
+			}
+		}
+	}
+
+	private static void unfilter(YuvFrame frame)
+	{
+		unfilter(frame.data, 0, frame.width, frame.height, 1);
+		if (frame.format == YuvFrame.NV21)
+		{
+			unfilter(frame.data, frame.width * frame.height, 2 * ((frame.width + 1) / 2), (frame.height + 1) / 2, 2);
+		}
+	}
+
+	private static void unfilter(byte[] data, int offset, int rowBytes, int rows, int step)
+	{
+		for (int x = offset + step, end = offset + rowBytes; x < end; x++)
+		{
+			data[x] += data[x - step];
+		}
+		for (int y = 1; y < rows; y++)
+		{
+			int row = offset + y * rowBytes;
+			for (int i = 0; i < step; i++)
+			{
+				data[row + i] += data[row + i - rowBytes];
+			}
+			for (int x = row + step, end = row + rowBytes; x < end; x++)
+			{
+				data[x] += data[x - step];
+			}
+		}
+	}
+
+
+	/**
+	 * Buffers kept per thread so encoding a burst does not allocate them for every frame.
+	 */
+	private static class Scratch
+	{
+		byte[] filtered(int length)
+		{
+			if (mFiltered.length < length)
+			{
+				mFiltered = new byte[length];
+			}
+			return mFiltered;
+		}
+
+		byte[] compressed(int length)
+		{
+			if (mCompressed.length < length)
+			{
+				mCompressed = new byte[length];
+			}
+			return mCompressed;
+		}
+
+		final int[] table = new int[Lz4.HASH_TABLE_SIZE];
+		private byte[] mFiltered = new byte[0];
+		private byte[] mCompressed = new byte[0];
+	}
+
+	private final static ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>()
+	{
+		@Override
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
+
+	private final boolean 	mDelta;
+}
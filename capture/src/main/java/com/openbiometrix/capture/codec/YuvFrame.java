@@ -0,0 +1,70 @@
+package com.openbiometrix.capture.codec;
+
+/**
+ * A raw camera frame.  A YuvFrame is a mutable holder so that a burst of frames can reuse the
+ * same buffers.
+ *
+ * The formats use the values of android.graphics.ImageFormat.  An NV21 frame is the Y plane
+ * followed by interleaved V and U samples at half the resolution; a Y8 frame is the Y plane
+ * alone.
+ */
+public class YuvFrame
+{
+	public final static int NV21 = 17;			// ImageFormat.NV21
+	public final static int Y8 = 0x20203859;	// ImageFormat.Y8
+
+	public byte[] 	data = new byte[0];
+	public int 		width;
+	public int 		height;
+	public int 		format = NV21;
+	public int 		rotation;
+	public long 	timestamp;
+
+
+	/**
+	 * Number of bytes of image data for a size and format.
+	 *
+	 * @param width
+	 * @param height
+	 * @param format NV21 or Y8
+	 */
+	public static int getLength(int width, int height, int format)
+	{
+		switch (format)
+		{
+			case NV21:
+				return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+			case Y8:
+				return width * height;
+			default:
+				throw new IllegalArgumentException("Unsupported frame format " + format);
+		}
+	}
+
+	/**
+	 * Number of bytes of image data in this frame.
+	 */
+	public int getLength()
+	{
+		return getLength(width, height, format);
+	}
+
+	/**
+	 * Set the size and format, growing the data array if it is too small for them.
+	 *
+	 * @param width
+	 * @param height
+	 * @param format NV21 or Y8
+	 */
+	public void allocate(int width, int height, int format)
+	{
+		int length = getLength(width, height, format);
+		if (data.length < length)
+		{
+			data = new byte[length];
+		}
+		this.width = width;
+		this.height = height;
+		this.format = format;
+	}
+}
@@ -0,0 +1,111 @@
+package com.openbiometrix.capture.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Layout shared by EncryptedCaptureWriter and EncryptedCaptureReader.  An encrypted capture is
+ * a plain header followed by the plaintext split into fixed size chunks, each encrypted with
+ * AES-GCM on its own:
+ *
+ *     int     magic 0x4f425845 ("OBXE")
+ *     short   version
+ *     short   reserved
+ *     int     chunk size
+ *     byte[8] random nonce prefix
+ *     int     reserved
+ *     then for each chunk:
+ *     byte[]  ciphertext of chunk size bytes, or less for the last chunk
+ *     byte[16] GCM tag
+ *
+ * The 12 byte nonce of a chunk is the nonce prefix followed by the chunk index, so no nonce is
+ * repeated under a key as long as the prefix is random.  The header, chunk index and a flag
+ * marking the last chunk are authenticated with every chunk, so chunks cannot be swapped,
+ * moved to another file, or dropped from the end without failing authentication.
+ */
+final class EncryptedCaptureFormat
+{
+	final static int MAGIC = 0x4f425845;	// "OBXE"
+	final static short VERSION = 1;
+	final static int HEADER_SIZE = 24;
+	final static int TAG_SIZE = 16;
+	final static int NONCE_PREFIX_SIZE = 8;
+
+	// the header is not authenticated until a chunk is read, so its chunk size is bounded before
+	// buffers are sized by it
+	final static int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	private final static String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	// Cipher objects are expensive to create and are not thread safe, so each thread keeps one.
+	private final static ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>()
+	{
+		@Override
+		protected Cipher initialValue()
+		{
+			try
+			{
+				return Cipher.getInstance(TRANSFORMATION);
+			}
+			catch (GeneralSecurityException ex)
+			{
+				throw new IllegalStateException(TRANSFORMATION + " is not available", ex);
+			}
+		}
+	};
+
+
+	private EncryptedCaptureFormat()
+	{
+	}
+
+	/**
+	 * Whether AES/GCM/NoPadding is available, which it is from API level 19.
+	 */
+	static boolean isAvailable()
+	{
+		try
+		{
+			CIPHERS.get();
+			return true;
+		}
+		catch (IllegalStateException ex)
+		{
+			return false;
+		}
+	}
+
+	static byte[] header(int chunkSize, byte[] noncePrefix)
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(chunkSize).put(noncePrefix).putInt(0);
+		return header.array();
+	}
+
+	/**
+	 * Get the cipher of the calling thread, set up for one chunk.
+	 */
+	static Cipher cipher(int mode, SecretKey key, byte[] header, long index, boolean last)
+			throws GeneralSecurityException
+	{
+		byte[] nonce = new byte[12];
+		System.arraycopy(header, 12, nonce, 0, NONCE_PREFIX_SIZE);
+		nonce[8] = (byte) (index >>> 24);
+		nonce[9] = (byte) (index >>> 16);
+		nonce[10] = (byte) (index >>> 8);
+		nonce[11] = (byte) index;
+
+		byte[] aad = new byte[HEADER_SIZE + 9];
+		System.arraycopy(header, 0, aad, 0, HEADER_SIZE);
+		ByteBuffer.wrap(aad, HEADER_SIZE, 9).putLong(index).put((byte) (last ? 1 : 0));
+
+		Cipher cipher = CIPHERS.get();
+		cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+		cipher.updateAAD(aad);
+		return cipher;
+	}
+}
@@ -0,0 +1,251 @@
+package com.openbiometrix.capture.crypto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Reads a capture written by EncryptedCaptureWriter.  Any chunk can be decrypted on its own, so
+ * a preview can read just the part of a capture it needs.  Every chunk is authenticated as it
+ * is read, and an IOException is thrown if the file has been modified, truncated or was
+ * written with another key.
+ *
+ * All methods are synchronized.  Chunks are read with positional reads, so separate readers of
+ * the same file do not get in each other's way.
+ */
+public class EncryptedCaptureReader implements Closeable
+{
+	/**
+	 * Open an encrypted capture and check its header.
+	 *
+	 * @param file
+	 * @param key The AES key the capture was written with
+	 * @throws IOException If the file is not an encrypted capture, or its header is damaged.
+	 */
+	public EncryptedCaptureReader(File file, SecretKey key) throws IOException
+	{
+		mKey = key;
+		mFile = new RandomAccessFile(file, "r");
+		try
+		{
+			mChannel = mFile.getChannel();
+			mHeader = new byte[EncryptedCaptureFormat.HEADER_SIZE];
+			readFully(ByteBuffer.wrap(mHeader), 0);
+
+			ByteBuffer header = ByteBuffer.wrap(mHeader);
+			if (header.getInt(0) != EncryptedCaptureFormat.MAGIC)
+			{
+				throw new IOException("Not an encrypted capture: " + file);
+			}
+			if (header.getShort(4) != EncryptedCaptureFormat.VERSION)
+			{
+				throw new IOException("Unsupported encrypted capture version " + header.getShort(4));
+			}
+			mChunkSize = header.getInt(8);
+			if (mChunkSize <= 0 || mChunkSize > EncryptedCaptureFormat.MAX_CHUNK_SIZE)
+			{
+				throw new IOException("Bad chunk size " + mChunkSize + " in encrypted capture: " + file);
+			}
+
+			// every chunk but the last is full size, and the last still has its tag
+			long body = mChannel.size() - EncryptedCaptureFormat.HEADER_SIZE;
+			long stride = (long) mChunkSize + EncryptedCaptureFormat.TAG_SIZE;
+			mChunkCount = body <= 0 ? 0 : (body + stride - 1) / stride;
+			long lastSize = body - (mChunkCount - 1) * stride;
+			if (mChunkCount == 0 || lastSize < EncryptedCaptureFormat.TAG_SIZE)
+			{
+				throw new IOException("Truncated encrypted capture: " + file);
+			}
+			mLength = (mChunkCount - 1) * mChunkSize + lastSize - EncryptedCaptureFormat.TAG_SIZE;
+
+			mCipherBuffer = new byte[mChunkSize + EncryptedCaptureFormat.TAG_SIZE];
+			mChunk = new byte[mChunkSize];
+		}
+		catch (IOException ex)
+		{
+			mFile.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Size in bytes of the decrypted capture.
+	 */
+	public long getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * Size in bytes of the plaintext of a full chunk.
+	 */
+	public int getChunkSize()
+	{
+		return mChunkSize;
+	}
+
+	/**
+	 * Number of chunks in the capture.
+	 */
+	public long getChunkCount()
+	{
+		return mChunkCount;
+	}
+
+	/**
+	 * Decrypt one chunk.
+	 *
+	 * @param index Index of the chunk
+	 * @param out Receives the plaintext.  Must hold at least getChunkSize() bytes.
+	 * @return The number of plaintext bytes in the chunk.
+	 * @throws IOException If the chunk fails authentication.
+	 */
+	public synchronized int readChunk(long index, byte[] out) throws IOException
+	{
+		if (index < 0 || index >= mChunkCount)
+		{
+			throw new IndexOutOfBoundsException("Chunk " + index + " of " + mChunkCount);
+		}
+		boolean last = index == mChunkCount - 1;
+		long stride = (long) mChunkSize + EncryptedCaptureFormat.TAG_SIZE;
+		int size = last ? (int) (mLength - index * mChunkSize) + EncryptedCaptureFormat.TAG_SIZE : (int) stride;
+
+		readFully(ByteBuffer.wrap(mCipherBuffer, 0, size), EncryptedCaptureFormat.HEADER_SIZE + index * stride);
+		try
+		{
+			Cipher cipher = EncryptedCaptureFormat.cipher(Cipher.DECRYPT_MODE, mKey, mHeader, index, last);
+			return cipher.doFinal(mCipherBuffer, 0, size, out, 0);
+		}
+		catch (GeneralSecurityException ex)
+		{
+			throw new IOException("Chunk " + index + " failed authentication", ex);
+		}
+	}
+
+	/**
+	 * Decrypt part of the capture.  Only the chunks that hold the requested bytes are read.
+	 *
+	 * @param position Position in the decrypted capture to read from
+	 * @param out Receives the plaintext
+	 * @param offset Position in out to write to
+	 * @param length Number of bytes to read
+	 * @return The number of bytes read, which is less than length only at the end of the capture,
+	 * or -1 if position is at or past the end.
+	 * @throws IOException If a chunk fails authentication.
+	 */
+	public synchronized int read(long position, byte[] out, int offset, int length) throws IOException
+	{
+		if (position >= mLength)
+		{
+			return -1;
+		}
+		length = (int) Math.min(length, mLength - position);
+
+		int total = 0;
+		while (total < length)
+		{
+			long index = position / mChunkSize;
+			if (index != mChunkIndex)
+			{
+				mChunkIndex = -1;
+				readChunk(index, mChunk);
+				mChunkIndex = index;
+			}
+			int start = (int) (position - index * mChunkSize);
+			int n = Math.min(length - total, (int) Math.min(mChunkSize, mLength - index * mChunkSize) - start);
+			System.arraycopy(mChunk, start, out, offset + total, n);
+			total += n;
+			position += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Open a stream over the decrypted capture.  The stream shares this reader, which must stay
+	 * open while the stream is used.
+	 */
+	public InputStream openStream()
+	{
+		return new InputStream()
+		{
+			@Override
+			public int read() throws IOException
+			{
+				int n = read(mSingle, 0, 1);
+				return n < 0 ? -1 : mSingle[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException
+			{
+				if (length == 0)
+				{
+					return 0;
+				}
+				int n = EncryptedCaptureReader.this.read(mPosition, buffer, offset, length);
+				if (n > 0)
+				{
+					mPosition += n;
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n)
+			{
+				long skipped = Math.max(0, Math.min(n, mLength - mPosition));
+				mPosition += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available()
+			{
+				return (int) Math.min(Integer.MAX_VALUE, mLength - mPosition);
+			}
+
+			private final byte[] 	mSingle = new byte[1];
+			private long 			mPosition = 0;
+		};
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mFile.close();
+	}
+
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = mChannel.read(buffer, position);
+			if (read < 0)
+			{
+				throw new IOException("Unexpected end of encrypted capture");
+			}
+			position += read;
+		}
+	}
+
+
+	private final SecretKey 		mKey;
+	private final RandomAccessFile 	mFile;
+	private final FileChannel 		mChannel;
+	private final byte[] 			mHeader;
+	private final int 				mChunkSize;
+	private final long 				mChunkCount;
+	private final long 				mLength;
+	private final byte[] 			mCipherBuffer;
+	private final byte[] 			mChunk;
+	private long 					mChunkIndex = -1;
+}
@@ -0,0 +1,335 @@
+package com.openbiometrix.capture.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Writes a capture encrypted at rest, as it is produced, so the plaintext never reaches the
+ * disk and no second pass over the file is needed.  The data is cut into chunks that are each
+ * encrypted with AES-GCM and written to their place in the file on a worker pool, so several
+ * chunks are encrypted and written at the same time.  A small fixed set of chunk buffers is
+ * reused, which bounds memory and makes write() wait if the workers fall behind.
+ *
+ * See EncryptedCaptureFormat for the file layout.  AES/GCM/NoPadding needs API level 19 or
+ * later, above the minSdkVersion of 15 of this library, so a writer fails as it is created on
+ * older devices rather than on its first chunk.  Check isSupported() before offering encryption.
+ *
+ * A writer is used from one thread.  Nothing is readable until close() returns.
+ */
+public class EncryptedCaptureWriter extends OutputStream
+{
+	public final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public final static int MAX_CHUNK_SIZE = EncryptedCaptureFormat.MAX_CHUNK_SIZE;
+
+	/**
+	 * Added to the media type of an encrypted capture where the type travels apart from the
+	 * file name, such as in a CaptureSpool, so the receiver knows to decrypt it.
+	 */
+	public final static String MEDIA_TYPE_PARAMETER = "; encrypted=obxe";
+
+	private final static int BUFFERS_PER_THREAD = 2;
+
+
+	/**
+	 * Create a writer with the default chunk size that encrypts on the shared worker pool.
+	 *
+	 * @param file The file to write.  It is replaced if it exists.
+	 * @param key AES key
+	 * @throws IOException
+	 */
+	public EncryptedCaptureWriter(File file, SecretKey key) throws IOException
+	{
+		this(file, key, DEFAULT_CHUNK_SIZE, getDefaultExecutor());
+	}
+
+	/**
+	 * @param file The file to write.  It is replaced if it exists.
+	 * @param key AES key
+	 * @param chunkSize Size in bytes of the plaintext of each chunk, up to MAX_CHUNK_SIZE
+	 * @param executor Runs the chunk encryption and writes
+	 * @throws IOException If the file cannot be written, or AES-GCM is not available below API
+	 *                     level 19.
+	 */
+	public EncryptedCaptureWriter(File file, SecretKey key, int chunkSize, Executor executor) throws IOException
+	{
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+		{
+			throw new IllegalArgumentException("Chunk size must be from 1 to " + MAX_CHUNK_SIZE);
+		}
+		if (!isSupported())
+		{
+			throw new IOException("AES/GCM/NoPadding is not available; encrypted captures need API level 19");
+		}
+		mKey = key;
+		mChunkSize = chunkSize;
+		mExecutor = executor;
+
+		byte[] prefix = new byte[EncryptedCaptureFormat.NONCE_PREFIX_SIZE];
+		RANDOM.nextBytes(prefix);
+		mHeader = EncryptedCaptureFormat.header(chunkSize, prefix);
+
+		mFile = new RandomAccessFile(file, "rw");
+		mChannel = mFile.getChannel();
+		mChannel.truncate(0);
+		writeFully(ByteBuffer.wrap(mHeader), 0);
+
+		// one buffer is being filled while the others are encrypted and written
+		mBufferCount = Runtime.getRuntime().availableProcessors() * BUFFERS_PER_THREAD + 2;
+		mFreeChunks = new ArrayBlockingQueue<Chunk>(mBufferCount);
+		for (int i = 0; i < mBufferCount; i++)
+		{
+			mFreeChunks.add(new Chunk(chunkSize));
+		}
+		mCurrent = mFreeChunks.poll();
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		mSingle[0] = (byte) b;
+		write(mSingle, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException
+	{
+		checkError();
+		while (length > 0)
+		{
+			if (mCurrent.length == mChunkSize)
+			{
+				// more data has arrived, so the full chunk before it is not the last one
+				submit(mCurrent, false);
+				mCurrent = takeChunk();
+			}
+
+			int n = Math.min(length, mChunkSize - mCurrent.length);
+			System.arraycopy(data, offset, mCurrent.plain, mCurrent.length, n);
+			mCurrent.length += n;
+			mLength += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Encrypt the last chunk, wait for every chunk to be written and close the file.
+	 *
+	 * @throws IOException If any chunk could not be encrypted or written.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (mClosed)
+		{
+			return;
+		}
+		mClosed = true;
+		try
+		{
+			if (mError == null)
+			{
+				submit(mCurrent, true);
+			}
+			else
+			{
+				mFreeChunks.add(mCurrent);
+			}
+			mCurrent = null;
+
+			// every chunk is done once all of the buffers are back
+			for (int i = 0; i < mBufferCount; i++)
+			{
+				takeChunk();
+			}
+			checkError();
+			mChannel.force(false);
+		}
+		finally
+		{
+			mFile.close();
+		}
+	}
+
+	/**
+	 * Total number of plaintext bytes written.
+	 */
+	public long getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * Whether captures can be encrypted on this device, which needs API level 19 or later.
+	 */
+	public static boolean isSupported()
+	{
+		return EncryptedCaptureFormat.isAvailable();
+	}
+
+	/**
+	 * A shared pool of daemon threads, one per processor, for encrypting captures.
+	 */
+	public static synchronized Executor getDefaultExecutor()
+	{
+		if (sDefaultExecutor == null)
+		{
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "CaptureEncryption");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			sDefaultExecutor = executor;
+		}
+		return sDefaultExecutor;
+	}
+
+
+	private void submit(final Chunk chunk, final boolean last)
+	{
+		final long index = mChunkIndex++;
+		final long position = EncryptedCaptureFormat.HEADER_SIZE
+				+ index * (mChunkSize + EncryptedCaptureFormat.TAG_SIZE);
+		try
+		{
+			mExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if (mError == null)
+						{
+							Cipher cipher = EncryptedCaptureFormat.cipher(Cipher.ENCRYPT_MODE, mKey, mHeader, index, last);
+							int length = cipher.doFinal(chunk.plain, 0, chunk.length, chunk.cipher, 0);
+							writeFully(ByteBuffer.wrap(chunk.cipher, 0, length), position);
+						}
+					}
+					catch (GeneralSecurityException ex)
+					{
+						setError(new IOException("Unable to encrypt chunk " + index, ex));
+					}
+					catch (IOException ex)
+					{
+						setError(ex);
+					}
+					catch (RuntimeException ex)
+					{
+						setError(new IOException("Unable to encrypt chunk " + index, ex));
+					}
+					finally
+					{
+						chunk.length = 0;
+						mFreeChunks.add(chunk);
+					}
+				}
+			});
+		}
+		catch (RuntimeException ex)
+		{
+			// the executor rejected the task
+			setError(new IOException("Unable to schedule chunk " + index, ex));
+			chunk.length = 0;
+			mFreeChunks.add(chunk);
+		}
+	}
+
+	private Chunk takeChunk() throws IOException
+	{
+		try
+		{
+			return mFreeChunks.take();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a chunk buffer");
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			position += mChannel.write(buffer, position);
+		}
+	}
+
+	private void setError(IOException error)
+	{
+		if (mError == null)
+		{
+			mError = error;
+		}
+	}
+
+	private void checkError() throws IOException
+	{
+		IOException error = mError;
+		if (error != null)
+		{
+			throw error;
+		}
+	}
+
+	/**
+	 * A plaintext buffer and the buffer its ciphertext is written from.
+	 */
+	private static class Chunk
+	{
+		Chunk(int size)
+		{
+			plain = new byte[size];
+			cipher = new byte[size + EncryptedCaptureFormat.TAG_SIZE];
+		}
+
+		final byte[] 	plain;
+		final byte[] 	cipher;
+		int 			length = 0;
+	}
+
+
+	private final static SecureRandom RANDOM = new SecureRandom();
+	private static Executor 			sDefaultExecutor = null;
+
+	private final SecretKey 			mKey;
+	private final int 					mChunkSize;
+	private final Executor 				mExecutor;
+	private final byte[] 				mHeader;
+	private final RandomAccessFile 		mFile;
+	private final FileChannel 			mChannel;
+	private final int 					mBufferCount;
+	private final BlockingQueue<Chunk> 	mFreeChunks;
+	private final byte[] 				mSingle = new byte[1];
+	private Chunk 						mCurrent;
+	private long 						mChunkIndex = 0;
+	private long 						mLength = 0;
+	private volatile IOException 		mError = null;
+	private boolean 					mClosed = false;
+}
@@ -0,0 +1,212 @@
+package com.openbiometrix.capture.dedupe;
+
+import com.openbiometrix.capture.image.GrayImage;
+
+/**
+ * Recognises captures that look almost the same as one taken shortly before in the same
+ * session, so they can be dropped or marked before they are stored, encrypted and uploaded.
+ *
+ * Each capture is identified by the PerceptualHash of its face.  A capture is a duplicate when
+ * its hash is within the maximum distance of one of the last few captures of the session, unless
+ * its quality is better than that capture's by the quality margin: a sharper shot of the same
+ * pose is kept, so suppression never costs enrollment quality.
+ *
+ * All methods are synchronized.
+ */
+public class DuplicateSuppressor
+{
+	/**
+	 * What to do with a duplicate capture.
+	 */
+	public enum Action
+	{
+		/** The capture is not stored. */
+		DROP,
+		/** The capture is stored with CaptureRecord.FLAG_DUPLICATE set. */
+		MARK
+	}
+
+	public final static int DEFAULT_MAX_DISTANCE = 6;
+	public final static int DEFAULT_WINDOW_SIZE = 32;
+	public final static float DEFAULT_QUALITY_MARGIN = 0.1f;
+
+
+	public DuplicateSuppressor()
+	{
+		setWindowSize(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Set the largest Hamming distance between the hashes of two captures that are duplicates.
+	 *
+	 * @param distance Number of bits, from 0 to 64
+	 */
+	public synchronized void setMaxDistance(int distance)
+	{
+		mMaxDistance = distance;
+	}
+
+	/**
+	 * Set the number of recent captures of a session each capture is compared with.
+	 *
+	 * @param size
+	 */
+	public synchronized void setWindowSize(int size)
+	{
+		mHashes = new long[size];
+		mQualities = new float[size];
+		mCount = 0;
+		mNext = 0;
+	}
+
+	/**
+	 * Set how much better, as a fraction, the quality of a capture has to be than its near
+	 * duplicate for it to be kept.
+	 *
+	 * @param margin
+	 */
+	public synchronized void setQualityMargin(float margin)
+	{
+		mQualityMargin = margin;
+	}
+
+	/**
+	 * Set what is done with duplicates.
+	 *
+	 * @param action
+	 */
+	public synchronized void setAction(Action action)
+	{
+		mAction = action;
+	}
+
+	/**
+	 * What is done with duplicates.
+	 */
+	public synchronized Action getAction()
+	{
+		return mAction;
+	}
+
+	/**
+	 * Hash a region of an image, normally the face, and time it for the metrics.
+	 *
+	 * @param image
+	 * @param left
+	 * @param top
+	 * @param width
+	 * @param height
+	 * @return The hash, or 0 if the region is empty.
+	 */
+	public synchronized long hash(GrayImage image, int left, int top, int width, int height)
+	{
+		long start = System.nanoTime();
+		long hash = mHash.compute(image, left, top, width, height);
+		mHashCount++;
+		mHashTime += System.nanoTime() - start;
+		return hash;
+	}
+
+	/**
+	 * Check a capture against the recent captures of its session.  A capture that is not a
+	 * duplicate is remembered for the captures after it.  The window is cleared when the session
+	 * changes.
+	 *
+	 * @param sessionId
+	 * @param hash PerceptualHash of the capture
+	 * @param quality Quality score of the capture, higher is better
+	 * @return Whether the capture is a duplicate.
+	 */
+	public synchronized boolean isDuplicate(long sessionId, long hash, float quality)
+	{
+		long start = System.nanoTime();
+		if (sessionId != mSessionId)
+		{
+			mSessionId = sessionId;
+			mCount = 0;
+			mNext = 0;
+		}
+
+		boolean duplicate = false;
+		for (int i = 0; i < mCount; i++)
+		{
+			if (PerceptualHash.distance(hash, mHashes[i]) <= mMaxDistance
+					&& quality <= mQualities[i] + Math.abs(mQualities[i]) * mQualityMargin)
+			{
+				duplicate = true;
+				break;
+			}
+		}
+
+		if (duplicate)
+		{
+			mSuppressedCount++;
+		}
+		else
+		{
+			mHashes[mNext] = hash;
+			mQualities[mNext] = quality;
+			mNext = (mNext + 1) % mHashes.length;
+			mCount = Math.min(mCount + 1, mHashes.length);
+		}
+		mCheckedCount++;
+		mCheckTime += System.nanoTime() - start;
+		return duplicate;
+	}
+
+	/**
+	 * Number of captures checked.
+	 */
+	public synchronized long getCheckedCount()
+	{
+		return mCheckedCount;
+	}
+
+	/**
+	 * Number of captures found to be duplicates.
+	 */
+	public synchronized long getSuppressedCount()
+	{
+		return mSuppressedCount;
+	}
+
+	/**
+	 * The fraction of captures found to be duplicates.
+	 */
+	public synchronized float getSuppressionRate()
+	{
+		return mCheckedCount == 0 ? 0 : (float) mSuppressedCount / mCheckedCount;
+	}
+
+	/**
+	 * Average time in microseconds taken to hash a capture.
+	 */
+	public synchronized float getAverageHashTime()
+	{
+		return mHashCount == 0 ? 0 : mHashTime / 1e3f / mHashCount;
+	}
+
+	/**
+	 * Average time in microseconds taken to check a capture against the window.
+	 */
+	public synchronized float getAverageCheckTime()
+	{
+		return mCheckedCount == 0 ? 0 : mCheckTime / 1e3f / mCheckedCount;
+	}
+
+
+	private final PerceptualHash 	mHash = new PerceptualHash();
+	private int 					mMaxDistance = DEFAULT_MAX_DISTANCE;
+	private float 					mQualityMargin = DEFAULT_QUALITY_MARGIN;
+	private Action 					mAction = Action.DROP;
+	private long[] 					mHashes;
+	private float[] 				mQualities;
+	private int 					mCount;
+	private int 					mNext;
+	private long 					mSessionId;
+	private long 					mCheckedCount = 0;
+	private long 					mSuppressedCount = 0;
+	private long 					mHashCount = 0;
+	private long 					mHashTime = 0;
+	private long 					mCheckTime = 0;
+}
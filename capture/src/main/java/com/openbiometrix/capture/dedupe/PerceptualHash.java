@@ -0,0 +1,168 @@
+package com.openbiometrix.capture.dedupe;
+
+import com.openbiometrix.capture.image.GrayImage;
+
+import java.util.Arrays;
+
+/**
+ * Computes a 64 bit DCT perceptual hash (pHash) of a region of a luminance image:
+ *
+ *  1. The region is averaged down to 32x32 cells.  At most SAMPLES_PER_CELL pixels are read in
+ *     each direction of a cell, so the cost does not grow with the size of the face.
+ *  2. The 8x8 lowest frequencies of the 2D DCT of the cells are computed.  Only those rows and
+ *     columns of the transform are evaluated, which is about a tenth of the work of a full DCT.
+ *  3. Each bit of the hash is set when its coefficient is above the median of the 63 AC
+ *     coefficients.
+ *
+ * Small changes of exposure, noise and position leave most bits alone, so the Hamming distance
+ * between two hashes measures how different two images look.
+ *
+ * The work arrays are owned by the hash, so compute() does not allocate.  A PerceptualHash is
+ * not thread safe.
+ */
+public class PerceptualHash
+{
+	public final static int SIZE = 32;
+	public final static int HASH_SIZE = 8;
+
+	private final static int SAMPLES_PER_CELL = 4;
+
+
+	public PerceptualHash()
+	{
+		for (int u = 0; u < HASH_SIZE; u++)
+		{
+			for (int x = 0; x < SIZE; x++)
+			{
+				mCos[u * SIZE + x] = (float) Math.cos((2 * x + 1) * u * Math.PI / (2 * SIZE));
+			}
+		}
+	}
+
+	/**
+	 * Hash the region left, top, width, height of an image.  The region is clipped to the image.
+	 *
+	 * @param image
+	 * @param left
+	 * @param top
+	 * @param width
+	 * @param height
+	 * @return The hash, or 0 if the region is empty.
+	 */
+	public long compute(GrayImage image, int left, int top, int width, int height)
+	{
+		int x0 = Math.max(left, 0);
+		int y0 = Math.max(top, 0);
+		int x1 = Math.min(left + width, image.getWidth());
+		int y1 = Math.min(top + height, image.getHeight());
+		if (x1 - x0 < 1 || y1 - y0 < 1)
+		{
+			return 0;
+		}
+
+		downscale(image, x0, y0, x1 - x0, y1 - y0);
+
+		// rows first: the low frequencies of each row of cells
+		float[] cells = mCells;
+		float[] cos = mCos;
+		float[] rows = mRows;
+		for (int y = 0; y < SIZE; y++)
+		{
+			for (int u = 0; u < HASH_SIZE; u++)
+			{
+				float sum = 0;
+				for (int x = 0; x < SIZE; x++)
+				{
+					sum += cells[y * SIZE + x] * cos[u * SIZE + x];
+				}
+				rows[y * HASH_SIZE + u] = sum;
+			}
+		}
+
+		// then columns, for the 8x8 lowest frequencies
+		float[] coefficients = mCoefficients;
+		for (int v = 0; v < HASH_SIZE; v++)
+		{
+			for (int u = 0; u < HASH_SIZE; u++)
+			{
+				float sum = 0;
+				for (int y = 0; y < SIZE; y++)
+				{
+					sum += rows[y * HASH_SIZE + u] * cos[v * SIZE + y];
+				}
+				coefficients[v * HASH_SIZE + u] = sum;
+			}
+		}
+
+		// the DC term only holds the brightness, so it is left out of the median
+		System.arraycopy(coefficients, 1, mSorted, 0, mSorted.length);
+		Arrays.sort(mSorted);
+		float median = mSorted[mSorted.length / 2];
+
+		long hash = 0;
+		for (int i = 0; i < HASH_SIZE * HASH_SIZE; i++)
+		{
+			if (coefficients[i] > median)
+			{
+				hash |= 1L << i;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * The number of bits that differ between two hashes, from 0 for images that look the same
+	 * to about 32 for unrelated images.
+	 *
+	 * @param a
+	 * @param b
+	 */
+	public static int distance(long a, long b)
+	{
+		return Long.bitCount(a ^ b);
+	}
+
+
+	/**
+	 * Average the region into SIZE x SIZE cells.
+	 */
+	private void downscale(GrayImage image, int left, int top, int width, int height)
+	{
+		byte[] data = image.getData();
+		int stride = image.getStride();
+		int offset = image.getOffset();
+
+		for (int cy = 0; cy < SIZE; cy++)
+		{
+			int ys = top + cy * height / SIZE;
+			int ye = Math.max(top + (cy + 1) * height / SIZE, ys + 1);
+			int yStep = Math.max(1, (ye - ys) / SAMPLES_PER_CELL);
+			for (int cx = 0; cx < SIZE; cx++)
+			{
+				int xs = left + cx * width / SIZE;
+				int xe = Math.max(left + (cx + 1) * width / SIZE, xs + 1);
+				int xStep = Math.max(1, (xe - xs) / SAMPLES_PER_CELL);
+
+				int sum = 0;
+				int count = 0;
+				for (int y = ys; y < ye; y += yStep)
+				{
+					int row = offset + y * stride;
+					for (int x = xs; x < xe; x += xStep)
+					{
+						sum += data[row + x] & 0xff;
+						count++;
+					}
+				}
+				mCells[cy * SIZE + cx] = (float) sum / count;
+			}
+		}
+	}
+
+
+	private final float[] 	mCos = new float[HASH_SIZE * SIZE];
+	private final float[] 	mCells = new float[SIZE * SIZE];
+	private final float[] 	mRows = new float[SIZE * HASH_SIZE];
+	private final float[] 	mCoefficients = new float[HASH_SIZE * HASH_SIZE];
+	private final float[] 	mSorted = new float[HASH_SIZE * HASH_SIZE - 1];
+}
@@ -0,0 +1,287 @@
+package com.openbiometrix.capture.face;
+
+import android.graphics.PointF;
+
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.Landmark;
+import com.openbiometrix.capture.image.FrameRotation;
+import com.openbiometrix.capture.image.GrayImage;
+
+import java.util.List;
+
+/**
+ * Aligns a detected face to a canonical pose.  A similarity transform is computed from the eye
+ * and mouth landmarks of the face to fixed positions in the output image, and the face region is
+ * resampled into the output with fixed point bilinear interpolation.  The output is suitable as
+ * input to template extraction, which expects the eyes at a known position and distance.
+ *
+ * The face detector must be built with landmark detection enabled.  An aligner keeps scratch
+ * state between calls and performs no allocation while warping, so it is not thread safe.  Use
+ * one aligner per thread.
+ */
+public class FaceAligner
+{
+	public final static int DEFAULT_OUTPUT_SIZE = 112;
+
+	// canonical landmark positions as a fraction of the output width and height
+	public final static float DEFAULT_LEFT_EYE_X = 0.34f;
+	public final static float DEFAULT_RIGHT_EYE_X = 0.66f;
+	public final static float DEFAULT_EYE_Y = 0.46f;
+	public final static float DEFAULT_MOUTH_X = 0.50f;
+	public final static float DEFAULT_MOUTH_Y = 0.84f;
+
+
+	/**
+	 * Create an aligner with the default output size and landmark positions.
+	 */
+	public FaceAligner()
+	{
+		this(DEFAULT_OUTPUT_SIZE, DEFAULT_OUTPUT_SIZE);
+	}
+
+	/**
+	 * Create an aligner that produces images of the given size with the default landmark positions.
+	 *
+	 * @param outputWidth
+	 * @param outputHeight
+	 */
+	public FaceAligner(int outputWidth, int outputHeight)
+	{
+		if (outputWidth <= 0 || outputHeight <= 0)
+		{
+			throw new IllegalArgumentException("Output size must be positive");
+		}
+		mOutputWidth = outputWidth;
+		mOutputHeight = outputHeight;
+		setCanonicalPoints(DEFAULT_LEFT_EYE_X, DEFAULT_EYE_Y, DEFAULT_RIGHT_EYE_X, DEFAULT_EYE_Y,
+				DEFAULT_MOUTH_X, DEFAULT_MOUTH_Y);
+	}
+
+	/**
+	 * Create an aligner with the same output size and landmark positions as another aligner.
+	 * Used to give each worker thread its own aligner.
+	 *
+	 * @param other
+	 */
+	public FaceAligner(FaceAligner other)
+	{
+		mOutputWidth = other.mOutputWidth;
+		mOutputHeight = other.mOutputHeight;
+		System.arraycopy(other.mCanonical, 0, mCanonical, 0, mCanonical.length);
+	}
+
+	/**
+	 * Set where the landmarks are placed in the output image.  Values are a fraction of the
+	 * output width and height.  The left eye is the eye on the left side of the output image.
+	 *
+	 * @param leftEyeX
+	 * @param leftEyeY
+	 * @param rightEyeX
+	 * @param rightEyeY
+	 * @param mouthX
+	 * @param mouthY
+	 */
+	public void setCanonicalPoints(float leftEyeX, float leftEyeY, float rightEyeX, float rightEyeY,
+								   float mouthX, float mouthY)
+	{
+		mCanonical[0] = leftEyeX * mOutputWidth;
+		mCanonical[1] = leftEyeY * mOutputHeight;
+		mCanonical[2] = rightEyeX * mOutputWidth;
+		mCanonical[3] = rightEyeY * mOutputHeight;
+		mCanonical[4] = mouthX * mOutputWidth;
+		mCanonical[5] = mouthY * mOutputHeight;
+	}
+
+	/**
+	 * Width of the aligned output image.
+	 */
+	public int getOutputWidth()
+	{
+		return mOutputWidth;
+	}
+
+	/**
+	 * Height of the aligned output image.
+	 */
+	public int getOutputHeight()
+	{
+		return mOutputHeight;
+	}
+
+	/**
+	 * The transform computed by the last successful call to align().  It maps output coordinates
+	 * to source image coordinates.
+	 */
+	public SimilarityTransform getTransform()
+	{
+		return mTransform;
+	}
+
+	/**
+	 * Align a face detected by the Google Vision face detector.
+	 *
+	 * @param src Luminance of the frame the face was detected in, in sensor orientation.
+	 * @param face The detected face.  Must have eye landmarks.
+	 * @param rotation The Frame rotation (Frame.ROTATION_0 ... Frame.ROTATION_270) of the frame.
+	 * @param dst The output image.  Must be the size of the aligner output.
+	 * @return true if the face was aligned, false if it does not have the landmarks needed.
+	 */
+	public boolean align(GrayImage src, Face face, int rotation, GrayImage dst)
+	{
+		int count = getAlignmentPoints(face, rotation, src.getWidth(), src.getHeight(), mPoints);
+		return count >= 2 && align(src, mPoints, count, dst);
+	}
+
+	/**
+	 * Align a face given its landmark positions in the source image.
+	 *
+	 * @param src The source image.
+	 * @param points Left eye, right eye and (optionally) mouth positions packed as x, y pairs.
+	 * @param count Number of points.  2 for eyes only, or 3 for eyes and mouth.
+	 * @param dst The output image.  Must be the size of the aligner output.
+	 * @return true if the face was aligned, false if the landmarks are degenerate.
+	 */
+	public boolean align(GrayImage src, float[] points, int count, GrayImage dst)
+	{
+		if (dst.getWidth() != mOutputWidth || dst.getHeight() != mOutputHeight)
+		{
+			throw new IllegalArgumentException("Output image must be " + mOutputWidth + "x" + mOutputHeight);
+		}
+		if (!mTransform.estimate(mCanonical, points, Math.min(count, 3)))
+		{
+			return false;
+		}
+		warp(src, mTransform, dst);
+		return true;
+	}
+
+	/**
+	 * Resample src into dst.  The transform maps dst coordinates to src coordinates.  Pixels that
+	 * fall outside of src are set to black.  Coordinates are stepped in 16.16 fixed point and
+	 * interpolated with 8 bit weights, so the inner loop is integer only.
+	 *
+	 * @param src
+	 * @param transform
+	 * @param dst
+	 */
+	public static void warp(GrayImage src, SimilarityTransform transform, GrayImage dst)
+	{
+		final int a = (int) Math.round(transform.getA() * 65536.0);
+		final int b = (int) Math.round(transform.getB() * 65536.0);
+		final int tx = (int) Math.round(transform.getTx() * 65536.0);
+		final int ty = (int) Math.round(transform.getTy() * 65536.0);
+
+		final byte[] s = src.getData();
+		final int srcOffset = src.getOffset();
+		final int srcStride = src.getStride();
+		final int maxX = src.getWidth() - 1;
+		final int maxY = src.getHeight() - 1;
+
+		final byte[] d = dst.getData();
+		final int dstWidth = dst.getWidth();
+		final int dstHeight = dst.getHeight();
+		final int dstStride = dst.getStride();
+
+		for (int v = 0; v < dstHeight; v++)
+		{
+			int x = tx - b * v;
+			int y = ty + a * v;
+			int out = dst.getOffset() + v * dstStride;
+
+			for (int u = 0; u < dstWidth; u++, x += a, y += b, out++)
+			{
+				int xi = x >> 16;
+				int yi = y >> 16;
+				if (xi < 0 || yi < 0 || xi >= maxX || yi >= maxY)
+				{
+					d[out] = 0;
+					continue;
+				}
+
+				int fx = (x >> 8) & 0xff;
+				int fy = (y >> 8) & 0xff;
+				int p = srcOffset + yi * srcStride + xi;
+				int p00 = s[p] & 0xff;
+				int p01 = s[p + 1] & 0xff;
+				int p10 = s[p + srcStride] & 0xff;
+				int p11 = s[p + srcStride + 1] & 0xff;
+
+				int top = (p00 << 8) + (p01 - p00) * fx;
+				int bottom = (p10 << 8) + (p11 - p10) * fx;
+				d[out] = (byte) (((top << 8) + (bottom - top) * fy + 32768) >> 16);
+			}
+		}
+	}
+
+	/**
+	 * Pull the eye and mouth landmarks out of a face and convert them from the upright frame
+	 * coordinates reported by the detector to the sensor coordinates of the frame data.
+	 *
+	 * @param face
+	 * @param rotation Frame rotation
+	 * @param width Width of the frame data
+	 * @param height Height of the frame data
+	 * @param out Receives left eye, right eye and mouth as x, y pairs.
+	 * @return The number of points found.  0 if the eyes were not found.
+	 */
+	static int getAlignmentPoints(Face face, int rotation, int width, int height, float[] out)
+	{
+		PointF leftEye = null;
+		PointF rightEye = null;
+		PointF mouth = null;
+
+		List<Landmark> landmarks = face.getLandmarks();
+		for (int i = 0; i < landmarks.size(); i++)
+		{
+			Landmark landmark = landmarks.get(i);
+			switch (landmark.getType())
+			{
+				case Landmark.LEFT_EYE:
+					leftEye = landmark.getPosition();
+					break;
+
+				case Landmark.RIGHT_EYE:
+					rightEye = landmark.getPosition();
+					break;
+
+				case Landmark.BOTTOM_MOUTH:
+					mouth = landmark.getPosition();
+					break;
+			}
+		}
+
+		if (leftEye == null || rightEye == null)
+		{
+			return 0;
+		}
+
+		// the detector names eyes from the subject's point of view.  order them by where they
+		// appear in the upright image instead so mirrored cameras align the same way.
+		if (leftEye.x > rightEye.x)
+		{
+			PointF tmp = leftEye;
+			leftEye = rightEye;
+			rightEye = tmp;
+		}
+
+		out[0] = FrameRotation.toSensorX(leftEye.x, leftEye.y, rotation, width, height);
+		out[1] = FrameRotation.toSensorY(leftEye.x, leftEye.y, rotation, width, height);
+		out[2] = FrameRotation.toSensorX(rightEye.x, rightEye.y, rotation, width, height);
+		out[3] = FrameRotation.toSensorY(rightEye.x, rightEye.y, rotation, width, height);
+		if (mouth == null)
+		{
+			return 2;
+		}
+		out[4] = FrameRotation.toSensorX(mouth.x, mouth.y, rotation, width, height);
+		out[5] = FrameRotation.toSensorY(mouth.x, mouth.y, rotation, width, height);
+		return 3;
+	}
+
+
+
+	private final int 					mOutputWidth;
+	private final int 					mOutputHeight;
+	private final float[] 				mCanonical = new float[6];
+	private final float[] 				mPoints = new float[6];
+	private final SimilarityTransform 	mTransform = new SimilarityTransform();
+}
@@ -0,0 +1,338 @@
+package com.openbiometrix.capture.face;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+import com.openbiometrix.capture.CaptureFile;
+import com.openbiometrix.capture.codec.CaptureCodec;
+import com.openbiometrix.capture.codec.CaptureCodecs;
+import com.openbiometrix.capture.codec.JpegCaptureCodec;
+import com.openbiometrix.capture.codec.YuvFrame;
+import com.openbiometrix.capture.image.GrayImage;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Aligns the faces in a batch of captured image files in parallel.  Each worker thread has its
+ * own face detector, aligner and output image, so the workers share nothing but the list of
+ * files.  The aligned image handed to the callback is reused by the worker as soon as the
+ * callback returns.
+ *
+ * Files are decoded by their media type: JPEGs with the platform decoder, and other types,
+ * such as raw frames, with the codec registered in CaptureCodecs.  Files of a CaptureStore are
+ * read through the store, so encrypted captures are decrypted with the store's key.
+ */
+public class FaceAlignmentBatch
+{
+	private final static String TAG = "FaceAlignmentBatch";
+
+	/**
+	 * Receives the results of a batch alignment.  Called on the worker threads.
+	 */
+	public interface Callback
+	{
+		/**
+		 * A face was found and aligned.
+		 *
+		 * @param file The file the face was found in.
+		 * @param aligned The aligned face.  Only valid until this call returns.
+		 */
+		void onFaceAligned(CaptureFile file, GrayImage aligned);
+
+		/**
+		 * No face could be aligned in the file.
+		 *
+		 * @param file
+		 */
+		void onNoFace(CaptureFile file);
+	}
+
+
+	/**
+	 * @param ctx Android Application Context
+	 * @param aligner Aligner whose settings are copied to each worker
+	 * @param threadCount Number of worker threads.  Values less than 1 use one thread per core.
+	 */
+	public FaceAlignmentBatch(Context ctx, FaceAligner aligner, int threadCount)
+	{
+		mContext = ctx;
+		mAligner = aligner;
+		mThreadCount = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Align the faces in a list of image files.  Blocks until all files have been processed.
+	 *
+	 * @param files Image files to process
+	 * @param callback Receives each result
+	 * @return The number of faces that were aligned.
+	 * @throws InterruptedException
+	 */
+	public int alignFiles(List<CaptureFile> files, Callback callback) throws InterruptedException
+	{
+		return alignCaptures(null, null, files, callback);
+	}
+
+	/**
+	 * Align the faces in a list of captures of a store, such as from CaptureStore.getFiles().
+	 * Blocks until all captures have been processed.
+	 *
+	 * @param store The store the captures are read through, or null to read them as plain files
+	 * @param key AES key of encrypted captures, or null if they are not encrypted
+	 * @param files Captures to process
+	 * @param callback Receives each result
+	 * @return The number of faces that were aligned.
+	 * @throws InterruptedException
+	 */
+	public int alignCaptures(final CaptureStore store, final SecretKey key, final List<CaptureFile> files,
+			final Callback callback) throws InterruptedException
+	{
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger aligned = new AtomicInteger(0);
+		int workers = Math.min(mThreadCount, files.size());
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try
+		{
+			for (int i = 0; i < workers; i++)
+			{
+				futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Worker worker = new Worker();
+						try
+						{
+							int index;
+							while ((index = next.getAndIncrement()) < files.size())
+							{
+								if (Thread.currentThread().isInterrupted())
+								{
+									return;
+								}
+								CaptureFile file = files.get(index);
+								if (worker.align(store, key, file))
+								{
+									aligned.incrementAndGet();
+									callback.onFaceAligned(file, worker.mOutput);
+								}
+								else
+								{
+									callback.onNoFace(file);
+								}
+							}
+						}
+						finally
+						{
+							worker.release();
+						}
+					}
+				}));
+			}
+
+			for (Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException ex)
+				{
+					Log.e(TAG, "Face alignment worker failed", ex.getCause());
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return aligned.get();
+	}
+
+
+	/**
+	 * State owned by a single worker thread.
+	 */
+	private class Worker
+	{
+		Worker()
+		{
+			mDetector = new FaceDetector.Builder(mContext)
+					.setLandmarkType(FaceDetector.ALL_LANDMARKS)
+					.setMode(FaceDetector.ACCURATE_MODE)
+					.setTrackingEnabled(false)
+					.build();
+			mWorkerAligner = new FaceAligner(mAligner);
+			mOutput = new GrayImage(mAligner.getOutputWidth(), mAligner.getOutputHeight());
+		}
+
+		/**
+		 * Read and decode the file, find the largest face and align it into mOutput.
+		 */
+		boolean align(CaptureStore store, SecretKey key, CaptureFile file)
+		{
+			Frame frame;
+			Bitmap bitmap = null;
+			try
+			{
+				byte[] data = store != null ? store.read(file, key) : readFile(file);
+				if (JpegCaptureCodec.MEDIA_TYPE.equals(file.getMediaType()) || !isDecodable(file))
+				{
+					bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+					if (bitmap == null)
+					{
+						Log.w(TAG, "Unable to decode " + file);
+						return false;
+					}
+					frame = new Frame.Builder().setBitmap(bitmap).build();
+				}
+				else
+				{
+					frame = decodeRaw(CaptureCodecs.get(file.getMediaType()), data);
+				}
+			}
+			catch (IOException ex)
+			{
+				Log.w(TAG, "Unable to read " + file, ex);
+				return false;
+			}
+
+			try
+			{
+				SparseArray<Face> faces = mDetector.detect(frame);
+				Face largest = null;
+				for (int i = 0; i < faces.size(); i++)
+				{
+					Face face = faces.valueAt(i);
+					if (largest == null || face.getWidth() * face.getHeight() > largest.getWidth() * largest.getHeight())
+					{
+						largest = face;
+					}
+				}
+				if (largest == null)
+				{
+					return false;
+				}
+
+				int width = frame.getMetadata().getWidth();
+				int height = frame.getMetadata().getHeight();
+				ByteBuffer data = frame.getGrayscaleImageData();
+				if (mLuma.length < width * height)
+				{
+					mLuma = new byte[width * height];
+				}
+				data.rewind();
+				data.get(mLuma, 0, width * height);
+				mFrameImage.set(mLuma, 0, width, height, width);
+
+				return mWorkerAligner.align(mFrameImage, largest, frame.getMetadata().getRotation(), mOutput);
+			}
+			finally
+			{
+				if (bitmap != null)
+				{
+					bitmap.recycle();
+				}
+			}
+		}
+
+		/**
+		 * Decode a raw capture into an NV21 frame for the detector, giving a gray frame neutral
+		 * chroma.
+		 */
+		private Frame decodeRaw(CaptureCodec codec, byte[] data) throws IOException
+		{
+			codec.decode(data, 0, data.length, mRaw);
+			int length = YuvFrame.getLength(mRaw.width, mRaw.height, YuvFrame.NV21);
+			byte[] nv21 = mRaw.data;
+			if (mRaw.format == YuvFrame.Y8)
+			{
+				if (mChroma.length < length)
+				{
+					mChroma = new byte[length];
+				}
+				int luma = mRaw.width * mRaw.height;
+				System.arraycopy(mRaw.data, 0, mChroma, 0, luma);
+				for (int i = luma; i < length; i++)
+				{
+					mChroma[i] = (byte) 128;
+				}
+				nv21 = mChroma;
+			}
+			return new Frame.Builder()
+					.setImageData(ByteBuffer.wrap(nv21, 0, length), mRaw.width, mRaw.height, ImageFormat.NV21)
+					.setRotation(mRaw.rotation)
+					.build();
+		}
+
+		void release()
+		{
+			mDetector.release();
+		}
+
+		private final FaceDetector 	mDetector;
+		private final FaceAligner 	mWorkerAligner;
+		private final GrayImage 	mOutput;
+		private final GrayImage 	mFrameImage = new GrayImage(new byte[0], 0, 0, 0, 0);
+		private byte[] 				mLuma = new byte[0];
+		private byte[] 				mChroma = new byte[0];
+		private final YuvFrame 		mRaw = new YuvFrame();
+	}
+
+
+	/**
+	 * Whether a file is of a media type with a codec that decodes raw frames.  Anything else is
+	 * left to the platform image decoder.
+	 */
+	private static boolean isDecodable(CaptureFile file)
+	{
+		CaptureCodec codec = CaptureCodecs.get(file.getMediaType());
+		return codec != null && codec.canDecode();
+	}
+
+	private static byte[] readFile(CaptureFile file) throws IOException
+	{
+		if (file.isEncrypted())
+		{
+			throw new IOException("Encrypted capture " + file + " must be read through its store");
+		}
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			in.readFully(data);
+		}
+		finally
+		{
+			in.close();
+		}
+		return data;
+	}
+
+
+	private final Context 		mContext;
+	private final FaceAligner 	mAligner;
+	private final int 			mThreadCount;
+}
@@ -0,0 +1,137 @@
+package com.openbiometrix.capture.face;
+
+/**
+ * A 2D similarity transform (uniform scale, rotation and translation) that maps a point (x, y)
+ * to (a * x - b * y + tx, b * x + a * y + ty).
+ */
+public class SimilarityTransform
+{
+	/**
+	 * Create an identity transform.
+	 */
+	public SimilarityTransform()
+	{
+		setIdentity();
+	}
+
+	/**
+	 * Reset this transform to the identity.
+	 */
+	public void setIdentity()
+	{
+		mA = 1.0;
+		mB = 0.0;
+		mTx = 0.0;
+		mTy = 0.0;
+	}
+
+	/**
+	 * Compute the least squares similarity transform that maps the source points on to the
+	 * destination points.  Points are packed as x0, y0, x1, y1, ...
+	 *
+	 * @param src Source points
+	 * @param dst Destination points
+	 * @param count Number of points.  At least two are needed.
+	 * @return true if a transform could be computed, false if the source points are degenerate.
+	 */
+	public boolean estimate(float[] src, float[] dst, int count)
+	{
+		if (count < 2)
+		{
+			return false;
+		}
+
+		double sx = 0, sy = 0, dx = 0, dy = 0;
+		for (int i = 0; i < count; i++)
+		{
+			sx += src[2 * i];
+			sy += src[2 * i + 1];
+			dx += dst[2 * i];
+			dy += dst[2 * i + 1];
+		}
+		sx /= count;
+		sy /= count;
+		dx /= count;
+		dy /= count;
+
+		double norm = 0, dot = 0, cross = 0;
+		for (int i = 0; i < count; i++)
+		{
+			double px = src[2 * i] - sx;
+			double py = src[2 * i + 1] - sy;
+			double qx = dst[2 * i] - dx;
+			double qy = dst[2 * i + 1] - dy;
+			norm += px * px + py * py;
+			dot += px * qx + py * qy;
+			cross += px * qy - py * qx;
+		}
+		if (norm < 1e-9)
+		{
+			return false;
+		}
+
+		mA = dot / norm;
+		mB = cross / norm;
+		mTx = dx - (mA * sx - mB * sy);
+		mTy = dy - (mB * sx + mA * sy);
+		return true;
+	}
+
+	/**
+	 * Map the x coordinate of a point.
+	 */
+	public double mapX(double x, double y)
+	{
+		return mA * x - mB * y + mTx;
+	}
+
+	/**
+	 * Map the y coordinate of a point.
+	 */
+	public double mapY(double x, double y)
+	{
+		return mB * x + mA * y + mTy;
+	}
+
+	/**
+	 * The scale factor of the transform.
+	 */
+	public double getScale()
+	{
+		return Math.sqrt(mA * mA + mB * mB);
+	}
+
+	/**
+	 * The rotation of the transform in radians.
+	 */
+	public double getRotation()
+	{
+		return Math.atan2(mB, mA);
+	}
+
+	public double getA()
+	{
+		return mA;
+	}
+
+	public double getB()
+	{
+		return mB;
+	}
+
+	public double getTx()
+	{
+		return mTx;
+	}
+
+	public double getTy()
+	{
+		return mTy;
+	}
+
+
+	private double mA;
+	private double mB;
+	private double mTx;
+	private double mTy;
+}
@@ -0,0 +1,98 @@
+package com.openbiometrix.capture.image;
+
+/**
+ * Converts between the upright coordinates that the face detector reports and the sensor
+ * coordinates of the camera frame data.  The rotation is one of the Frame.ROTATION_* values,
+ * which give the clockwise rotation that turns the sensor image upright.
+ */
+public final class FrameRotation
+{
+	public final static int ROTATION_0 = 0;
+	public final static int ROTATION_90 = 1;
+	public final static int ROTATION_180 = 2;
+	public final static int ROTATION_270 = 3;
+
+
+	private FrameRotation()
+	{
+	}
+
+	/**
+	 * Sensor x coordinate of an upright point.
+	 *
+	 * @param x Upright x
+	 * @param y Upright y
+	 * @param rotation Frame rotation
+	 * @param width Width of the sensor image
+	 * @param height Height of the sensor image
+	 */
+	public static float toSensorX(float x, float y, int rotation, int width, int height)
+	{
+		switch (rotation)
+		{
+			case ROTATION_90:
+				return y;
+
+			case ROTATION_180:
+				return width - 1 - x;
+
+			case ROTATION_270:
+				return width - 1 - y;
+
+			default:
+				return x;
+		}
+	}
+
+	/**
+	 * Sensor y coordinate of an upright point.
+	 *
+	 * @param x Upright x
+	 * @param y Upright y
+	 * @param rotation Frame rotation
+	 * @param width Width of the sensor image
+	 * @param height Height of the sensor image
+	 */
+	public static float toSensorY(float x, float y, int rotation, int width, int height)
+	{
+		switch (rotation)
+		{
+			case ROTATION_90:
+				return height - 1 - x;
+
+			case ROTATION_180:
+				return height - 1 - y;
+
+			case ROTATION_270:
+				return x;
+
+			default:
+				return y;
+		}
+	}
+
+	/**
+	 * Convert an upright rectangle to a rectangle in sensor coordinates.
+	 *
+	 * @param left Upright left
+	 * @param top Upright top
+	 * @param right Upright right
+	 * @param bottom Upright bottom
+	 * @param rotation Frame rotation
+	 * @param width Width of the sensor image
+	 * @param height Height of the sensor image
+	 * @param out Receives left, top, right, bottom in sensor coordinates
+	 */
+	public static void toSensorRect(float left, float top, float right, float bottom, int rotation,
+									int width, int height, float[] out)
+	{
+		float x0 = toSensorX(left, top, rotation, width, height);
+		float y0 = toSensorY(left, top, rotation, width, height);
+		float x1 = toSensorX(right, bottom, rotation, width, height);
+		float y1 = toSensorY(right, bottom, rotation, width, height);
+		out[0] = Math.min(x0, x1);
+		out[1] = Math.min(y0, y1);
+		out[2] = Math.max(x0, x1);
+		out[3] = Math.max(y0, y1);
+	}
+}
@@ -0,0 +1,133 @@
+package com.openbiometrix.capture.image;
+
+/**
+ * An 8 bit luminance (grayscale) image.  The pixels are held in a byte array that may be larger
+ * than the image itself, such as the Y plane at the start of an NV21 camera frame.  A GrayImage
+ * can be re-pointed at a different array with set() so that a single instance can be reused
+ * for every frame without allocating.
+ */
+public class GrayImage
+{
+	/**
+	 * Create an image that owns a new pixel array of the given size.
+	 *
+	 * @param width
+	 * @param height
+	 */
+	public GrayImage(int width, int height)
+	{
+		this(new byte[width * height], 0, width, height, width);
+	}
+
+	/**
+	 * Create an image over an existing pixel array.
+	 *
+	 * @param data Pixel data
+	 * @param offset Offset of the first pixel in the array
+	 * @param width
+	 * @param height
+	 * @param stride Number of bytes between the start of each row
+	 */
+	public GrayImage(byte[] data, int offset, int width, int height, int stride)
+	{
+		set(data, offset, width, height, stride);
+	}
+
+	/**
+	 * Point this image at a different pixel array.
+	 *
+	 * @param data Pixel data
+	 * @param offset Offset of the first pixel in the array
+	 * @param width
+	 * @param height
+	 * @param stride Number of bytes between the start of each row
+	 */
+	public void set(byte[] data, int offset, int width, int height, int stride)
+	{
+		if (data == null)
+		{
+			throw new IllegalArgumentException("Image data cannot be null");
+		}
+		if (width < 0 || height < 0 || stride < width || offset < 0
+				|| (height > 0 && offset + (height - 1) * stride + width > data.length))
+		{
+			throw new IllegalArgumentException("Image dimensions do not fit the image data");
+		}
+		mData = data;
+		mOffset = offset;
+		mWidth = width;
+		mHeight = height;
+		mStride = stride;
+	}
+
+	/**
+	 * Get the luminance of the pixel at x, y.
+	 *
+	 * @param x
+	 * @param y
+	 * @return The pixel value from 0 to 255
+	 */
+	public int get(int x, int y)
+	{
+		return mData[mOffset + y * mStride + x] & 0xff;
+	}
+
+	/**
+	 * Set the luminance of the pixel at x, y.
+	 *
+	 * @param x
+	 * @param y
+	 * @param value The pixel value from 0 to 255
+	 */
+	public void put(int x, int y, int value)
+	{
+		mData[mOffset + y * mStride + x] = (byte) value;
+	}
+
+	/**
+	 * Get the array that holds the pixel data.
+	 */
+	public byte[] getData()
+	{
+		return mData;
+	}
+
+	/**
+	 * Get the offset of the first pixel in the data array.
+	 */
+	public int getOffset()
+	{
+		return mOffset;
+	}
+
+	/**
+	 * Get the width of the image in pixels.
+	 */
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	/**
+	 * Get the height of the image in pixels.
+	 */
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	/**
+	 * Get the number of bytes between the start of each row.
+	 */
+	public int getStride()
+	{
+		return mStride;
+	}
+
+
+	private byte[] 	mData;
+	private int 	mOffset;
+	private int 	mWidth;
+	private int 	mHeight;
+	private int 	mStride;
+}
@@ -0,0 +1,94 @@
+package com.openbiometrix.capture.image;
+
+/**
+ * A fixed size pool of GrayImage objects that all have the same dimensions.  Images are
+ * allocated up front so that a stage producing an image for every frame does not create
+ * garbage.  If the pool runs dry because consumers are holding on to images, a new image is
+ * allocated and counted as a miss.  Images released to a full pool are simply dropped.
+ */
+public class GrayImagePool
+{
+	/**
+	 * Create a pool and allocate all of its images.
+	 *
+	 * @param width Width of every image in the pool
+	 * @param height Height of every image in the pool
+	 * @param size Number of images held by the pool
+	 */
+	public GrayImagePool(int width, int height, int size)
+	{
+		mWidth = width;
+		mHeight = height;
+		mImages = new GrayImage[size];
+		for (int i = 0; i < size; i++)
+		{
+			mImages[i] = new GrayImage(width, height);
+		}
+		mCount = size;
+	}
+
+	/**
+	 * Take an image from the pool.  The contents of the image are undefined.
+	 *
+	 * @return An image that must be given back with release() when it is no longer used.
+	 */
+	public synchronized GrayImage acquire()
+	{
+		if (mCount == 0)
+		{
+			mMissCount++;
+			return new GrayImage(mWidth, mHeight);
+		}
+		GrayImage image = mImages[--mCount];
+		mImages[mCount] = null;
+		return image;
+	}
+
+	/**
+	 * Return an image to the pool.
+	 *
+	 * @param image
+	 */
+	public synchronized void release(GrayImage image)
+	{
+		if (image == null || image.getWidth() != mWidth || image.getHeight() != mHeight)
+		{
+			return;
+		}
+		if (mCount < mImages.length)
+		{
+			mImages[mCount++] = image;
+		}
+	}
+
+	/**
+	 * Width of the images in the pool.
+	 */
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	/**
+	 * Height of the images in the pool.
+	 */
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	/**
+	 * The number of times an image had to be allocated because the pool was empty.
+	 */
+	public synchronized long getMissCount()
+	{
+		return mMissCount;
+	}
+
+
+	private final int 			mWidth;
+	private final int 			mHeight;
+	private final GrayImage[] 	mImages;
+	private int 				mCount = 0;
+	private long 				mMissCount = 0;
+}
@@ -0,0 +1,341 @@
+package com.openbiometrix.capture.liveness;
+
+/**
+ * Streaming liveness check based on eye blinks.  Each face track runs a small state machine over
+ * the eye open probabilities from the face detector classification:
+ *
+ *     OPEN  --both eyes below the closed threshold-->  CLOSED
+ *     CLOSED --both eyes above the open threshold-->   OPEN
+ *
+ * A CLOSED period that lasts between the minimum and maximum blink duration counts as a blink.
+ * The times of the most recent blinks are kept in a fixed size ring per track.  Once the
+ * required number of blinks fall inside the blink window, the track is decided LIVE.  If that has
+ * not happened by the decision timeout after the track was first seen, the track is decided
+ * NOT_LIVE, so a decision is always made within a bounded time.
+ *
+ * Each sample is processed in constant time without looking back over the history of the track,
+ * and all state is held in primitive arrays sized when the detector is created.  The detector is
+ * not thread safe; it is meant to be fed from the face detector thread.
+ */
+public class BlinkLivenessDetector
+{
+	public final static int MAX_TRACKS = 8;
+	public final static int BLINK_RING_SIZE = 8;
+
+	public final static float DEFAULT_CLOSED_THRESHOLD = 0.3f;
+	public final static float DEFAULT_OPEN_THRESHOLD = 0.6f;
+	public final static long DEFAULT_MIN_BLINK_MS = 40;
+	public final static long DEFAULT_MAX_BLINK_MS = 500;
+	public final static int DEFAULT_REQUIRED_BLINKS = 1;
+	public final static long DEFAULT_BLINK_WINDOW_MS = 5000;
+	public final static long DEFAULT_DECISION_TIMEOUT_MS = 5000;
+
+	/**
+	 * Liveness decision for a face track.
+	 */
+	public enum Liveness
+	{
+		PENDING,
+		LIVE,
+		NOT_LIVE
+	}
+
+	/**
+	 * Notified when a track reaches a decision.  Called on the thread that calls update().
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param trackId The face track
+		 * @param liveness LIVE or NOT_LIVE
+		 * @param timestamp Timestamp of the sample that produced the decision
+		 */
+		void onLivenessDecision(int trackId, Liveness liveness, long timestamp);
+	}
+
+
+	// eye states of the state machine
+	private final static byte EYES_UNKNOWN = 0;
+	private final static byte EYES_OPEN = 1;
+	private final static byte EYES_CLOSED = 2;
+
+	private final static Liveness[] LIVENESS = Liveness.values();
+
+
+	public BlinkLivenessDetector()
+	{
+		for (int i = 0; i < MAX_TRACKS; i++)
+		{
+			mTrackIds[i] = -1;
+		}
+	}
+
+	/**
+	 * Set the listener that is notified of decisions.
+	 *
+	 * @param listener
+	 */
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * Set the eye open probability thresholds.  Using a gap between the two avoids flickering
+	 * between states on noisy probabilities.
+	 *
+	 * @param closedThreshold Both eyes at or below this are closed
+	 * @param openThreshold Both eyes at or above this are open
+	 */
+	public void setThresholds(float closedThreshold, float openThreshold)
+	{
+		if (closedThreshold > openThreshold)
+		{
+			throw new IllegalArgumentException("Closed threshold must not be above open threshold");
+		}
+		mClosedThreshold = closedThreshold;
+		mOpenThreshold = openThreshold;
+	}
+
+	/**
+	 * Set the shortest and longest closed period that counts as a blink.
+	 *
+	 * @param minMs
+	 * @param maxMs
+	 */
+	public void setBlinkDuration(long minMs, long maxMs)
+	{
+		mMinBlinkMs = minMs;
+		mMaxBlinkMs = maxMs;
+	}
+
+	/**
+	 * Set how many blinks must be seen within a window of time for a track to be live.
+	 *
+	 * @param blinks From 1 to BLINK_RING_SIZE
+	 * @param windowMs
+	 */
+	public void setRequiredBlinks(int blinks, long windowMs)
+	{
+		if (blinks < 1 || blinks > BLINK_RING_SIZE)
+		{
+			throw new IllegalArgumentException("Required blinks must be from 1 to " + BLINK_RING_SIZE);
+		}
+		mRequiredBlinks = blinks;
+		mBlinkWindowMs = windowMs;
+	}
+
+	/**
+	 * Set the longest time after a track is first seen before it is decided NOT_LIVE.
+	 *
+	 * @param timeoutMs
+	 */
+	public void setDecisionTimeout(long timeoutMs)
+	{
+		mDecisionTimeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Process one sample of a face track.
+	 *
+	 * @param trackId Face id from the detector
+	 * @param timestamp Sample time in milliseconds.  Must not go backwards within a track.
+	 * @param leftEyeOpen Left eye open probability, or a negative value if not computed
+	 * @param rightEyeOpen Right eye open probability, or a negative value if not computed
+	 * @return The decision for the track after this sample.
+	 */
+	public Liveness update(int trackId, long timestamp, float leftEyeOpen, float rightEyeOpen)
+	{
+		int slot = getSlot(trackId, timestamp);
+		mLastSeen[slot] = timestamp;
+
+		if (mDecision[slot] != Liveness.PENDING.ordinal())
+		{
+			return LIVENESS[mDecision[slot]];
+		}
+
+		// uncomputed probabilities leave the eye state alone, but still count toward the timeout
+		if (leftEyeOpen >= 0 && rightEyeOpen >= 0)
+		{
+			float open = Math.min(leftEyeOpen, rightEyeOpen);
+			float closed = Math.max(leftEyeOpen, rightEyeOpen);
+
+			if (closed <= mClosedThreshold)
+			{
+				if (mEyeState[slot] == EYES_OPEN)
+				{
+					mClosedAt[slot] = timestamp;
+				}
+				// a track that starts with the eyes closed has to open them before a blink counts
+				mEyeState[slot] = mEyeState[slot] == EYES_UNKNOWN ? EYES_UNKNOWN : EYES_CLOSED;
+			}
+			else if (open >= mOpenThreshold)
+			{
+				if (mEyeState[slot] == EYES_CLOSED)
+				{
+					long duration = timestamp - mClosedAt[slot];
+					if (duration >= mMinBlinkMs && duration <= mMaxBlinkMs)
+					{
+						addBlink(slot, timestamp);
+					}
+				}
+				mEyeState[slot] = EYES_OPEN;
+			}
+		}
+
+		if (countRecentBlinks(slot, timestamp) >= mRequiredBlinks)
+		{
+			decide(slot, Liveness.LIVE, timestamp);
+		}
+		else if (timestamp - mFirstSeen[slot] >= mDecisionTimeoutMs)
+		{
+			decide(slot, Liveness.NOT_LIVE, timestamp);
+		}
+		return LIVENESS[mDecision[slot]];
+	}
+
+	/**
+	 * Get the current decision for a track.
+	 *
+	 * @param trackId
+	 * @return The decision, or PENDING if the track is not known.
+	 */
+	public Liveness getLiveness(int trackId)
+	{
+		int slot = findSlot(trackId);
+		return slot < 0 ? Liveness.PENDING : LIVENESS[mDecision[slot]];
+	}
+
+	/**
+	 * Forget a track.  Called when the detector loses the face.
+	 *
+	 * @param trackId
+	 */
+	public void removeTrack(int trackId)
+	{
+		int slot = findSlot(trackId);
+		if (slot >= 0)
+		{
+			mTrackIds[slot] = -1;
+		}
+	}
+
+	/**
+	 * Forget all tracks.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < MAX_TRACKS; i++)
+		{
+			mTrackIds[i] = -1;
+		}
+	}
+
+
+	private int findSlot(int trackId)
+	{
+		for (int i = 0; i < MAX_TRACKS; i++)
+		{
+			if (mTrackIds[i] == trackId)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the slot of a track, claiming a free slot or the least recently seen one for a new track.
+	 */
+	private int getSlot(int trackId, long timestamp)
+	{
+		int slot = findSlot(trackId);
+		if (slot >= 0)
+		{
+			return slot;
+		}
+
+		slot = 0;
+		for (int i = 0; i < MAX_TRACKS; i++)
+		{
+			if (mTrackIds[i] == -1)
+			{
+				slot = i;
+				break;
+			}
+			if (mLastSeen[i] < mLastSeen[slot])
+			{
+				slot = i;
+			}
+		}
+
+		mTrackIds[slot] = trackId;
+		mFirstSeen[slot] = timestamp;
+		mLastSeen[slot] = timestamp;
+		mClosedAt[slot] = 0;
+		mEyeState[slot] = EYES_UNKNOWN;
+		mDecision[slot] = (byte) Liveness.PENDING.ordinal();
+		mBlinkHead[slot] = 0;
+		mBlinkCount[slot] = 0;
+		return slot;
+	}
+
+	private void addBlink(int slot, long timestamp)
+	{
+		mBlinkTimes[slot * BLINK_RING_SIZE + mBlinkHead[slot]] = timestamp;
+		mBlinkHead[slot] = (mBlinkHead[slot] + 1) % BLINK_RING_SIZE;
+		if (mBlinkCount[slot] < BLINK_RING_SIZE)
+		{
+			mBlinkCount[slot]++;
+		}
+	}
+
+	/**
+	 * Count blinks inside the window, newest first.  Stops at the first blink outside the window,
+	 * so this never looks at more than the ring.
+	 */
+	private int countRecentBlinks(int slot, long timestamp)
+	{
+		int count = 0;
+		int index = mBlinkHead[slot];
+		for (int i = 0; i < mBlinkCount[slot]; i++)
+		{
+			index = (index + BLINK_RING_SIZE - 1) % BLINK_RING_SIZE;
+			if (timestamp - mBlinkTimes[slot * BLINK_RING_SIZE + index] > mBlinkWindowMs)
+			{
+				break;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private void decide(int slot, Liveness liveness, long timestamp)
+	{
+		mDecision[slot] = (byte) liveness.ordinal();
+		if (mListener != null)
+		{
+			mListener.onLivenessDecision(mTrackIds[slot], liveness, timestamp);
+		}
+	}
+
+
+	private final int[] 	mTrackIds = new int[MAX_TRACKS];
+	private final long[] 	mFirstSeen = new long[MAX_TRACKS];
+	private final long[] 	mLastSeen = new long[MAX_TRACKS];
+	private final long[] 	mClosedAt = new long[MAX_TRACKS];
+	private final byte[] 	mEyeState = new byte[MAX_TRACKS];
+	private final byte[] 	mDecision = new byte[MAX_TRACKS];
+	private final long[] 	mBlinkTimes = new long[MAX_TRACKS * BLINK_RING_SIZE];
+	private final int[] 	mBlinkHead = new int[MAX_TRACKS];
+	private final int[] 	mBlinkCount = new int[MAX_TRACKS];
+
+	private Listener 		mListener = null;
+	private float 			mClosedThreshold = DEFAULT_CLOSED_THRESHOLD;
+	private float 			mOpenThreshold = DEFAULT_OPEN_THRESHOLD;
+	private long 			mMinBlinkMs = DEFAULT_MIN_BLINK_MS;
+	private long 			mMaxBlinkMs = DEFAULT_MAX_BLINK_MS;
+	private int 			mRequiredBlinks = DEFAULT_REQUIRED_BLINKS;
+	private long 			mBlinkWindowMs = DEFAULT_BLINK_WINDOW_MS;
+	private long 			mDecisionTimeoutMs = DEFAULT_DECISION_TIMEOUT_MS;
+}
@@ -0,0 +1,76 @@
+package com.openbiometrix.capture.quality;
+
+/**
+ * Sharpness and exposure measurements of a region of a frame, as computed by a
+ * FrameQualityAnalyzer.
+ */
+public class FrameQuality
+{
+	/**
+	 * Variance of the Laplacian over the region.  Higher values mean a sharper image.  Blurred
+	 * faces typically score well under 100.
+	 */
+	public float getSharpness()
+	{
+		return mSharpness;
+	}
+
+	/**
+	 * Mean luminance of the region from 0 to 255.
+	 */
+	public float getMeanLuminance()
+	{
+		return mMeanLuminance;
+	}
+
+	/**
+	 * Fraction of the region, from 0 to 1, that is clipped to black.
+	 */
+	public float getDarkClipRatio()
+	{
+		return mDarkClipRatio;
+	}
+
+	/**
+	 * Fraction of the region, from 0 to 1, that is clipped to white.
+	 */
+	public float getBrightClipRatio()
+	{
+		return mBrightClipRatio;
+	}
+
+	/**
+	 * Number of pixels that were sampled to compute the measurements.  0 if the region did not
+	 * overlap the frame.
+	 */
+	public int getSampleCount()
+	{
+		return mSampleCount;
+	}
+
+	/**
+	 * Set all of the measurements.
+	 */
+	void set(float sharpness, float meanLuminance, float darkClipRatio, float brightClipRatio, int sampleCount)
+	{
+		mSharpness = sharpness;
+		mMeanLuminance = meanLuminance;
+		mDarkClipRatio = darkClipRatio;
+		mBrightClipRatio = brightClipRatio;
+		mSampleCount = sampleCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FrameQuality{sharpness=" + mSharpness + ", mean=" + mMeanLuminance
+				+ ", dark=" + mDarkClipRatio + ", bright=" + mBrightClipRatio + "}";
+	}
+
+
+	private float 	mSharpness = 0;
+	private float 	mMeanLuminance = 0;
+	private float 	mDarkClipRatio = 0;
+	private float 	mBrightClipRatio = 0;
+	private int 	mSampleCount = 0;
+}
@@ -0,0 +1,178 @@
+package com.openbiometrix.capture.quality;
+
+import com.openbiometrix.capture.image.GrayImage;
+
+import java.util.Arrays;
+
+/**
+ * Computes sharpness and exposure measurements over a region of interest, normally the face, of
+ * a luminance frame.  The analysis is cheap enough to run on every frame:
+ *
+ *  - Sharpness is the variance of the 4-neighbour Laplacian.  The Laplacian is evaluated on a
+ *    regular grid of sample points that is coarsened until at most MAX_SAMPLES points are used,
+ *    so the cost does not grow with the size of the face.  Each point still uses its immediate
+ *    neighbours, so fine detail is measured at full resolution.
+ *  - Exposure is measured from a luminance histogram of the same sample points, giving the mean
+ *    and the fraction of clipped pixels at each end.
+ *
+ * All arithmetic in the sampling loop is integer and the histogram is a scratch array owned by
+ * the analyzer, so analyze() does not allocate.  An analyzer is not thread safe.
+ */
+public class FrameQualityAnalyzer
+{
+	public final static int MAX_SAMPLES = 16384;
+	public final static int DEFAULT_DARK_CLIP_LEVEL = 8;
+	public final static int DEFAULT_BRIGHT_CLIP_LEVEL = 247;
+
+	public final static float DEFAULT_MIN_SHARPNESS = 50.0f;
+	public final static float DEFAULT_MAX_CLIP_RATIO = 0.2f;
+	public final static float DEFAULT_MIN_MEAN_LUMINANCE = 40.0f;
+	public final static float DEFAULT_MAX_MEAN_LUMINANCE = 220.0f;
+
+
+	/**
+	 * Analyze the region left, top, width, height of the image.  The region is clipped to the
+	 * image.
+	 *
+	 * @param image
+	 * @param left
+	 * @param top
+	 * @param width
+	 * @param height
+	 * @param out Receives the measurements
+	 */
+	public void analyze(GrayImage image, int left, int top, int width, int height, FrameQuality out)
+	{
+		// keep one pixel away from the edges so every sample point has four neighbours
+		int x0 = Math.max(left, 1);
+		int y0 = Math.max(top, 1);
+		int x1 = Math.min(left + width, image.getWidth() - 1);
+		int y1 = Math.min(top + height, image.getHeight() - 1);
+		if (x1 <= x0 || y1 <= y0)
+		{
+			out.set(0, 0, 0, 0, 0);
+			return;
+		}
+
+		int area = (x1 - x0) * (y1 - y0);
+		int step = 1;
+		while (area / (step * step) > MAX_SAMPLES)
+		{
+			step++;
+		}
+
+		final byte[] data = image.getData();
+		final int stride = image.getStride();
+		final int offset = image.getOffset();
+		final int[] histogram = mHistogram;
+		Arrays.fill(histogram, 0);
+
+		long sum = 0;
+		long sumSquares = 0;
+		int count = 0;
+
+		for (int y = y0; y < y1; y += step)
+		{
+			int row = offset + y * stride;
+			for (int x = x0; x < x1; x += step)
+			{
+				int p = row + x;
+				int center = data[p] & 0xff;
+				int laplacian = (center << 2)
+						- (data[p - 1] & 0xff)
+						- (data[p + 1] & 0xff)
+						- (data[p - stride] & 0xff)
+						- (data[p + stride] & 0xff);
+				sum += laplacian;
+				sumSquares += laplacian * laplacian;
+				histogram[center]++;
+				count++;
+			}
+		}
+
+		long luminance = 0;
+		int dark = 0;
+		int bright = 0;
+		for (int i = 0; i < 256; i++)
+		{
+			luminance += (long) i * histogram[i];
+			if (i <= mDarkClipLevel)
+			{
+				dark += histogram[i];
+			}
+			else if (i >= mBrightClipLevel)
+			{
+				bright += histogram[i];
+			}
+		}
+
+		// variance = E[x^2] - E[x]^2, kept in integers until the final division
+		long varianceNumerator = sumSquares * count - sum * sum;
+		float sharpness = (float) ((double) varianceNumerator / ((double) count * count));
+
+		out.set(sharpness, (float) luminance / count, (float) dark / count, (float) bright / count, count);
+	}
+
+	/**
+	 * Check measurements against the thresholds of this analyzer.
+	 *
+	 * @param quality
+	 * @return true if the frame is sharp enough and well enough exposed to be used.
+	 */
+	public boolean isAcceptable(FrameQuality quality)
+	{
+		return quality.getSampleCount() > 0
+				&& quality.getSharpness() >= mMinSharpness
+				&& quality.getMeanLuminance() >= mMinMeanLuminance
+				&& quality.getMeanLuminance() <= mMaxMeanLuminance
+				&& quality.getDarkClipRatio() <= mMaxClipRatio
+				&& quality.getBrightClipRatio() <= mMaxClipRatio;
+	}
+
+	/**
+	 * Copy the luminance histogram from the last call to analyze().
+	 *
+	 * @param out An array of at least 256 entries
+	 */
+	public void getHistogram(int[] out)
+	{
+		System.arraycopy(mHistogram, 0, out, 0, mHistogram.length);
+	}
+
+	/**
+	 * Set the luminance levels at or below / at or above which a pixel is counted as clipped.
+	 *
+	 * @param dark
+	 * @param bright
+	 */
+	public void setClipLevels(int dark, int bright)
+	{
+		mDarkClipLevel = dark;
+		mBrightClipLevel = bright;
+	}
+
+	/**
+	 * Set the thresholds used by isAcceptable().
+	 *
+	 * @param minSharpness Minimum Laplacian variance
+	 * @param minMeanLuminance Minimum mean luminance
+	 * @param maxMeanLuminance Maximum mean luminance
+	 * @param maxClipRatio Maximum fraction of pixels clipped at either end
+	 */
+	public void setThresholds(float minSharpness, float minMeanLuminance, float maxMeanLuminance, float maxClipRatio)
+	{
+		mMinSharpness = minSharpness;
+		mMinMeanLuminance = minMeanLuminance;
+		mMaxMeanLuminance = maxMeanLuminance;
+		mMaxClipRatio = maxClipRatio;
+	}
+
+
+	private final int[] mHistogram = new int[256];
+	private int 		mDarkClipLevel = DEFAULT_DARK_CLIP_LEVEL;
+	private int 		mBrightClipLevel = DEFAULT_BRIGHT_CLIP_LEVEL;
+	private float 		mMinSharpness = DEFAULT_MIN_SHARPNESS;
+	private float 		mMinMeanLuminance = DEFAULT_MIN_MEAN_LUMINANCE;
+	private float 		mMaxMeanLuminance = DEFAULT_MAX_MEAN_LUMINANCE;
+	private float 		mMaxClipRatio = DEFAULT_MAX_CLIP_RATIO;
+}
@@ -0,0 +1,72 @@
+package com.openbiometrix.capture.quality;
+
+/**
+ * A fixed size pool of FrameQuality objects, so that measuring every detected face does not
+ * create garbage on the detector thread.  If the pool runs dry because consumers are holding on
+ * to measurements, a new one is allocated and counted as a miss.  Measurements released to a
+ * full pool are simply dropped.
+ */
+public class FrameQualityPool
+{
+	/**
+	 * Create a pool and allocate all of its measurements.
+	 *
+	 * @param size Number of measurements held by the pool
+	 */
+	public FrameQualityPool(int size)
+	{
+		mQualities = new FrameQuality[size];
+		for (int i = 0; i < size; i++)
+		{
+			mQualities[i] = new FrameQuality();
+		}
+		mCount = size;
+	}
+
+	/**
+	 * Take a measurement from the pool.  Its values are those of its last use.
+	 *
+	 * @return A measurement that must be given back with release() when it is no longer used.
+	 */
+	public synchronized FrameQuality acquire()
+	{
+		if (mCount == 0)
+		{
+			mMissCount++;
+			return new FrameQuality();
+		}
+		FrameQuality quality = mQualities[--mCount];
+		mQualities[mCount] = null;
+		return quality;
+	}
+
+	/**
+	 * Return a measurement to the pool.
+	 *
+	 * @param quality
+	 */
+	public synchronized void release(FrameQuality quality)
+	{
+		if (quality == null)
+		{
+			return;
+		}
+		if (mCount < mQualities.length)
+		{
+			mQualities[mCount++] = quality;
+		}
+	}
+
+	/**
+	 * The number of times a measurement had to be allocated because the pool was empty.
+	 */
+	public synchronized long getMissCount()
+	{
+		return mMissCount;
+	}
+
+
+	private final FrameQuality[] 	mQualities;
+	private int 					mCount = 0;
+	private long 					mMissCount = 0;
+}
@@ -0,0 +1,508 @@
+package com.openbiometrix.capture.recording;
+
+import com.google.android.gms.vision.face.Face;
+
+import java.io.IOException;
+
+/**
+ * A bounded history of the faces seen during a capture session.  Every value of a FaceRecord is
+ * kept in its own primitive array, and the arrays are used as a ring so the oldest faces are
+ * dropped once the history is full.  Nothing is allocated per face, which keeps long sessions
+ * inside a fixed memory budget.
+ *
+ * Faces are expected in timestamp order, so time ranges are found by binary search.  Each entry
+ * also links to the previous entry of the same face track, so a track query only visits the
+ * faces of that track.
+ *
+ * All methods are synchronized.  Visitors are called with the history locked and must not keep
+ * the FaceRecord they are given.
+ */
+public class FaceHistory
+{
+	public final static int DEFAULT_CAPACITY = 18000;	// 10 minutes at 30 fps
+	public final static int ANY_TRACK = -1;
+
+	/**
+	 * Receives the faces matched by a query, oldest first.
+	 */
+	public interface Visitor
+	{
+		void visit(FaceRecord record);
+	}
+
+
+	/**
+	 * Create a history that holds DEFAULT_CAPACITY faces.
+	 */
+	public FaceHistory()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity Number of faces kept before the oldest are dropped
+	 */
+	public FaceHistory(int capacity)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		mTimestamps = new long[capacity];
+		mPrevious = new long[capacity];
+		mTrackIds = new int[capacity];
+		mLefts = new float[capacity];
+		mTops = new float[capacity];
+		mWidths = new float[capacity];
+		mHeights = new float[capacity];
+		mEulerYs = new float[capacity];
+		mEulerZs = new float[capacity];
+		mLeftEyes = new float[capacity];
+		mRightEyes = new float[capacity];
+		mSmiles = new float[capacity];
+		mSlots = new int[capacity];
+		allocateTracks(TRACK_TABLE_SIZE);
+	}
+
+	/**
+	 * Add a detected face.
+	 *
+	 * @param face
+	 * @param timestamp Timestamp in milliseconds of the frame the face was detected in
+	 */
+	public synchronized void add(Face face, long timestamp)
+	{
+		mRecord.set(face, timestamp);
+		add(mRecord);
+	}
+
+	/**
+	 * Add a face.  A timestamp older than the newest face in the history is moved up to the newest
+	 * timestamp so the history stays sorted.
+	 *
+	 * @param record
+	 */
+	public synchronized void add(FaceRecord record)
+	{
+		int capacity = mTimestamps.length;
+		int slot = (int) (mNext % capacity);
+		long timestamp = mSize > 0 ? Math.max(record.timestamp, mNewestTimestamp) : record.timestamp;
+
+		mTimestamps[slot] = timestamp;
+		mPrevious[slot] = getLastOfTrack(record.trackId);
+		mTrackIds[slot] = record.trackId;
+		mLefts[slot] = record.left;
+		mTops[slot] = record.top;
+		mWidths[slot] = record.width;
+		mHeights[slot] = record.height;
+		mEulerYs[slot] = record.eulerY;
+		mEulerZs[slot] = record.eulerZ;
+		mLeftEyes[slot] = record.leftEyeOpenProbability;
+		mRightEyes[slot] = record.rightEyeOpenProbability;
+		mSmiles[slot] = record.smilingProbability;
+
+		setLastOfTrack(record.trackId, mNext);
+		mNewestTimestamp = timestamp;
+		mNext++;
+		if (mSize < capacity)
+		{
+			mSize++;
+		}
+	}
+
+	/**
+	 * Remove every face from the history.
+	 */
+	public synchronized void clear()
+	{
+		mSize = 0;
+		mNext = 0;
+		mNewestTimestamp = 0;
+		allocateTracks(TRACK_TABLE_SIZE);
+	}
+
+	/**
+	 * Number of faces in the history.
+	 */
+	public synchronized int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Largest number of faces the history holds.
+	 */
+	public int getCapacity()
+	{
+		return mTimestamps.length;
+	}
+
+	/**
+	 * Total number of faces added since the history was created or cleared, including those that
+	 * have been dropped.
+	 */
+	public synchronized long getAddedCount()
+	{
+		return mNext;
+	}
+
+	/**
+	 * Timestamp of the oldest face in the history, or 0 if it is empty.
+	 */
+	public synchronized long getOldestTimestamp()
+	{
+		return mSize == 0 ? 0 : mTimestamps[slotOf(0)];
+	}
+
+	/**
+	 * Timestamp of the newest face in the history, or 0 if it is empty.
+	 */
+	public synchronized long getNewestTimestamp()
+	{
+		return mSize == 0 ? 0 : mNewestTimestamp;
+	}
+
+	/**
+	 * Copy a face out of the history.
+	 *
+	 * @param index Position of the face, 0 being the oldest
+	 * @param out
+	 */
+	public synchronized void get(int index, FaceRecord out)
+	{
+		if (index < 0 || index >= mSize)
+		{
+			throw new IndexOutOfBoundsException("Index " + index + " of " + mSize);
+		}
+		copy(slotOf(index), out);
+	}
+
+	/**
+	 * Position of the first face with a timestamp at or after the given time.
+	 *
+	 * @param timestamp
+	 * @return A position from 0 to size(), size() meaning every face is older.
+	 */
+	public synchronized int indexOf(long timestamp)
+	{
+		int low = 0;
+		int high = mSize;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (mTimestamps[slotOf(mid)] < timestamp)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Visit the faces of a track, or of every track, in a time range.
+	 *
+	 * @param trackId The track to visit, or ANY_TRACK
+	 * @param from Start of the range in milliseconds, inclusive
+	 * @param to End of the range in milliseconds, exclusive
+	 * @param visitor
+	 * @return The number of faces visited.
+	 */
+	public synchronized int query(int trackId, long from, long to, Visitor visitor)
+	{
+		int count = select(trackId, from, to);
+		for (int i = 0; i < count; i++)
+		{
+			copy(mSlots[i], mRecord);
+			visitor.visit(mRecord);
+		}
+		return count;
+	}
+
+	/**
+	 * Time in milliseconds that a track, or any face, was in view during a time range.  The time
+	 * between two consecutive faces counts as dwell time unless it is longer than maxGap, which
+	 * is treated as the face having left the view.
+	 *
+	 * @param trackId The track to measure, or ANY_TRACK
+	 * @param from Start of the range in milliseconds, inclusive
+	 * @param to End of the range in milliseconds, exclusive
+	 * @param maxGap Longest gap in milliseconds between faces that still counts as in view
+	 */
+	public synchronized long getDwellTime(int trackId, long from, long to, long maxGap)
+	{
+		int count = select(trackId, from, to);
+		long dwell = 0;
+		for (int i = 1; i < count; i++)
+		{
+			long gap = mTimestamps[mSlots[i]] - mTimestamps[mSlots[i - 1]];
+			if (gap <= maxGap)
+			{
+				dwell += gap;
+			}
+		}
+		return dwell;
+	}
+
+	/**
+	 * Count the faces of a track, or of every track, by head yaw (Euler Y angle) over a time
+	 * range.  The yaw range is split evenly between the bins, and faces outside it are not
+	 * counted.
+	 *
+	 * @param trackId The track to measure, or ANY_TRACK
+	 * @param from Start of the range in milliseconds, inclusive
+	 * @param to End of the range in milliseconds, exclusive
+	 * @param minYaw Lowest yaw in degrees of the first bin
+	 * @param maxYaw Highest yaw in degrees of the last bin
+	 * @param bins Receives the number of faces in each bin
+	 * @return The number of faces counted.
+	 */
+	public synchronized int getYawHistogram(int trackId, long from, long to, float minYaw, float maxYaw, int[] bins)
+	{
+		for (int i = 0; i < bins.length; i++)
+		{
+			bins[i] = 0;
+		}
+
+		int count = select(trackId, from, to);
+		int counted = 0;
+		float scale = bins.length / (maxYaw - minYaw);
+		for (int i = 0; i < count; i++)
+		{
+			float yaw = mEulerYs[mSlots[i]];
+			if (yaw >= minYaw && yaw < maxYaw)
+			{
+				bins[Math.min((int) ((yaw - minYaw) * scale), bins.length - 1)]++;
+				counted++;
+			}
+		}
+		return counted;
+	}
+
+	/**
+	 * Fraction of a yaw range that a track, or any face, was seen at during a time range.  This is
+	 * the fraction of yaw histogram bins that hold at least one face.
+	 *
+	 * @param trackId The track to measure, or ANY_TRACK
+	 * @param from Start of the range in milliseconds, inclusive
+	 * @param to End of the range in milliseconds, exclusive
+	 * @param minYaw Lowest yaw in degrees
+	 * @param maxYaw Highest yaw in degrees
+	 * @param binCount Number of bins the yaw range is split into
+	 * @return A value from 0 to 1.
+	 */
+	public synchronized float getYawCoverage(int trackId, long from, long to, float minYaw, float maxYaw, int binCount)
+	{
+		int[] bins = new int[binCount];
+		getYawHistogram(trackId, from, to, minYaw, maxYaw, bins);
+		int covered = 0;
+		for (int bin : bins)
+		{
+			if (bin > 0)
+			{
+				covered++;
+			}
+		}
+		return (float) covered / binCount;
+	}
+
+	/**
+	 * Write the faces of a track, or of every track, in a time range to a recording.
+	 *
+	 * @param trackId The track to write, or ANY_TRACK
+	 * @param from Start of the range in milliseconds, inclusive
+	 * @param to End of the range in milliseconds, exclusive
+	 * @param writer
+	 * @return The number of faces written.
+	 * @throws IOException
+	 */
+	public synchronized int export(int trackId, long from, long to, FaceRecordWriter writer) throws IOException
+	{
+		int count = select(trackId, from, to);
+		for (int i = 0; i < count; i++)
+		{
+			copy(mSlots[i], mRecord);
+			writer.write(mRecord);
+		}
+		writer.flush();
+		return count;
+	}
+
+
+	/**
+	 * Fill mSlots with the ring slots of the faces matched by a query, oldest first.
+	 *
+	 * @return The number of slots filled.
+	 */
+	private int select(int trackId, long from, long to)
+	{
+		if (trackId == ANY_TRACK)
+		{
+			int start = indexOf(from);
+			int end = indexOf(to);
+			for (int i = start; i < end; i++)
+			{
+				mSlots[i - start] = slotOf(i);
+			}
+			return Math.max(end - start, 0);
+		}
+
+		// follow the track back from its newest face, then put the slots in time order
+		int capacity = mTimestamps.length;
+		long oldest = mNext - mSize;
+		int count = 0;
+		for (long seq = getLastOfTrack(trackId); seq >= oldest; )
+		{
+			int slot = (int) (seq % capacity);
+			long timestamp = mTimestamps[slot];
+			if (timestamp < from)
+			{
+				break;
+			}
+			if (timestamp < to)
+			{
+				mSlots[count++] = slot;
+			}
+			seq = mPrevious[slot];
+		}
+		for (int i = 0, j = count - 1; i < j; i++, j--)
+		{
+			int slot = mSlots[i];
+			mSlots[i] = mSlots[j];
+			mSlots[j] = slot;
+		}
+		return count;
+	}
+
+	private int slotOf(int index)
+	{
+		return (int) ((mNext - mSize + index) % mTimestamps.length);
+	}
+
+	private void copy(int slot, FaceRecord out)
+	{
+		out.timestamp = mTimestamps[slot];
+		out.trackId = mTrackIds[slot];
+		out.left = mLefts[slot];
+		out.top = mTops[slot];
+		out.width = mWidths[slot];
+		out.height = mHeights[slot];
+		out.eulerY = mEulerYs[slot];
+		out.eulerZ = mEulerZs[slot];
+		out.leftEyeOpenProbability = mLeftEyes[slot];
+		out.rightEyeOpenProbability = mRightEyes[slot];
+		out.smilingProbability = mSmiles[slot];
+	}
+
+	//==============================================================================================
+	// Track table
+	//==============================================================================================
+
+	// Open addressing map from track id to the sequence number of the newest face of the track.
+	// Tracks whose newest face has been dropped from the ring are removed when the table fills.
+
+	private void allocateTracks(int size)
+	{
+		mTrackKeys = new int[size];
+		mTrackLast = new long[size];
+		for (int i = 0; i < size; i++)
+		{
+			mTrackLast[i] = -1;
+		}
+		mTrackCount = 0;
+	}
+
+	private int findTrack(int trackId)
+	{
+		int mask = mTrackKeys.length - 1;
+		int hash = trackId * 0x9e3779b9;
+		int i = (hash ^ (hash >>> 16)) & mask;
+		while (mTrackLast[i] >= 0 && mTrackKeys[i] != trackId)
+		{
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private long getLastOfTrack(int trackId)
+	{
+		return mTrackLast[findTrack(trackId)];
+	}
+
+	private void setLastOfTrack(int trackId, long seq)
+	{
+		int i = findTrack(trackId);
+		if (mTrackLast[i] < 0)
+		{
+			if ((mTrackCount + 1) * 2 > mTrackKeys.length)
+			{
+				rebuildTracks();
+				i = findTrack(trackId);
+			}
+			mTrackKeys[i] = trackId;
+			mTrackCount++;
+		}
+		mTrackLast[i] = seq;
+	}
+
+	private void rebuildTracks()
+	{
+		int[] keys = mTrackKeys;
+		long[] last = mTrackLast;
+		long oldest = mNext - mSize;
+
+		int live = 0;
+		for (long seq : last)
+		{
+			if (seq >= oldest)
+			{
+				live++;
+			}
+		}
+		int size = TRACK_TABLE_SIZE;
+		while (size < live * 4)
+		{
+			size *= 2;
+		}
+
+		allocateTracks(size);
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (last[i] >= oldest)
+			{
+				int j = findTrack(keys[i]);
+				mTrackKeys[j] = keys[i];
+				mTrackLast[j] = last[i];
+				mTrackCount++;
+			}
+		}
+	}
+
+
+	private final static int TRACK_TABLE_SIZE = 64;
+
+	private final long[] 	mTimestamps;
+	private final long[] 	mPrevious;
+	private final int[] 	mTrackIds;
+	private final float[] 	mLefts;
+	private final float[] 	mTops;
+	private final float[] 	mWidths;
+	private final float[] 	mHeights;
+	private final float[] 	mEulerYs;
+	private final float[] 	mEulerZs;
+	private final float[] 	mLeftEyes;
+	private final float[] 	mRightEyes;
+	private final float[] 	mSmiles;
+	private final int[] 	mSlots;
+	private final FaceRecord mRecord = new FaceRecord();
+	private int 			mSize = 0;
+	private long 			mNext = 0;
+	private long 			mNewestTimestamp = 0;
+
+	private int[] 			mTrackKeys;
+	private long[] 			mTrackLast;
+	private int 			mTrackCount;
+}
@@ -0,0 +1,44 @@
+package com.openbiometrix.capture.recording;
+
+import com.google.android.gms.vision.face.Face;
+
+/**
+ * One row of a face recording: the values of a single detected face at a point in time.  A
+ * FaceRecord is a mutable holder so a reader can reuse one instance for every row.
+ */
+public class FaceRecord
+{
+	public long 	timestamp;
+	public int 		trackId;
+	public float 	left;
+	public float 	top;
+	public float 	width;
+	public float 	height;
+	public float 	eulerY;
+	public float 	eulerZ;
+	public float 	leftEyeOpenProbability;
+	public float 	rightEyeOpenProbability;
+	public float 	smilingProbability;
+
+
+	/**
+	 * Copy the values of a detected face.
+	 *
+	 * @param face
+	 * @param timestamp Timestamp in milliseconds of the frame the face was detected in
+	 */
+	public void set(Face face, long timestamp)
+	{
+		this.timestamp = timestamp;
+		this.trackId = face.getId();
+		this.left = face.getPosition().x;
+		this.top = face.getPosition().y;
+		this.width = face.getWidth();
+		this.height = face.getHeight();
+		this.eulerY = face.getEulerY();
+		this.eulerZ = face.getEulerZ();
+		this.leftEyeOpenProbability = face.getIsLeftEyeOpenProbability();
+		this.rightEyeOpenProbability = face.getIsRightEyeOpenProbability();
+		this.smilingProbability = face.getIsSmilingProbability();
+	}
+}
@@ -0,0 +1,77 @@
+package com.openbiometrix.capture.recording;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a face recording written by FaceRecordWriter.
+ */
+public class FaceRecordReader implements Closeable
+{
+	/**
+	 * @param reader
+	 */
+	public FaceRecordReader(Reader reader)
+	{
+		mReader = new BufferedReader(reader);
+	}
+
+	/**
+	 * Read the next face of the recording.  Comment and column header lines are skipped.
+	 *
+	 * @param record Receives the values of the face
+	 * @return true if a face was read, false at the end of the recording.
+	 * @throws IOException If the recording cannot be read or a line is malformed.
+	 */
+	public boolean read(FaceRecord record) throws IOException
+	{
+		String line;
+		while ((line = mReader.readLine()) != null)
+		{
+			mLineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#") || line.equals(FaceRecordWriter.COLUMNS))
+			{
+				continue;
+			}
+
+			String[] values = line.split(",");
+			if (values.length != 11)
+			{
+				throw new IOException("Malformed face record at line " + mLineNumber);
+			}
+			try
+			{
+				record.timestamp = Long.parseLong(values[0]);
+				record.trackId = Integer.parseInt(values[1]);
+				record.left = Float.parseFloat(values[2]);
+				record.top = Float.parseFloat(values[3]);
+				record.width = Float.parseFloat(values[4]);
+				record.height = Float.parseFloat(values[5]);
+				record.eulerY = Float.parseFloat(values[6]);
+				record.eulerZ = Float.parseFloat(values[7]);
+				record.leftEyeOpenProbability = Float.parseFloat(values[8]);
+				record.rightEyeOpenProbability = Float.parseFloat(values[9]);
+				record.smilingProbability = Float.parseFloat(values[10]);
+			}
+			catch (NumberFormatException ex)
+			{
+				throw new IOException("Malformed face record at line " + mLineNumber);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mReader.close();
+	}
+
+
+	private final BufferedReader 	mReader;
+	private int 					mLineNumber = 0;
+}
@@ -0,0 +1,81 @@
+package com.openbiometrix.capture.recording;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a face recording.  A recording is a text file with a header line followed by one comma
+ * separated line per face:
+ *
+ *     timestamp,trackId,left,top,width,height,eulerY,eulerZ,leftEyeOpen,rightEyeOpen,smiling
+ *
+ * Recordings are used to replay a face stream into the analysis stages, for example to test the
+ * liveness detector against streams recorded on a device.
+ */
+public class FaceRecordWriter implements Closeable
+{
+	public final static String HEADER = "# obx-face-recording v1";
+	public final static String COLUMNS = "timestamp,trackId,left,top,width,height,eulerY,eulerZ,leftEyeOpen,rightEyeOpen,smiling";
+
+
+	/**
+	 * Create a writer and write the recording header.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public FaceRecordWriter(Writer writer) throws IOException
+	{
+		mWriter = new BufferedWriter(writer);
+		mWriter.write(HEADER);
+		mWriter.newLine();
+		mWriter.write(COLUMNS);
+		mWriter.newLine();
+	}
+
+	/**
+	 * Append a face to the recording.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	public void write(FaceRecord record) throws IOException
+	{
+		mLine.setLength(0);
+		mLine.append(record.timestamp).append(',')
+				.append(record.trackId).append(',')
+				.append(record.left).append(',')
+				.append(record.top).append(',')
+				.append(record.width).append(',')
+				.append(record.height).append(',')
+				.append(record.eulerY).append(',')
+				.append(record.eulerZ).append(',')
+				.append(record.leftEyeOpenProbability).append(',')
+				.append(record.rightEyeOpenProbability).append(',')
+				.append(record.smilingProbability);
+		mWriter.append(mLine);
+		mWriter.newLine();
+	}
+
+	/**
+	 * Flush any buffered rows.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException
+	{
+		mWriter.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mWriter.close();
+	}
+
+
+	private final BufferedWriter 	mWriter;
+	private final StringBuilder 	mLine = new StringBuilder(128);
+}
@@ -0,0 +1,67 @@
+package com.openbiometrix.capture.reprocess;
+
+import com.openbiometrix.capture.face.FaceAligner;
+import com.openbiometrix.capture.image.FrameRotation;
+import com.openbiometrix.capture.image.GrayImage;
+import com.openbiometrix.capture.store.CaptureRecord;
+
+/**
+ * Aligns the face of a decoded capture with a FaceAligner, for the stages after it.  The index
+ * only keeps the bounds of the face, not its landmarks, so the eyes and mouth are placed where
+ * they sit in a typical face box.  Captures without face bounds are not aligned.
+ */
+public class AlignmentStage implements ReprocessStage
+{
+	public final static float EYE_X = 0.3f;
+	public final static float EYE_Y = 0.4f;
+	public final static float MOUTH_Y = 0.78f;
+
+
+	/**
+	 * @param aligner Aligner whose settings are copied to each worker
+	 */
+	public AlignmentStage(FaceAligner aligner)
+	{
+		mAligner = new FaceAligner(aligner);
+		mOutput = new GrayImage(aligner.getOutputWidth(), aligner.getOutputHeight());
+	}
+
+	@Override
+	public ReprocessStage copy()
+	{
+		return new AlignmentStage(mAligner);
+	}
+
+	@Override
+	public boolean process(ReprocessItem item)
+	{
+		CaptureRecord record = item.record;
+		if (record.width <= 0 || record.height <= 0)
+		{
+			item.aligned = null;
+			return true;
+		}
+
+		// the bounds are upright, and the frame is in sensor orientation
+		setPoint(item, 0, record.left + EYE_X * record.width, record.top + EYE_Y * record.height);
+		setPoint(item, 1, record.left + (1 - EYE_X) * record.width, record.top + EYE_Y * record.height);
+		setPoint(item, 2, record.left + 0.5f * record.width, record.top + MOUTH_Y * record.height);
+		item.aligned = mAligner.align(item.image, mPoints, 3, mOutput) ? mOutput : null;
+		return true;
+	}
+
+
+	private void setPoint(ReprocessItem item, int point, float x, float y)
+	{
+		int rotation = item.frame.rotation;
+		int width = item.frame.width;
+		int height = item.frame.height;
+		mPoints[2 * point] = FrameRotation.toSensorX(x, y, rotation, width, height);
+		mPoints[2 * point + 1] = FrameRotation.toSensorY(x, y, rotation, width, height);
+	}
+
+
+	private final FaceAligner 	mAligner;
+	private final GrayImage 	mOutput;
+	private final float[] 		mPoints = new float[6];
+}
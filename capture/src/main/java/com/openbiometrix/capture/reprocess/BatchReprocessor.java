@@ -0,0 +1,456 @@
+package com.openbiometrix.capture.reprocess;
+
+import com.openbiometrix.capture.store.CaptureIndex;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Runs every capture in a CaptureStore through a chain of stages, such as decoding, quality
+ * scoring, alignment and hashing, and writes the new face bounds and quality back to the index.
+ * Used to score existing captures again after the quality or alignment settings change.
+ *
+ * The index is split into chunks, and each worker thread claims the next unfinished chunk as it
+ * finishes one, so a worker that gets slow captures does not hold up the others.  Each worker
+ * has its own copy of the stages, so the workers share nothing but the chunk counter.  Files
+ * that are not encrypted are memory mapped; only a limited number of workers read files at a
+ * time, so the disk is not thrashed while the other workers use the CPU.
+ *
+ * With a checkpoint file, finished chunks are recorded as the run goes, and a run that is
+ * stopped or killed carries on from the checkpoint the next time.  Chunks that were part way
+ * through are processed again, which only repeats the same results.
+ */
+public class BatchReprocessor
+{
+	public final static int DEFAULT_CHUNK_SIZE = 64;
+	public final static int DEFAULT_MAX_CONCURRENT_IO = 4;
+	public final static long DEFAULT_CHECKPOINT_INTERVAL = 5000;
+
+	/**
+	 * Receives each capture once its stages have run.  Called on the worker threads.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param item The capture and the results of the stages.  Only valid until this call
+		 *             returns.
+		 */
+		void onCaptureProcessed(ReprocessItem item);
+	}
+
+
+	/**
+	 * @param store
+	 * @param key AES key of the store's encrypted captures, or null
+	 * @param threadCount Number of worker threads.  Values less than 1 use one thread per core.
+	 */
+	public BatchReprocessor(CaptureStore store, SecretKey key, int threadCount)
+	{
+		mStore = store;
+		mKey = key;
+		mThreadCount = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Add a stage to the end of the chain.  Each worker runs a copy of it.
+	 *
+	 * @param stage
+	 */
+	public synchronized void addStage(ReprocessStage stage)
+	{
+		mStages.add(stage);
+	}
+
+	/**
+	 * Set the number of entries a worker claims at a time.  Smaller chunks balance the work
+	 * better and lose less on a restart; larger chunks keep the checkpoint smaller.
+	 *
+	 * @param chunkSize
+	 */
+	public synchronized void setChunkSize(int chunkSize)
+	{
+		mChunkSize = Math.max(chunkSize, 1);
+	}
+
+	/**
+	 * Set the number of workers that may read capture files at the same time.
+	 *
+	 * @param count
+	 */
+	public synchronized void setMaxConcurrentIO(int count)
+	{
+		mMaxConcurrentIO = Math.max(count, 1);
+	}
+
+	/**
+	 * Set the file that finished chunks are recorded in.
+	 *
+	 * @param file The checkpoint file, or null to always process the whole store.
+	 */
+	public synchronized void setCheckpointFile(File file)
+	{
+		mCheckpointFile = file;
+	}
+
+	/**
+	 * Set how often the checkpoint file is written.
+	 *
+	 * @param interval Time in milliseconds
+	 */
+	public synchronized void setCheckpointInterval(long interval)
+	{
+		mCheckpointInterval = interval;
+	}
+
+	/**
+	 * Set the listener that receives each processed capture.
+	 *
+	 * @param listener
+	 */
+	public synchronized void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * Process every capture in the store, or the ones left from a checkpoint.  Blocks until all
+	 * captures are processed or stop() is called.
+	 *
+	 * @return true if every capture was processed, false if the run was stopped.
+	 * @throws IOException If the checkpoint cannot be written, or a stage fails with an
+	 *                     unexpected exception.  Captures that cannot be read are counted
+	 *                     as failed and the run goes on.
+	 * @throws InterruptedException
+	 */
+	public boolean run() throws IOException, InterruptedException
+	{
+		final CaptureIndex index = mStore.getIndex();
+		final int count;
+		final int chunkSize;
+		final ReprocessCheckpoint checkpoint;
+		final List<ReprocessStage> stages;
+		synchronized (this)
+		{
+			count = index.size();
+			chunkSize = mChunkSize;
+			int chunkCount = (count + chunkSize - 1) / chunkSize;
+			checkpoint = new ReprocessCheckpoint(mCheckpointFile, index.getGeneration(), chunkSize, chunkCount);
+			if (mCheckpointFile != null)
+			{
+				checkpoint.load();
+			}
+			stages = new ArrayList<ReprocessStage>(mStages);
+			mCheckpoint = checkpoint;
+			mChunkCount = chunkCount;
+			mIOPermits = new Semaphore(mMaxConcurrentIO);
+			mLastCheckpoint = System.currentTimeMillis();
+		}
+		mProcessedCount.set(0);
+		mSkippedCount.set(0);
+		mFailedCount.set(0);
+		mBytesRead.set(0);
+		mElapsedTime = 0;
+		mStartTime = System.nanoTime();
+
+		final AtomicInteger next = new AtomicInteger(0);
+		int workers = Math.max(Math.min(mThreadCount, mChunkCount), 1);
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try
+		{
+			for (int i = 0; i < workers; i++)
+			{
+				futures.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						Worker worker = new Worker(stages);
+						int chunk;
+						while (!isStopping() && (chunk = next.getAndIncrement()) < mChunkCount)
+						{
+							if (isDone(chunk))
+							{
+								continue;
+							}
+							int end = Math.min((chunk + 1) * chunkSize, count);
+							int i = chunk * chunkSize;
+							for (; i < end && !isStopping(); i++)
+							{
+								worker.process(index, i);
+							}
+							if (i == end)
+							{
+								finishChunk(chunk);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException ex)
+				{
+					stop();
+					throw new IOException("Reprocessing worker failed", ex.getCause());
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			mElapsedTime = System.nanoTime() - mStartTime;
+			synchronized (this)
+			{
+				// a stop is cleared once a run has seen it, so one asked for before the run began is not lost
+				mStop = false;
+			}
+		}
+
+		synchronized (this)
+		{
+			boolean complete = checkpoint.getDoneCount() == mChunkCount;
+			if (mCheckpointFile != null)
+			{
+				if (complete)
+				{
+					checkpoint.delete();
+				}
+				else
+				{
+					checkpoint.save();
+				}
+			}
+			return complete;
+		}
+	}
+
+	/**
+	 * Ask a run to stop after the captures that are being processed.  run() returns false, and
+	 * the next run carries on from the checkpoint.  If no run is in progress, the next run stops
+	 * before it processes anything.
+	 */
+	public synchronized void stop()
+	{
+		mStop = true;
+	}
+
+	/**
+	 * Number of captures processed and written back to the index in the last run.
+	 */
+	public long getProcessedCount()
+	{
+		return mProcessedCount.get();
+	}
+
+	/**
+	 * Number of captures skipped in the last run, because they were deleted, a stage could not use them, or they
+	 * moved while they were processed.
+	 */
+	public long getSkippedCount()
+	{
+		return mSkippedCount.get();
+	}
+
+	/**
+	 * Number of captures that could not be read or decoded in the last run.
+	 */
+	public long getFailedCount()
+	{
+		return mFailedCount.get();
+	}
+
+	/**
+	 * Number of bytes of capture files read in the last run.
+	 */
+	public long getBytesRead()
+	{
+		return mBytesRead.get();
+	}
+
+	/**
+	 * Number of captures processed, skipped or failed per second during the last run.
+	 */
+	public float getThroughput()
+	{
+		long elapsed = mElapsedTime > 0 ? mElapsedTime : System.nanoTime() - mStartTime;
+		long total = mProcessedCount.get() + mSkippedCount.get() + mFailedCount.get();
+		return elapsed <= 0 ? 0 : total * 1e9f / elapsed;
+	}
+
+
+	private synchronized boolean isStopping()
+	{
+		return mStop;
+	}
+
+	private synchronized boolean isDone(int chunk)
+	{
+		return mCheckpoint.isDone(chunk);
+	}
+
+	/**
+	 * Record a finished chunk, and write the checkpoint if it is due.
+	 */
+	private synchronized void finishChunk(int chunk) throws IOException
+	{
+		mCheckpoint.setDone(chunk);
+		long now = System.currentTimeMillis();
+		if (mCheckpointFile != null && now - mLastCheckpoint >= mCheckpointInterval)
+		{
+			mCheckpoint.save();
+			mLastCheckpoint = now;
+		}
+	}
+
+
+	/**
+	 * State owned by a single worker thread.
+	 */
+	private class Worker
+	{
+		Worker(List<ReprocessStage> stages)
+		{
+			for (ReprocessStage stage : stages)
+			{
+				mWorkerStages.add(stage.copy());
+			}
+		}
+
+		void process(CaptureIndex index, int position) throws IOException, InterruptedException
+		{
+			ReprocessItem item = mItem;
+			item.reset();
+			index.get(position, item.record);
+			if (item.record.isDeleted())
+			{
+				mSkippedCount.incrementAndGet();
+				return;
+			}
+
+			try
+			{
+				item.data = read(item);
+				for (ReprocessStage stage : mWorkerStages)
+				{
+					if (!stage.process(item))
+					{
+						mSkippedCount.incrementAndGet();
+						return;
+					}
+				}
+			}
+			catch (IOException ex)
+			{
+				// a missing or corrupt file must not stop the rest of the store
+				mFailedCount.incrementAndGet();
+				return;
+			}
+
+			if (!mStore.update(item.record))
+			{
+				mSkippedCount.incrementAndGet();
+				return;
+			}
+			mProcessedCount.incrementAndGet();
+
+			Listener listener;
+			synchronized (BatchReprocessor.this)
+			{
+				listener = mListener;
+			}
+			if (listener != null)
+			{
+				listener.onCaptureProcessed(item);
+			}
+		}
+
+		/**
+		 * Map or decrypt a capture file while holding an I/O permit.
+		 */
+		private ByteBuffer read(ReprocessItem item) throws IOException, InterruptedException
+		{
+			mIOPermits.acquire();
+			try
+			{
+				if (item.record.isEncrypted())
+				{
+					byte[] data = mStore.read(item.record, mKey);
+					mBytesRead.addAndGet(data.length);
+					return ByteBuffer.wrap(data);
+				}
+
+				RandomAccessFile file = new RandomAccessFile(mStore.toFile(item.record), "r");
+				try
+				{
+					FileChannel channel = file.getChannel();
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+					// fault the pages in now, so the reading is done while the permit is held
+					buffer.load();
+					mBytesRead.addAndGet(buffer.remaining());
+					return buffer;
+				}
+				finally
+				{
+					// the mapping stays valid after the file is closed
+					file.close();
+				}
+			}
+			finally
+			{
+				mIOPermits.release();
+			}
+		}
+
+		private final List<ReprocessStage> 	mWorkerStages = new ArrayList<ReprocessStage>();
+		private final ReprocessItem 		mItem = new ReprocessItem();
+	}
+
+
+	private final CaptureStore 			mStore;
+	private final SecretKey 			mKey;
+	private final int 					mThreadCount;
+	private final List<ReprocessStage> 	mStages = new ArrayList<ReprocessStage>();
+	private int 						mChunkSize = DEFAULT_CHUNK_SIZE;
+	private int 						mMaxConcurrentIO = DEFAULT_MAX_CONCURRENT_IO;
+	private File 						mCheckpointFile = null;
+	private long 						mCheckpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private Listener 					mListener = null;
+	private boolean 					mStop = false;
+
+	// state of the current run
+	private ReprocessCheckpoint 		mCheckpoint;
+	private volatile int 				mChunkCount;
+	private volatile Semaphore 			mIOPermits;
+	private long 						mLastCheckpoint;
+	private volatile long 				mStartTime;
+	private volatile long 				mElapsedTime;
+
+	private final AtomicLong 			mProcessedCount = new AtomicLong();
+	private final AtomicLong 			mSkippedCount = new AtomicLong();
+	private final AtomicLong 			mFailedCount = new AtomicLong();
+	private final AtomicLong 			mBytesRead = new AtomicLong();
+}
@@ -0,0 +1,137 @@
+package com.openbiometrix.capture.reprocess;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.openbiometrix.capture.codec.CaptureCodec;
+import com.openbiometrix.capture.codec.CaptureCodecs;
+import com.openbiometrix.capture.codec.JpegCaptureCodec;
+import com.openbiometrix.capture.codec.YuvFrame;
+import com.openbiometrix.capture.image.FrameRotation;
+import com.openbiometrix.capture.store.CaptureRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a capture with the codec registered for its media type, and finds the face region
+ * in the decoded frame from the bounds in the index.  JPEG captures, which their codec cannot
+ * decode, are decoded with the platform decoder and reduced to their luminance.  Captures of
+ * any other media type without a decoding codec are skipped.
+ */
+public class DecodeStage implements ReprocessStage
+{
+	@Override
+	public ReprocessStage copy()
+	{
+		return new DecodeStage();
+	}
+
+	@Override
+	public boolean process(ReprocessItem item) throws IOException
+	{
+		boolean jpeg = JpegCaptureCodec.MEDIA_TYPE.equals(item.record.mediaType);
+		CaptureCodec codec = CaptureCodecs.get(item.record.mediaType);
+		if (!jpeg && (codec == null || !codec.canDecode()))
+		{
+			return false;
+		}
+
+		ByteBuffer data = item.data;
+		int length = data.remaining();
+		byte[] bytes;
+		int offset;
+		if (data.hasArray())
+		{
+			bytes = data.array();
+			offset = data.arrayOffset() + data.position();
+		}
+		else
+		{
+			// a mapped file has no array, so it is copied out once
+			if (mBytes.length < length)
+			{
+				mBytes = new byte[length];
+			}
+			data.duplicate().get(mBytes, 0, length);
+			bytes = mBytes;
+			offset = 0;
+		}
+		if (jpeg)
+		{
+			decodeJpeg(bytes, offset, length, item.frame);
+		}
+		else
+		{
+			codec.decode(bytes, offset, length, item.frame);
+		}
+
+		int width = item.frame.width;
+		int height = item.frame.height;
+		item.image.set(item.frame.data, 0, width, height, width);
+
+		CaptureRecord record = item.record;
+		if (record.width > 0 && record.height > 0)
+		{
+			FrameRotation.toSensorRect(record.left, record.top, record.left + record.width, record.top + record.height,
+					item.frame.rotation, width, height, mRect);
+			item.left = (int) mRect[0];
+			item.top = (int) mRect[1];
+			item.width = (int) (mRect[2] - mRect[0]);
+			item.height = (int) (mRect[3] - mRect[1]);
+		}
+		else
+		{
+			item.left = 0;
+			item.top = 0;
+			item.width = width;
+			item.height = height;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Decode a JPEG with the platform decoder into a Y8 frame, with the BT.601 luminance of
+	 * each pixel.  A JPEG does not record the rotation of the frame it was made from, so the face
+	 * bounds are taken to be in the coordinates of the picture as it is.
+	 */
+	private void decodeJpeg(byte[] data, int offset, int length, YuvFrame out) throws IOException
+	{
+		Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length);
+		if (bitmap == null)
+		{
+			throw new IOException("Unable to decode JPEG capture");
+		}
+		try
+		{
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			out.allocate(width, height, YuvFrame.Y8);
+			out.rotation = 0;
+			out.timestamp = 0;
+			if (mRow.length < width)
+			{
+				mRow = new int[width];
+			}
+			for (int y = 0; y < height; y++)
+			{
+				bitmap.getPixels(mRow, 0, width, 0, y, width, 1);
+				for (int x = 0, i = y * width; x < width; x++, i++)
+				{
+					int pixel = mRow[x];
+					out.data[i] = (byte) ((77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8);
+				}
+			}
+		}
+		finally
+		{
+			bitmap.recycle();
+		}
+	}
+
+
+	private final float[] 	mRect = new float[4];
+	private byte[] 			mBytes = new byte[0];
+	private int[] 			mRow = new int[0];
+}
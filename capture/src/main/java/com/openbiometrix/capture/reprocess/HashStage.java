@@ -0,0 +1,26 @@
+package com.openbiometrix.capture.reprocess;
+
+import com.openbiometrix.capture.dedupe.PerceptualHash;
+
+/**
+ * Computes the perceptual hash of the face region of a decoded capture into the record.  The
+ * hash is not kept in the index, so it is read by the reprocessor's listener.
+ */
+public class HashStage implements ReprocessStage
+{
+	@Override
+	public ReprocessStage copy()
+	{
+		return new HashStage();
+	}
+
+	@Override
+	public boolean process(ReprocessItem item)
+	{
+		item.record.perceptualHash = mHash.compute(item.image, item.left, item.top, item.width, item.height);
+		return true;
+	}
+
+
+	private final PerceptualHash 	mHash = new PerceptualHash();
+}
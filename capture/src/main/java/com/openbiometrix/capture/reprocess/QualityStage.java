@@ -0,0 +1,29 @@
+package com.openbiometrix.capture.reprocess;
+
+import com.openbiometrix.capture.quality.FrameQuality;
+import com.openbiometrix.capture.quality.FrameQualityAnalyzer;
+
+/**
+ * Scores the face region of a decoded capture again.  The quality in the index is set to the
+ * sharpness, as it is when the capture is taken.
+ */
+public class QualityStage implements ReprocessStage
+{
+	@Override
+	public ReprocessStage copy()
+	{
+		return new QualityStage();
+	}
+
+	@Override
+	public boolean process(ReprocessItem item)
+	{
+		mAnalyzer.analyze(item.image, item.left, item.top, item.width, item.height, mQuality);
+		item.record.quality = mQuality.getSharpness();
+		return true;
+	}
+
+
+	private final FrameQualityAnalyzer 	mAnalyzer = new FrameQualityAnalyzer();
+	private final FrameQuality 			mQuality = new FrameQuality();
+}
@@ -0,0 +1,157 @@
+package com.openbiometrix.capture.reprocess;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The chunks of the index that a BatchReprocessor has finished, kept in a file so that a run
+ * that is stopped or killed can carry on where it left off.  The file is written to a temporary
+ * file and renamed, so it is never half written.
+ *
+ * A checkpoint only applies to the index generation and chunk size it was written for, since
+ * compacting the index moves the entries.
+ *
+ * Not thread safe.
+ */
+class ReprocessCheckpoint
+{
+	private final static int MAGIC = 0x4f425843;	// "OBXC"
+	private final static int VERSION = 1;
+
+
+	/**
+	 * @param file
+	 * @param generation Generation of the index being processed
+	 * @param chunkSize Number of entries in each chunk
+	 * @param chunkCount Number of chunks in the index
+	 */
+	ReprocessCheckpoint(File file, int generation, int chunkSize, int chunkCount)
+	{
+		mFile = file;
+		mGeneration = generation;
+		mChunkSize = chunkSize;
+		mDone = new long[(chunkCount + 63) / 64];
+	}
+
+	/**
+	 * Read the finished chunks from the file, if it was written for the same generation and
+	 * chunk size.
+	 *
+	 * @return Whether the file was read.
+	 * @throws IOException
+	 */
+	boolean load() throws IOException
+	{
+		if (!mFile.exists())
+		{
+			return false;
+		}
+
+		DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+		try
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| in.readInt() != mGeneration || in.readInt() != mChunkSize)
+			{
+				return false;
+			}
+			int words = in.readInt();
+			for (int i = 0; i < words; i++)
+			{
+				long word = in.readLong();
+				if (i < mDone.length)
+				{
+					mDone[i] = word;
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		mDoneCount = 0;
+		for (long word : mDone)
+		{
+			mDoneCount += Long.bitCount(word);
+		}
+		return true;
+	}
+
+	boolean isDone(int chunk)
+	{
+		return (mDone[chunk >> 6] & (1L << chunk)) != 0;
+	}
+
+	void setDone(int chunk)
+	{
+		if (!isDone(chunk))
+		{
+			mDone[chunk >> 6] |= 1L << chunk;
+			mDoneCount++;
+		}
+	}
+
+	/**
+	 * Number of finished chunks.
+	 */
+	int getDoneCount()
+	{
+		return mDoneCount;
+	}
+
+	/**
+	 * Write the finished chunks to the file.
+	 *
+	 * @throws IOException
+	 */
+	void save() throws IOException
+	{
+		File temp = new File(mFile.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(file);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mGeneration);
+			out.writeInt(mChunkSize);
+			out.writeInt(mDone.length);
+			for (long word : mDone)
+			{
+				out.writeLong(word);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if (!temp.renameTo(mFile))
+		{
+			temp.delete();
+			throw new IOException("Unable to write checkpoint " + mFile);
+		}
+	}
+
+	/**
+	 * Remove the file once every chunk is finished.
+	 */
+	void delete()
+	{
+		mFile.delete();
+	}
+
+
+	private final File 		mFile;
+	private final int 		mGeneration;
+	private final int 		mChunkSize;
+	private final long[] 	mDone;
+	private int 			mDoneCount = 0;
+}
@@ -0,0 +1,61 @@
+package com.openbiometrix.capture.reprocess;
+
+import com.openbiometrix.capture.codec.YuvFrame;
+import com.openbiometrix.capture.image.GrayImage;
+import com.openbiometrix.capture.store.CaptureRecord;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stored capture as it passes through the stages of a BatchReprocessor.  Each worker thread
+ * reuses one item for all of its captures, so stages must not keep references to its contents.
+ */
+public class ReprocessItem
+{
+	/**
+	 * The capture's entry in the index.  The bounds and quality are written back to the index
+	 * once every stage has run.
+	 */
+	public final CaptureRecord 	record = new CaptureRecord();
+
+	/**
+	 * The contents of the capture file, memory mapped if the file is not encrypted.
+	 */
+	public ByteBuffer 			data;
+
+	/**
+	 * The decoded frame, set by DecodeStage.
+	 */
+	public final YuvFrame 		frame = new YuvFrame();
+
+	/**
+	 * Luminance of the decoded frame in sensor orientation, set by DecodeStage.
+	 */
+	public final GrayImage 		image = new GrayImage(new byte[0], 0, 0, 0, 0);
+
+	/**
+	 * The face region of image, in sensor coordinates, set by DecodeStage.  The whole image if
+	 * the capture has no face bounds.
+	 */
+	public int 					left;
+	public int 					top;
+	public int 					width;
+	public int 					height;
+
+	/**
+	 * The aligned face, set by AlignmentStage, or null if the face could not be aligned.
+	 */
+	public GrayImage 			aligned;
+
+
+	/**
+	 * Clear the results of the previous capture.
+	 */
+	void reset()
+	{
+		data = null;
+		aligned = null;
+		left = top = width = height = 0;
+		record.perceptualHash = 0;
+	}
+}
@@ -0,0 +1,26 @@
+package com.openbiometrix.capture.reprocess;
+
+import java.io.IOException;
+
+/**
+ * One step of reprocessing a stored capture, such as decoding it or scoring its quality.
+ * Each worker thread of a BatchReprocessor runs its own copy of every stage, so a stage may keep
+ * scratch state without locking.
+ */
+public interface ReprocessStage
+{
+	/**
+	 * Create a stage with the same settings for another worker thread.
+	 */
+	ReprocessStage copy();
+
+	/**
+	 * Process a capture.
+	 *
+	 * @param item The capture and the results of the stages before this one
+	 * @return false to skip the rest of the stages and leave the capture's entry unchanged, such
+	 *         as when the capture cannot be decoded.
+	 * @throws IOException
+	 */
+	boolean process(ReprocessItem item) throws IOException;
+}
@@ -0,0 +1,463 @@
+package com.openbiometrix.capture.session;
+
+import com.openbiometrix.capture.CaptureBuffer;
+import com.openbiometrix.capture.CaptureDevice;
+import com.openbiometrix.capture.FaceSample;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several capture devices as one session, such as face and voice for the same subject.
+ * The devices are started and stopped together, each on its own thread, so the session starts
+ * in the time of the slowest device rather than the sum of them.
+ *
+ * Every sample the devices capture is stamped with one monotonic clock: nanoseconds since the
+ * session was created, taken from System.nanoTime() when the sample was captured.  The devices
+ * deliver their samples late and by different amounts, so the session holds them in a heap and
+ * merges them into one output buffer in timestamp order.  A sample is passed on once every
+ * device has delivered a later one, or once it is older than the reorder window, so a device
+ * that goes quiet holds up the others by at most the window.  A sample that arrives after a
+ * later one has been passed on is dropped and counted as late.
+ *
+ * The devices keep their own buffers and viewers; the merged output is an extra stream.
+ */
+public class CaptureSession
+{
+	public final static long DEFAULT_REORDER_WINDOW_MS = 100;
+	public final static int DEFAULT_OUTPUT_CAPACITY = 256;
+
+	// state changes run on all the devices
+	private final static int START_PREVIEW = 0;
+	private final static int START_CAPTURE = 1;
+	private final static int STOP = 2;
+
+	private final static Comparator<SessionSample> ORDER = new Comparator<SessionSample>()
+	{
+		@Override
+		public int compare(SessionSample a, SessionSample b)
+		{
+			if (a.timestamp != b.timestamp)
+			{
+				return a.timestamp < b.timestamp ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	// a session that is not released must not keep the process alive
+	private final static ThreadFactory DAEMON_THREADS = new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "CaptureSession");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+
+	public CaptureSession()
+	{
+		this(DEFAULT_OUTPUT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity Capacity of the merged output buffer
+	 */
+	public CaptureSession(int capacity)
+	{
+		mOrigin = System.nanoTime();
+		mOutput = new CaptureBuffer<SessionSample>(capacity);
+	}
+
+	/**
+	 * Add a device to the session.  Its samples are merged into the output from now on.
+	 *
+	 * @param device
+	 */
+	public void addDevice(CaptureDevice device)
+	{
+		synchronized (this)
+		{
+			if (mLastTimestamps.containsKey(device))
+			{
+				return;
+			}
+			mDevices.add(device);
+			mLastTimestamps.put(device, Long.MIN_VALUE);
+		}
+		device.setCaptureSession(this);
+	}
+
+	/**
+	 * Remove a device from the session.  Samples of the device still in the window are passed on.
+	 *
+	 * @param device
+	 */
+	public void removeDevice(CaptureDevice device)
+	{
+		synchronized (this)
+		{
+			if (mLastTimestamps.remove(device) == null)
+			{
+				return;
+			}
+			mDevices.remove(device);
+			drain(false);
+		}
+		device.setCaptureSession(null);
+	}
+
+	public synchronized List<CaptureDevice> getDevices()
+	{
+		return new ArrayList<CaptureDevice>(mDevices);
+	}
+
+	/**
+	 * Set how long a sample waits for the samples of other devices that may be older.
+	 *
+	 * @param window Time in milliseconds
+	 */
+	public synchronized void setReorderWindow(long window)
+	{
+		mWindow = TimeUnit.MILLISECONDS.toNanos(window);
+	}
+
+	/**
+	 * The buffer that the merged samples are put in, in timestamp order.
+	 */
+	public CaptureBuffer<SessionSample> getOutputBuffer()
+	{
+		return mOutput;
+	}
+
+	/**
+	 * The session clock: nanoseconds since the session was created.
+	 */
+	public long getTime()
+	{
+		return System.nanoTime() - mOrigin;
+	}
+
+	/**
+	 * Convert a System.nanoTime() value to the session clock.
+	 *
+	 * @param nanoTime
+	 */
+	public long toSessionTime(long nanoTime)
+	{
+		return nanoTime - mOrigin;
+	}
+
+	/**
+	 * Start preview on all the devices in parallel, and wait for them.
+	 */
+	public void startPreview()
+	{
+		runAll(START_PREVIEW);
+		startFlushing();
+	}
+
+	/**
+	 * Start capture on all the devices in parallel, and wait for them.
+	 */
+	public void startCapture()
+	{
+		runAll(START_CAPTURE);
+		startFlushing();
+	}
+
+	/**
+	 * Stop all the devices in parallel, wait for them, and pass on the samples still in the
+	 * window.
+	 */
+	public void stop()
+	{
+		runAll(STOP);
+		synchronized (this)
+		{
+			if (mFlush != null)
+			{
+				mFlush.cancel(false);
+				mFlush = null;
+			}
+			drain(true);
+		}
+	}
+
+	/**
+	 * Stop the devices, take them out of the session and release its threads.
+	 */
+	public void release()
+	{
+		stop();
+		for (CaptureDevice device : getDevices())
+		{
+			removeDevice(device);
+		}
+		synchronized (this)
+		{
+			if (mExecutor != null)
+			{
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+			if (mTimer != null)
+			{
+				mTimer.shutdown();
+				mTimer = null;
+			}
+		}
+	}
+
+	/**
+	 * Called by the devices of the session for each sample they capture, on their own threads.
+	 *
+	 * @param device
+	 * @param nanoTime System.nanoTime() when the sample was captured
+	 * @param data The sample
+	 */
+	public void offer(CaptureDevice device, long nanoTime, Object data)
+	{
+		SessionSample sample = new SessionSample();
+		sample.device = device;
+		sample.timestamp = toSessionTime(nanoTime);
+		sample.data = data;
+		synchronized (this)
+		{
+			Long last = mLastTimestamps.get(device);
+			if (last == null)
+			{
+				// the device was taken out of the session
+				discard(sample);
+				return;
+			}
+			if (sample.timestamp < mEmittedTimestamp)
+			{
+				mLateCount++;
+				discard(sample);
+				return;
+			}
+			if (sample.timestamp > last)
+			{
+				mLastTimestamps.put(device, sample.timestamp);
+			}
+			sample.sequence = mSequence++;
+			mPending.add(sample);
+			drain(false);
+		}
+	}
+
+	/**
+	 * Number of samples passed on to the output.
+	 */
+	public synchronized long getMergedCount()
+	{
+		return mMergedCount;
+	}
+
+	/**
+	 * Number of samples dropped because they arrived after a later sample was passed on.
+	 */
+	public synchronized long getLateCount()
+	{
+		return mLateCount;
+	}
+
+	/**
+	 * Number of samples dropped because the output buffer was full.
+	 */
+	public synchronized long getOverflowCount()
+	{
+		return mOverflowCount;
+	}
+
+	/**
+	 * Number of samples waiting in the reorder window.
+	 */
+	public synchronized int getPendingCount()
+	{
+		return mPending.size();
+	}
+
+
+	/**
+	 * Pass on the samples that are ready, or all of them.  Must hold the lock.
+	 */
+	private void drain(boolean all)
+	{
+		long ready = Long.MAX_VALUE;
+		for (long last : mLastTimestamps.values())
+		{
+			ready = Math.min(ready, last);
+		}
+		ready = Math.max(ready, getTime() - mWindow);
+
+		SessionSample sample;
+		while ((sample = mPending.peek()) != null && (all || sample.timestamp <= ready))
+		{
+			mPending.poll();
+			mEmittedTimestamp = sample.timestamp;
+			boolean put;
+			try
+			{
+				// never wait: the device threads come through here
+				put = mOutput.put(sample, 0);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				put = false;
+			}
+			if (put)
+			{
+				mMergedCount++;
+			}
+			else
+			{
+				mOverflowCount++;
+				discard(sample);
+			}
+		}
+	}
+
+	private static void discard(SessionSample sample)
+	{
+		if (sample.data instanceof FaceSample)
+		{
+			((FaceSample) sample.data).release();
+		}
+	}
+
+	/**
+	 * Pass on samples as they age out of the window, in case no device is delivering any.
+	 */
+	private synchronized void startFlushing()
+	{
+		if (mFlush != null)
+		{
+			return;
+		}
+		if (mTimer == null)
+		{
+			mTimer = Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+		}
+		long period = Math.max(mWindow / 2, TimeUnit.MILLISECONDS.toNanos(1));
+		mFlush = mTimer.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (CaptureSession.this)
+				{
+					drain(false);
+				}
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Run a state change on every device on its own thread, and wait for all of them.  If the
+	 * calling thread is interrupted, it stops waiting with its interrupt flag set.
+	 *
+	 * @throws RuntimeException The first exception thrown by a device, once all have finished.
+	 */
+	private void runAll(final int action)
+	{
+		List<CaptureDevice> devices;
+		ExecutorService executor;
+		synchronized (this)
+		{
+			devices = new ArrayList<CaptureDevice>(mDevices);
+			if (mExecutor == null)
+			{
+				mExecutor = Executors.newCachedThreadPool(DAEMON_THREADS);
+			}
+			executor = mExecutor;
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (final CaptureDevice device : devices)
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					switch (action)
+					{
+						case START_PREVIEW:
+							device.startPreview();
+							break;
+						case START_CAPTURE:
+							device.startCapture();
+							break;
+						case STOP:
+							device.stop();
+							break;
+					}
+					return null;
+				}
+			}));
+		}
+
+		RuntimeException error = null;
+		for (Future<Void> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException ex)
+			{
+				if (error == null)
+				{
+					error = ex.getCause() instanceof RuntimeException
+							? (RuntimeException) ex.getCause()
+							: new IllegalStateException(ex.getCause());
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				// the devices that have not finished carry on; an error already seen is still thrown
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (error != null)
+		{
+			throw error;
+		}
+	}
+
+
+	private final long 								mOrigin;
+	private final CaptureBuffer<SessionSample> 		mOutput;
+	private final List<CaptureDevice> 				mDevices = new ArrayList<CaptureDevice>();
+	private final Map<CaptureDevice, Long> 			mLastTimestamps = new HashMap<CaptureDevice, Long>();
+	private final PriorityQueue<SessionSample> 		mPending = new PriorityQueue<SessionSample>(64, ORDER);
+	private long 									mWindow = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REORDER_WINDOW_MS);
+	private long 									mSequence = 0;
+	private long 									mEmittedTimestamp = Long.MIN_VALUE;
+	private long 									mMergedCount = 0;
+	private long 									mLateCount = 0;
+	private long 									mOverflowCount = 0;
+	private ExecutorService 						mExecutor = null;
+	private ScheduledExecutorService 				mTimer = null;
+	private ScheduledFuture<?> 						mFlush = null;
+}
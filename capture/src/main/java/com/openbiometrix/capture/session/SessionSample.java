@@ -0,0 +1,20 @@
+package com.openbiometrix.capture.session;
+
+import com.openbiometrix.capture.CaptureDevice;
+
+/**
+ * A sample from one of the devices of a CaptureSession, stamped with the session clock.  This is
+ * what the session's output buffer carries, in timestamp order.
+ *
+ * The data depends on the device: a FaceCaptureDevice gives a FaceSample, which the taker must
+ * release(), and a VoiceCaptureDevice gives a short[] chunk of interleaved PCM.
+ */
+public class SessionSample
+{
+	public CaptureDevice 	device;
+	public long 			timestamp;
+	public Object 			data;
+
+	// order of arrival, to keep samples with the same timestamp in order
+	long 					sequence;
+}
@@ -0,0 +1,894 @@
+package com.openbiometrix.capture.spool;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of captures waiting to leave the device.  Captures are appended to segment
+ * files, and a small write-ahead index records every capture and every acknowledgement.  The
+ * capture data is synced to disk before its index record is written, and the index record is
+ * synced before append() returns, so a capture that has been appended survives the process or
+ * the device going down.
+ *
+ * When the spool is opened the index is replayed to rebuild the list of pending captures.  A
+ * torn record at the end of the index, left by a crash during a write, is dropped.  Segments are
+ * deleted once every capture in them has been acknowledged, and the index is rewritten when most
+ * of it describes captures that are gone.
+ *
+ * The spool is safe to use from multiple threads.
+ */
+public class CaptureSpool implements Closeable
+{
+	/**
+	 * Notified when captures leave the spool.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called on the thread that acknowledged or discarded the captures, after they are
+		 * removed, so it must return quickly.
+		 *
+		 * @param entries
+		 */
+		void onAcknowledged(List<SpoolEntry> entries);
+	}
+
+	public final static long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private final static String INDEX_FILE = "spool.idx";
+	private final static String ID_FILE = "spool.id";
+	private final static String SEGMENT_PREFIX = "segment-";
+	private final static String SEGMENT_SUFFIX = ".dat";
+	private final static String TEMP_SUFFIX = ".tmp";
+
+	private final static int SEGMENT_MAGIC = 0x4f425853;	// "OBXS"
+	private final static int RECORD_SIZE = 48;
+	private final static byte RECORD_APPEND = 1;
+	private final static byte RECORD_ACK = 2;
+	private final static byte RECORD_SEQUENCE = 3;
+	private final static long COMPACT_MIN_SIZE = 256 * 1024;
+	private final static int COPY_SIZE = 64 * 1024;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+
+	/**
+	 * Open a spool, creating it if the directory is empty, and recover its pending captures.
+	 *
+	 * @param directory Directory that holds the spool files.  It is created if needed.
+	 * @throws IOException
+	 */
+	public CaptureSpool(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Open a spool, creating it if the directory is empty, and recover its pending captures.
+	 *
+	 * @param directory Directory that holds the spool files.  It is created if needed.
+	 * @param segmentSize Size in bytes at which a new segment file is started
+	 * @throws IOException
+	 */
+	public CaptureSpool(File directory, long segmentSize) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Unable to create spool directory " + directory);
+		}
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+		mId = readId();
+		recover();
+	}
+
+	/**
+	 * A random id created with the spool.  Captures are identified by the spool id and their
+	 * sequence number, which lets a server ignore captures that are sent twice.
+	 */
+	public String getId()
+	{
+		return mId;
+	}
+
+	/**
+	 * Create an empty file in the spool's directory to stage a capture in before it is appended.
+	 * Any left behind by a crash are deleted when the spool is next opened.
+	 *
+	 * @param prefix Start of the file name
+	 * @throws IOException
+	 */
+	public File createTempFile(String prefix) throws IOException
+	{
+		return File.createTempFile(prefix, TEMP_SUFFIX, mDirectory);
+	}
+
+	/**
+	 * Set whether each append is synced to disk before it returns.  Syncing is on by default.
+	 * Turning it off trades the guarantee that appended captures survive a power loss for
+	 * faster appends.
+	 *
+	 * @param sync
+	 */
+	public synchronized void setSyncOnAppend(boolean sync)
+	{
+		mSyncOnAppend = sync;
+	}
+
+	/**
+	 * Add a capture to the end of the spool.
+	 *
+	 * @param data Capture data
+	 * @param mediaType MIME media type of the capture
+	 * @return The entry of the capture.
+	 * @throws IOException
+	 */
+	public SpoolEntry append(byte[] data, String mediaType) throws IOException
+	{
+		return append(data, 0, data.length, mediaType);
+	}
+
+	/**
+	 * Add a capture to the end of the spool.
+	 *
+	 * @param data Buffer holding the capture data
+	 * @param offset Position of the capture in the buffer
+	 * @param length Size of the capture in bytes
+	 * @param mediaType MIME media type of the capture
+	 * @return The entry of the capture.
+	 * @throws IOException
+	 */
+	public synchronized SpoolEntry append(byte[] data, int offset, int length, String mediaType) throws IOException
+	{
+		// write the capture data, then the index record that makes it visible
+		long recordOffset = writeHeader(mediaType);
+		long dataOffset = mSegmentChannel.size();
+		writeFully(mSegmentChannel, ByteBuffer.wrap(data, offset, length), dataOffset);
+
+		mCrc.reset();
+		mCrc.update(data, offset, length);
+		return commit(recordOffset, dataOffset, length, mediaType);
+	}
+
+	/**
+	 * Add the contents of a file to the end of the spool.  The file is copied a piece at a time,
+	 * so it is never held in memory whole.
+	 *
+	 * @param file File holding the capture data
+	 * @param mediaType MIME media type of the capture
+	 * @return The entry of the capture.
+	 * @throws IOException
+	 */
+	public synchronized SpoolEntry append(File file, String mediaType) throws IOException
+	{
+		if (file.length() > Integer.MAX_VALUE)
+		{
+			throw new IOException("Capture " + file + " is too large for the spool");
+		}
+
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			long recordOffset = writeHeader(mediaType);
+			long dataOffset = mSegmentChannel.size();
+			long position = dataOffset;
+			mCrc.reset();
+			byte[] buffer = new byte[COPY_SIZE];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+			{
+				mCrc.update(buffer, 0, read);
+				writeFully(mSegmentChannel, ByteBuffer.wrap(buffer, 0, read), position);
+				position += read;
+			}
+			return commit(recordOffset, dataOffset, (int) (position - dataOffset), mediaType);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the oldest pending captures without removing them.  At least one capture is returned if
+	 * any are pending, even if it is larger than maxBytes.
+	 *
+	 * @param maxCount Largest number of captures to return
+	 * @param maxBytes Largest total size in bytes of the captures to return
+	 * @return The captures, oldest first.
+	 */
+	public synchronized List<SpoolEntry> peek(int maxCount, long maxBytes)
+	{
+		List<SpoolEntry> entries = new ArrayList<SpoolEntry>();
+		long bytes = 0;
+		for (SpoolEntry entry : mPending)
+		{
+			if (entries.size() >= maxCount || (!entries.isEmpty() && bytes + entry.getLength() > maxBytes))
+			{
+				break;
+			}
+			entries.add(entry);
+			bytes += entry.getLength();
+		}
+		return entries;
+	}
+
+	/**
+	 * Wait until a capture is pending.
+	 *
+	 * @param timeout Longest time to wait in milliseconds
+	 * @return true if a capture is pending.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitPending(long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (mPending.isEmpty() && mSegmentChannel != null)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				break;
+			}
+			wait(remaining);
+		}
+		return !mPending.isEmpty();
+	}
+
+	/**
+	 * Read the data of a capture.
+	 *
+	 * @param entry
+	 * @return The capture data.
+	 * @throws CorruptCaptureException If its data fails its checksum or its segment is missing
+	 *                                 or cut short.
+	 * @throws IOException If the capture has been acknowledged.
+	 */
+	public byte[] read(SpoolEntry entry) throws IOException
+	{
+		FileChannel channel;
+		synchronized (this)
+		{
+			checkOpen();
+			if (!mPendingBySequence.containsKey(entry.getSequence()))
+			{
+				throw new IOException("Capture " + entry.getSequence() + " is no longer in the spool");
+			}
+			channel = entry.getSegment() == mSegment ? mSegmentChannel : null;
+		}
+
+		byte[] data = new byte[entry.getLength()];
+		try
+		{
+			if (channel != null)
+			{
+				readFully(channel, ByteBuffer.wrap(data), entry.getOffset());
+			}
+			else
+			{
+				RandomAccessFile file = new RandomAccessFile(segmentFile(entry.getSegment()), "r");
+				try
+				{
+					readFully(file.getChannel(), ByteBuffer.wrap(data), entry.getOffset());
+				}
+				finally
+				{
+					file.close();
+				}
+			}
+		}
+		catch (FileNotFoundException ex)
+		{
+			throw new CorruptCaptureException(entry, "is in a missing segment");
+		}
+		catch (EOFException ex)
+		{
+			throw new CorruptCaptureException(entry, "is cut short");
+		}
+
+		CRC32 check = new CRC32();
+		check.update(data, 0, data.length);
+		if (entry.getCrc() != (int) check.getValue())
+		{
+			throw new CorruptCaptureException(entry, "is corrupt");
+		}
+		return data;
+	}
+
+	/**
+	 * Drop a capture that cannot be read, so it does not hold up the captures after it.
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void discard(SpoolEntry entry) throws IOException
+	{
+		acknowledge(Collections.singletonList(entry));
+	}
+
+	/**
+	 * Acknowledge that captures have left the device.  They are removed from the spool and their
+	 * space is reclaimed.
+	 *
+	 * @param entries
+	 * @throws IOException
+	 */
+	public void acknowledge(List<SpoolEntry> entries) throws IOException
+	{
+		removeEntries(entries);
+		for (Listener listener : mListeners)
+		{
+			listener.onAcknowledged(entries);
+		}
+	}
+
+	/**
+	 * Add a listener that is told about every capture that leaves the spool.
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener)
+	{
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener.
+	 *
+	 * @param listener
+	 */
+	public void removeListener(Listener listener)
+	{
+		mListeners.remove(listener);
+	}
+
+	private synchronized void removeEntries(List<SpoolEntry> entries) throws IOException
+	{
+		checkOpen();
+
+		// write one record for each run of consecutive sequence numbers
+		int i = 0;
+		while (i < entries.size())
+		{
+			long first = entries.get(i).getSequence();
+			int run = 1;
+			while (i + run < entries.size() && entries.get(i + run).getSequence() == first + run)
+			{
+				run++;
+			}
+			writeRecord(RECORD_ACK, first, 0, 0, run, 0, 0);
+			i += run;
+		}
+		mIndexChannel.force(false);
+
+		for (SpoolEntry entry : entries)
+		{
+			removePending(entry.getSequence());
+		}
+		deleteUnusedSegments();
+
+		if (mIndexChannel.size() > COMPACT_MIN_SIZE
+				&& (long) mPending.size() * RECORD_SIZE * 4 < mIndexChannel.size())
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Number of captures waiting to be acknowledged.
+	 */
+	public synchronized int getPendingCount()
+	{
+		return mPending.size();
+	}
+
+	/**
+	 * Total size in bytes of the captures waiting to be acknowledged.
+	 */
+	public synchronized long getPendingBytes()
+	{
+		return mPendingBytes;
+	}
+
+	/**
+	 * Time in milliseconds since the epoch that the oldest pending capture was added, or 0 if no
+	 * captures are pending.
+	 */
+	public synchronized long getOldestTimestamp()
+	{
+		return mPending.isEmpty() ? 0 : mPending.peekFirst().getTimestamp();
+	}
+
+	/**
+	 * Close the spool files.  Pending captures stay on disk and are recovered the next time the
+	 * spool is opened.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (mSegmentChannel == null)
+		{
+			return;
+		}
+		try
+		{
+			mSegmentChannel.close();
+			mIndexChannel.close();
+		}
+		finally
+		{
+			mSegmentChannel = null;
+			mIndexChannel = null;
+			notifyAll();
+		}
+	}
+
+
+	//==============================================================================================
+	// Recovery
+	//==============================================================================================
+
+	/**
+	 * Replay the index to rebuild the pending captures, then open the newest segment for appends.
+	 */
+	private void recover() throws IOException
+	{
+		File indexFile = new File(mDirectory, INDEX_FILE);
+		mIndexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+
+		int lastSegment = 0;
+		long position = 0;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		Map<Integer, RandomAccessFile> segments = new HashMap<Integer, RandomAccessFile>();
+		try
+		{
+			while (position + RECORD_SIZE <= mIndexChannel.size())
+			{
+				record.clear();
+				readFully(mIndexChannel, record, position);
+				if (!checkRecord(record))
+				{
+					break;
+				}
+
+				byte type = record.get(0);
+				int segment = record.getInt(4);
+				long sequence = record.getLong(8);
+				long offset = record.getLong(16);
+				int length = record.getInt(24);
+				int crc = record.getInt(28);
+				long timestamp = record.getLong(32);
+
+				if (type == RECORD_APPEND)
+				{
+					RandomAccessFile file = segments.get(segment);
+					if (file == null && segmentFile(segment).exists())
+					{
+						file = new RandomAccessFile(segmentFile(segment), "r");
+						segments.put(segment, file);
+					}
+					SpoolEntry entry = file == null ? null : readEntry(file, sequence, segment, offset, length, crc, timestamp);
+					if (entry != null)
+					{
+						addPending(entry);
+					}
+					lastSegment = Math.max(lastSegment, segment);
+					mNextSequence = Math.max(mNextSequence, sequence + 1);
+				}
+				else if (type == RECORD_ACK)
+				{
+					for (long s = sequence; s < sequence + length; s++)
+					{
+						removePending(s);
+					}
+				}
+				else if (type == RECORD_SEQUENCE)
+				{
+					mNextSequence = Math.max(mNextSequence, sequence);
+				}
+				position += RECORD_SIZE;
+			}
+		}
+		finally
+		{
+			for (RandomAccessFile file : segments.values())
+			{
+				file.close();
+			}
+		}
+
+		// drop anything after the last good record
+		if (position < mIndexChannel.size())
+		{
+			mIndexChannel.truncate(position);
+		}
+		mIndexChannel.position(position);
+
+		// never write into a segment that may hold the unindexed tail of a crashed append
+		File[] files = mDirectory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				int segment = parseSegment(file.getName());
+				lastSegment = Math.max(lastSegment, segment);
+				if (file.getName().endsWith(TEMP_SUFFIX))
+				{
+					file.delete();
+				}
+			}
+		}
+		openSegment(lastSegment + 1);
+		deleteUnusedSegments();
+
+		if (mIndexChannel.size() > COMPACT_MIN_SIZE
+				&& (long) mPending.size() * RECORD_SIZE * 4 < mIndexChannel.size())
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Read the segment header of a capture.
+	 *
+	 * @return The entry, or null if the data is missing or the header is damaged.
+	 */
+	private SpoolEntry readEntry(RandomAccessFile file, long sequence, int segment, long offset, int length, int crc,
+			long timestamp)
+			throws IOException
+	{
+		if (offset + 6 > file.length())
+		{
+			return null;
+		}
+		file.seek(offset);
+		if (file.readInt() != SEGMENT_MAGIC)
+		{
+			return null;
+		}
+		int typeLength = file.readUnsignedShort();
+		long payload = offset + 6 + typeLength;
+		if (payload + length > file.length())
+		{
+			return null;
+		}
+		byte[] type = new byte[typeLength];
+		file.readFully(type);
+		return new SpoolEntry(sequence, segment, payload, length, crc, timestamp, new String(type, UTF8));
+	}
+
+	private boolean checkRecord(ByteBuffer record)
+	{
+		mCrc.reset();
+		mCrc.update(record.array(), 0, RECORD_SIZE - 4);
+		return (int) mCrc.getValue() == record.getInt(RECORD_SIZE - 4)
+				&& record.get(0) >= RECORD_APPEND && record.get(0) <= RECORD_SEQUENCE;
+	}
+
+	/**
+	 * Rewrite the index with only the records of pending captures.
+	 */
+	private void compact() throws IOException
+	{
+		File indexFile = new File(mDirectory, INDEX_FILE);
+		File tempFile = new File(mDirectory, INDEX_FILE + ".tmp");
+
+		FileChannel temp = new RandomAccessFile(tempFile, "rw").getChannel();
+		try
+		{
+			temp.truncate(0);
+			FileChannel index = mIndexChannel;
+			mIndexChannel = temp;
+
+			// keep the next sequence number even if nothing is pending, so numbers are never reused
+			writeRecord(RECORD_SEQUENCE, mNextSequence, 0, 0, 0, 0, 0);
+			for (SpoolEntry entry : mPending)
+			{
+				long headerOffset = entry.getOffset() - 6 - entry.getMediaType().getBytes(UTF8).length;
+				writeRecord(RECORD_APPEND, entry.getSequence(), entry.getSegment(), headerOffset,
+						entry.getLength(), entry.getCrc(), entry.getTimestamp());
+			}
+			temp.force(true);
+			index.close();
+		}
+		catch (IOException ex)
+		{
+			temp.close();
+			tempFile.delete();
+			mIndexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+			mIndexChannel.position(mIndexChannel.size());
+			throw ex;
+		}
+
+		temp.close();
+		if (!tempFile.renameTo(indexFile))
+		{
+			throw new IOException("Unable to replace spool index " + indexFile);
+		}
+		mIndexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+		mIndexChannel.position(mIndexChannel.size());
+	}
+
+	//==============================================================================================
+	// Segments and index records
+	//==============================================================================================
+
+	private void openSegment(int segment) throws IOException
+	{
+		if (mSegmentChannel != null)
+		{
+			mSegmentChannel.force(false);
+			mSegmentChannel.close();
+		}
+		mSegmentChannel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+		mSegment = segment;
+		deleteUnusedSegments();
+	}
+
+	/**
+	 * Delete every segment, other than the one being written, that holds no pending captures.
+	 */
+	private void deleteUnusedSegments()
+	{
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			int segment = parseSegment(file.getName());
+			if (segment >= 0 && segment != mSegment && !mSegmentCounts.containsKey(segment))
+			{
+				file.delete();
+			}
+		}
+	}
+
+	private File segmentFile(int segment)
+	{
+		return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+
+	private static int parseSegment(String name)
+	{
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+		{
+			return -1;
+		}
+		try
+		{
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException ex)
+		{
+			return -1;
+		}
+	}
+
+	private void writeRecord(byte type, long sequence, int segment, long offset, int length, int crc, long timestamp)
+			throws IOException
+	{
+		ByteBuffer record = mRecord;
+		record.clear();
+		record.put(0, type);
+		record.putInt(4, segment);
+		record.putLong(8, sequence);
+		record.putLong(16, offset);
+		record.putInt(24, length);
+		record.putInt(28, crc);
+		record.putLong(32, timestamp);
+		record.putInt(40, 0);
+		mCrc.reset();
+		mCrc.update(record.array(), 0, RECORD_SIZE - 4);
+		record.putInt(RECORD_SIZE - 4, (int) mCrc.getValue());
+
+		while (record.hasRemaining())
+		{
+			mIndexChannel.write(record);
+		}
+	}
+
+	private void addPending(SpoolEntry entry)
+	{
+		mPending.addLast(entry);
+		mPendingBySequence.put(entry.getSequence(), entry);
+		mPendingBytes += entry.getLength();
+		Integer count = mSegmentCounts.get(entry.getSegment());
+		mSegmentCounts.put(entry.getSegment(), count == null ? 1 : count + 1);
+	}
+
+	private void removePending(long sequence)
+	{
+		SpoolEntry entry = mPendingBySequence.remove(sequence);
+		if (entry == null)
+		{
+			return;
+		}
+		mPendingBytes -= entry.getLength();
+		int count = mSegmentCounts.get(entry.getSegment()) - 1;
+		if (count == 0)
+		{
+			mSegmentCounts.remove(entry.getSegment());
+		}
+		else
+		{
+			mSegmentCounts.put(entry.getSegment(), count);
+		}
+
+		// captures are nearly always acknowledged oldest first
+		if (mPending.peekFirst() == entry)
+		{
+			mPending.removeFirst();
+		}
+		else
+		{
+			Iterator<SpoolEntry> it = mPending.iterator();
+			while (it.hasNext())
+			{
+				if (it.next() == entry)
+				{
+					it.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	private String readId() throws IOException
+	{
+		File file = new File(mDirectory, ID_FILE);
+		if (file.exists())
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				byte[] data = new byte[64];
+				int length = 0;
+				int read;
+				while (length < data.length && (read = in.read(data, length, data.length - length)) > 0)
+				{
+					length += read;
+				}
+				String id = new String(data, 0, length, UTF8).trim();
+				if (id.length() > 0)
+				{
+					return id;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		String id = UUID.randomUUID().toString();
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(id.getBytes(UTF8));
+		}
+		finally
+		{
+			out.close();
+		}
+		return id;
+	}
+
+	/**
+	 * Start a capture record at the end of the current segment, moving to a new segment if it is
+	 * full.
+	 *
+	 * @return The offset of the record.
+	 */
+	private long writeHeader(String mediaType) throws IOException
+	{
+		checkOpen();
+		if (mSegmentChannel.size() >= mSegmentSize)
+		{
+			openSegment(mSegment + 1);
+		}
+
+		byte[] type = mediaType.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate(6 + type.length);
+		header.putInt(SEGMENT_MAGIC).putShort((short) type.length).put(type);
+		header.flip();
+
+		long recordOffset = mSegmentChannel.size();
+		writeFully(mSegmentChannel, header, recordOffset);
+		return recordOffset;
+	}
+
+	/**
+	 * Make a capture whose data has been written visible, with the CRC left in mCrc.
+	 */
+	private SpoolEntry commit(long recordOffset, long dataOffset, int length, String mediaType) throws IOException
+	{
+		if (mSyncOnAppend)
+		{
+			mSegmentChannel.force(false);
+		}
+
+		SpoolEntry entry = new SpoolEntry(mNextSequence++, mSegment, dataOffset,
+				length, (int) mCrc.getValue(), System.currentTimeMillis(), mediaType);
+		writeRecord(RECORD_APPEND, entry.getSequence(), entry.getSegment(), recordOffset, length,
+				entry.getCrc(), entry.getTimestamp());
+		if (mSyncOnAppend)
+		{
+			mIndexChannel.force(false);
+		}
+
+		addPending(entry);
+		notifyAll();
+		return entry;
+	}
+
+	private void checkOpen() throws IOException
+	{
+		if (mSegmentChannel == null)
+		{
+			throw new IOException("Spool is closed");
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, position);
+			if (read < 0)
+			{
+				throw new EOFException("Unexpected end of spool file");
+			}
+			position += read;
+		}
+	}
+
+
+	private final File 						mDirectory;
+	private final long 						mSegmentSize;
+	private final String 					mId;
+	private final ArrayDeque<SpoolEntry> 	mPending = new ArrayDeque<SpoolEntry>();
+	private final Map<Long, SpoolEntry> 	mPendingBySequence = new HashMap<Long, SpoolEntry>();
+	private final Map<Integer, Integer> 	mSegmentCounts = new HashMap<Integer, Integer>();
+	private final ByteBuffer 				mRecord = ByteBuffer.allocate(RECORD_SIZE);
+	private final CRC32 					mCrc = new CRC32();
+	private final List<Listener> 			mListeners = new CopyOnWriteArrayList<Listener>();
+	private FileChannel 					mIndexChannel;
+	private FileChannel 					mSegmentChannel;
+	private int 							mSegment;
+	private long 							mNextSequence = 0;
+	private long 							mPendingBytes = 0;
+	private boolean 						mSyncOnAppend = true;
+}
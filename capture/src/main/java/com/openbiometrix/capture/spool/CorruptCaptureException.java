@@ -0,0 +1,27 @@
+package com.openbiometrix.capture.spool;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the data of a capture in a CaptureSpool cannot be read back, because it fails its
+ * checksum or its segment is missing or cut short.  Reading it again will not help.
+ */
+public class CorruptCaptureException extends IOException
+{
+	public CorruptCaptureException(SpoolEntry entry, String message)
+	{
+		super("Capture " + entry.getSequence() + " " + message);
+		mEntry = entry;
+	}
+
+	/**
+	 * The capture that could not be read.
+	 */
+	public SpoolEntry getEntry()
+	{
+		return mEntry;
+	}
+
+
+	private final SpoolEntry 	mEntry;
+}
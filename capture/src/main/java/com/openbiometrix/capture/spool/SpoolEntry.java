@@ -0,0 +1,76 @@
+package com.openbiometrix.capture.spool;
+
+/**
+ * A capture held in a CaptureSpool.  Entries are created by the spool and identify where the
+ * capture data lives in the spool segments.
+ */
+public final class SpoolEntry
+{
+	SpoolEntry(long sequence, int segment, long offset, int length, int crc, long timestamp, String mediaType)
+	{
+		mSequence = sequence;
+		mSegment = segment;
+		mOffset = offset;
+		mLength = length;
+		mCrc = crc;
+		mTimestamp = timestamp;
+		mMediaType = mediaType;
+	}
+
+	/**
+	 * Sequence number of the capture.  Sequence numbers increase with every capture added to the
+	 * spool and are never reused, so together with the spool id they identify a capture.
+	 */
+	public long getSequence()
+	{
+		return mSequence;
+	}
+
+	/**
+	 * Size of the capture data in bytes.
+	 */
+	public int getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * Time in milliseconds since the epoch that the capture was added to the spool.
+	 */
+	public long getTimestamp()
+	{
+		return mTimestamp;
+	}
+
+	/**
+	 * MIME media type of the capture.
+	 */
+	public String getMediaType()
+	{
+		return mMediaType;
+	}
+
+	int getSegment()
+	{
+		return mSegment;
+	}
+
+	long getOffset()
+	{
+		return mOffset;
+	}
+
+	int getCrc()
+	{
+		return mCrc;
+	}
+
+
+	private final long 		mSequence;
+	private final int 		mSegment;
+	private final long 		mOffset;
+	private final int 		mLength;
+	private final int 		mCrc;
+	private final long 		mTimestamp;
+	private final String 	mMediaType;
+}
@@ -0,0 +1,451 @@
+package com.openbiometrix.capture.spool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the captures in a CaptureSpool to an ingest endpoint in batches.  Each batch is one
+ * HTTP POST whose body, optionally gzip compressed, is:
+ *
+ *     int     magic 0x4f425842 ("OBXB")
+ *     UTF     spool id
+ *     int     capture count
+ *     then for each capture:
+ *     long    sequence number
+ *     long    timestamp in milliseconds since the epoch
+ *     UTF     media type
+ *     int     length
+ *     byte[]  capture data
+ *
+ * using the encoding of DataOutputStream.  Captures are acknowledged in the spool only after the
+ * server answers with a 2xx status, so an upload that is interrupted is sent again.  The server
+ * should use the spool id and sequence number to ignore captures it already has.
+ *
+ * Failed batches are retried with an exponential backoff.  The batch size adapts to the link:
+ * it is halved after a failure, so less is resent on a flaky link, and grows again after each
+ * success.  A capture whose data is corrupt in the spool would fail every time, so it is
+ * discarded instead and the batch retried at once without it.
+ */
+public class SpoolUploader
+{
+	public final static String CONTENT_TYPE = "application/x-obx-capture-batch";
+	public final static int BATCH_MAGIC = 0x4f425842;	// "OBXB"
+
+	public final static int DEFAULT_MAX_BATCH_COUNT = 64;
+	public final static long DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+	public final static long MIN_BATCH_BYTES = 64 * 1024;
+	public final static long DEFAULT_MIN_BACKOFF = 1000;
+	public final static long DEFAULT_MAX_BACKOFF = 60000;
+
+	private final static int CONNECT_TIMEOUT = 15000;
+	private final static int READ_TIMEOUT = 30000;
+	private final static int CHUNK_SIZE = 64 * 1024;
+	private final static long IDLE_WAIT = 5000;
+
+
+	/**
+	 * @param spool The spool to upload from
+	 * @param endpoint URL that batches are posted to
+	 */
+	public SpoolUploader(CaptureSpool spool, URL endpoint)
+	{
+		mSpool = spool;
+		mEndpoint = endpoint;
+	}
+
+	/**
+	 * Set the largest batch.  The byte limit is where the adaptive batch size starts and the most
+	 * it grows to.
+	 *
+	 * @param maxCount Largest number of captures in a batch
+	 * @param maxBytes Largest total capture size in bytes of a batch
+	 */
+	public synchronized void setMaxBatch(int maxCount, long maxBytes)
+	{
+		mMaxBatchCount = maxCount;
+		mMaxBatchBytes = maxBytes;
+		mBatchBytes = maxBytes;
+	}
+
+	/**
+	 * Set the range of the delay before retrying a failed batch.  The delay doubles after each
+	 * failure in a row, up to the maximum.
+	 *
+	 * @param minBackoff Delay in milliseconds after the first failure
+	 * @param maxBackoff Longest delay in milliseconds
+	 */
+	public synchronized void setBackoff(long minBackoff, long maxBackoff)
+	{
+		mMinBackoff = minBackoff;
+		mMaxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Set whether batches are gzip compressed.  Compression is on by default.  Turn it off if
+	 * the captures are already compressed, such as JPEG images.
+	 *
+	 * @param compress
+	 */
+	public synchronized void setCompression(boolean compress)
+	{
+		mCompress = compress;
+	}
+
+	/**
+	 * Start uploading in a background thread.
+	 */
+	public synchronized void start()
+	{
+		if (mThread != null)
+		{
+			return;
+		}
+		mStop = false;
+		mThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				uploadLoop();
+			}
+		}, "SpoolUploader");
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.start();
+	}
+
+	/**
+	 * Stop uploading and wait for the background thread to end.  A batch that is being sent is
+	 * abandoned and will be sent again when uploading restarts.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			thread = mThread;
+			mThread = null;
+			mStop = true;
+		}
+		if (thread != null)
+		{
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+	/**
+	 * Send a single batch on the calling thread.
+	 *
+	 * @return The number of captures sent, 0 if none were pending.
+	 * @throws CorruptCaptureException If a capture in the batch could not be read.  It is
+	 *                                 discarded from the spool and the rest stay.
+	 * @throws IOException If the batch could not be sent.  The captures stay in the spool.
+	 */
+	public int uploadBatch() throws IOException
+	{
+		int maxCount;
+		long maxBytes;
+		boolean compress;
+		synchronized (this)
+		{
+			maxCount = mMaxBatchCount;
+			maxBytes = mBatchBytes;
+			compress = mCompress;
+		}
+
+		List<SpoolEntry> batch = mSpool.peek(maxCount, maxBytes);
+		if (batch.isEmpty())
+		{
+			return 0;
+		}
+
+		long start = System.nanoTime();
+		long bytes = 0;
+		HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+		try
+		{
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setChunkedStreamingMode(CHUNK_SIZE);
+			connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+			connection.setRequestProperty("X-Spool-Id", mSpool.getId());
+			connection.setRequestProperty("X-Batch-First", Long.toString(batch.get(0).getSequence()));
+			connection.setRequestProperty("X-Batch-Count", Integer.toString(batch.size()));
+			if (compress)
+			{
+				connection.setRequestProperty("Content-Encoding", "gzip");
+			}
+
+			// stream the captures one at a time so only one is in memory
+			OutputStream body = connection.getOutputStream();
+			if (compress)
+			{
+				body = new GZIPOutputStream(body, CHUNK_SIZE);
+			}
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body, CHUNK_SIZE));
+			out.writeInt(BATCH_MAGIC);
+			out.writeUTF(mSpool.getId());
+			out.writeInt(batch.size());
+			for (SpoolEntry entry : batch)
+			{
+				byte[] data = mSpool.read(entry);
+				out.writeLong(entry.getSequence());
+				out.writeLong(entry.getTimestamp());
+				out.writeUTF(entry.getMediaType());
+				out.writeInt(data.length);
+				out.write(data);
+				bytes += data.length;
+			}
+			out.close();
+
+			int status = connection.getResponseCode();
+			drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+			if (status < 200 || status >= 300)
+			{
+				throw new IOException("Ingest endpoint returned " + status);
+			}
+		}
+		catch (CorruptCaptureException ex)
+		{
+			mSpool.discard(ex.getEntry());
+			synchronized (this)
+			{
+				mCorruptCount++;
+			}
+			throw ex;
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+
+		mSpool.acknowledge(batch);
+		synchronized (this)
+		{
+			mUploadedCount += batch.size();
+			mUploadedBytes += bytes;
+			mBatchCount++;
+			mUploadNanos += System.nanoTime() - start;
+			mBatchBytes = mBatchBytes > mMaxBatchBytes - mBatchBytes / 4 ? mMaxBatchBytes : mBatchBytes + mBatchBytes / 4;
+		}
+		return batch.size();
+	}
+
+	//==============================================================================================
+	// Metrics
+	//==============================================================================================
+
+	/**
+	 * Number of captures uploaded since the uploader was created.
+	 */
+	public synchronized long getUploadedCount()
+	{
+		return mUploadedCount;
+	}
+
+	/**
+	 * Total size in bytes, before compression, of the captures uploaded.
+	 */
+	public synchronized long getUploadedBytes()
+	{
+		return mUploadedBytes;
+	}
+
+	/**
+	 * Number of batches uploaded.
+	 */
+	public synchronized long getBatchCount()
+	{
+		return mBatchCount;
+	}
+
+	/**
+	 * Number of batches that failed and will be retried.
+	 */
+	public synchronized long getFailureCount()
+	{
+		return mFailureCount;
+	}
+
+	/**
+	 * Number of captures discarded because their data in the spool was corrupt.
+	 */
+	public synchronized long getCorruptCount()
+	{
+		return mCorruptCount;
+	}
+
+	/**
+	 * Average number of captures in an uploaded batch.
+	 */
+	public synchronized float getAverageBatchSize()
+	{
+		return mBatchCount == 0 ? 0 : (float) mUploadedCount / mBatchCount;
+	}
+
+	/**
+	 * Current byte limit of a batch, as adapted to the link.
+	 */
+	public synchronized long getBatchByteLimit()
+	{
+		return mBatchBytes;
+	}
+
+	/**
+	 * Upload throughput in bytes per second, before compression, over the time spent sending
+	 * batches that succeeded.
+	 */
+	public synchronized double getThroughput()
+	{
+		return mUploadNanos == 0 ? 0 : mUploadedBytes * 1e9 / mUploadNanos;
+	}
+
+	/**
+	 * Number of captures waiting in the spool.
+	 */
+	public int getBacklogCount()
+	{
+		return mSpool.getPendingCount();
+	}
+
+	/**
+	 * Total size in bytes of the captures waiting in the spool.
+	 */
+	public long getBacklogBytes()
+	{
+		return mSpool.getPendingBytes();
+	}
+
+	/**
+	 * The error that made the last batch fail, or null if it succeeded.  An unexpected runtime
+	 * error is wrapped in an IOException.
+	 */
+	public synchronized IOException getLastError()
+	{
+		return mLastError;
+	}
+
+
+	private void uploadLoop()
+	{
+		int failures = 0;
+		while (!isStopping())
+		{
+			try
+			{
+				if (!mSpool.awaitPending(IDLE_WAIT))
+				{
+					continue;
+				}
+
+				uploadBatch();
+				failures = 0;
+				synchronized (this)
+				{
+					mLastError = null;
+				}
+			}
+			catch (CorruptCaptureException ex)
+			{
+				// the capture has been discarded, so the retry will not meet it again
+				synchronized (this)
+				{
+					mLastError = ex;
+				}
+			}
+			catch (IOException ex)
+			{
+				backOff(ex, ++failures);
+			}
+			catch (RuntimeException ex)
+			{
+				// a fault in the transport must not end uploading for good
+				backOff(new IOException("Upload failed: " + ex, ex), ++failures);
+			}
+			catch (InterruptedException ex)
+			{
+				// check whether we are stopping
+			}
+		}
+	}
+
+	private void backOff(IOException error, int failures)
+	{
+		long delay;
+		synchronized (this)
+		{
+			mLastError = error;
+			mFailureCount++;
+			mBatchBytes = Math.max(MIN_BATCH_BYTES, mBatchBytes / 2);
+			delay = Math.min(mMaxBackoff, mMinBackoff << Math.min(failures - 1, 16));
+		}
+
+		// add up to 50% jitter so many devices do not retry in step
+		delay += (long) (mRandom.nextFloat() * delay / 2);
+		try
+		{
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException ex)
+		{
+			// check whether we are stopping
+		}
+	}
+
+	private synchronized boolean isStopping()
+	{
+		return mStop;
+	}
+
+	private static void drain(InputStream in) throws IOException
+	{
+		if (in == null)
+		{
+			return;
+		}
+		try
+		{
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) >= 0)
+			{
+				// discard
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+
+	private final CaptureSpool 	mSpool;
+	private final URL 			mEndpoint;
+	private final Random 		mRandom = new Random();
+	private Thread 				mThread = null;
+	private boolean 			mStop = false;
+	private int 				mMaxBatchCount = DEFAULT_MAX_BATCH_COUNT;
+	private long 				mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	private long 				mBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	private long 				mMinBackoff = DEFAULT_MIN_BACKOFF;
+	private long 				mMaxBackoff = DEFAULT_MAX_BACKOFF;
+	private boolean 			mCompress = true;
+	private long 				mUploadedCount = 0;
+	private long 				mUploadedBytes = 0;
+	private long 				mBatchCount = 0;
+	private long 				mFailureCount = 0;
+	private long 				mCorruptCount = 0;
+	private long 				mUploadNanos = 0;
+	private IOException 		mLastError = null;
+}
@@ -0,0 +1,769 @@
+package com.openbiometrix.capture.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only index of capture metadata kept in a memory-mapped file.  Each capture takes a
+ * fixed size entry, so any capture can be read by position and a query reads the fields it
+ * filters on straight from the mapped file.  Only the captures on the page being returned are
+ * turned into objects, so listing tens of thousands of captures does not load them all.
+ *
+ * Entries are kept in timestamp order: a capture older than the newest one in the index is
+ * given the newest timestamp.  That lets time range queries start with a binary search.
+ *
+ * The count in the header is updated after an entry is written, and each entry carries a CRC,
+ * so an entry torn by a crash is dropped when the index is opened.
+ *
+ * Deleted captures keep their entries until the index is compacted.  Compaction copies the live
+ * entries to a new file a step at a time, so adds and queries only wait for one step.  It moves
+ * entries to new positions, which is signalled by a new generation number.
+ *
+ * All methods are synchronized.
+ */
+public class CaptureIndex implements Closeable
+{
+	public final static int MAX_MEDIA_TYPE_LENGTH = 32;
+	public final static int MAX_FILE_NAME_LENGTH = 44;
+
+	private final static int MAGIC = 0x4f425849;	// "OBXI"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 64;
+	private final static int ENTRY_SIZE = 128;
+	private final static int GROW_ENTRIES = 4096;
+	private final static String COMPACT_SUFFIX = ".compact";
+
+	// entry layout
+	private final static int SESSION = 0;
+	private final static int TIMESTAMP = 8;
+	private final static int SIZE = 16;
+	private final static int LEFT = 24;
+	private final static int TOP = 28;
+	private final static int WIDTH = 32;
+	private final static int HEIGHT = 36;
+	private final static int QUALITY = 40;
+	private final static int FLAGS = 44;
+	private final static int MEDIA_TYPE = 48;
+	private final static int FILE_NAME = MEDIA_TYPE + MAX_MEDIA_TYPE_LENGTH;
+	private final static int CRC = FILE_NAME + MAX_FILE_NAME_LENGTH;
+
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+
+	/**
+	 * Open an index, creating it if the file does not exist.
+	 *
+	 * @param file
+	 * @throws IOException If the file is not a capture index.
+	 */
+	public CaptureIndex(File file) throws IOException
+	{
+		mPath = file;
+		new File(file.getPath() + COMPACT_SUFFIX).delete();
+		mFile = new RandomAccessFile(file, "rw");
+		try
+		{
+			mChannel = mFile.getChannel();
+			if (mChannel.size() == 0)
+			{
+				map(HEADER_SIZE + (long) GROW_ENTRIES * ENTRY_SIZE);
+				mBuffer.putInt(0, MAGIC);
+				mBuffer.putInt(4, VERSION);
+				mBuffer.putInt(8, ENTRY_SIZE);
+				mBuffer.putInt(12, 0);
+			}
+			else
+			{
+				map(mChannel.size());
+				if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION || mBuffer.getInt(8) != ENTRY_SIZE)
+				{
+					throw new IOException("Not a capture index: " + file);
+				}
+				recover();
+			}
+		}
+		catch (IOException ex)
+		{
+			mFile.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Add a capture.  The index of the record is set to the position of the new entry, and its
+	 * timestamp is moved up to the newest timestamp in the index if it is older.
+	 *
+	 * @param record
+	 * @return The position of the new entry.
+	 * @throws IOException If the index cannot grow.
+	 */
+	public synchronized int add(CaptureRecord record) throws IOException
+	{
+		checkOpen();
+		if (offset(mCount + 1) > mBuffer.capacity())
+		{
+			map(offset(mCount + GROW_ENTRIES));
+		}
+
+		int offset = offset(mCount);
+		if (mCount > 0)
+		{
+			record.timestamp = Math.max(record.timestamp, mBuffer.getLong(offset(mCount - 1) + TIMESTAMP));
+		}
+		mBuffer.putLong(offset + SESSION, record.sessionId);
+		mBuffer.putLong(offset + TIMESTAMP, record.timestamp);
+		mBuffer.putLong(offset + SIZE, record.size);
+		mBuffer.putFloat(offset + LEFT, record.left);
+		mBuffer.putFloat(offset + TOP, record.top);
+		mBuffer.putFloat(offset + WIDTH, record.width);
+		mBuffer.putFloat(offset + HEIGHT, record.height);
+		mBuffer.putFloat(offset + QUALITY, record.quality);
+		mBuffer.putInt(offset + FLAGS, record.flags);
+		putString(offset + MEDIA_TYPE, MAX_MEDIA_TYPE_LENGTH, record.mediaType);
+		putString(offset + FILE_NAME, MAX_FILE_NAME_LENGTH, record.fileName);
+		mBuffer.putInt(offset + CRC, crc(offset));
+
+		// the entry only becomes visible once the count includes it
+		record.index = mCount;
+		mBuffer.putInt(12, ++mCount);
+		if ((record.flags & CaptureRecord.FLAG_DELETED) == 0)
+		{
+			mLiveCount++;
+			mLiveBytes += record.size;
+		}
+		return record.index;
+	}
+
+	/**
+	 * Number of entries in the index, including deleted captures.
+	 */
+	public synchronized int size()
+	{
+		return mCount;
+	}
+
+	/**
+	 * Number of captures that have not been deleted.
+	 */
+	public synchronized int getLiveCount()
+	{
+		return mLiveCount;
+	}
+
+	/**
+	 * Total size in bytes of the captures that have not been deleted.
+	 */
+	public synchronized long getLiveBytes()
+	{
+		return mLiveBytes;
+	}
+
+	/**
+	 * A number that changes every time compaction moves entries to new positions.  Positions
+	 * remembered from an older generation no longer refer to the same captures.
+	 */
+	public synchronized int getGeneration()
+	{
+		return mGeneration;
+	}
+
+	/**
+	 * Read an entry.
+	 *
+	 * @param index Position of the entry
+	 * @param out
+	 */
+	public synchronized void get(int index, CaptureRecord out)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			throw new IndexOutOfBoundsException("Capture " + index + " of " + mCount);
+		}
+		read(index, out);
+	}
+
+	/**
+	 * Read the nth capture that has not been deleted.  Reading them in order is cheap, since the
+	 * position of the last one read is remembered until a capture is deleted or the index is
+	 * compacted.
+	 *
+	 * @param ordinal 0 for the oldest live capture, up to getLiveCount() - 1
+	 * @param out
+	 */
+	public synchronized void getLive(int ordinal, CaptureRecord out)
+	{
+		if (ordinal < 0 || ordinal >= mLiveCount)
+		{
+			throw new IndexOutOfBoundsException("Capture " + ordinal + " of " + mLiveCount);
+		}
+
+		int live = -1;
+		int position = -1;
+		if (mCursorChanges == mLiveChanges && mCursorPosition >= 0)
+		{
+			live = mCursorOrdinal;
+			position = mCursorPosition;
+		}
+		while (live < ordinal)
+		{
+			if ((mBuffer.getInt(offset(++position) + FLAGS) & CaptureRecord.FLAG_DELETED) == 0)
+			{
+				live++;
+			}
+		}
+		while (live > ordinal)
+		{
+			if ((mBuffer.getInt(offset(--position) + FLAGS) & CaptureRecord.FLAG_DELETED) == 0)
+			{
+				live--;
+			}
+		}
+		mCursorOrdinal = live;
+		mCursorPosition = position;
+		mCursorChanges = mLiveChanges;
+		read(position, out);
+	}
+
+	/**
+	 * Find a capture read or added earlier, by its file name, in case compaction has moved it.
+	 *
+	 * @param record
+	 * @return The position of the capture, or -1 if it is no longer in the index.
+	 */
+	public synchronized int find(CaptureRecord record)
+	{
+		int index = record.index;
+		if (index >= 0 && index < mCount
+				&& record.fileName.equals(getString(offset(index) + FILE_NAME, MAX_FILE_NAME_LENGTH)))
+		{
+			return index;
+		}
+		for (int i = indexOf(record.timestamp); i < mCount && getTimestamp(i) == record.timestamp; i++)
+		{
+			if (record.fileName.equals(getString(offset(i) + FILE_NAME, MAX_FILE_NAME_LENGTH)))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Position of the first entry with a timestamp at or after the given time.
+	 *
+	 * @param timestamp Milliseconds since the epoch
+	 * @return A position from 0 to size(), size() meaning every entry is older.
+	 */
+	public synchronized int indexOf(long timestamp)
+	{
+		int low = 0;
+		int high = mCount;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (mBuffer.getLong(offset(mid) + TIMESTAMP) < timestamp)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Get a page of the captures that match a query.
+	 *
+	 * @param query
+	 * @param start Position to start looking from: 0 for the first page, or the next start of the
+	 *              previous page
+	 * @param pageSize Largest number of captures to return
+	 * @return The page.
+	 */
+	public synchronized CapturePage query(CaptureQuery query, int start, int pageSize)
+	{
+		int end = indexOf(query.getTo());
+		int position = Math.max(start, indexOf(query.getFrom()));
+		String mediaType = query.getMediaType();
+
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>(Math.min(pageSize, Math.max(end - position, 0)));
+		for (; position < end && records.size() < pageSize; position++)
+		{
+			int offset = offset(position);
+			if (!query.matches(mBuffer.getLong(offset + SESSION), mBuffer.getFloat(offset + QUALITY),
+					mBuffer.getInt(offset + FLAGS)))
+			{
+				continue;
+			}
+			if (mediaType != null && !mediaType.equals(getString(offset + MEDIA_TYPE, MAX_MEDIA_TYPE_LENGTH)))
+			{
+				continue;
+			}
+
+			CaptureRecord record = new CaptureRecord();
+			read(position, record);
+			records.add(record);
+		}
+		return new CapturePage(records, position < end ? position : -1);
+	}
+
+	/**
+	 * Count the captures that match a query.
+	 *
+	 * @param query
+	 */
+	public synchronized int count(CaptureQuery query)
+	{
+		int count = 0;
+		int start = 0;
+		do
+		{
+			CapturePage page = query(query, start, 1024);
+			count += page.getRecords().size();
+			start = page.getNextStart();
+		}
+		while (start >= 0);
+		return count;
+	}
+
+	/**
+	 * Change the flags of an entry, such as marking the capture deleted.
+	 *
+	 * @param index Position of the entry
+	 * @param flags
+	 */
+	public synchronized void setFlags(int index, int flags)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			throw new IndexOutOfBoundsException("Capture " + index + " of " + mCount);
+		}
+		int offset = offset(index);
+		int old = mBuffer.getInt(offset + FLAGS);
+		if ((old & CaptureRecord.FLAG_DELETED) == 0 && (flags & CaptureRecord.FLAG_DELETED) != 0)
+		{
+			mLiveCount--;
+			mLiveBytes -= mBuffer.getLong(offset + SIZE);
+			mLiveChanges++;
+		}
+		else if ((old & CaptureRecord.FLAG_DELETED) != 0 && (flags & CaptureRecord.FLAG_DELETED) == 0)
+		{
+			mLiveCount++;
+			mLiveBytes += mBuffer.getLong(offset + SIZE);
+			mLiveChanges++;
+		}
+		mBuffer.putInt(offset + FLAGS, flags);
+		mBuffer.putInt(offset + CRC, crc(offset));
+		updateCompactCopy(index);
+	}
+
+	/**
+	 * Replace the file of a capture, such as after it is transcoded.  The size, media type and
+	 * file name of the entry are changed; the rest, including its position in time, is kept.
+	 *
+	 * @param index Position of the entry
+	 * @param fileName The file the entry must still have, in case the entry has moved
+	 * @param size
+	 * @param mediaType
+	 * @param newFileName
+	 * @param encrypted Whether the new file is encrypted
+	 * @return false if the entry no longer has the given file name.
+	 */
+	synchronized boolean replaceFile(int index, String fileName, long size, String mediaType, String newFileName,
+			boolean encrypted)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			return false;
+		}
+		int offset = offset(index);
+		if (!fileName.equals(getString(offset + FILE_NAME, MAX_FILE_NAME_LENGTH)))
+		{
+			return false;
+		}
+
+		int flags = mBuffer.getInt(offset + FLAGS);
+		if ((flags & CaptureRecord.FLAG_DELETED) == 0)
+		{
+			mLiveBytes += size - mBuffer.getLong(offset + SIZE);
+		}
+		flags = encrypted ? flags | CaptureRecord.FLAG_ENCRYPTED : flags & ~CaptureRecord.FLAG_ENCRYPTED;
+		mBuffer.putLong(offset + SIZE, size);
+		mBuffer.putInt(offset + FLAGS, flags);
+		putString(offset + MEDIA_TYPE, MAX_MEDIA_TYPE_LENGTH, mediaType);
+		putString(offset + FILE_NAME, MAX_FILE_NAME_LENGTH, newFileName);
+		mBuffer.putInt(offset + CRC, crc(offset));
+		updateCompactCopy(index);
+		return true;
+	}
+
+	/**
+	 * Change the face bounds and quality of an entry, such as after the capture is scored again.
+	 *
+	 * @param index Position of the entry
+	 * @param fileName The file the entry must still have, in case the entry has moved
+	 * @param record The new bounds and quality
+	 * @return false if the entry is deleted or no longer has the given file name.
+	 */
+	synchronized boolean update(int index, String fileName, CaptureRecord record)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			return false;
+		}
+		int offset = offset(index);
+		if ((mBuffer.getInt(offset + FLAGS) & CaptureRecord.FLAG_DELETED) != 0
+				|| !fileName.equals(getString(offset + FILE_NAME, MAX_FILE_NAME_LENGTH)))
+		{
+			return false;
+		}
+
+		mBuffer.putFloat(offset + LEFT, record.left);
+		mBuffer.putFloat(offset + TOP, record.top);
+		mBuffer.putFloat(offset + WIDTH, record.width);
+		mBuffer.putFloat(offset + HEIGHT, record.height);
+		mBuffer.putFloat(offset + QUALITY, record.quality);
+		mBuffer.putInt(offset + CRC, crc(offset));
+		updateCompactCopy(index);
+		return true;
+	}
+
+	/**
+	 * Mark a capture deleted unless it has any of the given flags.
+	 *
+	 * @param index Position of the entry
+	 * @param keepFlags Flags that keep the capture
+	 * @return The size of the capture, or -1 if it was kept or already deleted.
+	 */
+	synchronized long delete(int index, int keepFlags)
+	{
+		int flags = getFlags(index);
+		if ((flags & (keepFlags | CaptureRecord.FLAG_DELETED)) != 0)
+		{
+			return -1;
+		}
+		setFlags(index, flags | CaptureRecord.FLAG_DELETED);
+		return mBuffer.getLong(offset(index) + SIZE);
+	}
+
+	// the fields that eviction looks at, read without creating a record
+
+	synchronized int getFlags(int index)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			throw new IndexOutOfBoundsException("Capture " + index + " of " + mCount);
+		}
+		return mBuffer.getInt(offset(index) + FLAGS);
+	}
+
+	synchronized long getTimestamp(int index)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			throw new IndexOutOfBoundsException("Capture " + index + " of " + mCount);
+		}
+		return mBuffer.getLong(offset(index) + TIMESTAMP);
+	}
+
+	synchronized float getQuality(int index)
+	{
+		if (index < 0 || index >= mCount)
+		{
+			throw new IndexOutOfBoundsException("Capture " + index + " of " + mCount);
+		}
+		return mBuffer.getFloat(offset(index) + QUALITY);
+	}
+
+	/**
+	 * Remove the entries of deleted captures.  Live entries are copied to a new file in steps,
+	 * and the index is locked only while a step runs, so captures can be added and queried while
+	 * compaction is going on.  The new file replaces the old one once every entry is copied.
+	 *
+	 * Only one compaction may run at a time.
+	 *
+	 * @param stepEntries Number of entries copied in each step
+	 * @param stepPause Time in milliseconds to wait between steps, to limit the I/O rate
+	 * @return The number of entries removed.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int compact(int stepEntries, long stepPause) throws IOException, InterruptedException
+	{
+		File tempFile = new File(mPath.getPath() + COMPACT_SUFFIX);
+		RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+		boolean done = false;
+		try
+		{
+			FileChannel tempChannel = temp.getChannel();
+			tempChannel.truncate(0);
+			int target = 0;
+			synchronized (this)
+			{
+				checkOpen();
+				mCompactBuffer = mapBuffer(tempChannel, offset(mLiveCount + GROW_ENTRIES));
+				for (int i = 0; i < HEADER_SIZE; i += 4)
+				{
+					mCompactBuffer.putInt(i, mBuffer.getInt(i));
+				}
+				mCompactRemap = new int[Math.max(mCount, 1)];
+				mCompactSource = 0;
+			}
+
+			while (true)
+			{
+				synchronized (this)
+				{
+					checkOpen();
+					if (mCompactRemap.length < mCount)
+					{
+						mCompactRemap = Arrays.copyOf(mCompactRemap, Math.max(mCount, mCompactRemap.length * 2));
+					}
+
+					int end = Math.min(mCount, mCompactSource + stepEntries);
+					for (; mCompactSource < end; mCompactSource++)
+					{
+						int offset = offset(mCompactSource);
+						if ((mBuffer.getInt(offset + FLAGS) & CaptureRecord.FLAG_DELETED) != 0)
+						{
+							mCompactRemap[mCompactSource] = -1;
+							continue;
+						}
+						if (offset(target + 1) > mCompactBuffer.capacity())
+						{
+							mCompactBuffer.force();
+							mCompactBuffer = mapBuffer(tempChannel, offset(target + GROW_ENTRIES));
+						}
+						int copy = offset(target);
+						for (int i = 0; i < ENTRY_SIZE; i += 8)
+						{
+							mCompactBuffer.putLong(copy + i, mBuffer.getLong(offset + i));
+						}
+						mCompactRemap[mCompactSource] = target++;
+					}
+
+					if (mCompactSource == mCount)
+					{
+						// every entry is copied, so switch to the new file
+						int removed = mCount - target;
+						mCompactBuffer.putInt(12, target);
+						mCompactBuffer.force();
+						mBuffer.force();
+						if (!tempFile.renameTo(mPath))
+						{
+							throw new IOException("Unable to replace capture index " + mPath);
+						}
+						mFile.close();
+						mFile = temp;
+						mChannel = tempChannel;
+						mBuffer = mCompactBuffer;
+						mCount = target;
+						mGeneration++;
+						mLiveChanges++;
+						done = true;
+						return removed;
+					}
+				}
+
+				if (stepPause > 0)
+				{
+					Thread.sleep(stepPause);
+				}
+			}
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				mCompactBuffer = null;
+				mCompactRemap = null;
+				mCompactSource = 0;
+			}
+			if (!done)
+			{
+				temp.close();
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Write changes to the index through to the disk.
+	 */
+	public synchronized void sync()
+	{
+		if (mBuffer != null)
+		{
+			mBuffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (mBuffer == null)
+		{
+			return;
+		}
+		mBuffer.force();
+		mBuffer = null;
+		mFile.close();
+	}
+
+
+	/**
+	 * Drop entries at the end of the index that fail their CRC.
+	 */
+	private void recover()
+	{
+		int count = mBuffer.getInt(12);
+		count = Math.max(0, Math.min(count, (mBuffer.capacity() - HEADER_SIZE) / ENTRY_SIZE));
+		while (count > 0 && mBuffer.getInt(offset(count - 1) + CRC) != crc(offset(count - 1)))
+		{
+			count--;
+		}
+		mCount = count;
+		mBuffer.putInt(12, count);
+
+		for (int i = 0; i < count; i++)
+		{
+			int offset = offset(i);
+			if ((mBuffer.getInt(offset + FLAGS) & CaptureRecord.FLAG_DELETED) == 0)
+			{
+				mLiveCount++;
+				mLiveBytes += mBuffer.getLong(offset + SIZE);
+			}
+		}
+	}
+
+	/**
+	 * An entry that a running compaction has already copied is changed in the copy as well.
+	 */
+	private void updateCompactCopy(int index)
+	{
+		if (mCompactRemap != null && index < mCompactSource && mCompactRemap[index] >= 0)
+		{
+			int offset = offset(index);
+			int target = offset(mCompactRemap[index]);
+			for (int i = 0; i < ENTRY_SIZE; i += 8)
+			{
+				mCompactBuffer.putLong(target + i, mBuffer.getLong(offset + i));
+			}
+		}
+	}
+
+	private void read(int index, CaptureRecord out)
+	{
+		int offset = offset(index);
+		out.index = index;
+		out.sessionId = mBuffer.getLong(offset + SESSION);
+		out.timestamp = mBuffer.getLong(offset + TIMESTAMP);
+		out.size = mBuffer.getLong(offset + SIZE);
+		out.left = mBuffer.getFloat(offset + LEFT);
+		out.top = mBuffer.getFloat(offset + TOP);
+		out.width = mBuffer.getFloat(offset + WIDTH);
+		out.height = mBuffer.getFloat(offset + HEIGHT);
+		out.quality = mBuffer.getFloat(offset + QUALITY);
+		out.flags = mBuffer.getInt(offset + FLAGS);
+		out.mediaType = getString(offset + MEDIA_TYPE, MAX_MEDIA_TYPE_LENGTH);
+		out.fileName = getString(offset + FILE_NAME, MAX_FILE_NAME_LENGTH);
+	}
+
+	private void map(long size) throws IOException
+	{
+		if (mBuffer != null)
+		{
+			mBuffer.force();
+		}
+		mBuffer = mapBuffer(mChannel, size);
+	}
+
+	private static MappedByteBuffer mapBuffer(FileChannel channel, long size) throws IOException
+	{
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private int crc(int offset)
+	{
+		mCrc.reset();
+		for (int i = 0; i < CRC; i++)
+		{
+			mCrc.update(mBuffer.get(offset + i));
+		}
+		return (int) mCrc.getValue();
+	}
+
+	private void putString(int offset, int maxLength, String value)
+	{
+		byte[] bytes = value == null ? new byte[0] : value.getBytes(ASCII);
+		if (bytes.length > maxLength)
+		{
+			throw new IllegalArgumentException("\"" + value + "\" is longer than " + maxLength + " characters");
+		}
+		for (int i = 0; i < maxLength; i++)
+		{
+			mBuffer.put(offset + i, i < bytes.length ? bytes[i] : 0);
+		}
+	}
+
+	private String getString(int offset, int maxLength)
+	{
+		byte[] bytes = mString;
+		int length = 0;
+		while (length < maxLength && (bytes[length] = mBuffer.get(offset + length)) != 0)
+		{
+			length++;
+		}
+		return new String(bytes, 0, length, ASCII);
+	}
+
+	private static int offset(int index)
+	{
+		return HEADER_SIZE + index * ENTRY_SIZE;
+	}
+
+	private void checkOpen() throws IOException
+	{
+		if (mBuffer == null)
+		{
+			throw new IOException("Capture index is closed");
+		}
+	}
+
+
+	private final File 				mPath;
+	private final CRC32 			mCrc = new CRC32();
+	private final byte[] 			mString = new byte[Math.max(MAX_MEDIA_TYPE_LENGTH, MAX_FILE_NAME_LENGTH)];
+	private RandomAccessFile 		mFile;
+	private FileChannel 			mChannel;
+	private MappedByteBuffer 		mBuffer;
+	private int 					mCount = 0;
+	private int 					mLiveCount = 0;
+	private long 					mLiveBytes = 0;
+	private int 					mGeneration = 0;
+
+	// where getLive() last was, valid while no capture is deleted or moved
+	private int 					mLiveChanges = 0;
+	private int 					mCursorChanges = 0;
+	private int 					mCursorOrdinal = -1;
+	private int 					mCursorPosition = -1;
+
+	// state of a running compaction
+	private MappedByteBuffer 		mCompactBuffer = null;
+	private int[] 					mCompactRemap = null;
+	private int 					mCompactSource = 0;
+}
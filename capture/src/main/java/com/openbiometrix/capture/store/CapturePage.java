@@ -0,0 +1,44 @@
+package com.openbiometrix.capture.store;
+
+import java.util.List;
+
+/**
+ * One page of the captures matched by a CaptureQuery.
+ */
+public class CapturePage
+{
+	CapturePage(List<CaptureRecord> records, int nextStart)
+	{
+		mRecords = records;
+		mNextStart = nextStart;
+	}
+
+	/**
+	 * The captures on this page, oldest first.
+	 */
+	public List<CaptureRecord> getRecords()
+	{
+		return mRecords;
+	}
+
+	/**
+	 * Whether there may be more matching captures after this page.
+	 */
+	public boolean hasMore()
+	{
+		return mNextStart >= 0;
+	}
+
+	/**
+	 * The index position to pass to the next query to get the following page, or -1 if this is
+	 * the last page.
+	 */
+	public int getNextStart()
+	{
+		return mNextStart;
+	}
+
+
+	private final List<CaptureRecord> 	mRecords;
+	private final int 					mNextStart;
+}
@@ -0,0 +1,98 @@
+package com.openbiometrix.capture.store;
+
+/**
+ * Selects captures from a CaptureIndex.  Every condition that is set must match.  A query with
+ * nothing set matches every capture that has not been deleted.
+ */
+public class CaptureQuery
+{
+	/**
+	 * Only match captures of a session.
+	 *
+	 * @param sessionId
+	 */
+	public void setSession(long sessionId)
+	{
+		mSessionId = sessionId;
+		mHasSession = true;
+	}
+
+	/**
+	 * Only match captures taken in a time range.
+	 *
+	 * @param from Start of the range in milliseconds since the epoch, inclusive
+	 * @param to End of the range in milliseconds since the epoch, exclusive
+	 */
+	public void setTimeRange(long from, long to)
+	{
+		mFrom = from;
+		mTo = to;
+	}
+
+	/**
+	 * Only match captures with at least the given quality score.
+	 *
+	 * @param quality
+	 */
+	public void setMinQuality(float quality)
+	{
+		mMinQuality = quality;
+	}
+
+	/**
+	 * Only match captures of a media type.
+	 *
+	 * @param mediaType MIME media type, or null to match any
+	 */
+	public void setMediaType(String mediaType)
+	{
+		mMediaType = mediaType;
+	}
+
+	/**
+	 * Also match captures that have been deleted.
+	 *
+	 * @param include
+	 */
+	public void setIncludeDeleted(boolean include)
+	{
+		mIncludeDeleted = include;
+	}
+
+	long getFrom()
+	{
+		return mFrom;
+	}
+
+	long getTo()
+	{
+		return mTo;
+	}
+
+	/**
+	 * Check the fixed size values of a capture, which are cheap to read from the index.
+	 */
+	boolean matches(long sessionId, float quality, int flags)
+	{
+		return (!mHasSession || sessionId == mSessionId)
+				&& quality >= mMinQuality
+				&& (mIncludeDeleted || (flags & CaptureRecord.FLAG_DELETED) == 0);
+	}
+
+	/**
+	 * Check the media type of a capture, or null if the query does not care.
+	 */
+	String getMediaType()
+	{
+		return mMediaType;
+	}
+
+
+	private boolean mHasSession = false;
+	private long 	mSessionId;
+	private long 	mFrom = Long.MIN_VALUE;
+	private long 	mTo = Long.MAX_VALUE;
+	private float 	mMinQuality = Float.NEGATIVE_INFINITY;
+	private String 	mMediaType = null;
+	private boolean mIncludeDeleted = false;
+}
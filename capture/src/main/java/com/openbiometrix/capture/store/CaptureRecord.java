@@ -0,0 +1,112 @@
+package com.openbiometrix.capture.store;
+
+/**
+ * The metadata of one capture in a CaptureIndex.  A CaptureRecord is a mutable holder so that
+ * adding and reading captures does not need a new object each time.
+ */
+public class CaptureRecord
+{
+	public final static int FLAG_ENCRYPTED = 1;
+	public final static int FLAG_DELETED = 2;
+	public final static int FLAG_PINNED = 4;
+	public final static int FLAG_DUPLICATE = 8;
+	public final static int FLAG_UNSENT = 16;
+
+	public int 		index = -1;
+	public long 	sessionId;
+	public long 	timestamp;
+	public long 	size;
+	public float 	left;
+	public float 	top;
+	public float 	width;
+	public float 	height;
+	public float 	quality;
+	public int 		flags;
+	public String 	mediaType = "*/*";
+	public String 	fileName;
+
+	// not kept in the index: the PerceptualHash of the subject, or 0 if it was not hashed
+	public long 	perceptualHash;
+
+
+	/**
+	 * Whether the capture file is encrypted.
+	 */
+	public boolean isEncrypted()
+	{
+		return (flags & FLAG_ENCRYPTED) != 0;
+	}
+
+	/**
+	 * Whether the capture has been deleted.  Deleted captures stay in the index but are skipped
+	 * by queries.
+	 */
+	public boolean isDeleted()
+	{
+		return (flags & FLAG_DELETED) != 0;
+	}
+
+	/**
+	 * Whether the capture is pinned, such as while it waits to be uploaded.  Pinned captures are
+	 * never removed by a RetentionManager.
+	 */
+	public boolean isPinned()
+	{
+		return (flags & FLAG_PINNED) != 0;
+	}
+
+	/**
+	 * Whether the capture is waiting in a CaptureSpool to be uploaded.  A RetentionManager keeps
+	 * it like a pinned capture until the spool has sent it.
+	 */
+	public boolean isUnsent()
+	{
+		return (flags & FLAG_UNSENT) != 0;
+	}
+
+	/**
+	 * Whether the capture was stored although it looks almost the same as an earlier one.
+	 */
+	public boolean isDuplicate()
+	{
+		return (flags & FLAG_DUPLICATE) != 0;
+	}
+
+	/**
+	 * Set the bounds of the subject in the capture, such as the detected face.
+	 *
+	 * @param left
+	 * @param top
+	 * @param width
+	 * @param height
+	 */
+	public void setBounds(float left, float top, float width, float height)
+	{
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Copy the values of another record.
+	 *
+	 * @param other
+	 */
+	public void set(CaptureRecord other)
+	{
+		index = other.index;
+		sessionId = other.sessionId;
+		timestamp = other.timestamp;
+		size = other.size;
+		left = other.left;
+		top = other.top;
+		width = other.width;
+		height = other.height;
+		quality = other.quality;
+		flags = other.flags;
+		mediaType = other.mediaType;
+		fileName = other.fileName;
+		perceptualHash = other.perceptualHash;
+	}
+}
@@ -0,0 +1,558 @@
+package com.openbiometrix.capture.store;
+
+import com.openbiometrix.capture.CaptureFile;
+import com.openbiometrix.capture.codec.Lz4Nv21Codec;
+import com.openbiometrix.capture.crypto.EncryptedCaptureReader;
+import com.openbiometrix.capture.crypto.EncryptedCaptureWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A directory of capture files together with a CaptureIndex of their metadata.  Captures are
+ * listed and queried through the index, so nothing needs to stat or open the capture files
+ * until one is actually read.
+ *
+ * The store is safe to use from multiple threads.
+ */
+public class CaptureStore implements Closeable
+{
+	/**
+	 * Notified when a capture is saved.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called on the thread that saved the capture, so it must return quickly.
+		 *
+		 * @param record
+		 */
+		void onCaptureSaved(CaptureRecord record);
+	}
+
+	/**
+	 * Suffix of files that are being streamed to before they are added to the store.  They are
+	 * deleted when the store is opened, since they were left by a process that died.
+	 */
+	public final static String PART_SUFFIX = ".part";
+
+	private final static String INDEX_FILE = "captures.idx";
+
+
+	/**
+	 * Open a store, creating it if the directory is empty.
+	 *
+	 * @param directory Directory that holds the capture files and index.  It is created if needed.
+	 * @throws IOException
+	 */
+	public CaptureStore(File directory) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Unable to create capture directory " + directory);
+		}
+		mDirectory = directory;
+		mIndex = new CaptureIndex(new File(directory, INDEX_FILE));
+
+		File[] parts = directory.listFiles();
+		for (int i = 0; parts != null && i < parts.length; i++)
+		{
+			if (parts[i].getName().endsWith(PART_SUFFIX))
+			{
+				parts[i].delete();
+			}
+		}
+	}
+
+	/**
+	 * Create an empty file in the store's directory to stream a capture to before it is added.
+	 *
+	 * @param prefix Start of the file name
+	 * @throws IOException
+	 */
+	public File createPartFile(String prefix) throws IOException
+	{
+		return File.createTempFile(prefix, PART_SUFFIX, mDirectory);
+	}
+
+	/**
+	 * Directory that holds the capture files.
+	 */
+	public File getDirectory()
+	{
+		return mDirectory;
+	}
+
+	/**
+	 * The metadata index of the store.
+	 */
+	public CaptureIndex getIndex()
+	{
+		return mIndex;
+	}
+
+	/**
+	 * Save a capture.  The file is written and synced before it is added to the index, so the
+	 * index never lists a capture that is not on disk.
+	 *
+	 * @param data The captured data
+	 * @param record Metadata of the capture.  The size, file name and index are filled in, and the
+	 *               encrypted flag is set to match the key.
+	 * @param key AES key to encrypt the file with, or null to save it unencrypted
+	 * @return The saved file.
+	 * @throws IOException
+	 */
+	public CaptureFile save(byte[] data, CaptureRecord record, SecretKey key) throws IOException
+	{
+		// the file is named after the entry it will get, so only one save runs at a time
+		synchronized (mSaveLock)
+		{
+			File file = newFile(record, key);
+			record.size = data.length;
+			write(file, data, key);
+			mIndex.add(record);
+		}
+
+		for (Listener listener : mListeners)
+		{
+			listener.onCaptureSaved(record);
+		}
+		return toFile(record);
+	}
+
+	/**
+	 * Add a capture that was streamed to a file, such as a voice recording.  Without a key the
+	 * file is moved into the store; with a key it is encrypted into the store and deleted.  The
+	 * file should be in the store's directory and end in PART_SUFFIX, so that it is on the same
+	 * file system and is cleaned up if the process dies before it is added.
+	 *
+	 * @param source The finished, synced file
+	 * @param record Metadata of the capture, filled in as by save()
+	 * @param key AES key to encrypt the file with, or null to keep it unencrypted
+	 * @return The saved file.
+	 * @throws IOException
+	 */
+	public CaptureFile add(File source, CaptureRecord record, SecretKey key) throws IOException
+	{
+		synchronized (mSaveLock)
+		{
+			File file = newFile(record, key);
+			record.size = source.length();
+			if (key == null)
+			{
+				if (!source.renameTo(file))
+				{
+					throw new IOException("Unable to move " + source + " into the capture store");
+				}
+			}
+			else
+			{
+				encrypt(source, file, key);
+				source.delete();
+			}
+			mIndex.add(record);
+		}
+
+		for (Listener listener : mListeners)
+		{
+			listener.onCaptureSaved(record);
+		}
+		return toFile(record);
+	}
+
+	/**
+	 * Read the whole of a capture, decrypting it if it is encrypted.
+	 *
+	 * @param record
+	 * @param key AES key the capture was encrypted with
+	 * @throws IOException If the capture cannot be read, or it is encrypted and there is no key.
+	 */
+	public byte[] read(CaptureRecord record, SecretKey key) throws IOException
+	{
+		return read(new File(mDirectory, record.fileName), record.isEncrypted(), key);
+	}
+
+	/**
+	 * Read the whole of a capture file of the store, such as one from getFiles(), decrypting
+	 * it if it is encrypted.
+	 *
+	 * @param file
+	 * @param key AES key the capture was encrypted with
+	 * @throws IOException If the capture cannot be read, or it is encrypted and there is no key.
+	 */
+	public byte[] read(CaptureFile file, SecretKey key) throws IOException
+	{
+		return read(file, file.isEncrypted(), key);
+	}
+
+	/**
+	 * Replace the file of a capture with data of another media type, such as when a raw frame
+	 * is transcoded to JPEG.  The new file is written and synced before the index is changed,
+	 * and the old file is deleted after.
+	 *
+	 * @param record The capture as read from the index.  It is changed to match the new file.
+	 * @param data
+	 * @param mediaType Media type of the new data
+	 * @param key AES key to encrypt the new file with, or null to save it unencrypted
+	 * @return false if the capture was deleted or moved since the record was read, in which
+	 *         case nothing is changed.
+	 * @throws IOException
+	 */
+	public boolean replace(CaptureRecord record, byte[] data, String mediaType, SecretKey key) throws IOException
+	{
+		// the new file keeps the unique part of the old name
+		String fileName = record.fileName;
+		int end = fileName.indexOf('.');
+		String newFileName = (end < 0 ? fileName : fileName.substring(0, end)) + getFileExtension(mediaType)
+				+ (key == null ? "" : ".enc");
+		File file = new File(mDirectory, newFileName);
+		if (newFileName.equals(fileName) || file.exists())
+		{
+			return false;
+		}
+		write(file, data, key);
+
+		if (!mIndex.replaceFile(record.index, fileName, data.length, mediaType, newFileName, key != null))
+		{
+			file.delete();
+			return false;
+		}
+		new File(mDirectory, fileName).delete();
+
+		record.fileName = newFileName;
+		record.mediaType = mediaType;
+		record.size = data.length;
+		record.flags = key == null ? record.flags & ~CaptureRecord.FLAG_ENCRYPTED
+				: record.flags | CaptureRecord.FLAG_ENCRYPTED;
+		return true;
+	}
+
+	/**
+	 * Write the face bounds and quality of a record back to the index, such as after the capture
+	 * is scored again.  Nothing else about the capture changes.
+	 *
+	 * @param record The capture as read from the index, with its new bounds and quality
+	 * @return false if the capture was deleted or moved since the record was read.
+	 */
+	public boolean update(CaptureRecord record)
+	{
+		return mIndex.update(record.index, record.fileName, record);
+	}
+
+	/**
+	 * Pin a capture so that it is not removed to make room, such as while it waits to be
+	 * uploaded.
+	 *
+	 * @param index Position of the capture in the index
+	 * @param pinned
+	 */
+	public void setPinned(int index, boolean pinned)
+	{
+		synchronized (mIndex)
+		{
+			int flags = mIndex.getFlags(index);
+			mIndex.setFlags(index, pinned ? flags | CaptureRecord.FLAG_PINNED : flags & ~CaptureRecord.FLAG_PINNED);
+		}
+	}
+
+	/**
+	 * Mark a capture as uploaded, so that a RetentionManager may remove it again.
+	 *
+	 * @param record The capture as it was saved
+	 * @return false if the capture is no longer in the store.
+	 */
+	public boolean markSent(CaptureRecord record)
+	{
+		synchronized (mIndex)
+		{
+			int index = mIndex.find(record);
+			if (index < 0)
+			{
+				return false;
+			}
+			mIndex.setFlags(index, mIndex.getFlags(index) & ~CaptureRecord.FLAG_UNSENT);
+			return true;
+		}
+	}
+
+	/**
+	 * Mark every capture as uploaded, such as once the spool they were waiting in is empty.
+	 *
+	 * @return The number of captures that were waiting.
+	 */
+	public int markAllSent()
+	{
+		int count = 0;
+		synchronized (mIndex)
+		{
+			for (int i = 0; i < mIndex.size(); i++)
+			{
+				int flags = mIndex.getFlags(i);
+				if ((flags & CaptureRecord.FLAG_UNSENT) != 0)
+				{
+					mIndex.setFlags(i, flags & ~CaptureRecord.FLAG_UNSENT);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Add a listener that is told about every saved capture.
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener)
+	{
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener.
+	 *
+	 * @param listener
+	 */
+	public void removeListener(Listener listener)
+	{
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Number of captures in the store, not counting those that have been deleted.
+	 */
+	public int size()
+	{
+		return mIndex.getLiveCount();
+	}
+
+	/**
+	 * Get the file of a capture.
+	 *
+	 * @param index Position of the capture in the index
+	 */
+	public CaptureFile getFile(int index)
+	{
+		CaptureRecord record = new CaptureRecord();
+		mIndex.get(index, record);
+		return toFile(record);
+	}
+
+	/**
+	 * Get the file of a capture.
+	 *
+	 * @param record
+	 */
+	public CaptureFile toFile(CaptureRecord record)
+	{
+		CaptureFile file = new CaptureFile(mDirectory, record.fileName);
+		file.setMediaType(record.mediaType);
+		file.setEncrypted(record.isEncrypted());
+		return file;
+	}
+
+	/**
+	 * A read-only view of the files in the store that have not been deleted, in the order they
+	 * were saved.  Files are created from the index only as they are accessed, and the view
+	 * changes as captures are saved and removed.
+	 */
+	public List<CaptureFile> getFiles()
+	{
+		return new AbstractList<CaptureFile>()
+		{
+			@Override
+			public CaptureFile get(int index)
+			{
+				CaptureRecord record = new CaptureRecord();
+				mIndex.getLive(index, record);
+				return toFile(record);
+			}
+
+			@Override
+			public int size()
+			{
+				return mIndex.getLiveCount();
+			}
+		};
+	}
+
+	/**
+	 * Get a page of the captures that match a query.
+	 *
+	 * @param query
+	 * @param start 0 for the first page, or the next start of the previous page
+	 * @param pageSize Largest number of captures to return
+	 */
+	public CapturePage query(CaptureQuery query, int start, int pageSize)
+	{
+		return mIndex.query(query, start, pageSize);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mIndex.close();
+	}
+
+
+	/**
+	 * Name the file of a new capture and set its encrypted flag.  Called holding mSaveLock,
+	 * since the file is named after the entry it will get.
+	 */
+	private File newFile(CaptureRecord record, SecretKey key)
+	{
+		// positions change when the index is compacted, so the name also has the time
+		String suffix = getFileExtension(record.mediaType) + (key == null ? "" : ".enc");
+		record.fileName = "capture-" + record.timestamp + "-" + mIndex.size() + suffix;
+		File file = new File(mDirectory, record.fileName);
+		for (int i = 1; file.exists(); i++)
+		{
+			record.fileName = "capture-" + record.timestamp + "-" + mIndex.size() + "-" + i + suffix;
+			file = new File(mDirectory, record.fileName);
+		}
+		record.flags = key == null ? record.flags & ~CaptureRecord.FLAG_ENCRYPTED
+				: record.flags | CaptureRecord.FLAG_ENCRYPTED;
+		return file;
+	}
+
+	private static byte[] read(File file, boolean encrypted, SecretKey key) throws IOException
+	{
+		InputStream in;
+		EncryptedCaptureReader reader = null;
+		int length;
+		if (encrypted)
+		{
+			if (key == null)
+			{
+				throw new IOException("No key for encrypted capture " + file.getName());
+			}
+			reader = new EncryptedCaptureReader(file, key);
+			in = reader.openStream();
+			length = (int) reader.getLength();
+		}
+		else
+		{
+			in = new FileInputStream(file);
+			length = (int) file.length();
+		}
+
+		try
+		{
+			byte[] data = new byte[length];
+			int offset = 0;
+			while (offset < length)
+			{
+				int read = in.read(data, offset, length - offset);
+				if (read < 0)
+				{
+					throw new IOException("Capture " + file.getName() + " is truncated");
+				}
+				offset += read;
+			}
+			return data;
+		}
+		finally
+		{
+			in.close();
+			if (reader != null)
+			{
+				reader.close();
+			}
+		}
+	}
+
+	private static void encrypt(File source, File file, SecretKey key) throws IOException
+	{
+		InputStream in = new FileInputStream(source);
+		try
+		{
+			// the writer syncs the file when it is closed
+			OutputStream out = new EncryptedCaptureWriter(file, key);
+			try
+			{
+				byte[] buffer = new byte[EncryptedCaptureWriter.DEFAULT_CHUNK_SIZE];
+				int read;
+				while ((read = in.read(buffer)) > 0)
+				{
+					out.write(buffer, 0, read);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			file.delete();
+			throw ex;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] data, SecretKey key) throws IOException
+	{
+		if (key != null)
+		{
+			// the writer syncs the file when it is closed
+			OutputStream out = new EncryptedCaptureWriter(file, key);
+			try
+			{
+				out.write(data);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		else
+		{
+			FileOutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write(data);
+				out.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+	}
+
+	private static String getFileExtension(String mediaType)
+	{
+		if ("image/jpeg".equals(mediaType))
+		{
+			return ".jpg";
+		}
+		if (Lz4Nv21Codec.MEDIA_TYPE.equals(mediaType))
+		{
+			return ".nv21";
+		}
+		if ("audio/wav".equals(mediaType) || "audio/x-wav".equals(mediaType))
+		{
+			return ".wav";
+		}
+		return ".bin";
+	}
+
+
+	private final File 			mDirectory;
+	private final CaptureIndex 	mIndex;
+	private final Object 		mSaveLock = new Object();
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+}
@@ -0,0 +1,551 @@
+package com.openbiometrix.capture.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps a CaptureStore within a size, a capture count and an age.  When the store goes over a
+ * quota, captures are removed until it is back under the low watermark, a fraction below the
+ * quota, so that the work is done in batches rather than on every capture:
+ *
+ *     1. captures older than the maximum age
+ *     2. captures with a quality score below the keep quality, oldest first
+ *     3. any other capture, oldest first
+ *
+ * Pinned captures, and those marked unsent because they are still waiting to be uploaded,
+ * are never removed.
+ *
+ * Removing a capture only marks it deleted in the index, which takes the index lock for one
+ * entry at a time, so saving a capture never waits behind eviction.  The files are deleted
+ * afterwards at a limited rate, and the index is compacted a step at a time once enough deleted
+ * entries have built up.  All of this runs on a low priority background thread.
+ *
+ * The manager compacts the index itself, so positions of captures in the store change while it
+ * runs.  Check CaptureIndex.getGeneration before using positions that were read earlier.
+ */
+public class RetentionManager implements CaptureStore.Listener
+{
+	public final static float LOW_WATERMARK = 0.9f;
+	public final static int DEFAULT_DELETE_RATE = 100;
+	public final static int DEFAULT_COMPACT_THRESHOLD = 1024;
+
+	private final static long CHECK_INTERVAL = 60000;
+	private final static int WINDOW = 512;
+	private final static int COMPACT_STEP = 1024;
+	private final static long COMPACT_PAUSE = 1;
+
+
+	/**
+	 * @param store The store to keep within its quotas
+	 */
+	public RetentionManager(CaptureStore store)
+	{
+		mStore = store;
+		mIndex = store.getIndex();
+	}
+
+	/**
+	 * Set the largest total size of the captures.
+	 *
+	 * @param maxBytes Size in bytes, or Long.MAX_VALUE for no limit
+	 */
+	public synchronized void setMaxBytes(long maxBytes)
+	{
+		mMaxBytes = maxBytes;
+		wakeUp();
+	}
+
+	/**
+	 * Set the largest number of captures.
+	 *
+	 * @param maxCount Number of captures, or Integer.MAX_VALUE for no limit
+	 */
+	public synchronized void setMaxCount(int maxCount)
+	{
+		mMaxCount = maxCount;
+		wakeUp();
+	}
+
+	/**
+	 * Set the age after which captures are removed.
+	 *
+	 * @param maxAge Age in milliseconds, or Long.MAX_VALUE to keep captures of any age
+	 */
+	public synchronized void setMaxAge(long maxAge)
+	{
+		mMaxAge = maxAge;
+		wakeUp();
+	}
+
+	/**
+	 * Set the quality score at or above which captures are kept in preference to others.
+	 *
+	 * @param quality
+	 */
+	public synchronized void setKeepQuality(float quality)
+	{
+		mKeepQuality = quality;
+	}
+
+	/**
+	 * Set the largest number of files deleted per second, to limit the I/O used by deleting.
+	 * The default of 100 is well above a sustained 30 captures per second.
+	 *
+	 * @param filesPerSecond
+	 */
+	public synchronized void setDeleteRate(int filesPerSecond)
+	{
+		mDeleteInterval = 1000000000L / Math.max(filesPerSecond, 1);
+	}
+
+	/**
+	 * Set the number of deleted entries that have to build up before the index is compacted.
+	 *
+	 * @param entries
+	 */
+	public synchronized void setCompactThreshold(int entries)
+	{
+		mCompactThreshold = entries;
+	}
+
+	/**
+	 * Start the background thread.  Files of captures that were deleted from the index but not
+	 * from the disk, such as when the process was killed, are deleted first.
+	 */
+	public synchronized void start()
+	{
+		if (mThread != null)
+		{
+			return;
+		}
+		mStop = false;
+		mStore.addListener(this);
+		mThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				retentionLoop();
+			}
+		}, "RetentionManager");
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stop the background thread and wait for it to end.  A compaction that is running is
+	 * abandoned and the index is left as it was.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			thread = mThread;
+			mThread = null;
+			mStop = true;
+			notifyAll();
+		}
+		mStore.removeListener(this);
+		if (thread != null)
+		{
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+	/**
+	 * Wakes the background thread when the new capture takes the store over a quota.  If the last
+	 * pass could not get within the quotas the thread is left to its periodic check, so a store
+	 * full of pinned captures is not scanned on every capture.
+	 */
+	@Override
+	public void onCaptureSaved(CaptureRecord record)
+	{
+		synchronized (this)
+		{
+			if (mWakeUp || mQuotaExceeded)
+			{
+				return;
+			}
+		}
+		if (isOverQuota(false))
+		{
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Remove captures until the store is within its quotas, on the calling thread.  The files
+	 * are only queued for deletion.  This is what the background thread does, so only call it
+	 * while the manager is stopped.
+	 *
+	 * @return The number of captures removed.
+	 */
+	public int evict()
+	{
+		long start = System.currentTimeMillis();
+		long maxBytes;
+		int maxCount;
+		long maxAge;
+		float keepQuality;
+		synchronized (this)
+		{
+			maxBytes = mMaxBytes;
+			maxCount = mMaxCount;
+			maxAge = mMaxAge;
+			keepQuality = mKeepQuality;
+		}
+		long lowBytes = maxBytes == Long.MAX_VALUE ? maxBytes : (long) (maxBytes * LOW_WATERMARK);
+		int lowCount = maxCount == Integer.MAX_VALUE ? maxCount : (int) (maxCount * LOW_WATERMARK);
+
+		int removed = 0;
+		if (maxAge != Long.MAX_VALUE)
+		{
+			removed += evictOlderThan(start - maxAge);
+		}
+		if (isOverQuota(false))
+		{
+			// low quality captures go first, then the oldest of the rest
+			removed += evictOldest(lowBytes, lowCount, keepQuality);
+			removed += evictOldest(lowBytes, lowCount, Float.POSITIVE_INFINITY);
+		}
+
+		synchronized (this)
+		{
+			mQuotaExceeded = isOverQuota(false);
+			mLastPassTime = System.currentTimeMillis() - start;
+		}
+		return removed;
+	}
+
+	/**
+	 * Total number of captures removed.
+	 */
+	public synchronized long getEvictedCount()
+	{
+		return mEvictedCount;
+	}
+
+	/**
+	 * Total size in bytes of the captures removed.
+	 */
+	public synchronized long getEvictedBytes()
+	{
+		return mEvictedBytes;
+	}
+
+	/**
+	 * Total number of capture files deleted from the disk.
+	 */
+	public synchronized long getDeletedFileCount()
+	{
+		return mDeletedFileCount;
+	}
+
+	/**
+	 * Number of capture files waiting to be deleted.
+	 */
+	public synchronized int getPendingDeleteCount()
+	{
+		return mPendingDeletes.size();
+	}
+
+	/**
+	 * Number of times the index has been compacted.
+	 */
+	public synchronized int getCompactionCount()
+	{
+		return mCompactionCount;
+	}
+
+	/**
+	 * Time in milliseconds that the last eviction pass took.
+	 */
+	public synchronized long getLastPassTime()
+	{
+		return mLastPassTime;
+	}
+
+	/**
+	 * Whether the last eviction pass could not get the store within its quotas, because the
+	 * remaining captures are pinned.
+	 */
+	public synchronized boolean isQuotaExceeded()
+	{
+		return mQuotaExceeded;
+	}
+
+
+	private void retentionLoop()
+	{
+		try
+		{
+			queueLeftoverFiles();
+			while (!isStopping())
+			{
+				synchronized (this)
+				{
+					mWakeUp = false;
+				}
+				evict();
+				deleteFiles();
+
+				synchronized (this)
+				{
+					boolean compact = !mStop && !mWakeUp && mPendingDeletes.isEmpty()
+							&& shouldCompact(mIndex.size(), mIndex.getLiveCount());
+					if (!compact)
+					{
+						if (!mStop && !mWakeUp && mPendingDeletes.isEmpty())
+						{
+							wait(CHECK_INTERVAL);
+						}
+						continue;
+					}
+				}
+
+				try
+				{
+					mIndex.compact(COMPACT_STEP, COMPACT_PAUSE);
+					synchronized (this)
+					{
+						mCompactionCount++;
+						mScanStart = 0;
+					}
+				}
+				catch (IOException ex)
+				{
+					// leave the index as it is and try again on the next check
+					synchronized (this)
+					{
+						wait(CHECK_INTERVAL);
+					}
+				}
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			// stopping
+		}
+	}
+
+	private synchronized void wakeUp()
+	{
+		mWakeUp = true;
+		notifyAll();
+	}
+
+	private synchronized boolean shouldCompact(int size, int live)
+	{
+		int deleted = size - live;
+		return deleted >= mCompactThreshold && deleted * 4 >= size;
+	}
+
+	private boolean isOverQuota(boolean lowWatermark)
+	{
+		long maxBytes;
+		int maxCount;
+		synchronized (this)
+		{
+			maxBytes = mMaxBytes;
+			maxCount = mMaxCount;
+		}
+		if (lowWatermark)
+		{
+			maxBytes = maxBytes == Long.MAX_VALUE ? maxBytes : (long) (maxBytes * LOW_WATERMARK);
+			maxCount = maxCount == Integer.MAX_VALUE ? maxCount : (int) (maxCount * LOW_WATERMARK);
+		}
+		return mIndex.getLiveBytes() > maxBytes || mIndex.getLiveCount() > maxCount;
+	}
+
+	/**
+	 * Remove the unpinned captures taken before a time.
+	 */
+	private int evictOlderThan(long cutoff)
+	{
+		int removed = 0;
+		int end = mIndex.indexOf(cutoff);
+		for (int i = getScanStart(); i < end && !isStopping(); i++)
+		{
+			if (remove(i))
+			{
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove unpinned captures below a quality, oldest first, until the store is under the low
+	 * watermarks.  The index is looked at a window at a time so other threads get the lock
+	 * between entries and the quota is checked again after every window.
+	 */
+	private int evictOldest(long lowBytes, int lowCount, float belowQuality)
+	{
+		int removed = 0;
+		int position = getScanStart();
+		while (!isStopping() && (mIndex.getLiveBytes() > lowBytes || mIndex.getLiveCount() > lowCount))
+		{
+			int end = Math.min(mIndex.size(), position + WINDOW);
+			if (position >= end)
+			{
+				break;
+			}
+			for (; position < end; position++)
+			{
+				if (mIndex.getQuality(position) < belowQuality && remove(position))
+				{
+					removed++;
+					if (mIndex.getLiveBytes() <= lowBytes && mIndex.getLiveCount() <= lowCount)
+					{
+						break;
+					}
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Mark a capture deleted, unless it is pinned or unsent, and queue its file for deletion.
+	 */
+	private boolean remove(int index)
+	{
+		long size = mIndex.delete(index, CaptureRecord.FLAG_PINNED | CaptureRecord.FLAG_UNSENT);
+		if (size < 0)
+		{
+			return false;
+		}
+
+		// only this thread compacts, so the position still refers to the same capture
+		CaptureRecord record = new CaptureRecord();
+		mIndex.get(index, record);
+		synchronized (this)
+		{
+			mPendingDeletes.add(record.fileName);
+			mEvictedCount++;
+			mEvictedBytes += size;
+		}
+		return true;
+	}
+
+	/**
+	 * The position before which every entry is deleted.  Moving it past the deleted entries at
+	 * the start of the index keeps each pass from reading them again.
+	 */
+	private int getScanStart()
+	{
+		int start;
+		synchronized (this)
+		{
+			start = mScanStart;
+		}
+		int size = mIndex.size();
+		while (start < size && (mIndex.getFlags(start) & CaptureRecord.FLAG_DELETED) != 0)
+		{
+			start++;
+		}
+		synchronized (this)
+		{
+			mScanStart = start;
+		}
+		return start;
+	}
+
+	/**
+	 * Delete the queued files, no faster than the delete rate.  Returns early if the store goes
+	 * over a quota again so that eviction keeps up with a burst of captures.
+	 */
+	private void deleteFiles() throws InterruptedException
+	{
+		long next = System.nanoTime();
+		while (!isStopping())
+		{
+			String fileName;
+			long interval;
+			synchronized (this)
+			{
+				if (mWakeUp)
+				{
+					return;
+				}
+				fileName = mPendingDeletes.poll();
+				interval = mDeleteInterval;
+			}
+			if (fileName == null)
+			{
+				return;
+			}
+
+			long now = System.nanoTime();
+			if (next > now)
+			{
+				Thread.sleep((next - now) / 1000000, (int) ((next - now) % 1000000));
+			}
+			next = Math.max(next, now) + interval;
+
+			File file = new File(mStore.getDirectory(), fileName);
+			if (file.delete() || !file.exists())
+			{
+				synchronized (this)
+				{
+					mDeletedFileCount++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue the files of deleted captures that are still on the disk.
+	 */
+	private void queueLeftoverFiles()
+	{
+		CaptureRecord record = new CaptureRecord();
+		for (int i = 0; i < mIndex.size() && !isStopping(); i++)
+		{
+			if ((mIndex.getFlags(i) & CaptureRecord.FLAG_DELETED) == 0)
+			{
+				continue;
+			}
+			mIndex.get(i, record);
+			if (new File(mStore.getDirectory(), record.fileName).exists())
+			{
+				synchronized (this)
+				{
+					mPendingDeletes.add(record.fileName);
+				}
+			}
+		}
+	}
+
+	private synchronized boolean isStopping()
+	{
+		return mStop;
+	}
+
+
+	private final CaptureStore 			mStore;
+	private final CaptureIndex 			mIndex;
+	private final ArrayDeque<String> 	mPendingDeletes = new ArrayDeque<String>();
+	private Thread 						mThread = null;
+	private boolean 					mStop = false;
+	private long 						mMaxBytes = Long.MAX_VALUE;
+	private int 						mMaxCount = Integer.MAX_VALUE;
+	private long 						mMaxAge = Long.MAX_VALUE;
+	private float 						mKeepQuality = Float.NEGATIVE_INFINITY;
+	private long 						mDeleteInterval = 1000000000L / DEFAULT_DELETE_RATE;
+	private int 						mCompactThreshold = DEFAULT_COMPACT_THRESHOLD;
+	private int 						mScanStart = 0;
+	private long 						mEvictedCount = 0;
+	private long 						mEvictedBytes = 0;
+	private long 						mDeletedFileCount = 0;
+	private int 						mCompactionCount = 0;
+	private long 						mLastPassTime = 0;
+	private boolean 					mQuotaExceeded = false;
+	private boolean 					mWakeUp = false;
+}
@@ -0,0 +1,18 @@
+package com.openbiometrix.capture.stream;
+
+/**
+ * Told about each item a device captures, on the executor it was added with.  For consumers as
+ * light as an overlay or a counter, which need neither a buffer nor a thread of their own.
+ *
+ * @param <T> Type of the items
+ */
+public interface CaptureListener<T>
+{
+	/**
+	 * An item was captured.  Pooled items, such as a FaceSample, are released after this
+	 * returns, so anything that is needed later must be copied here.
+	 *
+	 * @param item
+	 */
+	void onCapture(T item);
+}
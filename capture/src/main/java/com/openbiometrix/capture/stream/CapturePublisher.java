@@ -0,0 +1,301 @@
+package com.openbiometrix.capture.stream;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Publisher that a capture device sends its items to as they are captured.  Each subscriber
+ * only gets what it requested, on the thread that published the item or the thread that
+ * requested it, so a subscriber needs no thread or View of its own.  The device is never held
+ * up by a slow subscriber: while a subscriber has no demand, items for it are dropped, or with
+ * the LATEST strategy the newest is kept until it asks for more.
+ *
+ * Subclasses can hold a reference on the items a subscriber is waiting for, through onRetain()
+ * and onDiscard(), for items that are pooled.
+ *
+ * @param <T> Type of the items
+ */
+public class CapturePublisher<T> implements Publisher<T>
+{
+	/**
+	 * What happens to an item that comes while a subscriber has no demand.
+	 */
+	public enum Strategy
+	{
+		/**
+		 * The item is dropped.
+		 */
+		DROP,
+
+		/**
+		 * The item is kept, in place of the one kept before, and delivered on the next request.
+		 */
+		LATEST
+	}
+
+
+	/**
+	 * Create a publisher that keeps the latest item for subscribers without demand.
+	 */
+	public CapturePublisher()
+	{
+		this(Strategy.LATEST);
+	}
+
+	/**
+	 * @param strategy The strategy of subscribers that do not choose one
+	 */
+	public CapturePublisher(Strategy strategy)
+	{
+		mStrategy = strategy;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber)
+	{
+		subscribe(subscriber, mStrategy);
+	}
+
+	/**
+	 * Start sending items to a subscriber, with a strategy of its own for items that come
+	 * while it has no demand.
+	 *
+	 * @param subscriber
+	 * @param strategy
+	 */
+	public void subscribe(Subscriber<? super T> subscriber, Strategy strategy)
+	{
+		if (subscriber == null)
+		{
+			throw new NullPointerException("Subscriber cannot be null");
+		}
+		CaptureSubscription subscription = new CaptureSubscription(subscriber, strategy);
+		mSubscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Whether there are subscribers, so a device can skip work that only they need.
+	 */
+	public boolean hasSubscribers()
+	{
+		return !mSubscriptions.isEmpty();
+	}
+
+	public int getSubscriberCount()
+	{
+		return mSubscriptions.size();
+	}
+
+	/**
+	 * Send an item to every subscriber that requested one, and keep or drop it for the others.
+	 * Called by the device on the thread that captured the item.
+	 *
+	 * @param item
+	 */
+	public void publish(T item)
+	{
+		for (CaptureSubscription subscription : mSubscriptions)
+		{
+			subscription.offer(item);
+		}
+	}
+
+	/**
+	 * Tell the current subscribers that no more items will come, such as when the device is
+	 * destroyed.  Items kept for them are dropped.  Later subscribers are served as usual.
+	 */
+	public void complete()
+	{
+		for (CaptureSubscription subscription : mSubscriptions)
+		{
+			subscription.complete();
+		}
+	}
+
+	/**
+	 * Number of items delivered to subscribers.
+	 */
+	public long getDeliveredCount()
+	{
+		return mDeliveredCount.get();
+	}
+
+	/**
+	 * Number of items not delivered to a subscriber because it had no demand.
+	 */
+	public long getDroppedCount()
+	{
+		return mDroppedCount.get();
+	}
+
+	/**
+	 * Called when an item is kept for a subscriber, so a subclass can hold a reference on it.
+	 * The reference passes to the subscriber with the item, or is given up through onDiscard().
+	 *
+	 * @param item
+	 */
+	protected void onRetain(T item)
+	{
+	}
+
+	/**
+	 * Called when an item kept for a subscriber is dropped.
+	 *
+	 * @param item
+	 */
+	protected void onDiscard(T item)
+	{
+	}
+
+
+	//==============================================================================================
+	// Subscription
+	//==============================================================================================
+
+	/**
+	 * One subscriber's demand and the item kept for it.  Delivery is serialized by a work
+	 * counter, so the thread that finds work to do delivers it, and a thread that comes while
+	 * another is delivering leaves the work to it.
+	 */
+	private class CaptureSubscription implements Subscription
+	{
+		CaptureSubscription(Subscriber<? super T> subscriber, Strategy strategy)
+		{
+			mSubscriber = subscriber;
+			mSubStrategy = strategy;
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				if (!mCancelled)
+				{
+					cancel();
+					mSubscriber.onError(new IllegalArgumentException("Request must be positive: " + n));
+				}
+				return;
+			}
+			while (true)
+			{
+				long requested = mRequested.get();
+				long sum = requested + n;
+				if (sum < 0)
+				{
+					sum = Long.MAX_VALUE;
+				}
+				if (mRequested.compareAndSet(requested, sum))
+				{
+					break;
+				}
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel()
+		{
+			mCancelled = true;
+			mSubscriptions.remove(this);
+			drain();
+		}
+
+		void offer(T item)
+		{
+			if (mCancelled || mDone)
+			{
+				return;
+			}
+			if (mSubStrategy == Strategy.DROP && mRequested.get() == 0)
+			{
+				mDroppedCount.incrementAndGet();
+				return;
+			}
+			onRetain(item);
+			T replaced = mPending.getAndSet(item);
+			if (replaced != null)
+			{
+				mDroppedCount.incrementAndGet();
+				onDiscard(replaced);
+			}
+			drain();
+		}
+
+		void complete()
+		{
+			mDone = true;
+			drain();
+		}
+
+		private void drain()
+		{
+			if (mWork.getAndIncrement() != 0)
+			{
+				return;
+			}
+			int missed = 1;
+			do
+			{
+				while (!mCancelled && mRequested.get() > 0)
+				{
+					T item = mPending.getAndSet(null);
+					if (item == null)
+					{
+						break;
+					}
+					if (mRequested.get() != Long.MAX_VALUE)
+					{
+						mRequested.decrementAndGet();
+					}
+					mDeliveredCount.incrementAndGet();
+					try
+					{
+						mSubscriber.onNext(item);
+					}
+					catch (RuntimeException ex)
+					{
+						// a subscriber must not throw; it is dropped rather than the device failing
+						mCancelled = true;
+						mSubscriptions.remove(this);
+						mSubscriber.onError(ex);
+					}
+				}
+
+				if (mCancelled || mDone)
+				{
+					T item = mPending.getAndSet(null);
+					if (item != null)
+					{
+						onDiscard(item);
+					}
+				}
+				if (mDone && !mCancelled)
+				{
+					mCancelled = true;
+					mSubscriptions.remove(this);
+					mSubscriber.onComplete();
+				}
+				missed = mWork.addAndGet(-missed);
+			}
+			while (missed != 0);
+		}
+
+		private final Subscriber<? super T> 	mSubscriber;
+		private final Strategy 					mSubStrategy;
+		private final AtomicLong 				mRequested = new AtomicLong();
+		private final AtomicReference<T> 		mPending = new AtomicReference<T>();
+		private final AtomicInteger 			mWork = new AtomicInteger();
+		private volatile boolean 				mCancelled = false;
+		private volatile boolean 				mDone = false;
+	}
+
+
+	private final Strategy 									mStrategy;
+	private final CopyOnWriteArrayList<CaptureSubscription> mSubscriptions = new CopyOnWriteArrayList<CaptureSubscription>();
+	private final AtomicLong 								mDeliveredCount = new AtomicLong();
+	private final AtomicLong 								mDroppedCount = new AtomicLong();
+}
@@ -0,0 +1,337 @@
+package com.openbiometrix.capture.stream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls the listeners of a device with each item it captures, on the executor each listener
+ * chose.  With DIRECT a listener is called on the thread that captured the item, with no queue
+ * or thread hop at all, so it must be quick.  A listener added as ordered gets its items one
+ * at a time in capture order, even on an executor with several threads.
+ *
+ * The time from dispatch to each call is recorded per listener.  A listener that throws does
+ * not stop the others or the device: the error is counted and passed to onListenerError().
+ *
+ * Subclasses can hold a reference on an item while calls to it are queued, through onRetain()
+ * and onRelease(), for items that are pooled.
+ *
+ * @param <T> Type of the items
+ */
+public class ListenerDispatcher<T>
+{
+	/**
+	 * Runs listeners on the thread that dispatched the item.
+	 */
+	public final static Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+
+	/**
+	 * Add a listener.
+	 *
+	 * @param listener
+	 * @param executor Executor to call the listener on, or DIRECT for the capture thread.
+	 * @param ordered Whether calls must not overlap and must keep the capture order.  Not
+	 *                needed with DIRECT or a single threaded executor.
+	 * @return The registration, for removing the listener and for its latency.
+	 */
+	public Registration addListener(CaptureListener<? super T> listener, Executor executor, boolean ordered)
+	{
+		if (listener == null || executor == null)
+		{
+			throw new NullPointerException("Listener and executor cannot be null");
+		}
+		Registration registration = new Registration(listener,
+				ordered && executor != DIRECT ? new SerialExecutor(executor) : executor);
+		mRegistrations.add(registration);
+		return registration;
+	}
+
+	/**
+	 * Remove a listener.  Calls already queued for it still happen.
+	 *
+	 * @param listener
+	 */
+	public void removeListener(CaptureListener<? super T> listener)
+	{
+		for (Registration registration : mRegistrations)
+		{
+			if (registration.mListener == listener)
+			{
+				mRegistrations.remove(registration);
+			}
+		}
+	}
+
+	/**
+	 * Whether there are listeners, so a device can skip work that only they need.
+	 */
+	public boolean hasListeners()
+	{
+		return !mRegistrations.isEmpty();
+	}
+
+	/**
+	 * Call every listener with an item.  Called by the device on the thread that captured it.
+	 *
+	 * @param item
+	 */
+	public void dispatch(T item)
+	{
+		long now = System.nanoTime();
+		for (Registration registration : mRegistrations)
+		{
+			registration.dispatch(item, now);
+		}
+	}
+
+	/**
+	 * Called before a call with the item is queued, so a subclass can hold a reference on it
+	 * until onRelease().
+	 *
+	 * @param item
+	 */
+	protected void onRetain(T item)
+	{
+	}
+
+	/**
+	 * Called after the listener that onRetain() was called for has been called.
+	 *
+	 * @param item
+	 */
+	protected void onRelease(T item)
+	{
+	}
+
+	/**
+	 * Called on the thread of the call when a listener throws, so a subclass can log it.  The
+	 * item is still released and the other listeners still called.
+	 *
+	 * @param listener
+	 * @param error
+	 */
+	protected void onListenerError(CaptureListener<? super T> listener, RuntimeException error)
+	{
+	}
+
+
+	/**
+	 * A listener, the executor it is called on, and the time its calls waited.
+	 */
+	public class Registration
+	{
+		Registration(CaptureListener<? super T> listener, Executor executor)
+		{
+			mListener = listener;
+			mExecutor = executor;
+		}
+
+		/**
+		 * Remove the listener.
+		 */
+		public void remove()
+		{
+			mRegistrations.remove(this);
+		}
+
+		/**
+		 * Number of calls made to the listener.
+		 */
+		public long getCallCount()
+		{
+			return mCallCount.get();
+		}
+
+		/**
+		 * Mean time in milliseconds from dispatch to the call of the listener.
+		 */
+		public double getAverageLatency()
+		{
+			long count = mCallCount.get();
+			return count == 0 ? 0 : mLatency.get() / 1e6 / count;
+		}
+
+		/**
+		 * Longest time in milliseconds from dispatch to the call of the listener.
+		 */
+		public double getMaxLatency()
+		{
+			return mMaxLatency.get() / 1e6;
+		}
+
+		/**
+		 * Number of calls in which the listener threw.
+		 */
+		public long getErrorCount()
+		{
+			return mErrorCount.get();
+		}
+
+		/**
+		 * Number of calls the executor rejected, such as after it was shut down.
+		 */
+		public long getRejectedCount()
+		{
+			return mRejectedCount.get();
+		}
+
+		void dispatch(final T item, final long dispatchTime)
+		{
+			if (mExecutor == DIRECT)
+			{
+				call(item, dispatchTime);
+				return;
+			}
+			onRetain(item);
+			try
+			{
+				mExecutor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							call(item, dispatchTime);
+						}
+						finally
+						{
+							onRelease(item);
+						}
+					}
+				});
+			}
+			catch (RuntimeException ex)
+			{
+				mRejectedCount.incrementAndGet();
+				onRelease(item);
+			}
+		}
+
+		private void call(T item, long dispatchTime)
+		{
+			long latency = System.nanoTime() - dispatchTime;
+			mLatency.addAndGet(latency);
+			mCallCount.incrementAndGet();
+			long max;
+			while (latency > (max = mMaxLatency.get()) && !mMaxLatency.compareAndSet(max, latency))
+			{
+				// another call raced us; try again
+			}
+			try
+			{
+				mListener.onCapture(item);
+			}
+			catch (RuntimeException ex)
+			{
+				mErrorCount.incrementAndGet();
+				onListenerError(mListener, ex);
+			}
+		}
+
+		private final CaptureListener<? super T> 	mListener;
+		private final Executor 						mExecutor;
+		private final AtomicLong 					mCallCount = new AtomicLong();
+		private final AtomicLong 					mLatency = new AtomicLong();
+		private final AtomicLong 					mMaxLatency = new AtomicLong();
+		private final AtomicLong 					mErrorCount = new AtomicLong();
+		private final AtomicLong 					mRejectedCount = new AtomicLong();
+	}
+
+
+	/**
+	 * Runs tasks one at a time in the order they were given, on an executor that may have
+	 * several threads.  The tasks that are waiting are run in one go on a single thread of the
+	 * executor, so the executor is only given work when this is idle.
+	 */
+	private static class SerialExecutor implements Executor, Runnable
+	{
+		SerialExecutor(Executor executor)
+		{
+			mExecutor = executor;
+		}
+
+		@Override
+		public void execute(Runnable command)
+		{
+			synchronized (this)
+			{
+				mTasks.add(command);
+				if (mActive)
+				{
+					return;
+				}
+				mActive = true;
+			}
+			submit(command);
+		}
+
+		@Override
+		public void run()
+		{
+			RuntimeException error = null;
+			while (true)
+			{
+				Runnable task;
+				synchronized (this)
+				{
+					task = mTasks.poll();
+					if (task == null)
+					{
+						mActive = false;
+						break;
+					}
+				}
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException ex)
+				{
+					// the tasks after it are still run, and the first error left to the executor
+					if (error == null)
+					{
+						error = ex;
+					}
+				}
+			}
+			if (error != null)
+			{
+				throw error;
+			}
+		}
+
+		private void submit(Runnable command)
+		{
+			try
+			{
+				mExecutor.execute(this);
+			}
+			catch (RuntimeException ex)
+			{
+				synchronized (this)
+				{
+					mTasks.removeLastOccurrence(command);
+					mActive = false;
+				}
+				throw ex;
+			}
+		}
+
+		private final Executor 				mExecutor;
+		private final ArrayDeque<Runnable> 	mTasks = new ArrayDeque<Runnable>();
+		private boolean 					mActive = false;
+	}
+
+
+	private final CopyOnWriteArrayList<Registration> 	mRegistrations = new CopyOnWriteArrayList<Registration>();
+}
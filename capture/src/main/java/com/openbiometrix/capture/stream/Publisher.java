@@ -0,0 +1,17 @@
+package com.openbiometrix.capture.stream;
+
+/**
+ * A source of items that subscribers ask for, following the Reactive Streams Publisher.
+ *
+ * @param <T> Type of the items
+ */
+public interface Publisher<T>
+{
+	/**
+	 * Start sending items to a subscriber.  The subscriber is given its Subscription in
+	 * onSubscribe(), and gets no items until it requests some through it.
+	 *
+	 * @param subscriber
+	 */
+	void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,37 @@
+package com.openbiometrix.capture.stream;
+
+/**
+ * Receives the items of a Publisher, following the Reactive Streams Subscriber.  The methods
+ * are called one at a time, but not always on the same thread, and must not block for long
+ * since they may run on the thread that captured the item.
+ *
+ * @param <T> Type of the items
+ */
+public interface Subscriber<T>
+{
+	/**
+	 * Called first, with the subscription to request items through.
+	 *
+	 * @param subscription
+	 */
+	void onSubscribe(Subscription subscription);
+
+	/**
+	 * An item that was requested.
+	 *
+	 * @param item
+	 */
+	void onNext(T item);
+
+	/**
+	 * The subscription failed and no more items will come.
+	 *
+	 * @param error
+	 */
+	void onError(Throwable error);
+
+	/**
+	 * The publisher finished and no more items will come.
+	 */
+	void onComplete();
+}
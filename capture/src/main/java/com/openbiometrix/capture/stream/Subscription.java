@@ -0,0 +1,20 @@
+package com.openbiometrix.capture.stream;
+
+/**
+ * The link between a Publisher and one of its subscribers, following the Reactive Streams
+ * Subscription.  It may be used from any thread.
+ */
+public interface Subscription
+{
+	/**
+	 * Ask for up to n more items.  Requests add up; Long.MAX_VALUE asks for every item.
+	 *
+	 * @param n More than 0
+	 */
+	void request(long n);
+
+	/**
+	 * Stop sending items.  Items may still arrive for a moment while one is being delivered.
+	 */
+	void cancel();
+}
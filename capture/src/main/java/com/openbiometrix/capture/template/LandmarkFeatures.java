@@ -0,0 +1,82 @@
+package com.openbiometrix.capture.template;
+
+import android.graphics.PointF;
+
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.Landmark;
+
+import java.util.List;
+
+/**
+ * Builds a simple geometric template from the landmarks of a detected face: the distance between
+ * every pair of landmarks divided by the distance between the eyes.  It does not identify a
+ * person on its own, but it is cheap, needs nothing beyond the face detector, and is enough to
+ * spot the same face being captured over and over in a session.  Templates from an external
+ * embedding model can be stored in a TemplateIndex in the same way.
+ */
+public final class LandmarkFeatures
+{
+	public final static int LANDMARK_COUNT = 12;
+	public final static int DIMENSION = LANDMARK_COUNT * (LANDMARK_COUNT - 1) / 2;
+
+
+	private LandmarkFeatures()
+	{
+	}
+
+	/**
+	 * Compute the template of a face.  Pairs that involve a landmark the detector did not find
+	 * are set to 0.
+	 *
+	 * @param face A face detected with landmarks enabled
+	 * @param out Receives DIMENSION values
+	 * @return true if the template was computed, false if the face has no eye landmarks.
+	 */
+	public static boolean extract(Face face, float[] out)
+	{
+		float[] x = new float[LANDMARK_COUNT];
+		float[] y = new float[LANDMARK_COUNT];
+		boolean[] found = new boolean[LANDMARK_COUNT];
+
+		List<Landmark> landmarks = face.getLandmarks();
+		for (int i = 0; i < landmarks.size(); i++)
+		{
+			Landmark landmark = landmarks.get(i);
+			int type = landmark.getType();
+			if (type >= 0 && type < LANDMARK_COUNT)
+			{
+				PointF p = landmark.getPosition();
+				x[type] = p.x;
+				y[type] = p.y;
+				found[type] = true;
+			}
+		}
+
+		if (!found[Landmark.LEFT_EYE] || !found[Landmark.RIGHT_EYE])
+		{
+			return false;
+		}
+		float eyes = distance(x, y, Landmark.LEFT_EYE, Landmark.RIGHT_EYE);
+		if (eyes <= 0)
+		{
+			return false;
+		}
+
+		int n = 0;
+		for (int i = 0; i < LANDMARK_COUNT; i++)
+		{
+			for (int j = i + 1; j < LANDMARK_COUNT; j++)
+			{
+				out[n++] = found[i] && found[j] ? distance(x, y, i, j) / eyes : 0;
+			}
+		}
+		return true;
+	}
+
+	private static float distance(float[] x, float[] y, int a, int b)
+	{
+		float dx = x[a] - x[b];
+		float dy = y[a] - y[b];
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+}
@@ -0,0 +1,117 @@
+package com.openbiometrix.capture.template;
+
+/**
+ * The best matches of a TemplateIndex search, ordered from most to least similar.  A
+ * SearchResults can be reused across searches to avoid allocating.
+ */
+public class SearchResults
+{
+	/**
+	 * @param capacity The largest number of matches that will be kept
+	 */
+	public SearchResults(int capacity)
+	{
+		mIds = new long[capacity];
+		mScores = new float[capacity];
+		mIndexes = new int[capacity];
+	}
+
+	/**
+	 * Number of matches found.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Id of the template of the nth best match.
+	 *
+	 * @param n
+	 */
+	public long getId(int n)
+	{
+		return mIds[n];
+	}
+
+	/**
+	 * Cosine similarity, from -1 to 1, of the nth best match.
+	 *
+	 * @param n
+	 */
+	public float getScore(int n)
+	{
+		return mScores[n];
+	}
+
+	/**
+	 * Position in the index of the nth best match.
+	 *
+	 * @param n
+	 */
+	public int getIndex(int n)
+	{
+		return mIndexes[n];
+	}
+
+	/**
+	 * Largest number of matches that will be kept.
+	 */
+	public int getCapacity()
+	{
+		return mIds.length;
+	}
+
+	void clear()
+	{
+		mSize = 0;
+	}
+
+	/**
+	 * The score a match needs to beat to be kept.
+	 */
+	float getMinScore()
+	{
+		return mSize < mScores.length ? Float.NEGATIVE_INFINITY : mScores[mSize - 1];
+	}
+
+	/**
+	 * Insert a match in score order, dropping the worst match if full.
+	 */
+	void offer(int index, long id, float score)
+	{
+		if (mSize == mScores.length && score <= mScores[mSize - 1])
+		{
+			return;
+		}
+
+		int pos = mSize < mScores.length ? mSize++ : mSize - 1;
+		while (pos > 0 && mScores[pos - 1] < score)
+		{
+			mScores[pos] = mScores[pos - 1];
+			mIds[pos] = mIds[pos - 1];
+			mIndexes[pos] = mIndexes[pos - 1];
+			pos--;
+		}
+		mScores[pos] = score;
+		mIds[pos] = id;
+		mIndexes[pos] = index;
+	}
+
+	/**
+	 * Merge the matches of another result into this one.
+	 */
+	void merge(SearchResults other)
+	{
+		for (int i = 0; i < other.mSize; i++)
+		{
+			offer(other.mIndexes[i], other.mIds[i], other.mScores[i]);
+		}
+	}
+
+
+	private final long[] 	mIds;
+	private final float[] 	mScores;
+	private final int[] 	mIndexes;
+	private int 			mSize = 0;
+}
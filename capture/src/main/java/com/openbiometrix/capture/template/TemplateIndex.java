@@ -0,0 +1,996 @@
+package com.openbiometrix.capture.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory gallery of fixed length face templates (feature vectors) that answers 1:N
+ * searches.  Templates are L2 normalized when added and compared by cosine similarity.
+ *
+ * All templates are held in one contiguous off-heap float buffer, and ids in a parallel long
+ * buffer, so a gallery of 100k templates is a handful of objects rather than 100k arrays.
+ * Searches scan the buffer with a 4-way unrolled dot product and are split across a pool of
+ * threads once the gallery is large enough for that to pay off.
+ *
+ * For large galleries an inverted file (IVF) index can be built with buildIvf().  Templates are
+ * clustered by spherical k-means, and an approximate search only scans the clusters closest to
+ * the query.  Templates added after the IVF index was built are scanned by brute force until
+ * the index is rebuilt.
+ *
+ * An index is saved to a single file that is memory mapped by load(), so a saved gallery is
+ * searchable immediately without reading it onto the heap.
+ *
+ * Searches may run concurrently with each other.  Adding templates and building the IVF index
+ * take an exclusive lock.
+ */
+public class TemplateIndex
+{
+	public final static int FILE_MAGIC = 0x5458424f;	// "OBXT"
+	public final static int FILE_VERSION = 1;
+	public final static int DEFAULT_CAPACITY = 1024;
+	public final static int PARALLEL_THRESHOLD = 4096;
+	public final static int DEFAULT_KMEANS_ITERATIONS = 8;
+	public final static int KMEANS_SAMPLES_PER_LIST = 64;
+
+	private final static int HEADER_SIZE = 32;
+	private final static ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * Receives near duplicate pairs found by findDuplicates().  Called from the search threads,
+	 * so implementations must be thread safe.
+	 */
+	public interface DuplicateListener
+	{
+		void onDuplicate(long idA, long idB, float score);
+	}
+
+
+	/**
+	 * Create an empty index.
+	 *
+	 * @param dimension Length of every template
+	 */
+	public TemplateIndex(int dimension)
+	{
+		this(dimension, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty index with room for a number of templates before it has to grow.
+	 *
+	 * @param dimension Length of every template
+	 * @param capacity
+	 */
+	public TemplateIndex(int dimension, int capacity)
+	{
+		if (dimension <= 0)
+		{
+			throw new IllegalArgumentException("Dimension must be positive");
+		}
+		mDimension = dimension;
+		allocate(Math.max(capacity, 1));
+	}
+
+	/**
+	 * Length of the templates in this index.
+	 */
+	public int getDimension()
+	{
+		return mDimension;
+	}
+
+	/**
+	 * Number of templates in the index.
+	 */
+	public int size()
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return mCount;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Set the number of threads used for large searches.  Values less than 1 use one thread per
+	 * core.
+	 *
+	 * @param threadCount
+	 */
+	public synchronized void setThreadCount(int threadCount)
+	{
+		mThreadCount = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+		if (mExecutor != null)
+		{
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+
+	/**
+	 * Stop the search threads.  The index can still be used, and threads are restarted as needed.
+	 */
+	public synchronized void release()
+	{
+		if (mExecutor != null)
+		{
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+
+	/**
+	 * Add a template to the index.
+	 *
+	 * @param id Caller defined id returned by searches
+	 * @param template Feature vector of length getDimension().  It is copied and normalized.
+	 * @return The position of the template in the index.
+	 */
+	public int add(long id, float[] template)
+	{
+		if (template.length != mDimension)
+		{
+			throw new IllegalArgumentException("Template must have " + mDimension + " values");
+		}
+
+		double norm = 0;
+		for (int i = 0; i < mDimension; i++)
+		{
+			norm += template[i] * template[i];
+		}
+		float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0;
+
+		mLock.writeLock().lock();
+		try
+		{
+			if (mCount == mCapacity || mVectors.isReadOnly())
+			{
+				grow(Math.max(mCapacity * 2, mCount + 1));
+			}
+			int base = mCount * mDimension;
+			for (int i = 0; i < mDimension; i++)
+			{
+				mVectors.put(base + i, template[i] * scale);
+			}
+			mIds.put(mCount, id);
+			return mCount++;
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the id of the template at a position in the index.
+	 *
+	 * @param index
+	 */
+	public long getId(int index)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return mIds.get(index);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Exact search of every template in the index.
+	 *
+	 * @param query Feature vector of length getDimension()
+	 * @param out Receives up to out.getCapacity() best matches
+	 * @throws InterruptedException
+	 */
+	public void search(float[] query, SearchResults out) throws InterruptedException
+	{
+		final float[] q = normalize(query);
+		out.clear();
+
+		mLock.readLock().lock();
+		try
+		{
+			final int count = mCount;
+			if (count < PARALLEL_THRESHOLD)
+			{
+				scan(q, 0, count, out);
+				return;
+			}
+
+			final int capacity = out.getCapacity();
+			List<Callable<SearchResults>> tasks = new ArrayList<Callable<SearchResults>>();
+			int chunks = getThreadCount();
+			for (int c = 0; c < chunks; c++)
+			{
+				final int from = (int) ((long) count * c / chunks);
+				final int to = (int) ((long) count * (c + 1) / chunks);
+				tasks.add(new Callable<SearchResults>()
+				{
+					@Override
+					public SearchResults call()
+					{
+						SearchResults partial = new SearchResults(capacity);
+						scan(q, from, to, partial);
+						return partial;
+					}
+				});
+			}
+			for (Future<SearchResults> future : getExecutor().invokeAll(tasks))
+			{
+				out.merge(getResult(future));
+			}
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Approximate search that only scans the IVF clusters closest to the query.  Falls back to
+	 * an exact search if no IVF index has been built.
+	 *
+	 * @param query Feature vector of length getDimension()
+	 * @param probes Number of clusters to scan.  More clusters are slower but find more matches.
+	 * @param out Receives up to out.getCapacity() best matches
+	 * @throws InterruptedException
+	 * @throws IllegalArgumentException If probes is not positive.
+	 */
+	public void searchApproximate(float[] query, int probes, SearchResults out) throws InterruptedException
+	{
+		if (probes <= 0)
+		{
+			throw new IllegalArgumentException("Probes must be positive");
+		}
+		mLock.readLock().lock();
+		try
+		{
+			if (mListCount == 0)
+			{
+				search(query, out);
+				return;
+			}
+
+			float[] q = normalize(query);
+			out.clear();
+
+			SearchResults lists = new SearchResults(Math.min(probes, mListCount));
+			nearestLists(q, lists);
+			for (int p = 0; p < lists.size(); p++)
+			{
+				scanList(q, lists.getIndex(p), out);
+			}
+			// templates added since the IVF index was built are not in any list
+			scan(q, mIndexedCount, mCount, out);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Whether an IVF index has been built.
+	 */
+	public boolean hasIvf()
+	{
+		return mListCount > 0;
+	}
+
+	/**
+	 * Build the IVF index by clustering the templates with spherical k-means.  A subset of the
+	 * templates is used to train the clusters, and then every template is assigned to its
+	 * nearest cluster.
+	 *
+	 * @param listCount Number of clusters.  The square root of the gallery size is a good start.
+	 * @param iterations Number of k-means iterations
+	 * @throws InterruptedException
+	 */
+	public void buildIvf(int listCount, int iterations) throws InterruptedException
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			final int count = mCount;
+			final int lists = Math.min(listCount, count);
+			if (lists <= 0)
+			{
+				return;
+			}
+			final int dim = mDimension;
+
+			// train on evenly spaced samples
+			final int sampleCount = (int) Math.min(count, (long) lists * KMEANS_SAMPLES_PER_LIST);
+			final int[] samples = new int[sampleCount];
+			for (int i = 0; i < sampleCount; i++)
+			{
+				samples[i] = (int) ((long) i * count / sampleCount);
+			}
+
+			final float[] centroids = new float[lists * dim];
+			for (int c = 0; c < lists; c++)
+			{
+				copyVector(samples[(int) ((long) c * sampleCount / lists)], centroids, c * dim);
+			}
+
+			final int[] assignment = new int[sampleCount];
+			Random random = new Random(count);
+			for (int it = 0; it < iterations; it++)
+			{
+				parallelFor(sampleCount, PARALLEL_THRESHOLD, new RangeTask()
+				{
+					@Override
+					public void run(int from, int to)
+					{
+						for (int i = from; i < to; i++)
+						{
+							assignment[i] = nearestCentroid(samples[i] * dim, centroids, lists);
+						}
+					}
+				});
+
+				float[] sums = new float[lists * dim];
+				int[] sizes = new int[lists];
+				for (int i = 0; i < sampleCount; i++)
+				{
+					int c = assignment[i];
+					int base = samples[i] * dim;
+					for (int d = 0; d < dim; d++)
+					{
+						sums[c * dim + d] += mVectors.get(base + d);
+					}
+					sizes[c]++;
+				}
+				for (int c = 0; c < lists; c++)
+				{
+					if (sizes[c] == 0)
+					{
+						// empty cluster.  restart it from a random sample.
+						copyVector(samples[random.nextInt(sampleCount)], centroids, c * dim);
+						continue;
+					}
+					normalizeInPlace(sums, c * dim, dim);
+					System.arraycopy(sums, c * dim, centroids, c * dim, dim);
+				}
+			}
+
+			// assign every template and lay the lists out contiguously
+			final int[] all = new int[count];
+			parallelFor(count, PARALLEL_THRESHOLD, new RangeTask()
+			{
+				@Override
+				public void run(int from, int to)
+				{
+					for (int i = from; i < to; i++)
+					{
+						all[i] = nearestCentroid(i * dim, centroids, lists);
+					}
+				}
+			});
+
+			int[] offsets = new int[lists + 1];
+			for (int i = 0; i < count; i++)
+			{
+				offsets[all[i] + 1]++;
+			}
+			for (int c = 0; c < lists; c++)
+			{
+				offsets[c + 1] += offsets[c];
+			}
+			int[] fill = new int[lists];
+			int[] members = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				int c = all[i];
+				members[offsets[c] + fill[c]++] = i;
+			}
+
+			mCentroidBytes = allocateBytes(centroids.length * 4L);
+			mCentroids = mCentroidBytes.asFloatBuffer();
+			mCentroids.put(centroids, 0, centroids.length);
+			mListOffsetBytes = allocateBytes(offsets.length * 4L);
+			mListOffsets = mListOffsetBytes.asIntBuffer();
+			mListOffsets.put(offsets, 0, offsets.length);
+			mListMemberBytes = allocateBytes(Math.max(members.length, 1) * 4L);
+			mListMembers = mListMemberBytes.asIntBuffer();
+			mListMembers.put(members, 0, members.length);
+			mListCount = lists;
+			mIndexedCount = count;
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Find every pair of templates whose similarity is at least the threshold.  With an IVF
+	 * index, templates are only compared with the other templates in their own cluster and in
+	 * the closest neighbouring clusters.  That makes this practical for large galleries, but it
+	 * may miss pairs that fall in clusters that are not neighbours.  Without an IVF index every
+	 * pair is compared.
+	 *
+	 * @param threshold Minimum cosine similarity of a duplicate
+	 * @param probes Number of clusters, including its own, that each cluster is compared with
+	 * @param listener Receives each pair once.  Called from multiple threads.
+	 * @throws InterruptedException
+	 * @throws IllegalArgumentException If probes is not positive.
+	 */
+	public void findDuplicates(final float threshold, int probes, final DuplicateListener listener)
+			throws InterruptedException
+	{
+		if (probes <= 0)
+		{
+			throw new IllegalArgumentException("Probes must be positive");
+		}
+		mLock.readLock().lock();
+		try
+		{
+			final int count = mCount;
+			final int indexed = mListCount > 0 ? mIndexedCount : 0;
+			final int dim = mDimension;
+
+			if (indexed > 0)
+			{
+				final int[][] neighbours = neighbourLists(Math.min(probes, mListCount) - 1);
+				parallelFor(mListCount, 1, new RangeTask()
+				{
+					@Override
+					public void run(int from, int to)
+					{
+						float[] q = new float[dim];
+						for (int a = from; a < to; a++)
+						{
+							int start = mListOffsets.get(a);
+							int end = mListOffsets.get(a + 1);
+							for (int m = start; m < end; m++)
+							{
+								int i = mListMembers.get(m);
+								copyVector(i, q, 0);
+								long id = mIds.get(i);
+
+								// pairs within the cluster
+								for (int n = m + 1; n < end; n++)
+								{
+									compare(q, id, mListMembers.get(n), threshold, listener);
+								}
+
+								// pairs with neighbouring clusters.  when both clusters are
+								// neighbours of each other only the lower one reports the pair.
+								for (int b : neighbours[a])
+								{
+									if (b < a && contains(neighbours[b], a))
+									{
+										continue;
+									}
+									int bEnd = mListOffsets.get(b + 1);
+									for (int n = mListOffsets.get(b); n < bEnd; n++)
+									{
+										compare(q, id, mListMembers.get(n), threshold, listener);
+									}
+								}
+							}
+						}
+					}
+				});
+			}
+
+			if (indexed < count)
+			{
+				// templates added since the IVF index was built are compared with everything
+				parallelFor(count, PARALLEL_THRESHOLD, new RangeTask()
+				{
+					@Override
+					public void run(int from, int to)
+					{
+						float[] q = new float[dim];
+						for (int i = from; i < to; i++)
+						{
+							copyVector(i, q, 0);
+							long id = mIds.get(i);
+							for (int j = Math.max(i + 1, indexed); j < count; j++)
+							{
+								compare(q, id, j, threshold, listener);
+							}
+						}
+					}
+				});
+			}
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Save the index, including the IVF index if one has been built, to a file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException
+	{
+		mLock.readLock().lock();
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				raf.setLength(0);
+				FileChannel channel = raf.getChannel();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+				header.putInt(FILE_MAGIC);
+				header.putInt(FILE_VERSION);
+				header.putInt(mDimension);
+				header.putInt(mCount);
+				header.putInt(mListCount);
+				header.putInt(mListCount > 0 ? mIndexedCount : 0);
+				header.rewind();
+				writeFully(channel, header);
+
+				writeFully(channel, region(mVectorBytes, 0, (long) mCount * mDimension * 4));
+				writeFully(channel, ByteBuffer.allocate(padding(channel.position())));
+				writeFully(channel, region(mIdBytes, 0, (long) mCount * 8));
+				if (mListCount > 0)
+				{
+					writeFully(channel, region(mCentroidBytes, 0, (long) mListCount * mDimension * 4));
+					writeFully(channel, region(mListOffsetBytes, 0, (mListCount + 1) * 4L));
+					writeFully(channel, region(mListMemberBytes, 0, mIndexedCount * 4L));
+				}
+				channel.force(true);
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Load an index saved by save().  The file is memory mapped, not read, so this returns
+	 * immediately regardless of the size of the gallery.  Adding a template to a loaded index
+	 * copies the templates into memory first.
+	 *
+	 * @param file
+	 * @return The loaded index
+	 * @throws IOException If the file is not a valid index.
+	 */
+	public static TemplateIndex load(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(ORDER);
+
+			if (mapped.remaining() < HEADER_SIZE || mapped.getInt(0) != FILE_MAGIC)
+			{
+				throw new IOException("Not a template index: " + file);
+			}
+			if (mapped.getInt(4) != FILE_VERSION)
+			{
+				throw new IOException("Unsupported template index version " + mapped.getInt(4));
+			}
+
+			int dimension = mapped.getInt(8);
+			int count = mapped.getInt(12);
+			int lists = mapped.getInt(16);
+			int indexed = mapped.getInt(20);
+
+			TemplateIndex index = new TemplateIndex(dimension, 1);
+			long offset = HEADER_SIZE;
+			long vectorBytes = (long) count * dimension * 4;
+			index.mVectorBytes = region(mapped, offset, vectorBytes);
+			offset += vectorBytes;
+			offset += padding(offset);
+			index.mIdBytes = region(mapped, offset, count * 8L);
+			offset += count * 8L;
+			if (lists > 0)
+			{
+				index.mCentroidBytes = region(mapped, offset, (long) lists * dimension * 4);
+				offset += (long) lists * dimension * 4;
+				index.mListOffsetBytes = region(mapped, offset, (lists + 1) * 4L);
+				offset += (lists + 1) * 4L;
+				index.mListMemberBytes = region(mapped, offset, indexed * 4L);
+				index.mCentroids = index.mCentroidBytes.asFloatBuffer();
+				index.mListOffsets = index.mListOffsetBytes.asIntBuffer();
+				index.mListMembers = index.mListMemberBytes.asIntBuffer();
+				index.mListCount = lists;
+				index.mIndexedCount = indexed;
+			}
+			index.mVectors = index.mVectorBytes.asFloatBuffer();
+			index.mIds = index.mIdBytes.asLongBuffer();
+			index.mCount = count;
+			index.mCapacity = count;
+			return index;
+		}
+		catch (IndexOutOfBoundsException | IllegalArgumentException ex)
+		{
+			throw new IOException("Truncated template index: " + file, ex);
+		}
+		finally
+		{
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * A slice of work for parallelFor().
+	 */
+	private interface RangeTask
+	{
+		void run(int from, int to);
+	}
+
+	/**
+	 * Run a task over [0, count) split into one range per thread, or on the calling thread if
+	 * count is below the threshold.
+	 */
+	private void parallelFor(final int count, int threshold, final RangeTask task) throws InterruptedException
+	{
+		if (count < threshold || count < 2)
+		{
+			task.run(0, count);
+			return;
+		}
+
+		// more ranges than threads so a slow range does not hold up the rest
+		int ranges = Math.min(getThreadCount() * 4, count);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int r = 0; r < ranges; r++)
+		{
+			final int from = (int) ((long) count * r / ranges);
+			final int to = (int) ((long) count * (r + 1) / ranges);
+			tasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					task.run(from, to);
+					return null;
+				}
+			});
+		}
+		for (Future<Void> future : getExecutor().invokeAll(tasks))
+		{
+			getResult(future);
+		}
+	}
+
+	private static <T> T getResult(Future<T> future) throws InterruptedException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private synchronized int getThreadCount()
+	{
+		return mThreadCount;
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (mExecutor == null)
+		{
+			mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "TemplateIndex");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return mExecutor;
+	}
+
+	/**
+	 * Compare the query against templates [from, to).
+	 */
+	private void scan(float[] q, int from, int to, SearchResults out)
+	{
+		final int dim = mDimension;
+		for (int i = from; i < to; i++)
+		{
+			float score = dot(i * dim, q, 0, dim);
+			if (score > out.getMinScore())
+			{
+				out.offer(i, mIds.get(i), score);
+			}
+		}
+	}
+
+	/**
+	 * Compare the query against the members of an IVF list.
+	 */
+	private void scanList(float[] q, int list, SearchResults out)
+	{
+		final int dim = mDimension;
+		int end = mListOffsets.get(list + 1);
+		for (int m = mListOffsets.get(list); m < end; m++)
+		{
+			int i = mListMembers.get(m);
+			float score = dot(i * dim, q, 0, dim);
+			if (score > out.getMinScore())
+			{
+				out.offer(i, mIds.get(i), score);
+			}
+		}
+	}
+
+	/**
+	 * Report template j if it is similar enough to the query.
+	 */
+	private void compare(float[] q, long id, int j, float threshold, DuplicateListener listener)
+	{
+		float score = dot(j * mDimension, q, 0, mDimension);
+		if (score >= threshold)
+		{
+			listener.onDuplicate(id, mIds.get(j), score);
+		}
+	}
+
+	/**
+	 * For each IVF list, find the lists whose centroids are closest to its own.
+	 */
+	private int[][] neighbourLists(int neighbourCount)
+	{
+		final int dim = mDimension;
+		int[][] neighbours = new int[mListCount][];
+		float[] centroid = new float[dim];
+		SearchResults nearest = new SearchResults(neighbourCount + 1);
+		for (int a = 0; a < mListCount; a++)
+		{
+			for (int d = 0; d < dim; d++)
+			{
+				centroid[d] = mCentroids.get(a * dim + d);
+			}
+			nearest.clear();
+			nearestLists(centroid, nearest);
+
+			int[] list = new int[neighbourCount];
+			int n = 0;
+			for (int k = 0; k < nearest.size() && n < neighbourCount; k++)
+			{
+				if (nearest.getIndex(k) != a)
+				{
+					list[n++] = nearest.getIndex(k);
+				}
+			}
+			neighbours[a] = n == neighbourCount ? list : Arrays.copyOf(list, n);
+		}
+		return neighbours;
+	}
+
+	private static boolean contains(int[] values, int value)
+	{
+		for (int v : values)
+		{
+			if (v == value)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the IVF lists whose centroids are closest to the query.
+	 */
+	private void nearestLists(float[] q, SearchResults out)
+	{
+		final int dim = mDimension;
+		for (int c = 0; c < mListCount; c++)
+		{
+			float score = 0;
+			int base = c * dim;
+			for (int d = 0; d < dim; d++)
+			{
+				score += mCentroids.get(base + d) * q[d];
+			}
+			out.offer(c, c, score);
+		}
+	}
+
+	private int nearestCentroid(int vectorBase, float[] centroids, int lists)
+	{
+		int best = 0;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		for (int c = 0; c < lists; c++)
+		{
+			float score = dot(vectorBase, centroids, c * mDimension, mDimension);
+			if (score > bestScore)
+			{
+				bestScore = score;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Dot product of the template starting at vectorBase with q[qBase ...].  Unrolled with four
+	 * independent accumulators so the adds can be pipelined or vectorized.
+	 */
+	private float dot(int vectorBase, float[] q, int qBase, int dim)
+	{
+		final FloatBuffer v = mVectors;
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int d = 0;
+		for (; d + 3 < dim; d += 4)
+		{
+			s0 += v.get(vectorBase + d) * q[qBase + d];
+			s1 += v.get(vectorBase + d + 1) * q[qBase + d + 1];
+			s2 += v.get(vectorBase + d + 2) * q[qBase + d + 2];
+			s3 += v.get(vectorBase + d + 3) * q[qBase + d + 3];
+		}
+		for (; d < dim; d++)
+		{
+			s0 += v.get(vectorBase + d) * q[qBase + d];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	private void copyVector(int index, float[] out, int offset)
+	{
+		int base = index * mDimension;
+		for (int d = 0; d < mDimension; d++)
+		{
+			out[offset + d] = mVectors.get(base + d);
+		}
+	}
+
+	private float[] normalize(float[] query)
+	{
+		if (query.length != mDimension)
+		{
+			throw new IllegalArgumentException("Query must have " + mDimension + " values");
+		}
+		float[] q = query.clone();
+		normalizeInPlace(q, 0, mDimension);
+		return q;
+	}
+
+	private static void normalizeInPlace(float[] v, int offset, int length)
+	{
+		double norm = 0;
+		for (int i = 0; i < length; i++)
+		{
+			norm += v[offset + i] * v[offset + i];
+		}
+		if (norm > 0)
+		{
+			float scale = (float) (1.0 / Math.sqrt(norm));
+			for (int i = 0; i < length; i++)
+			{
+				v[offset + i] *= scale;
+			}
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		mVectorBytes = allocateBytes((long) capacity * mDimension * 4);
+		mIdBytes = allocateBytes(capacity * 8L);
+		mVectors = mVectorBytes.asFloatBuffer();
+		mIds = mIdBytes.asLongBuffer();
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Move the templates into new, writable buffers with room for more.
+	 */
+	private void grow(int capacity)
+	{
+		ByteBuffer vectors = mVectorBytes;
+		ByteBuffer ids = mIdBytes;
+		allocate(capacity);
+		mVectorBytes.put(region(vectors, 0, (long) mCount * mDimension * 4));
+		mIdBytes.put(region(ids, 0, mCount * 8L));
+		mVectorBytes.clear();
+		mIdBytes.clear();
+	}
+
+	private static ByteBuffer allocateBytes(long size)
+	{
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Template index too large");
+		}
+		return ByteBuffer.allocateDirect((int) size).order(ORDER);
+	}
+
+	private static ByteBuffer region(ByteBuffer buffer, long offset, long length)
+	{
+		ByteBuffer dup = buffer.duplicate();
+		dup.clear();
+		dup.position((int) offset);
+		dup.limit((int) (offset + length));
+		return dup.slice().order(ORDER);
+	}
+
+	private static int padding(long offset)
+	{
+		return (int) ((8 - (offset & 7)) & 7);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+
+	private final int 						mDimension;
+	private final ReentrantReadWriteLock 	mLock = new ReentrantReadWriteLock();
+
+	private ByteBuffer 			mVectorBytes;
+	private ByteBuffer 			mIdBytes;
+	private FloatBuffer 		mVectors;
+	private LongBuffer 			mIds;
+	private int 				mCount = 0;
+	private int 				mCapacity = 0;
+
+	private ByteBuffer 			mCentroidBytes = null;
+	private ByteBuffer 			mListOffsetBytes = null;
+	private ByteBuffer 			mListMemberBytes = null;
+	private FloatBuffer 		mCentroids = null;
+	private IntBuffer 			mListOffsets = null;
+	private IntBuffer 			mListMembers = null;
+	private int 				mListCount = 0;
+	private int 				mIndexedCount = 0;
+
+	private int 				mThreadCount = Runtime.getRuntime().availableProcessors();
+	private ExecutorService 	mExecutor = null;
+}
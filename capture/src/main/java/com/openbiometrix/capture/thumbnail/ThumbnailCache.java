@@ -0,0 +1,517 @@
+package com.openbiometrix.capture.thumbnail;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.openbiometrix.capture.CaptureFile;
+import com.openbiometrix.capture.crypto.EncryptedCaptureReader;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Thumbnails of captured images for review screens, kept in two tiers:
+ *
+ *     memory  decoded bitmaps in an LruCache limited by their size in bytes
+ *     disk    scaled JPEGs in a ThumbnailDiskCache, so a thumbnail is only made once
+ *
+ * A thumbnail that is in neither is decoded from the capture with a sample size, so the full
+ * image is never held in memory, and then scaled, compressed and written to the disk tier.
+ * Once the cache is attached to a CaptureStore, thumbnails are made in the background as
+ * captures are saved, so a review screen usually finds them on the disk.
+ *
+ * Thumbnails are loaded on background threads, newest request first, so a grid that is being
+ * scrolled fills in the cells that are on screen before the ones that scrolled past.
+ *
+ * The cache uses the capture file names as keys, so one cache should serve one store.
+ */
+public class ThumbnailCache
+{
+	/**
+	 * Receives a thumbnail loaded in the background.
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called on the main thread.
+		 *
+		 * @param file The capture
+		 * @param thumbnail The thumbnail, or null if the capture could not be decoded
+		 */
+		void onThumbnail(CaptureFile file, Bitmap thumbnail);
+	}
+
+	public final static int DEFAULT_SIZE = 160;
+	public final static long DEFAULT_DISK_BYTES = 32 * 1024 * 1024;
+
+	private final static String TAG = "ThumbnailCache";
+	private final static String THUMBNAIL_SUFFIX = ".thumb";
+	private final static int JPEG_QUALITY = 80;
+	private final static int LOADER_THREADS = 2;
+
+
+	/**
+	 * Create a cache with the default sizes: an eighth of the heap for bitmaps and 32MB on the
+	 * disk.
+	 *
+	 * @param directory Directory for the disk tier
+	 * @param key AES key of encrypted captures, also used to encrypt the disk tier, or null
+	 * @throws IOException
+	 */
+	public ThumbnailCache(File directory, SecretKey key) throws IOException
+	{
+		this(directory, getDefaultMemoryBytes(), DEFAULT_DISK_BYTES, DEFAULT_SIZE, key);
+	}
+
+	/**
+	 * @param directory Directory for the disk tier
+	 * @param memoryBytes Largest total size of the decoded bitmaps kept in memory
+	 * @param diskBytes Largest total size of the thumbnails kept on the disk
+	 * @param size Length in pixels of the longer side of a thumbnail
+	 * @param key AES key of encrypted captures, also used to encrypt the disk tier, or null
+	 * @throws IOException
+	 */
+	public ThumbnailCache(File directory, int memoryBytes, long diskBytes, int size, SecretKey key) throws IOException
+	{
+		mDisk = new ThumbnailDiskCache(directory, diskBytes, key);
+		mSize = size;
+		mKey = key;
+		mMemory = new LruCache<String, Bitmap>(memoryBytes)
+		{
+			@Override
+			protected int sizeOf(String name, Bitmap bitmap)
+			{
+				return bitmap.getByteCount();
+			}
+		};
+
+		// a deque used as a stack, so the latest request is loaded first
+		mLoader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingDeque<Runnable>()
+		{
+			@Override
+			public boolean offer(Runnable runnable)
+			{
+				return offerFirst(runnable);
+			}
+		}, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "ThumbnailLoader");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mLoader.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * An eighth of the heap, the usual share for a bitmap cache.
+	 */
+	public static int getDefaultMemoryBytes()
+	{
+		return (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Make thumbnails of the images saved to a store in the background.
+	 *
+	 * @param store
+	 */
+	public void attach(final CaptureStore store)
+	{
+		store.addListener(new CaptureStore.Listener()
+		{
+			@Override
+			public void onCaptureSaved(CaptureRecord record)
+			{
+				if (record.mediaType.startsWith("image/"))
+				{
+					generate(store.toFile(record));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get a thumbnail if it is in memory.  This is cheap enough to call while binding a view.
+	 *
+	 * @param file
+	 * @return The thumbnail, or null if it has to be loaded.
+	 */
+	public Bitmap getCached(CaptureFile file)
+	{
+		return mMemory.get(file.getName());
+	}
+
+	/**
+	 * Get a thumbnail, decoding it from the disk tier or the capture if it is not in memory.
+	 * This can take tens of milliseconds, so do not call it on the main thread.
+	 *
+	 * @param file
+	 * @return The thumbnail, or null if the capture could not be decoded.
+	 */
+	public Bitmap getThumbnail(CaptureFile file)
+	{
+		String name = file.getName();
+		Bitmap thumbnail = mMemory.get(name);
+		if (thumbnail != null)
+		{
+			return thumbnail;
+		}
+
+		byte[] encoded = mDisk.get(name + THUMBNAIL_SUFFIX);
+		if (encoded != null)
+		{
+			thumbnail = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, getThumbnailOptions());
+		}
+		if (thumbnail == null)
+		{
+			thumbnail = createThumbnail(file);
+		}
+		if (thumbnail != null)
+		{
+			mMemory.put(name, thumbnail);
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * Load a thumbnail in the background.  The callback is made straight away if the thumbnail
+	 * is in memory.  Requests for a capture that is already being loaded share the one load.
+	 *
+	 * @param file
+	 * @param callback
+	 */
+	public void loadThumbnail(final CaptureFile file, Callback callback)
+	{
+		Bitmap cached = getCached(file);
+		if (cached != null)
+		{
+			callback.onThumbnail(file, cached);
+			return;
+		}
+
+		final String name = file.getName();
+		synchronized (mPending)
+		{
+			List<Callback> callbacks = mPending.get(name);
+			if (callbacks != null)
+			{
+				callbacks.add(callback);
+				return;
+			}
+			callbacks = new ArrayList<Callback>(1);
+			callbacks.add(callback);
+			mPending.put(name, callbacks);
+		}
+
+		try
+		{
+			mLoader.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Bitmap thumbnail = null;
+					try
+					{
+						thumbnail = getThumbnail(file);
+					}
+					finally
+					{
+						// the callers hear of a failure too, and a later request loads again
+						finish(file, thumbnail);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// the cache has been closed
+			finish(file, null);
+		}
+	}
+
+	/**
+	 * Hand a loaded thumbnail to the callbacks waiting for it, on the main thread.
+	 *
+	 * @param file
+	 * @param thumbnail The thumbnail, or null if it could not be loaded
+	 */
+	private void finish(final CaptureFile file, final Bitmap thumbnail)
+	{
+		final List<Callback> callbacks;
+		synchronized (mPending)
+		{
+			callbacks = mPending.remove(file.getName());
+		}
+		if (callbacks == null)
+		{
+			return;
+		}
+		mMainHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (Callback callback : callbacks)
+				{
+					callback.onThumbnail(file, thumbnail);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Make the disk thumbnail of a capture in the background, if there is not one already.
+	 *
+	 * @param file
+	 */
+	public void generate(final CaptureFile file)
+	{
+		if (mDisk.contains(file.getName() + THUMBNAIL_SUFFIX))
+		{
+			return;
+		}
+		mLoader.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!mDisk.contains(file.getName() + THUMBNAIL_SUFFIX))
+				{
+					Bitmap thumbnail = createThumbnail(file);
+					if (thumbnail != null)
+					{
+						thumbnail.recycle();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drop the thumbnails of a capture, such as when it is deleted.
+	 *
+	 * @param file
+	 */
+	public void remove(CaptureFile file)
+	{
+		mMemory.remove(file.getName());
+		mDisk.remove(file.getName() + THUMBNAIL_SUFFIX);
+	}
+
+	/**
+	 * Drop the thumbnails in memory, such as when the system is low on memory.  The disk tier
+	 * is kept.
+	 */
+	public void trimMemory()
+	{
+		mMemory.evictAll();
+	}
+
+	/**
+	 * Number of thumbnails found in memory.
+	 */
+	public int getMemoryHitCount()
+	{
+		return mMemory.hitCount();
+	}
+
+	/**
+	 * Number of thumbnails that were not in memory.
+	 */
+	public int getMemoryMissCount()
+	{
+		return mMemory.missCount();
+	}
+
+	/**
+	 * Number of thumbnails dropped from memory to keep within its size.
+	 */
+	public int getMemoryEvictionCount()
+	{
+		return mMemory.evictionCount();
+	}
+
+	/**
+	 * Total size in bytes of the thumbnails in memory.
+	 */
+	public int getMemoryBytes()
+	{
+		return mMemory.size();
+	}
+
+	/**
+	 * The disk tier, for its hit, miss and eviction counts.
+	 */
+	public ThumbnailDiskCache getDiskCache()
+	{
+		return mDisk;
+	}
+
+	/**
+	 * Number of thumbnails made from captures.
+	 */
+	public synchronized long getCreatedCount()
+	{
+		return mCreatedCount;
+	}
+
+	/**
+	 * Average time in milliseconds taken to make a thumbnail from a capture.
+	 */
+	public synchronized float getAverageCreateTime()
+	{
+		return mCreatedCount == 0 ? 0 : mCreateTime / 1e6f / mCreatedCount;
+	}
+
+	/**
+	 * Stop the background threads.  Loads that have not started are dropped.
+	 */
+	public void close()
+	{
+		mLoader.shutdownNow();
+	}
+
+
+	/**
+	 * Decode a capture at a reduced size, scale it to the thumbnail size and store the encoded
+	 * thumbnail on the disk.
+	 */
+	private Bitmap createThumbnail(CaptureFile file)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			byte[] data = null;
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			if (file.isEncrypted())
+			{
+				if (mKey == null)
+				{
+					return null;
+				}
+				data = readEncrypted(file);
+				BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			}
+			else
+			{
+				BitmapFactory.decodeFile(file.getPath(), options);
+			}
+			if (options.outWidth <= 0 || options.outHeight <= 0)
+			{
+				return null;
+			}
+
+			// the largest power of two that keeps the image at least the thumbnail size
+			int sample = 1;
+			while (Math.max(options.outWidth, options.outHeight) / (sample * 2) >= mSize)
+			{
+				sample *= 2;
+			}
+			float scale = (float) mSize / Math.max(options.outWidth, options.outHeight);
+			int width = Math.max(1, Math.round(options.outWidth * scale));
+			int height = Math.max(1, Math.round(options.outHeight * scale));
+
+			options = getThumbnailOptions();
+			options.inSampleSize = sample;
+			Bitmap decoded = data != null ? BitmapFactory.decodeByteArray(data, 0, data.length, options)
+					: BitmapFactory.decodeFile(file.getPath(), options);
+			if (decoded == null)
+			{
+				return null;
+			}
+			Bitmap thumbnail = decoded;
+			if (decoded.getWidth() != width || decoded.getHeight() != height)
+			{
+				thumbnail = Bitmap.createScaledBitmap(decoded, width, height, true);
+				decoded.recycle();
+			}
+
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream(16 * 1024);
+			thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, encoded);
+			mDisk.put(file.getName() + THUMBNAIL_SUFFIX, encoded.toByteArray());
+
+			synchronized (this)
+			{
+				mCreatedCount++;
+				mCreateTime += System.nanoTime() - start;
+			}
+			return thumbnail;
+		}
+		catch (IOException ex)
+		{
+			Log.w(TAG, "Unable to make thumbnail of " + file, ex);
+			return null;
+		}
+	}
+
+	private byte[] readEncrypted(CaptureFile file) throws IOException
+	{
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(file, mKey);
+		try
+		{
+			byte[] data = new byte[(int) reader.getLength()];
+			InputStream in = reader.openStream();
+			int offset = 0;
+			while (offset < data.length)
+			{
+				int read = in.read(data, offset, data.length - offset);
+				if (read < 0)
+				{
+					throw new IOException("Capture is truncated");
+				}
+				offset += read;
+			}
+			return data;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	private static BitmapFactory.Options getThumbnailOptions()
+	{
+		// thumbnails have no alpha, so 16 bits a pixel halves their memory
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		return options;
+	}
+
+
+	private final ThumbnailDiskCache 			mDisk;
+	private final LruCache<String, Bitmap> 	mMemory;
+	private final int 							mSize;
+	private final SecretKey 					mKey;
+	private final ThreadPoolExecutor 			mLoader;
+	private final Handler 						mMainHandler = new Handler(Looper.getMainLooper());
+	private final Map<String, List<Callback>> 	mPending = new HashMap<String, List<Callback>>();
+	private long 								mCreatedCount = 0;
+	private long 								mCreateTime = 0;
+}
@@ -0,0 +1,293 @@
+package com.openbiometrix.capture.thumbnail;
+
+import com.openbiometrix.capture.crypto.EncryptedCaptureReader;
+import com.openbiometrix.capture.crypto.EncryptedCaptureWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A directory of small files, such as encoded thumbnails, limited to a total size.  When a new
+ * file takes the directory over the limit, the least recently used files are deleted.  The use
+ * order is rebuilt from the file modification times when the cache is opened.
+ *
+ * With a key the files are encrypted like captures, so a thumbnail does not leak an image that
+ * is encrypted at rest.
+ *
+ * Keys are used as file names, so they must be valid file names.  All methods are synchronized
+ * apart from the file reads and writes, which go through temporary files and renames.
+ */
+public class ThumbnailDiskCache
+{
+	private final static String TEMP_SUFFIX = ".tmp";
+
+
+	/**
+	 * Open a cache, creating the directory if needed.
+	 *
+	 * @param directory
+	 * @param maxBytes Largest total size of the files
+	 * @param key AES key to encrypt the files with, or null to store them as they are
+	 * @throws IOException If the directory cannot be created.
+	 */
+	public ThumbnailDiskCache(File directory, long maxBytes, SecretKey key) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Unable to create thumbnail directory " + directory);
+		}
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+		mKey = key;
+
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			throw new IOException("Unable to list thumbnail directory " + directory);
+		}
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (File file : files)
+		{
+			if (file.getName().endsWith(TEMP_SUFFIX))
+			{
+				file.delete();
+				continue;
+			}
+			mEntries.put(file.getName(), file.length());
+			mTotalBytes += file.length();
+		}
+		trim();
+	}
+
+	/**
+	 * Whether a file is in the cache.  This does not count as a use.
+	 *
+	 * @param key
+	 */
+	public synchronized boolean contains(String key)
+	{
+		return mEntries.containsKey(key);
+	}
+
+	/**
+	 * Read a file.
+	 *
+	 * @param key
+	 * @return The contents, or null if the file is not in the cache.
+	 */
+	public byte[] get(String key)
+	{
+		synchronized (this)
+		{
+			if (mEntries.get(key) == null)
+			{
+				mMissCount++;
+				return null;
+			}
+			mHitCount++;
+		}
+
+		File file = new File(mDirectory, key);
+		try
+		{
+			byte[] data = read(file);
+			file.setLastModified(System.currentTimeMillis());
+			return data;
+		}
+		catch (IOException ex)
+		{
+			// deleted by a trim since the lookup, or damaged, so treat it as missing
+			remove(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Add or replace a file.
+	 *
+	 * @param key
+	 * @param data
+	 * @throws IOException
+	 */
+	public void put(String key, byte[] data) throws IOException
+	{
+		File temp = new File(mDirectory, key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+		try
+		{
+			OutputStream out = mKey == null ? new FileOutputStream(temp) : new EncryptedCaptureWriter(temp, mKey);
+			try
+			{
+				out.write(data);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			temp.delete();
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			temp.delete();
+			throw ex;
+		}
+
+		long size = temp.length();
+		synchronized (this)
+		{
+			if (!temp.renameTo(new File(mDirectory, key)))
+			{
+				temp.delete();
+				throw new IOException("Unable to write thumbnail " + key);
+			}
+			Long old = mEntries.put(key, size);
+			mTotalBytes += size - (old == null ? 0 : old);
+			trim();
+		}
+	}
+
+	/**
+	 * Delete a file.
+	 *
+	 * @param key
+	 */
+	public synchronized void remove(String key)
+	{
+		Long size = mEntries.remove(key);
+		if (size != null)
+		{
+			mTotalBytes -= size;
+			new File(mDirectory, key).delete();
+		}
+	}
+
+	/**
+	 * Total size of the files in bytes.
+	 */
+	public synchronized long getTotalBytes()
+	{
+		return mTotalBytes;
+	}
+
+	/**
+	 * Number of files in the cache.
+	 */
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+
+	/**
+	 * Number of reads that found their file.
+	 */
+	public synchronized long getHitCount()
+	{
+		return mHitCount;
+	}
+
+	/**
+	 * Number of reads of files that were not in the cache.
+	 */
+	public synchronized long getMissCount()
+	{
+		return mMissCount;
+	}
+
+	/**
+	 * Number of files deleted to keep within the size limit.
+	 */
+	public synchronized long getEvictionCount()
+	{
+		return mEvictionCount;
+	}
+
+
+	private void trim()
+	{
+		Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+		while (mTotalBytes > mMaxBytes && iterator.hasNext())
+		{
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			mTotalBytes -= eldest.getValue();
+			new File(mDirectory, eldest.getKey()).delete();
+			mEvictionCount++;
+		}
+	}
+
+	private byte[] read(File file) throws IOException
+	{
+		if (mKey != null)
+		{
+			EncryptedCaptureReader reader = new EncryptedCaptureReader(file, mKey);
+			try
+			{
+				byte[] data = new byte[(int) reader.getLength()];
+				readFully(reader.openStream(), data);
+				return data;
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] data = new byte[(int) file.length()];
+			readFully(in, data);
+			return data;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] data) throws IOException
+	{
+		int offset = 0;
+		while (offset < data.length)
+		{
+			int read = in.read(data, offset, data.length - offset);
+			if (read < 0)
+			{
+				throw new IOException("Thumbnail is truncated");
+			}
+			offset += read;
+		}
+	}
+
+
+	private final File 						mDirectory;
+	private final long 						mMaxBytes;
+	private final SecretKey 				mKey;
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+	private long 							mTotalBytes = 0;
+	private long 							mHitCount = 0;
+	private long 							mMissCount = 0;
+	private long 							mEvictionCount = 0;
+}
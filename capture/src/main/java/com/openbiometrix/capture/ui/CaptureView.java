@@ -9,12 +9,15 @@ import com.openbiometrix.capture.CaptureDevice;
  * Simple interface to a generic view used for capturing biometrics.  Classes using this interface
  * will contain a View that can be used to display the capture stream and / or other data.  It
  * contains a CaptureBuffer that is an implementation of a bounded queue that is used to transmit
- * capture data from the device to the views.
+ * capture data from the device to the views.  Consumers that need no View can subscribe to the
+ * device's publisher instead.
+ *
+ * @param <B> Type of the buffer, such as FaceDetectorBuffer
  *
  * Created by petebyhre on 4/10/17.
  */
 
-public interface CaptureView<T extends CaptureBuffer<T>>
+public interface CaptureView<B extends CaptureBuffer<?>>
 {
 	/**
 	 * A View that is used to display the capture stream and / or other data related to the capture.
@@ -27,7 +30,7 @@ public interface CaptureView<T extends CaptureBuffer<T>>
 	 *
 	 * @return
 	 */
-	T getCaptureBuffer();
+	B getCaptureBuffer();
 
 	/**
 	 * State change notifier that alerts the CaptureView that there is a change in the state
@@ -61,6 +61,14 @@ public class FaceCaptureFragment extends Fragment implements SurfaceHolder.Callb
 	public void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
+
+		// start warming up the camera while the layout is inflated, if we may use it
+		int rc = ActivityCompat.checkSelfPermission(this.getActivity(), Manifest.permission.CAMERA);
+		if (rc == PackageManager.PERMISSION_GRANTED)
+		{
+			mCamera = new FaceCaptureDevice();
+			mCamera.warmUp(this.getContext().getApplicationContext());
+		}
 	}
 
 	@Override
@@ -179,14 +187,18 @@ public class FaceCaptureFragment extends Fragment implements SurfaceHolder.Callb
 	}
 
 	/**
-	 * Creates a FaceCaptureDevice using the default Front facing camera.
-	 * Initializes the camera with the application context.
-	 * Adds a FaceCaptureViewer to the device so we can see the images.
+	 * Creates a FaceCaptureDevice using the default Front facing camera, unless onCreate()
+	 * already did.  Warms up the camera in the background with the application context, so the
+	 * UI thread does not wait for it; the preview starts once both the camera and the surface
+	 * are ready.  Adds a FaceCaptureViewer to the device so we can see the images.
 	 */
 	private void initializeCamera()
 	{
-		mCamera = new FaceCaptureDevice();
-		mCamera.initialize(this.getContext());
+		if (mCamera == null)
+		{
+			mCamera = new FaceCaptureDevice();
+		}
+		mCamera.warmUp(this.getContext().getApplicationContext());
 		mCamera.addViewer(mCameraPreview);
 	}
 
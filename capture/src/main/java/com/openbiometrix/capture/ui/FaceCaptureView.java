@@ -6,21 +6,42 @@ import android.util.Log;
 import android.view.SurfaceView;
 import android.view.View;
 
-import com.google.android.gms.vision.face.Face;
 import com.openbiometrix.capture.CaptureDevice;
+import com.openbiometrix.capture.ControlEvent;
 import com.openbiometrix.capture.FaceDetectorBuffer;
+import com.openbiometrix.capture.FaceSample;
+import com.openbiometrix.capture.PipelineLatency;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * View used to display the stream from a camera used in a FaceCaptureDevice.  The view also
  * contains a FaceDetectorBuffer which receives Face detection information from the FaceCaptureDevice
  * for the most prominent face in the image.
  *
+ * By default the view takes samples from the buffer on a thread of its own.  Given an executor,
+ * such as a lane of a CaptureDeviceManager's shared pool, it drains the buffer on the executor
+ * as samples arrive instead, and has no thread of its own.  Either way, changes of the device's
+ * state come through the control lane of the buffer, which drops the faces still waiting.
+ * Samples are taken in batches, and each batch is posted to the UI thread as one message.
+ *
+ * The view notes when each batch is taken from the buffer and handed to onUpdate(), and keeps
+ * the time each stage took in a PipelineLatency, which is logged when the device stops.  Those
+ * times are kept here rather than on the samples, which are shared with the other viewers.
+ *
  * Created by petebyhre on 4/10/17.
  */
-public class FaceCaptureView extends SurfaceView implements CaptureView
+public class FaceCaptureView extends SurfaceView implements CaptureView<FaceDetectorBuffer>
 {
 	private final static String TAG = "FaceCaptureView";
 
+	/**
+	 * Most samples taken from the buffer, and posted to the UI thread, at once.
+	 */
+	public final static int BATCH_SIZE = 16;
+
 
 	/**
 	 * Constructor that starts the face detection loop.
@@ -82,7 +103,8 @@ public class FaceCaptureView extends SurfaceView implements CaptureView
 
 	/**
 	 * State change notifier that alerts the CaptureView that there is a change in the state
-	 * of the CaptureDevice
+	 * of the CaptureDevice.  The change is handled when the consumer takes it from the control
+	 * lane of the buffer, in order with the samples.
 	 *
 	 * @param state
 	 */
@@ -90,31 +112,110 @@ public class FaceCaptureView extends SurfaceView implements CaptureView
 	public void onStateChanged(CaptureDevice.State state)
 	{
 		Log.d(TAG, "onStateChanged() " + state);
-		switch (state)
+	}
+
+	/**
+	 * The consumer thread runs while the view is attached to a window.
+	 */
+	@Override
+	protected void onAttachedToWindow()
+	{
+		super.onAttachedToWindow();
+		if (mExecutor == null && mStopFaceDetectorLoop)
 		{
-			case PREVIEW_STARTED:
-				mFaceUpdateCount = 0;
-				mStartTime = System.currentTimeMillis();
-				break;
+			startFaceDetectionLoop();
+		}
+	}
 
-			case PAUSED:
-			case STOPPED:
-				stopFaceDetectionLoop();
-				break;
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		stopFaceDetectionLoop();
+	}
+
+	/**
+	 * Set the executor to take samples from the buffer on, or null to use a thread of the view.
+	 *
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor)
+	{
+		mExecutor = executor;
+		if (executor != null)
+		{
+			stopFaceDetectionLoop();
+			mFaceDetectorBuffer.setPutListener(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					scheduleDrain();
+				}
+			});
+			// samples that arrived before the listener was set
+			scheduleDrain();
+		}
+		else
+		{
+			mFaceDetectorBuffer.setPutListener(null);
+			startFaceDetectionLoop();
 		}
 	}
 
+	/**
+	 * The time the samples took to get through each stage of the pipeline to this view, since
+	 * the preview last started.
+	 */
+	public PipelineLatency getPipelineLatency()
+	{
+		return mLatency;
+	}
+
 	/**
 	 * Update from the FaceDetectionLoop.  For now, it just updates a count of the
-	 * Face location data objects received.
+	 * Face location data objects received.  The sample is released after this returns, so
+	 * anything that is needed from its pooled buffers must be copied here.
 	 *
-	 * @param face
+	 * @param sample
 	 */
-	public void onUpdate(Face face)
+	public void onUpdate(FaceSample sample)
 	{
 		mFaceUpdateCount++;
 	}
 
+	/**
+	 * Handle the control events waiting in the buffer.  Called on the consumer thread or the
+	 * executor.
+	 */
+	private void handleControl()
+	{
+		ControlEvent event;
+		while ((event = mFaceDetectorBuffer.pollControl()) != null)
+		{
+			if (event.kind != ControlEvent.Kind.STATE)
+			{
+				continue;
+			}
+			switch (event.state)
+			{
+				case PREVIEW_STARTED:
+					mFaceUpdateCount = 0;
+					mStartTime = System.currentTimeMillis();
+					mLatency.reset();
+					break;
+
+				case STOPPED:
+					mEndTime = System.currentTimeMillis();
+					Log.d(TAG, "Face Update Count=" + mFaceUpdateCount);
+					Log.d(TAG, "Start Time=" + mStartTime + " End Time=" + mEndTime);
+					Log.d(TAG, "Face detection updates per second=" + (double) mFaceUpdateCount / (double)(mEndTime - mStartTime) * 1000);
+					Log.d(TAG, "Latency: " + mLatency + ", measuring " + mLatency.getAverageOverhead() + " ms per face");
+					break;
+			}
+		}
+	}
+
 	private void stopFaceDetectionLoop()
 	{
 		Log.d(TAG, "Stopping Face Detector Loop");
@@ -134,7 +235,8 @@ public class FaceCaptureView extends SurfaceView implements CaptureView
 		// if we are already running the thread, then stop it.
 		if (mFaceDetectorThread != null)
 		{
-			mStopFaceDetectorLoop = false;
+			mStopFaceDetectorLoop = true;
+			mFaceDetectorThread.interrupt();
 			try
 			{
 				mFaceDetectorThread.join();
@@ -152,23 +254,20 @@ public class FaceCaptureView extends SurfaceView implements CaptureView
 			@Override
 			public void run()
 			{
+				FaceSample[] batch = new FaceSample[BATCH_SIZE];
 				while (mStopFaceDetectorLoop == false)
 				{
 					try
 					{
-						final Face face = mFaceDetectorBuffer.take();
+						int count = mFaceDetectorBuffer.drain(batch, BATCH_SIZE, FaceDetectorBuffer.DEFAULT_TAKE_TIMEOUT_MS);
 
-						if (face != null)
+						if (count > 0)
+						{
+							postUpdates(batch, count);
+						}
+						else
 						{
-							// TODO: Analyze face values and recognize when a face is available.  For now just send face to ui thread.
-							mSelf.post(new Runnable()
-							{
-								@Override
-								public void run()
-								{
-									onUpdate(face);
-								}
-							});
+							handleControl();
 						}
 
 					}
@@ -179,22 +278,113 @@ public class FaceCaptureView extends SurfaceView implements CaptureView
 						// are supposed to stop face detection.
 					}
 				}
-				mEndTime = System.currentTimeMillis();
-				Log.d(TAG, "Face Update Count=" + mFaceUpdateCount);
-				Log.d(TAG, "Start Time=" + mStartTime + " End Time=" + mEndTime);
-				Log.d(TAG, "Face detection updates per second=" + (double) mFaceUpdateCount / (double)(mEndTime - mStartTime) * 1000);
 			}
 		});
 		mFaceDetectorThread.start();
 
 	}
 
+	/**
+	 * Send a batch of samples to onUpdate() on the UI thread, in one message.  The batch array is
+	 * cleared so it can be reused.  Called just after the batch is taken from the buffer.
+	 */
+	private void postUpdates(FaceSample[] batch, int count)
+	{
+		final long dequeued = System.nanoTime();
+		final FaceSample[] samples = Arrays.copyOf(batch, count);
+		Arrays.fill(batch, 0, count, null);
+
+		// TODO: Analyze face values and recognize when a face is available.  For now just send face to ui thread.
+		mSelf.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					long delivered = System.nanoTime();
+					for (FaceSample sample : samples)
+					{
+						mLatency.record(sample, dequeued, delivered);
+						onUpdate(sample);
+					}
+				}
+				finally
+				{
+					for (FaceSample sample : samples)
+					{
+						sample.release();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue a drain of the buffer on the executor, unless one is queued already.
+	 */
+	private void scheduleDrain()
+	{
+		Executor executor = mExecutor;
+		if (executor != null && mDrainScheduled.compareAndSet(false, true))
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					drain();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Take the samples waiting in the buffer without blocking the executor.
+	 */
+	private void drain()
+	{
+		// cleared first, so a sample put while draining queues another drain
+		mDrainScheduled.set(false);
+		FaceSample[] batch = new FaceSample[BATCH_SIZE];
+		while (true)
+		{
+			int count = mFaceDetectorBuffer.drainTo(batch, BATCH_SIZE);
+			if (count > 0)
+			{
+				postUpdates(batch, count);
+			}
+			else if (!mFaceDetectorBuffer.isEmpty())
+			{
+				handleControl();
+			}
+			else
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * The buffer the device fills, with the control lane on, since the view handles the
+	 * device's state changes.
+	 */
+	private static FaceDetectorBuffer createBuffer()
+	{
+		FaceDetectorBuffer buffer = new FaceDetectorBuffer();
+		buffer.setControlLane(true);
+		return buffer;
+	}
+
 
-	private FaceDetectorBuffer 	mFaceDetectorBuffer = new FaceDetectorBuffer();
-	private boolean 			mStopFaceDetectorLoop = false;
+	private FaceDetectorBuffer 	mFaceDetectorBuffer = createBuffer();
+	private volatile boolean 	mStopFaceDetectorLoop = false;
 	private View 				mSelf = this;
 	private int 				mFaceUpdateCount = 0;
 	private long 				mStartTime = 0;
 	private long 				mEndTime = 0;
 	private Thread 				mFaceDetectorThread = null;
+	private volatile Executor 	mExecutor = null;
+	private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+	private final PipelineLatency mLatency = new PipelineLatency();
 }
@@ -0,0 +1,22 @@
+package com.openbiometrix.capture.ui;
+
+import com.openbiometrix.capture.CaptureBuffer;
+import com.openbiometrix.capture.audio.PcmRingBuffer;
+
+/**
+ * A CaptureView of a VoiceCaptureDevice.  Audio is not passed through a CaptureBuffer: each
+ * view gets its own reader of the device's PCM ring, so getCaptureBuffer() may return null.
+ */
+public interface PcmCaptureView extends CaptureView<CaptureBuffer<?>>
+{
+	/**
+	 * Called when the device opens a reader for the view.  The reader is lossy, so a view that
+	 * falls behind skips samples rather than holding up the recording.  It is closed when the
+	 * view is removed from the device.
+	 *
+	 * @param reader
+	 * @param sampleRate Samples per second of each channel
+	 * @param channelCount Number of interleaved channels
+	 */
+	void onPcmReaderOpened(PcmRingBuffer.Reader reader, int sampleRate, int channelCount);
+}
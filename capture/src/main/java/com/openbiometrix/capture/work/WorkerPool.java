@@ -0,0 +1,342 @@
+package com.openbiometrix.capture.work;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A fixed set of worker threads shared by several producers of work, such as the consumers and
+ * post-processing of each capture device, so together they never use more threads than there
+ * are cores.
+ *
+ * Each producer submits to its own Lane, which has a weight.  Lanes share the workers in
+ * proportion to their weights by the time their tasks actually run: each lane keeps a virtual
+ * time, which grows by the run time of each of its tasks divided by its weight, and a free
+ * worker always takes the next task of the waiting lane with the lowest virtual time.  So a lane
+ * with slow tasks cannot crowd out the others, and a lane that was idle joins at the current
+ * virtual time rather than catching up on the time it did not use.
+ *
+ * Tasks of one lane may run on several workers at once.
+ */
+public class WorkerPool
+{
+	public final static int DEFAULT_WEIGHT = 1;
+
+	/**
+	 * The queue of one producer.  Submitting to a lane never blocks.
+	 */
+	public class Lane implements Executor
+	{
+		Lane(String name, int weight)
+		{
+			mName = name;
+			mWeight = weight;
+		}
+
+		public String getName()
+		{
+			return mName;
+		}
+
+		public int getWeight()
+		{
+			return mWeight;
+		}
+
+		/**
+		 * Queue a task to run on the pool.
+		 *
+		 * @param task
+		 * @throws RejectedExecutionException If the pool is shut down.
+		 */
+		@Override
+		public void execute(Runnable task)
+		{
+			if (task == null)
+			{
+				throw new NullPointerException();
+			}
+			synchronized (mLock)
+			{
+				if (mShutdown)
+				{
+					throw new RejectedExecutionException("The worker pool is shut down");
+				}
+				if (mTasks.isEmpty() && mRunning == 0)
+				{
+					mVirtualTime = Math.max(mVirtualTime, mPoolVirtualTime);
+				}
+				mTasks.add(task);
+				mSubmitTimes.add(System.nanoTime());
+				mLock.notify();
+			}
+		}
+
+		/**
+		 * Number of tasks waiting.
+		 */
+		public int getQueueLength()
+		{
+			synchronized (mLock)
+			{
+				return mTasks.size();
+			}
+		}
+
+		/**
+		 * Number of tasks that have run.
+		 */
+		public long getCompletedCount()
+		{
+			synchronized (mLock)
+			{
+				return mCompletedCount;
+			}
+		}
+
+		/**
+		 * Total time in nanoseconds the lane's tasks have run.
+		 */
+		public long getBusyTime()
+		{
+			synchronized (mLock)
+			{
+				return mBusyTime;
+			}
+		}
+
+		/**
+		 * Mean time in milliseconds the lane's tasks waited for a worker.
+		 */
+		public double getAverageWait()
+		{
+			synchronized (mLock)
+			{
+				return mCompletedCount == 0 ? 0 : mWaitTime / 1e6 / mCompletedCount;
+			}
+		}
+
+		private final String 			mName;
+		private final int 				mWeight;
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+		private final ArrayDeque<Long> 	mSubmitTimes = new ArrayDeque<Long>();
+		private double 					mVirtualTime = 0;
+		private int 					mRunning = 0;
+		private long 					mCompletedCount = 0;
+		private long 					mBusyTime = 0;
+		private long 					mWaitTime = 0;
+	}
+
+
+	/**
+	 * @param threadCount Number of worker threads, usually the number of cores
+	 * @param name Name of the worker threads
+	 */
+	public WorkerPool(int threadCount, String name)
+	{
+		mStartTime = System.nanoTime();
+		mThreads = new Thread[Math.max(threadCount, 1)];
+		for (int i = 0; i < mThreads.length; i++)
+		{
+			mThreads[i] = new Thread(new Worker(), name + "-" + i);
+			mThreads[i].setDaemon(true);
+			mThreads[i].start();
+		}
+	}
+
+	/**
+	 * Add a lane.
+	 *
+	 * @param name
+	 * @param weight Share of the workers relative to the other lanes, at least 1
+	 */
+	public Lane createLane(String name, int weight)
+	{
+		if (weight < 1)
+		{
+			throw new IllegalArgumentException("Weight must be at least 1");
+		}
+		Lane lane = new Lane(name, weight);
+		synchronized (mLock)
+		{
+			lane.mVirtualTime = mPoolVirtualTime;
+			mLanes.add(lane);
+		}
+		return lane;
+	}
+
+	/**
+	 * Remove a lane.  Tasks it still has queued are dropped.
+	 *
+	 * @param lane
+	 */
+	public void removeLane(Lane lane)
+	{
+		synchronized (mLock)
+		{
+			if (mLanes.remove(lane))
+			{
+				mBusyTime += lane.mBusyTime;
+			}
+			lane.mTasks.clear();
+			lane.mSubmitTimes.clear();
+		}
+	}
+
+	public int getThreadCount()
+	{
+		return mThreads.length;
+	}
+
+	/**
+	 * The fraction of the workers' time spent running tasks since the pool started.
+	 */
+	public float getUtilization()
+	{
+		long elapsed = System.nanoTime() - mStartTime;
+		synchronized (mLock)
+		{
+			long busy = mBusyTime;
+			for (Lane lane : mLanes)
+			{
+				busy += lane.mBusyTime;
+			}
+			return elapsed <= 0 ? 0 : Math.min((float) busy / elapsed / mThreads.length, 1);
+		}
+	}
+
+	/**
+	 * Stop the workers once the tasks that are running finish.  Queued tasks are dropped.
+	 */
+	public void shutdown()
+	{
+		synchronized (mLock)
+		{
+			mShutdown = true;
+			for (Lane lane : mLanes)
+			{
+				lane.mTasks.clear();
+				lane.mSubmitTimes.clear();
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait for the workers to stop after shutdown().
+	 *
+	 * @param timeout Time in milliseconds
+	 * @return false if a worker was still running at the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		for (Thread thread : mThreads)
+		{
+			long left = end - System.currentTimeMillis();
+			if (left > 0)
+			{
+				thread.join(left);
+			}
+			if (thread.isAlive())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * The waiting lane with the lowest virtual time, or null.  Must hold the lock.
+	 */
+	private Lane nextLane()
+	{
+		Lane next = null;
+		for (Lane lane : mLanes)
+		{
+			if (!lane.mTasks.isEmpty() && (next == null || lane.mVirtualTime < next.mVirtualTime))
+			{
+				next = lane;
+			}
+		}
+		return next;
+	}
+
+	private class Worker implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				Lane lane = null;
+				Runnable task;
+				long start;
+				synchronized (mLock)
+				{
+					while (!mShutdown && (lane = nextLane()) == null)
+					{
+						try
+						{
+							mLock.wait();
+						}
+						catch (InterruptedException ex)
+						{
+							// only shutdown() stops a worker
+						}
+					}
+					if (mShutdown)
+					{
+						return;
+					}
+					task = lane.mTasks.poll();
+					start = System.nanoTime();
+					lane.mWaitTime += start - lane.mSubmitTimes.poll();
+					lane.mRunning++;
+					mPoolVirtualTime = lane.mVirtualTime;
+				}
+
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException ex)
+				{
+					// a failed task must not take the worker down with it
+					Thread thread = Thread.currentThread();
+					if (thread.getUncaughtExceptionHandler() != null)
+					{
+						thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+					}
+				}
+
+				long time = System.nanoTime() - start;
+				synchronized (mLock)
+				{
+					lane.mRunning--;
+					lane.mCompletedCount++;
+					lane.mBusyTime += time;
+					lane.mVirtualTime += (double) time / lane.mWeight;
+					if (!mLanes.contains(lane))
+					{
+						// keep the time of removed lanes in the utilization
+						mBusyTime += time;
+					}
+				}
+			}
+		}
+	}
+
+
+	private final Object 		mLock = new Object();
+	private final Thread[] 		mThreads;
+	private final List<Lane> 	mLanes = new ArrayList<Lane>();
+	private final long 			mStartTime;
+	private double 				mPoolVirtualTime = 0;
+	private long 				mBusyTime = 0;
+	private boolean 			mShutdown = false;
+}
@@ -0,0 +1,384 @@
+package com.openbiometrix.capture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CaptureBuffer: the bounded data queue and the control lane that is taken ahead
+ * of it.
+ */
+public class CaptureBufferTest
+{
+	@Test
+	public void buffer_queuesDataInOrderUpToItsCapacity() throws Exception
+	{
+		CaptureBuffer<Integer> buffer = new CaptureBuffer<Integer>(3);
+		assertTrue(buffer.isEmpty());
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(buffer.put(i, 0));
+		}
+		assertFalse(buffer.put(3, 10));
+		assertEquals(1, buffer.getLostPackets());
+
+		assertEquals(Integer.valueOf(0), buffer.take());
+		assertTrue(buffer.put(3, 0));
+		for (int i = 1; i <= 3; i++)
+		{
+			assertEquals(Integer.valueOf(i), buffer.poll(0));
+		}
+		assertNull(buffer.poll(10));
+		assertTrue(buffer.isEmpty());
+
+		// shrinking drops the newest items
+		RecordingBuffer recording = new RecordingBuffer(4);
+		for (int i = 0; i < 4; i++)
+		{
+			recording.put(i);
+		}
+		recording.setQueueCapacity(2);
+		assertEquals(Integer.valueOf(0), recording.poll(0));
+		assertEquals(Integer.valueOf(1), recording.poll(0));
+		assertEquals(2, recording.mDiscarded.size());
+	}
+
+	@Test
+	public void buffer_takesControlEventsAheadOfData() throws Exception
+	{
+		RecordingBuffer buffer = new RecordingBuffer(100);
+		buffer.setControlLane(true);
+		for (int i = 0; i < 50; i++)
+		{
+			buffer.put(i);
+		}
+		buffer.putControl(ControlEvent.state(CaptureDevice.State.PAUSED));
+
+		// the event comes first and the data is kept
+		assertNull(buffer.take());
+		ControlEvent event = buffer.pollControl();
+		assertEquals(ControlEvent.Kind.STATE, event.kind);
+		assertEquals(CaptureDevice.State.PAUSED, event.state);
+		assertNull(buffer.pollControl());
+		assertEquals(Integer.valueOf(0), buffer.take());
+
+		// a flush drops the data that is waiting
+		buffer.putControl(ControlEvent.flush());
+		assertEquals(49, buffer.getFlushedCount());
+		assertEquals(49, buffer.mDiscarded.size());
+		assertNull(buffer.take());
+		assertEquals(ControlEvent.Kind.FLUSH, buffer.pollControl().kind);
+		assertTrue(buffer.isEmpty());
+
+		// as does any event with flush on control
+		buffer.setFlushOnControl(true);
+		buffer.put(1);
+		buffer.put(2);
+		buffer.putControl(ControlEvent.config("fast"));
+		assertEquals("fast", buffer.pollControl().value);
+		assertTrue(buffer.isEmpty());
+		assertEquals(51, buffer.mDiscarded.size());
+
+		// events nobody takes do not pile up
+		for (int i = 0; i < CaptureBuffer.CONTROL_CAPACITY + 5; i++)
+		{
+			buffer.putControl(ControlEvent.config(i));
+		}
+		assertEquals(5, buffer.pollControl().value);
+	}
+
+	@Test
+	public void buffer_withoutAControlLaneKeepsTakeBlockingForData() throws Exception
+	{
+		final RecordingBuffer buffer = new RecordingBuffer(10);
+		assertFalse(buffer.hasControlLane());
+		buffer.put(1);
+		buffer.putControl(ControlEvent.state(CaptureDevice.State.STOPPED));
+
+		// a consumer that loops on take() gets its data, and never a null
+		assertFalse(buffer.isEmpty());
+		assertEquals(Integer.valueOf(1), buffer.take());
+		assertNull(buffer.pollControl());
+		assertTrue(buffer.isEmpty());
+
+		// a flush still drops the data waiting
+		buffer.put(2);
+		buffer.putControl(ControlEvent.flush());
+		assertEquals(1, buffer.getFlushedCount());
+		assertTrue(buffer.isEmpty());
+
+		// and a consumer waiting in take() is not woken by an event
+		final CountDownLatch taken = new CountDownLatch(1);
+		Thread consumer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if (buffer.take() == 3)
+					{
+						taken.countDown();
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					// failed
+				}
+			}
+		});
+		consumer.start();
+		buffer.putControl(ControlEvent.state(CaptureDevice.State.PAUSED));
+		buffer.put(3);
+		assertTrue(taken.await(5, TimeUnit.SECONDS));
+		consumer.join();
+
+		// turning the lane off drops the events waiting
+		buffer.setControlLane(true);
+		buffer.putControl(ControlEvent.state(CaptureDevice.State.PAUSED));
+		assertFalse(buffer.isEmpty());
+		buffer.setControlLane(false);
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void buffer_wakesAWaitingConsumerForAControlEvent() throws Exception
+	{
+		final CaptureBuffer<Integer> buffer = new CaptureBuffer<Integer>(10);
+		buffer.setControlLane(true);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch woken = new CountDownLatch(1);
+		Thread consumer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					started.countDown();
+					if (buffer.take() == null && buffer.pollControl() != null)
+					{
+						woken.countDown();
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					// failed
+				}
+			}
+		});
+		consumer.start();
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		Thread.sleep(20);
+		buffer.putControl(ControlEvent.state(CaptureDevice.State.STOPPED));
+		assertTrue(woken.await(1, TimeUnit.SECONDS));
+		consumer.join();
+	}
+
+	@Test
+	public void buffer_letsAConsumerSeeAStopBehindABacklog() throws Exception
+	{
+		// a consumer that is 100 items behind sees the stop as soon as it finishes the item it
+		// is handling
+		for (boolean flush : new boolean[] { false, true })
+		{
+			final CaptureBuffer<Integer> buffer = new CaptureBuffer<Integer>(100);
+			buffer.setControlLane(true);
+			buffer.setFlushOnControl(flush);
+			for (int i = 0; i < 100; i++)
+			{
+				buffer.put(i);
+			}
+			final CountDownLatch handling = new CountDownLatch(1);
+			final CountDownLatch stopSent = new CountDownLatch(1);
+			final AtomicLong handled = new AtomicLong();
+			final AtomicLong stopped = new AtomicLong();
+			Thread consumer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while (true)
+						{
+							Integer item = buffer.take();
+							if (item != null)
+							{
+								// the stop arrives while the first item is being handled
+								handling.countDown();
+								stopSent.await();
+								handled.incrementAndGet();
+							}
+							else if (buffer.pollControl().state == CaptureDevice.State.STOPPED)
+							{
+								stopped.set(handled.get());
+								return;
+							}
+						}
+					}
+					catch (InterruptedException ex)
+					{
+						// failed
+					}
+				}
+			});
+			consumer.start();
+			assertTrue(handling.await(5, TimeUnit.SECONDS));
+			buffer.putControl(ControlEvent.state(CaptureDevice.State.STOPPED));
+			stopSent.countDown();
+			consumer.join(5000);
+
+			assertEquals(1, stopped.get());
+			assertEquals(flush ? 99 : 0, buffer.getFlushedCount());
+			assertEquals(flush, buffer.isEmpty());
+		}
+	}
+
+	@Test
+	public void buffer_putsAndTakesInBatches() throws Exception
+	{
+		CaptureBuffer<Integer> buffer = new CaptureBuffer<Integer>(5);
+		assertEquals(3, buffer.putAll(Arrays.asList(0, 1, 2), 0));
+
+		// what does not fit is left to the caller
+		assertEquals(2, buffer.putAll(Arrays.asList(3, 4, 5, 6), 10));
+		assertEquals(2, buffer.getLostPackets());
+
+		Integer[] batch = new Integer[4];
+		assertEquals(4, buffer.drainTo(batch, 10));
+		assertArrayEquals(new Integer[] { 0, 1, 2, 3 }, batch);
+		List<Integer> rest = new ArrayList<Integer>();
+		assertEquals(1, buffer.drainTo(rest, 10));
+		assertEquals(Arrays.asList(4), rest);
+		assertEquals(0, buffer.drainTo(rest, 10));
+
+		// a timed drain waits for the first item only
+		assertEquals(0, buffer.drain(batch, 4, 10));
+		buffer.put(7);
+		assertEquals(1, buffer.drain(batch, 4, 10));
+		assertEquals(Integer.valueOf(7), batch[0]);
+
+		// and stops at a control event
+		buffer.setControlLane(true);
+		buffer.put(8);
+		buffer.putControl(ControlEvent.state(CaptureDevice.State.PAUSED));
+		assertEquals(0, buffer.drain(rest, 4, 1000));
+		assertNotNull(buffer.pollControl());
+		assertEquals(1, buffer.drain(rest, 4, 0));
+	}
+
+	@Test
+	public void buffer_movesFramesThroughAFullBufferWithOneNotificationEach() throws Exception
+	{
+		// the faces of each frame go in with one put, through a buffer small enough that the
+		// producer keeps waiting on the consumer
+		final int items = 40000;
+		final int perFrame = 4;
+		for (final boolean batched : new boolean[] { false, true })
+		{
+			final CaptureBuffer<Integer> buffer = new CaptureBuffer<Integer>(10);
+			final AtomicLong notified = new AtomicLong();
+			buffer.setPutListener(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					notified.incrementAndGet();
+				}
+			});
+			Thread producer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					List<Integer> frame = new ArrayList<Integer>(perFrame);
+					try
+					{
+						for (int i = 0; i < items; i += perFrame)
+						{
+							frame.clear();
+							for (int face = 0; face < perFrame; face++)
+							{
+								frame.add(i + face);
+							}
+							if (batched)
+							{
+								int put = 0;
+								while (put < perFrame)
+								{
+									put += buffer.putAll(frame.subList(put, perFrame), 1000);
+								}
+							}
+							else
+							{
+								for (Integer item : frame)
+								{
+									buffer.put(item);
+								}
+							}
+						}
+					}
+					catch (InterruptedException ex)
+					{
+						// failed
+					}
+				}
+			});
+			producer.start();
+
+			int taken = 0;
+			Integer[] batch = new Integer[16];
+			while (taken < items)
+			{
+				if (batched)
+				{
+					int count = buffer.drain(batch, batch.length, 5000);
+					assertTrue(count > 0);
+					for (int i = 0; i < count; i++)
+					{
+						assertEquals(taken++, (int) batch[i]);
+					}
+				}
+				else
+				{
+					Integer item = buffer.poll(5000);
+					assertNotNull(item);
+					assertEquals(taken++, (int) item);
+				}
+			}
+			producer.join(5000);
+
+			assertTrue(buffer.isEmpty());
+			assertEquals(0, buffer.getLostPackets());
+			assertEquals(batched ? items / perFrame : items, notified.get());
+		}
+	}
+
+
+	/**
+	 * Keeps the items it drops.
+	 */
+	private static class RecordingBuffer extends CaptureBuffer<Integer>
+	{
+		RecordingBuffer(int capacity)
+		{
+			super(capacity);
+		}
+
+		@Override
+		protected void onDiscard(Integer item)
+		{
+			mDiscarded.add(item);
+		}
+
+		final List<Integer> mDiscarded = new ArrayList<Integer>();
+	}
+}
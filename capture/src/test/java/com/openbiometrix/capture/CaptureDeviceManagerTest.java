@@ -0,0 +1,206 @@
+package com.openbiometrix.capture;
+
+import android.content.Context;
+
+import com.openbiometrix.capture.ui.CaptureView;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CaptureDeviceManager: the registry, concurrent initialization and the shared
+ * pool lanes given to the devices.
+ */
+public class CaptureDeviceManagerTest
+{
+	@Test
+	public void manager_registersDevicesByIdAndType() throws Exception
+	{
+		CaptureDeviceManager manager = new CaptureDeviceManager(2);
+		FakeDevice camera = new FakeDevice("camera", CaptureDevice.Type.CAMERA, null);
+		FakeDevice microphone = new FakeDevice("microphone", CaptureDevice.Type.MICROPHONE, null);
+		manager.register(camera, 4);
+		manager.register(microphone);
+
+		assertSame(camera, manager.getDevice("camera"));
+		assertEquals(1, manager.getDevices(CaptureDevice.Type.MICROPHONE).size());
+		assertSame(microphone, manager.getDevices(CaptureDevice.Type.MICROPHONE).get(0));
+		assertEquals(2, manager.getDevices().size());
+		try
+		{
+			manager.register(new FakeDevice("camera", CaptureDevice.Type.CAMERA, null));
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			// the id is taken
+		}
+
+		// each device's background work runs on its lane of the shared pool
+		assertSame(manager.getExecutor(camera), camera.getExecutor());
+		assertEquals(4, manager.getExecutor(camera).getWeight());
+		final CountDownLatch ran = new CountDownLatch(1);
+		camera.getExecutor().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(1, TimeUnit.SECONDS));
+
+		manager.unregister(camera);
+		assertNull(manager.getDevice("camera"));
+		assertNull(camera.getExecutor());
+		manager.shutdown();
+		assertTrue(microphone.mDestroyed);
+		assertTrue(manager.getDevices().isEmpty());
+	}
+
+	@Test
+	public void manager_initializesDevicesConcurrently() throws Exception
+	{
+		// each device waits for the others inside initialize, which only works if they are
+		// initialized at the same time
+		CaptureDeviceManager manager = new CaptureDeviceManager(1);
+		CyclicBarrier barrier = new CyclicBarrier(3);
+		for (int i = 0; i < 3; i++)
+		{
+			manager.register(new FakeDevice("device" + i, CaptureDevice.Type.CAMERA, barrier));
+		}
+		assertTrue(manager.initializeAll(null));
+		for (CaptureDevice device : manager.getDevices())
+		{
+			assertEquals(CaptureDevice.State.INITIALIZED, device.getState());
+		}
+
+		FakeDevice broken = new FakeDevice("broken", CaptureDevice.Type.CAMERA, null);
+		broken.mBroken = true;
+		manager.register(broken);
+		assertFalse(manager.initializeAll(null));
+		assertEquals(CaptureDevice.State.UNINITIALIZED, broken.getState());
+		manager.shutdown();
+	}
+
+
+	/**
+	 * A device that meets the others at a barrier while it initializes, or fails to initialize
+	 * when broken.  It keeps its own state, so it never reaches the platform log.
+	 */
+	private static class FakeDevice extends CaptureDevice
+	{
+		FakeDevice(String id, CaptureDevice.Type type, CyclicBarrier barrier)
+		{
+			mId = id;
+			mType = type;
+			mBarrier = barrier;
+		}
+
+		@Override
+		public String getId()
+		{
+			return mId;
+		}
+
+		@Override
+		public String getName()
+		{
+			return mId;
+		}
+
+		@Override
+		public String getVersion()
+		{
+			return "1.0";
+		}
+
+		@Override
+		public String getVendor()
+		{
+			return "Test";
+		}
+
+		@Override
+		public CaptureDevice.Type getType()
+		{
+			return mType;
+		}
+
+		@Override
+		public void addViewer(CaptureView viewer)
+		{
+			mViewerList.add(viewer);
+		}
+
+		@Override
+		public boolean initialize(Context ctx)
+		{
+			return initialize(ctx, null);
+		}
+
+		@Override
+		public boolean initialize(Context ctx, String config)
+		{
+			if (mBroken)
+			{
+				return false;
+			}
+			if (mBarrier != null)
+			{
+				try
+				{
+					mBarrier.await(5, TimeUnit.SECONDS);
+				}
+				catch (Exception ex)
+				{
+					return false;
+				}
+			}
+			mFakeState = State.INITIALIZED;
+			return true;
+		}
+
+		@Override
+		public State getState()
+		{
+			return mFakeState;
+		}
+
+		@Override
+		public void destroy()
+		{
+			mDestroyed = true;
+		}
+
+		@Override
+		public void startPreview()
+		{
+			mFakeState = State.PREVIEW_STARTED;
+		}
+
+		@Override
+		public void startCapture()
+		{
+			mFakeState = State.CAPTURE_STARTED;
+		}
+
+		@Override
+		public void stop()
+		{
+			mFakeState = State.STOPPED;
+		}
+
+		private final String 				mId;
+		private final CaptureDevice.Type 	mType;
+		private final CyclicBarrier 		mBarrier;
+		private volatile boolean 			mBroken = false;
+		private volatile State 				mFakeState = State.UNINITIALIZED;
+		private volatile boolean 			mDestroyed = false;
+	}
+}
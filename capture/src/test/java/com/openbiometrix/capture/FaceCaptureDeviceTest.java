@@ -0,0 +1,110 @@
+package com.openbiometrix.capture;
+
+import android.content.Context;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the warm-up of FaceCaptureDevice, with the detector and camera left out.
+ */
+public class FaceCaptureDeviceTest
+{
+	@Test
+	public void warmUp_startsThePreviewAskedForMeanwhile() throws Exception
+	{
+		FakeDevice device = new FakeDevice();
+		Future<Boolean> warmUp = device.warmUp(null);
+		device.startPreview();
+		assertEquals(1, device.mPreviewStarts.get());
+
+		device.mGate.countDown();
+		assertTrue(warmUp.get(5, TimeUnit.SECONDS));
+		assertEquals(2, device.mPreviewStarts.get());
+	}
+
+	@Test
+	public void warmUp_keepsOffTheExecutorOfTheDevice() throws Exception
+	{
+		// the warm-up blocks, so it must not hold a worker of the shared pool
+		final AtomicInteger executed = new AtomicInteger();
+		FakeDevice device = new FakeDevice();
+		device.setExecutor(new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				executed.incrementAndGet();
+				command.run();
+			}
+		});
+		Future<Boolean> warmUp = device.warmUp(null);
+		device.mGate.countDown();
+		assertTrue(warmUp.get(5, TimeUnit.SECONDS));
+		assertEquals(0, executed.get());
+		assertEquals("FaceWarmUp", device.mWarmUpThread);
+	}
+
+	@Test
+	public void stop_duringWarmUpDoesNotStartThePreview() throws Exception
+	{
+		// the view asks for the preview, then its surface goes before the warm-up is done
+		FakeDevice device = new FakeDevice();
+		Future<Boolean> warmUp = device.warmUp(null);
+		device.startPreview();
+		device.stop();
+		assertEquals(CaptureDevice.State.STOPPED, device.getState());
+
+		device.mGate.countDown();
+		assertTrue(warmUp.get(5, TimeUnit.SECONDS));
+		assertEquals(1, device.mPreviewStarts.get());
+		assertEquals(CaptureDevice.State.STOPPED, device.getState());
+	}
+
+
+	/**
+	 * A device whose warm-up waits on a gate and builds nothing, and that keeps its own state.
+	 */
+	private static class FakeDevice extends FaceCaptureDevice
+	{
+		@Override
+		boolean warmUpNow(Context ctx) throws Exception
+		{
+			mWarmUpThread = Thread.currentThread().getName();
+			mGate.await();
+			onWarmedUp(null, null);
+			return true;
+		}
+
+		@Override
+		public void startPreview()
+		{
+			mPreviewStarts.incrementAndGet();
+			super.startPreview();
+		}
+
+		@Override
+		protected void setState(State state)
+		{
+			mFakeState = state;
+		}
+
+		@Override
+		public State getState()
+		{
+			return mFakeState;
+		}
+
+		final CountDownLatch mGate = new CountDownLatch(1);
+		final AtomicInteger mPreviewStarts = new AtomicInteger();
+		volatile String mWarmUpThread = null;
+		private volatile State mFakeState = State.UNINITIALIZED;
+	}
+}
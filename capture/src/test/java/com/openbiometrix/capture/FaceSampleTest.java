@@ -0,0 +1,37 @@
+package com.openbiometrix.capture;
+
+import com.openbiometrix.capture.quality.FrameQuality;
+import com.openbiometrix.capture.quality.FrameQualityPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the pooled data of FaceSample.
+ */
+public class FaceSampleTest
+{
+	@Test
+	public void release_returnsTheQualityOnceTheLastReferenceGoes() throws Exception
+	{
+		FrameQualityPool pool = new FrameQualityPool(1);
+		FrameQuality quality = pool.acquire();
+		FaceSample sample = new FaceSample(null, 0);
+		sample.setQuality(quality, pool);
+
+		// a viewer still holds the sample
+		sample.retain();
+		sample.release();
+		assertSame(quality, sample.getQuality());
+
+		sample.release();
+		assertNull(sample.getQuality());
+		assertSame(quality, pool.acquire());
+		assertEquals(0, pool.getMissCount());
+
+		// the next face measured while the pool is empty gets a new one
+		assertFalse(quality == pool.acquire());
+		assertEquals(1, pool.getMissCount());
+	}
+}
@@ -0,0 +1,152 @@
+package com.openbiometrix.capture;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PipelineLatency and the stage times stamped on a FaceSample.
+ */
+public class PipelineLatencyTest
+{
+	private final static long MS = 1000000;
+
+
+	@Test
+	public void latency_timesEachStageFromTheOneBefore()
+	{
+		PipelineLatency latency = new PipelineLatency();
+		FaceSample sample = new FaceSample(null, 0);
+		long frame = System.nanoTime();
+		sample.stamp(PipelineLatency.Stage.FRAME, frame);
+		sample.stamp(PipelineLatency.Stage.DETECTED, frame + 30 * MS);
+		sample.stamp(PipelineLatency.Stage.ENQUEUED, frame + 31 * MS);
+
+		// the first stamp is kept
+		sample.stamp(PipelineLatency.Stage.FRAME, frame + 5 * MS);
+		assertEquals(frame, sample.getStageTime(PipelineLatency.Stage.FRAME));
+		assertEquals(0, sample.getStageTime(PipelineLatency.Stage.DEQUEUED));
+
+		latency.record(sample, 0, frame + 131 * MS);
+		assertEquals(0, latency.get(PipelineLatency.Stage.FRAME).getCount());
+		assertEquals(30.0, latency.get(PipelineLatency.Stage.DETECTED).getAverage(), 1e-9);
+		assertEquals(1.0, latency.get(PipelineLatency.Stage.ENQUEUED).getAverage(), 1e-9);
+		// a stage without a time is timed into the next
+		assertEquals(0, latency.get(PipelineLatency.Stage.DEQUEUED).getCount());
+		assertEquals(100.0, latency.get(PipelineLatency.Stage.DELIVERED).getAverage(), 1e-9);
+		assertEquals(131.0, latency.getTotal().getMax(), 1e-9);
+		assertTrue(latency.toString(), latency.toString().startsWith("DETECTED 30.0/"));
+		assertTrue(latency.toString(), latency.toString().endsWith("total 131.0/131.0 ms"));
+
+		latency.reset();
+		assertEquals(0, latency.getTotal().getCount());
+		assertEquals(0, latency.getAverageOverhead(), 0);
+	}
+
+	@Test
+	public void latency_timesEachViewerFromItsOwnStages()
+	{
+		// two viewers share a sample, the second taking it 40 ms after the first
+		FaceSample sample = new FaceSample(null, 0);
+		long frame = System.nanoTime();
+		sample.stamp(PipelineLatency.Stage.FRAME, frame);
+		sample.stamp(PipelineLatency.Stage.DETECTED, frame + 30 * MS);
+		sample.stamp(PipelineLatency.Stage.ENQUEUED, frame + 31 * MS);
+
+		PipelineLatency first = new PipelineLatency();
+		PipelineLatency second = new PipelineLatency();
+		first.record(sample, frame + 32 * MS, frame + 40 * MS);
+		second.record(sample, frame + 72 * MS, frame + 90 * MS);
+
+		assertEquals(1.0, first.get(PipelineLatency.Stage.DEQUEUED).getAverage(), 1e-9);
+		assertEquals(8.0, first.get(PipelineLatency.Stage.DELIVERED).getAverage(), 1e-9);
+		assertEquals(40.0, first.getTotal().getMax(), 1e-9);
+		assertEquals(41.0, second.get(PipelineLatency.Stage.DEQUEUED).getAverage(), 1e-9);
+		assertEquals(18.0, second.get(PipelineLatency.Stage.DELIVERED).getAverage(), 1e-9);
+		assertEquals(90.0, second.getTotal().getMax(), 1e-9);
+		assertEquals(30.0, second.get(PipelineLatency.Stage.DETECTED).getAverage(), 1e-9);
+
+		// the viewers' times are not left on the sample
+		assertEquals(0, sample.getStageTime(PipelineLatency.Stage.DEQUEUED));
+		assertEquals(0, sample.getStageTime(PipelineLatency.Stage.DELIVERED));
+	}
+
+	@Test
+	public void histogram_countsInLog2BucketsOfMicroseconds()
+	{
+		PipelineLatency.Histogram histogram = new PipelineLatency.Histogram();
+		histogram.add(500);				// under 1 us
+		histogram.add(3000);			// 3 us
+		histogram.add(100 * MS);		// 100000 us
+		histogram.add(-1);
+		long[] buckets = histogram.getBuckets();
+		assertEquals(2, buckets[0]);
+		assertEquals(1, buckets[1]);
+		assertEquals(1, buckets[16]);
+		assertEquals(4, histogram.getCount());
+
+		// the median is within the bucket of 3 us, the top at the max
+		assertEquals(0.004, histogram.getPercentile(0.75), 1e-9);
+		assertEquals(100.0, histogram.getPercentile(1), 1e-9);
+		assertEquals(0, PipelineLatency.Histogram.bucket(1));
+		assertEquals(PipelineLatency.BUCKETS - 1, PipelineLatency.Histogram.bucket(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void latency_recordsFromManyThreadsWithoutLoss() throws Exception
+	{
+		final int perThread = 50000;
+		final PipelineLatency latency = new PipelineLatency();
+		final FaceSample sample = new FaceSample(null, 0);
+		long frame = System.nanoTime();
+		sample.stamp(PipelineLatency.Stage.FRAME, frame);
+		sample.stamp(PipelineLatency.Stage.DETECTED, frame + 20 * MS);
+		sample.stamp(PipelineLatency.Stage.ENQUEUED, frame + 20 * MS + 50000);
+		final long dequeued = frame + 60 * MS;
+		final long delivered = frame + 75 * MS;
+
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException ex)
+					{
+						return;
+					}
+					for (int n = 0; n < perThread; n++)
+					{
+						latency.record(sample, dequeued, delivered);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		long total = (long) perThread * threads.length;
+		for (PipelineLatency.Stage stage : PipelineLatency.Stage.values())
+		{
+			if (stage != PipelineLatency.Stage.FRAME)
+			{
+				assertEquals(total, latency.get(stage).getCount());
+			}
+		}
+		assertEquals(total, latency.get(PipelineLatency.Stage.DEQUEUED).getBuckets()[15]);
+		assertEquals(75.0, latency.getTotal().getAverage(), 1e-9);
+	}
+}
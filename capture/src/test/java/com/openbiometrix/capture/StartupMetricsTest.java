@@ -0,0 +1,79 @@
+package com.openbiometrix.capture;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StartupMetrics.
+ */
+public class StartupMetricsTest
+{
+	@Test
+	public void metrics_recordTheFirstTimeEachStageIsReached() throws Exception
+	{
+		StartupMetrics metrics = new StartupMetrics();
+		assertEquals(-1, metrics.get(StartupMetrics.Stage.FIRST_FACE));
+		assertEquals("", metrics.toString());
+
+		Thread.sleep(20);
+		assertTrue(metrics.mark(StartupMetrics.Stage.DETECTOR_READY));
+		long ready = metrics.get(StartupMetrics.Stage.DETECTOR_READY);
+		assertTrue("ready " + ready, ready >= 19);
+
+		// marking again keeps the first time
+		Thread.sleep(20);
+		assertFalse(metrics.mark(StartupMetrics.Stage.DETECTOR_READY));
+		assertEquals(ready, metrics.get(StartupMetrics.Stage.DETECTOR_READY));
+		metrics.mark(StartupMetrics.Stage.FIRST_FRAME);
+		assertTrue(metrics.get(StartupMetrics.Stage.FIRST_FRAME) >= ready + 19);
+		assertTrue(metrics.toString(), metrics.toString().startsWith("DETECTOR_READY " + ready + " ms, FIRST_FRAME "));
+
+		metrics.restart();
+		assertEquals(-1, metrics.get(StartupMetrics.Stage.DETECTOR_READY));
+	}
+
+	@Test
+	public void metrics_letOneThreadWinAStage() throws Exception
+	{
+		final StartupMetrics metrics = new StartupMetrics();
+		final AtomicInteger winners = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException ex)
+					{
+						return;
+					}
+					for (int frame = 0; frame < 10000; frame++)
+					{
+						if (metrics.mark(StartupMetrics.Stage.FIRST_FRAME))
+						{
+							winners.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertEquals(1, winners.get());
+	}
+}
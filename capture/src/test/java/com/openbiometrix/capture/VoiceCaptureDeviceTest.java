@@ -0,0 +1,446 @@
+package com.openbiometrix.capture;
+
+import android.view.View;
+
+import com.openbiometrix.capture.audio.AudioSource;
+import com.openbiometrix.capture.audio.PcmRingBuffer;
+import com.openbiometrix.capture.audio.SyntheticSource;
+import com.openbiometrix.capture.audio.VoiceActivityDetector;
+import com.openbiometrix.capture.audio.WavFileSource;
+import com.openbiometrix.capture.audio.WavFileWriter;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+import com.openbiometrix.capture.ui.PcmCaptureView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for VoiceCaptureDevice, driven by synthetic audio on the JVM.
+ */
+public class VoiceCaptureDeviceTest
+{
+	private final static int RATE = 16000;
+	private final static int CHUNK_MS = 20;
+
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("captures", "");
+		mDirectory.delete();
+		mStore = new CaptureStore(mDirectory);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		mStore.close();
+		for (File file : mDirectory.listFiles())
+		{
+			file.delete();
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void recording_keepsEverySampleWhileASlowViewerSkips() throws Exception
+	{
+		// 30 s of tone, more than the ring holds, read as fast as the device can take it
+		SyntheticSource tone = new SyntheticSource(16000, 440, 8000, 30000);
+		GatedSource source = new GatedSource(tone);
+		FakeDevice device = new FakeDevice();
+		device.setCaptureStore(mStore);
+		device.setAudioSource(source);
+		FakeView view = new FakeView();
+		device.addViewer(view);
+		assertTrue(device.initialize(null));
+		assertNotNull(view.mReader);
+		PcmRingBuffer ring = device.getPcmBuffer();
+		assertTrue(ring.getCapacity() < 480000);
+
+		// the recording opens before the first sample is captured
+		device.startCapture();
+		assertEquals(CaptureDevice.State.CAPTURE_STARTED, device.getState());
+		source.mGate.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (ring.getWritePosition() < 480000 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(480000, ring.getWritePosition());
+
+		CaptureFile file = device.stopCapture();
+		assertEquals(CaptureDevice.State.PREVIEW_STARTED, device.getState());
+		assertNotNull(file);
+		assertEquals(WavFileWriter.MEDIA_TYPE, file.getMediaType());
+		assertEquals(WavFileWriter.HEADER_SIZE + 2 * 480000, file.length());
+		assertEquals(1, mStore.size());
+		assertEquals(file, mStore.getFiles().get(0));
+		assertEquals(480000, checkTone(file, tone, 0));
+
+		// the viewer that never read skipped to the oldest samples still in the ring
+		short[] samples = new short[1000];
+		assertEquals(samples.length, view.mReader.read(samples, 0, samples.length, 0));
+		long position = view.mReader.getPosition() - samples.length;
+		assertEquals(480000 - ring.getCapacity(), position);
+		assertEquals(position, view.mReader.getOverrunCount());
+		for (int i = 0; i < samples.length; i++)
+		{
+			assertEquals(tone.getSample(position + i), samples[i]);
+		}
+
+		device.destroy();
+		assertEquals(CaptureDevice.State.STOPPED, device.getState());
+		assertTrue(device.mErrors.isEmpty());
+	}
+
+	@Test
+	public void recording_savesEachUtteranceWithItsPreRollAndHangover() throws Exception
+	{
+		// 1 s quiet, 1.5 s speech, 1 s quiet, 0.8 s speech, 1 s quiet
+		short[] audio = new short[RATE * 53 / 10];
+		Random random = new Random(1);
+		for (int i = 0; i < audio.length; i++)
+		{
+			audio[i] = (short) (random.nextInt(101) - 50);
+		}
+		addSpeech(audio, RATE, RATE * 3 / 2);
+		addSpeech(audio, RATE * 7 / 2, RATE * 4 / 5);
+
+		GatedSource source = new GatedSource(new ArraySource(audio));
+		FakeDevice device = new FakeDevice();
+		device.setCaptureStore(mStore);
+		device.setAudioSource(source);
+		device.setVoiceActivityDetector(new VoiceActivityDetector(RATE, 1));
+		final List<Long> started = Collections.synchronizedList(new ArrayList<Long>());
+		final List<CaptureRecord> saved = Collections.synchronizedList(new ArrayList<CaptureRecord>());
+		device.setUtteranceListener(new VoiceCaptureDevice.UtteranceListener()
+		{
+			@Override
+			public void onUtteranceStarted(long timestamp)
+			{
+				started.add(timestamp);
+			}
+
+			@Override
+			public void onUtteranceSaved(CaptureFile file, CaptureRecord record)
+			{
+				saved.add(record);
+			}
+		});
+		assertTrue(device.initialize(null));
+		PcmRingBuffer ring = device.getPcmBuffer();
+
+		device.startCapture();
+		long opened = System.currentTimeMillis();
+		source.mGate.countDown();
+		long deadline = opened + 10000;
+		while (ring.getWritePosition() < audio.length && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(audio.length, ring.getWritePosition());
+		long written = System.currentTimeMillis();
+		CaptureFile last = device.stopCapture();
+		device.destroy();
+
+		// one file per utterance, holding exactly the stream from its start, pre-roll included,
+		// to its end, hangover included
+		assertEquals(2, started.size());
+		assertEquals(2, saved.size());
+		assertEquals(2, mStore.size());
+		assertEquals(mStore.getFiles().get(1), last);
+		int preRoll = RATE * VoiceActivityDetector.DEFAULT_PRE_ROLL_MS / 1000;
+		int hangover = RATE * VoiceActivityDetector.DEFAULT_HANGOVER_MS / 1000;
+		int frame = RATE * VoiceActivityDetector.FRAME_MS / 1000;
+		int[][] expected = { { RATE, RATE * 5 / 2 }, { RATE * 7 / 2, RATE * 43 / 10 } };
+		long[] starts = new long[2];
+		for (int i = 0; i < 2; i++)
+		{
+			CaptureRecord record = saved.get(i);
+			assertEquals(WavFileWriter.MEDIA_TYPE, record.mediaType);
+			assertEquals((long) started.get(i), record.timestamp);
+			assertTrue("SNR " + record.quality, record.quality > 30);
+
+			short[] samples = readWav(mStore.getFile(i));
+			starts[i] = find(audio, samples, expected[i][0] - preRoll - 2 * frame, expected[i][0] - preRoll + 2 * frame);
+			long end = starts[i] + samples.length;
+			assertEquals(expected[i][1] + hangover, end, 2 * frame);
+			assertEquals(WavFileWriter.HEADER_SIZE + 2 * samples.length, record.size);
+		}
+
+		// the start times count the samples from the first one captured
+		long apart = (starts[1] - starts[0]) * 1000 / RATE;
+		assertEquals(apart, saved.get(1).timestamp - saved.get(0).timestamp, 1);
+		long first = saved.get(0).timestamp - starts[0] * 1000 / RATE;
+		assertTrue("first sample at " + (first - opened), first >= opened - CHUNK_MS - 1 && first <= written);
+	}
+
+
+	/**
+	 * Find where samples are in the audio, starting from a position in a range.
+	 */
+	private static long find(short[] audio, short[] samples, int from, int to)
+	{
+		for (int start = Math.max(from, 0); start <= to; start++)
+		{
+			boolean match = start + samples.length <= audio.length;
+			for (int i = 0; match && i < samples.length; i++)
+			{
+				match = audio[start + i] == samples[i];
+			}
+			if (match)
+			{
+				return start;
+			}
+		}
+		fail("Samples not found between " + from + " and " + to);
+		return -1;
+	}
+
+	private static short[] readWav(File file) throws IOException
+	{
+		WavFileSource wav = new WavFileSource(file);
+		wav.start();
+		short[] samples = new short[(int) (file.length() - WavFileWriter.HEADER_SIZE) / 2];
+		int position = 0;
+		int read;
+		while (position < samples.length && (read = wav.read(samples, position, samples.length - position)) >= 0)
+		{
+			position += read;
+		}
+		wav.release();
+		assertEquals(samples.length, position);
+		return samples;
+	}
+
+	/**
+	 * A voiced sound at 140 Hz with three harmonics, in syllables of 250 ms.
+	 */
+	private static void addSpeech(short[] audio, int offset, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			double t = (double) i / RATE;
+			double envelope = 0.3 + 0.7 * Math.abs(Math.sin(2 * Math.PI * 2 * t));
+			double voice = Math.sin(2 * Math.PI * 140 * t) + 0.5 * Math.sin(2 * Math.PI * 280 * t)
+					+ 0.25 * Math.sin(2 * Math.PI * 420 * t);
+			audio[offset + i] += (short) (6000 * envelope * voice);
+		}
+	}
+
+	/**
+	 * Check that a WAV file holds the tone from a position on.
+	 *
+	 * @return The number of samples in the file
+	 */
+	private static long checkTone(File file, SyntheticSource tone, long from) throws IOException
+	{
+		WavFileSource wav = new WavFileSource(file);
+		wav.start();
+		short[] samples = new short[4096];
+		long position = 0;
+		int read;
+		while ((read = wav.read(samples, 0, samples.length)) >= 0)
+		{
+			for (int i = 0; i < read; i++, position++)
+			{
+				assertEquals(tone.getSample(from + position), samples[i]);
+			}
+		}
+		wav.release();
+		return position;
+	}
+
+	/**
+	 * A device that keeps its own state and errors rather than logging them.
+	 */
+	private static class FakeDevice extends VoiceCaptureDevice
+	{
+		@Override
+		protected void setCaptureThreadPriority()
+		{
+		}
+
+		@Override
+		protected void onCaptureError(Exception error)
+		{
+			mErrors.add(error);
+		}
+
+		@Override
+		protected void setState(State state)
+		{
+			mFakeState = state;
+		}
+
+		@Override
+		public State getState()
+		{
+			return mFakeState;
+		}
+
+		final List<Exception> mErrors = Collections.synchronizedList(new ArrayList<Exception>());
+		private volatile State mFakeState = State.UNINITIALIZED;
+	}
+
+	/**
+	 * A viewer that only keeps its reader.
+	 */
+	private static class FakeView implements PcmCaptureView
+	{
+		@Override
+		public View getView()
+		{
+			return null;
+		}
+
+		@Override
+		public CaptureBuffer<?> getCaptureBuffer()
+		{
+			return null;
+		}
+
+		@Override
+		public void onStateChanged(CaptureDevice.State state)
+		{
+		}
+
+		@Override
+		public void onPcmReaderOpened(PcmRingBuffer.Reader reader, int sampleRate, int channelCount)
+		{
+			mReader = reader;
+		}
+
+		PcmRingBuffer.Reader mReader = null;
+	}
+
+	/**
+	 * A source that plays an array of samples once, as fast as they are read.
+	 */
+	private static class ArraySource implements AudioSource
+	{
+		ArraySource(short[] samples)
+		{
+			mSamples = samples;
+		}
+
+		@Override
+		public int getSampleRate()
+		{
+			return RATE;
+		}
+
+		@Override
+		public int getChannelCount()
+		{
+			return 1;
+		}
+
+		@Override
+		public void start()
+		{
+		}
+
+		@Override
+		public synchronized int read(short[] buffer, int offset, int length)
+		{
+			if (mPosition == mSamples.length)
+			{
+				return -1;
+			}
+			int count = Math.min(length, mSamples.length - mPosition);
+			System.arraycopy(mSamples, mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+
+		@Override
+		public void stop()
+		{
+		}
+
+		@Override
+		public void release()
+		{
+		}
+
+		private final short[] 	mSamples;
+		private int 			mPosition = 0;
+	}
+
+	/**
+	 * A source that holds back its samples until its gate is opened.
+	 */
+	private static class GatedSource implements AudioSource
+	{
+		GatedSource(AudioSource source)
+		{
+			mSource = source;
+		}
+
+		@Override
+		public int getSampleRate()
+		{
+			return mSource.getSampleRate();
+		}
+
+		@Override
+		public int getChannelCount()
+		{
+			return mSource.getChannelCount();
+		}
+
+		@Override
+		public void start() throws IOException
+		{
+			mSource.start();
+		}
+
+		@Override
+		public int read(short[] buffer, int offset, int length) throws IOException
+		{
+			try
+			{
+				mGate.await();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+			return mSource.read(buffer, offset, length);
+		}
+
+		@Override
+		public void stop()
+		{
+			mSource.stop();
+		}
+
+		@Override
+		public void release()
+		{
+			mSource.release();
+		}
+
+		final CountDownLatch mGate = new CountDownLatch(1);
+		private final AudioSource mSource;
+	}
+
+
+	private File 			mDirectory;
+	private CaptureStore 	mStore;
+}
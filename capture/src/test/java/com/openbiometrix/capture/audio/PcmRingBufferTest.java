@@ -0,0 +1,161 @@
+package com.openbiometrix.capture.audio;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PcmRingBuffer.
+ */
+public class PcmRingBufferTest
+{
+	@Test
+	public void losslessReader_getsEverySampleFromAFastWriter() throws Exception
+	{
+		final PcmRingBuffer ring = new PcmRingBuffer(1000);
+		assertEquals(1024, ring.getCapacity());
+		final PcmRingBuffer.Reader reader = ring.openReader(true);
+		final int total = 200000;
+
+		final AtomicReference<String> error = new AtomicReference<String>();
+		Thread consumer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				short[] buffer = new short[300];
+				long expected = 0;
+				try
+				{
+					int read;
+					while ((read = reader.read(buffer, 0, buffer.length, 1000)) >= 0)
+					{
+						for (int i = 0; i < read; i++, expected++)
+						{
+							if (buffer[i] != (short) expected)
+							{
+								error.set("Sample " + expected + " was " + buffer[i]);
+								return;
+							}
+						}
+						if (expected % 20000 < 300)
+						{
+							// a slow disk
+							Thread.sleep(2);
+						}
+					}
+					if (expected != total)
+					{
+						error.set("Read " + expected + " of " + total + " samples");
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					error.set("Interrupted");
+				}
+			}
+		});
+		consumer.start();
+
+		short[] chunk = new short[320];
+		for (int position = 0; position < total; position += chunk.length)
+		{
+			for (int i = 0; i < chunk.length; i++)
+			{
+				chunk[i] = (short) (position + i);
+			}
+			ring.write(chunk, 0, Math.min(chunk.length, total - position));
+		}
+		ring.close();
+		consumer.join();
+
+		assertNull(error.get());
+		assertEquals(total, ring.getWritePosition());
+		assertTrue(ring.getStallCount() > 0);
+	}
+
+	@Test
+	public void lossyReader_skipsWithoutHoldingUpTheWriter() throws Exception
+	{
+		PcmRingBuffer ring = new PcmRingBuffer(1024);
+		PcmRingBuffer.Reader reader = ring.openReader(false);
+		short[] chunk = new short[1000];
+		for (int position = 0; position < 5000; position += chunk.length)
+		{
+			for (int i = 0; i < chunk.length; i++)
+			{
+				chunk[i] = (short) (position + i);
+			}
+			ring.write(chunk, 0, chunk.length);
+		}
+		assertEquals(0, ring.getStallCount());
+		assertEquals(1024, reader.available());
+
+		// the reader carries on from the oldest sample still in the ring
+		short[] buffer = new short[2048];
+		assertEquals(1024, reader.read(buffer, 0, buffer.length, 0));
+		assertEquals(5000 - 1024, buffer[0]);
+		assertEquals(4999, buffer[1023]);
+		assertEquals(5000 - 1024, reader.getOverrunCount());
+		assertEquals(0, reader.read(buffer, 0, buffer.length, 10));
+
+		reader.close();
+		ring.close();
+		PcmRingBuffer.Reader late = ring.openReader(true);
+		assertEquals(-1, late.read(buffer, 0, buffer.length, 10));
+	}
+
+	@Test
+	public void lossyReader_neverReturnsSamplesTheWriterIsOverwriting() throws Exception
+	{
+		final PcmRingBuffer ring = new PcmRingBuffer(1024);
+		final int total = 2000000;
+		Thread producer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				short[] chunk = new short[320];
+				try
+				{
+					for (int position = 0; position < total; position += chunk.length)
+					{
+						for (int i = 0; i < chunk.length; i++)
+						{
+							chunk[i] = (short) (position + i);
+						}
+						ring.write(chunk, 0, Math.min(chunk.length, total - position));
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					// the reader checks the count
+				}
+				ring.close();
+			}
+		});
+		PcmRingBuffer.Reader meter = ring.openReader(false);
+		producer.start();
+
+		// every sample read is the one at its position, however far the reader falls behind
+		short[] buffer = new short[700];
+		long read = 0;
+		int count;
+		while ((count = meter.read(buffer, 0, buffer.length, 1000)) >= 0)
+		{
+			long start = meter.getPosition() - count;
+			for (int i = 0; i < count; i++)
+			{
+				assertEquals("Sample " + (start + i), (short) (start + i), buffer[i]);
+			}
+			read += count;
+		}
+		producer.join();
+
+		assertEquals(total, meter.getPosition());
+		assertEquals(total, read + meter.getOverrunCount());
+		assertEquals(0, ring.getStallCount());
+	}
+}
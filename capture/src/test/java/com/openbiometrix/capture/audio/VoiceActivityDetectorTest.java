@@ -0,0 +1,252 @@
+package com.openbiometrix.capture.audio;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests and a speed measurement for VoiceActivityDetector, on synthetic speech: bursts of
+ * a voiced tone with a syllable envelope, in silence or background noise.
+ */
+public class VoiceActivityDetectorTest
+{
+	private final static int RATE = 16000;
+
+	@Test
+	public void detector_findsUtterancesInSilence()
+	{
+		// 1 s quiet, 1.5 s speech, 1 s quiet, 0.8 s speech, 1 s quiet
+		short[] audio = new short[RATE * 53 / 10];
+		addNoise(audio, 0, audio.length, 50, 1);
+		addSpeech(audio, RATE, RATE * 3 / 2);
+		addSpeech(audio, RATE * 7 / 2, RATE * 4 / 5);
+
+		VoiceActivityDetector vad = new VoiceActivityDetector(RATE, 1);
+		Collector collector = new Collector(audio);
+		vad.setListener(collector);
+		process(vad, audio, 320);
+		vad.flush();
+
+		assertEquals(2, vad.getUtteranceCount());
+		assertEquals(2, collector.mStarts.size());
+		assertEquals(2, collector.mEnds.size());
+		assertFalse(vad.isInSpeech());
+
+		// starts include the pre-roll, ends the hangover
+		int preRoll = RATE * VoiceActivityDetector.DEFAULT_PRE_ROLL_MS / 1000;
+		int hangover = RATE * VoiceActivityDetector.DEFAULT_HANGOVER_MS / 1000;
+		int frame = RATE * VoiceActivityDetector.FRAME_MS / 1000;
+		assertEquals(RATE - preRoll, collector.mStarts.get(0), 2 * frame);
+		assertEquals(RATE * 5 / 2 + hangover, collector.mEnds.get(0), 2 * frame);
+		assertEquals(RATE * 7 / 2 - preRoll, collector.mStarts.get(1), 2 * frame);
+		assertEquals(RATE * 43 / 10 + hangover, collector.mEnds.get(1), 2 * frame);
+
+		// the samples passed on are exactly the stream between each start and end
+		assertTrue(collector.mMatches);
+		assertEquals(collector.mEnds.get(0) - collector.mStarts.get(0)
+				+ collector.mEnds.get(1) - collector.mStarts.get(1), collector.mSampleCount);
+		assertEquals((float) collector.mSampleCount / audio.length, vad.getSpeechRatio(), 0.0001);
+		assertTrue("SNR " + vad.getUtteranceSnr(), vad.getUtteranceSnr() > 30);
+	}
+
+	@Test
+	public void detector_ignoresSteadyNoiseAndKeepsPausesInOneUtterance()
+	{
+		// hiss loud enough to pass the minimum level, then two words 150 ms apart
+		short[] audio = new short[RATE * 4];
+		addNoise(audio, 0, audio.length, 1500, 2);
+		addSpeech(audio, RATE * 2, RATE / 2);
+		addSpeech(audio, RATE * 2 + RATE / 2 + RATE * 15 / 100, RATE / 2);
+
+		VoiceActivityDetector vad = new VoiceActivityDetector(RATE, 1);
+		Collector collector = new Collector(audio);
+		vad.setListener(collector);
+		process(vad, audio, 1000);
+		vad.flush();
+
+		assertEquals(1, vad.getUtteranceCount());
+		assertTrue(collector.mMatches);
+		assertTrue("noise floor " + vad.getNoiseFloor(), vad.getNoiseFloor() > VoiceActivityDetector.DEFAULT_MIN_LEVEL_DB);
+		// the quiet start of the first syllable is under the noise, so it is found a little later
+		int frame = RATE * VoiceActivityDetector.FRAME_MS / 1000;
+		assertEquals(RATE * 2 - RATE / 5, collector.mStarts.get(0), 6 * frame);
+
+		// an utterance still open at the end of the stream ends there
+		vad.reset();
+		collector = new Collector(audio);
+		vad.setListener(collector);
+		vad.process(audio, 0, RATE * 5 / 2 + 77);
+		assertTrue(vad.isInSpeech());
+		vad.flush();
+		assertEquals(1, collector.mEnds.size());
+		assertEquals(RATE * 5 / 2 + 77, (long) collector.mEnds.get(0));
+		assertTrue(collector.mMatches);
+	}
+
+	@Test
+	public void detector_segmentsARecordedStereoFile() throws Exception
+	{
+		// a stereo recording in room noise, read back from a WAV file in uneven chunks
+		short[] audio = new short[RATE * 6 * 2];
+		addNoise(audio, 0, audio.length, 200, 3);
+		short[] speech = new short[RATE * 6];
+		addSpeech(speech, RATE, RATE);
+		addSpeech(speech, RATE * 4, RATE / 2);
+		for (int i = 0; i < speech.length; i++)
+		{
+			audio[2 * i] += speech[i];
+			audio[2 * i + 1] += speech[i] / 2;
+		}
+		File file = File.createTempFile("speech", ".wav");
+		try
+		{
+			WavFileWriter writer = new WavFileWriter(file, RATE, 2);
+			writer.write(audio, 0, audio.length);
+			writer.close();
+
+			WavFileSource source = new WavFileSource(file);
+			VoiceActivityDetector vad = new VoiceActivityDetector(source.getSampleRate(), source.getChannelCount());
+			Collector collector = new Collector(audio);
+			vad.setListener(collector);
+			source.start();
+			short[] chunk = new short[1234];
+			int read;
+			while ((read = source.read(chunk, 0, chunk.length)) >= 0)
+			{
+				vad.process(chunk, 0, read);
+			}
+			source.release();
+			vad.flush();
+
+			assertEquals(2, vad.getUtteranceCount());
+			assertTrue(collector.mMatches);
+			int frame = RATE * VoiceActivityDetector.FRAME_MS / 1000 * 2;
+			assertEquals(2 * (RATE - RATE / 5), collector.mStarts.get(0), 2 * frame);
+			assertEquals(2 * (RATE * 4 - RATE / 5), collector.mStarts.get(1), 2 * frame);
+			assertTrue("speech ratio " + vad.getSpeechRatio(), vad.getSpeechRatio() < 0.5);
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void detector_handlesAMinuteOf48kHzStereo()
+	{
+		// a minute of speech and silence at 48 kHz stereo, in 20 ms chunks
+		int rate = 48000;
+		short[] audio = new short[rate * 2 * 10];
+		addNoise(audio, 0, audio.length, 100, 4);
+		short[] speech = new short[rate * 10];
+		addSpeech(speech, rate, rate * 3);
+		addSpeech(speech, rate * 5, rate * 2);
+		for (int i = 0; i < speech.length; i++)
+		{
+			audio[2 * i] += speech[i];
+			audio[2 * i + 1] += speech[i];
+		}
+		VoiceActivityDetector vad = new VoiceActivityDetector(rate, 2);
+		Collector collector = new Collector(null);
+		vad.setListener(collector);
+		int chunk = rate * 2 / 50;
+
+		for (int i = 0; i < 6; i++)
+		{
+			process(vad, audio, chunk);
+		}
+		vad.flush();
+
+		assertEquals(60 * 1000 / VoiceActivityDetector.FRAME_MS, vad.getFrameCount());
+		assertEquals(12, vad.getUtteranceCount());
+		assertEquals(12, collector.mStarts.size());
+		assertEquals(12, collector.mEnds.size());
+		for (int i = 0; i < 12; i++)
+		{
+			// both channels of a sample go together
+			assertEquals(0, collector.mStarts.get(i) % 2);
+			assertTrue(collector.mEnds.get(i) > collector.mStarts.get(i));
+		}
+		assertTrue("speech ratio " + vad.getSpeechRatio(), vad.getSpeechRatio() > 0.5 && vad.getSpeechRatio() < 0.7);
+	}
+
+
+	private static void process(VoiceActivityDetector vad, short[] audio, int chunk)
+	{
+		for (int offset = 0; offset < audio.length; offset += chunk)
+		{
+			vad.process(audio, offset, Math.min(chunk, audio.length - offset));
+		}
+	}
+
+	private static void addNoise(short[] audio, int offset, int length, int amplitude, long seed)
+	{
+		Random random = new Random(seed);
+		for (int i = offset; i < offset + length; i++)
+		{
+			audio[i] += (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+		}
+	}
+
+	/**
+	 * A voiced sound at 140 Hz with three harmonics, in syllables of 250 ms.
+	 */
+	private static void addSpeech(short[] audio, int offset, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			double t = (double) i / RATE;
+			double envelope = 0.3 + 0.7 * Math.abs(Math.sin(2 * Math.PI * 2 * t));
+			double voice = Math.sin(2 * Math.PI * 140 * t) + 0.5 * Math.sin(2 * Math.PI * 280 * t)
+					+ 0.25 * Math.sin(2 * Math.PI * 420 * t);
+			audio[offset + i] += (short) (6000 * envelope * voice);
+		}
+	}
+
+	/**
+	 * Records the events, and checks the samples passed on against the stream.
+	 */
+	private static class Collector implements VoiceActivityDetector.Listener
+	{
+		Collector(short[] audio)
+		{
+			mAudio = audio;
+		}
+
+		@Override
+		public void onUtteranceStart(long position)
+		{
+			mStarts.add(position);
+			mPosition = position;
+		}
+
+		@Override
+		public void onUtteranceSamples(short[] samples, int offset, int length)
+		{
+			for (int i = 0; mAudio != null && i < length; i++)
+			{
+				mMatches &= samples[offset + i] == mAudio[(int) mPosition + i];
+			}
+			mPosition += length;
+			mSampleCount += length;
+		}
+
+		@Override
+		public void onUtteranceEnd(long position)
+		{
+			mMatches &= position == mPosition;
+			mEnds.add(position);
+		}
+
+		private final short[] 			mAudio;
+		private final ArrayList<Long> 	mStarts = new ArrayList<Long>();
+		private final ArrayList<Long> 	mEnds = new ArrayList<Long>();
+		private long 					mPosition;
+		private long 					mSampleCount;
+		private boolean 				mMatches = true;
+	}
+}
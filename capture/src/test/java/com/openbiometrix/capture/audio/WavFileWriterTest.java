@@ -0,0 +1,134 @@
+package com.openbiometrix.capture.audio;
+
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for WavFileWriter, WavFileSource, SyntheticSource and adding recordings to a store.
+ */
+public class WavFileWriterTest
+{
+	@Test
+	public void writer_streamsAFileTheSourcePlaysBack() throws Exception
+	{
+		File file = File.createTempFile("voice", ".wav");
+		try
+		{
+			SyntheticSource tone = new SyntheticSource(16000, 440, 8000, 1500);
+			tone.start();
+			WavFileWriter writer = new WavFileWriter(file, 16000, 1);
+			short[] chunk = new short[333];
+			int read;
+			while ((read = tone.read(chunk, 0, chunk.length)) >= 0)
+			{
+				writer.write(chunk, 0, read);
+			}
+			writer.close();
+			assertEquals(24000, writer.getSampleCount());
+			assertEquals(1500, writer.getDuration());
+			assertEquals(WavFileWriter.HEADER_SIZE + 48000, file.length());
+
+			// the sizes in the header are filled in
+			RandomAccessFile raw = new RandomAccessFile(file, "r");
+			raw.seek(4);
+			assertEquals(36 + 48000, Integer.reverseBytes(raw.readInt()));
+			raw.seek(40);
+			assertEquals(48000, Integer.reverseBytes(raw.readInt()));
+			raw.close();
+
+			WavFileSource source = new WavFileSource(file);
+			assertEquals(16000, source.getSampleRate());
+			assertEquals(1, source.getChannelCount());
+			source.start();
+			short[] samples = new short[1000];
+			long position = 0;
+			while ((read = source.read(samples, 0, samples.length)) >= 0)
+			{
+				for (int i = 0; i < read; i++, position++)
+				{
+					assertEquals(tone.getSample(position), samples[i]);
+				}
+			}
+			assertEquals(24000, position);
+			source.release();
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void store_addsStreamedRecordings() throws Exception
+	{
+		File directory = File.createTempFile("captures", "");
+		directory.delete();
+		SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+		CaptureStore store = new CaptureStore(directory);
+		try
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				File part = store.createPartFile("voice-");
+				WavFileWriter writer = new WavFileWriter(part, 16000, 1);
+				writer.write(new short[] { 1, 2, 3 }, 0, 3);
+				writer.close();
+
+				CaptureRecord record = new CaptureRecord();
+				record.mediaType = WavFileWriter.MEDIA_TYPE;
+				record.timestamp = 1000 + i;
+				store.add(part, record, i == 0 ? null : key);
+				assertFalse(part.exists());
+				assertEquals(WavFileWriter.HEADER_SIZE + 6, record.size);
+				assertEquals(i == 1, record.isEncrypted());
+				assertTrue(record.fileName.endsWith(i == 0 ? ".wav" : ".wav.enc"));
+				assertEquals(WavFileWriter.HEADER_SIZE + 6, store.read(record, key).length);
+			}
+
+			// a recording left by a process that died is cleaned up
+			File part = store.createPartFile("voice-");
+			store.close();
+			store = new CaptureStore(directory);
+			assertFalse(part.exists());
+			assertEquals(2, store.size());
+		}
+		finally
+		{
+			store.close();
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void syntheticSource_paysOutInRealTime() throws Exception
+	{
+		SyntheticSource tone = new SyntheticSource(8000, 1000, 1000, 0);
+		tone.setRealTime(true);
+		tone.start();
+		short[] chunk = new short[160];
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(160, tone.read(chunk, 0, chunk.length));
+		}
+		// 200 ms of samples cannot be delivered before they would have been recorded
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		assertTrue("Took " + elapsed + " ms", elapsed >= 190);
+
+		tone.stop();
+		assertEquals(-1, tone.read(chunk, 0, chunk.length));
+	}
+}
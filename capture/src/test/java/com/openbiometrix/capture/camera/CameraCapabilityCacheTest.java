@@ -0,0 +1,158 @@
+package com.openbiometrix.capture.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CameraCapabilityCache and the settings chosen from CameraCapabilities.
+ */
+public class CameraCapabilityCacheTest
+{
+	private final static String FINGERPRINT = "vendor/device:7.1/NMF26X/1234:user/release-keys|12|1500000000000";
+
+	private File mFile;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mFile = File.createTempFile("camera", ".cap");
+		mFile.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mFile.delete();
+	}
+
+	@Test
+	public void cache_roundTripsAndInvalidatesOnUpgrade() throws Exception
+	{
+		CameraCapabilityCache cache = new CameraCapabilityCache(mFile, FINGERPRINT);
+		assertFalse(cache.load());
+		cache.setCameras(Arrays.asList(backCamera(), frontCamera()));
+		cache.setDetectorOperational(true);
+		assertTrue(cache.isComplete());
+		cache.save();
+
+		CameraCapabilityCache loaded = new CameraCapabilityCache(mFile, FINGERPRINT);
+		assertTrue(loaded.load());
+		assertTrue(loaded.isDetectorOperational());
+		assertEquals(2, loaded.getCameras().size());
+		CameraCapabilities front = loaded.getCameras().get(1);
+		assertEquals(1, front.getId());
+		assertEquals(CameraCapabilities.FACING_FRONT, front.getFacing());
+		assertEquals(270, front.getOrientation());
+		assertArrayEquals(frontCamera().getPreviewSizes(), front.getPreviewSizes());
+		assertArrayEquals(frontCamera().getFpsRanges(), front.getFpsRanges());
+
+		// a system or app upgrade changes the fingerprint
+		assertFalse(new CameraCapabilityCache(mFile, FINGERPRINT + "1").load());
+
+		// a corrupt file is not used
+		FileOutputStream out = new FileOutputStream(mFile);
+		out.write(new byte[] { 0x4f, 0x42, 0x58 });
+		out.close();
+		assertFalse(new CameraCapabilityCache(mFile, FINGERPRINT).load());
+
+		loaded.invalidate();
+		assertFalse(mFile.exists());
+		assertTrue(loaded.getCameras().isEmpty());
+	}
+
+	@Test
+	public void cache_keepsTheFacingOfACameraThatCouldNotBeOpened() throws Exception
+	{
+		// another app had the front camera, so only its facing and orientation are known
+		CameraCapabilityCache cache = new CameraCapabilityCache(mFile, FINGERPRINT);
+		CameraCapabilities busy = new CameraCapabilities(1, CameraCapabilities.FACING_FRONT, 270, new int[0], new int[0]);
+		cache.setCameras(Arrays.asList(backCamera(), busy));
+		assertFalse(cache.isComplete());
+		cache.save();
+
+		CameraCapabilityCache loaded = new CameraCapabilityCache(mFile, FINGERPRINT);
+		assertTrue(loaded.load());
+		assertFalse(loaded.isComplete());
+		assertTrue(loaded.getCameras().get(0).hasParameters());
+		CameraCapabilities front = loaded.selectCamera(CameraCapabilities.FACING_FRONT);
+		assertEquals(1, front.getId());
+		assertEquals(270, front.getOrientation());
+		assertFalse(front.hasParameters());
+	}
+
+	@Test
+	public void cache_selectsTheCameraByFacingNotById()
+	{
+		CameraCapabilityCache cache = new CameraCapabilityCache(mFile, FINGERPRINT);
+		assertNull(cache.selectCamera(CameraCapabilities.FACING_FRONT));
+
+		// the front camera is not always id 1
+		CameraCapabilities front = new CameraCapabilities(2, CameraCapabilities.FACING_FRONT, 270, new int[] { 640, 480 }, new int[0]);
+		cache.setCameras(Arrays.asList(backCamera(), backCamera(), front));
+		assertSame(front, cache.selectCamera(CameraCapabilities.FACING_FRONT));
+
+		// without a front camera the last one is used
+		CameraCapabilities last = new CameraCapabilities(1, CameraCapabilities.FACING_BACK, 90, new int[0], new int[0]);
+		cache.setCameras(Arrays.asList(backCamera(), last));
+		assertSame(last, cache.selectCamera(CameraCapabilities.FACING_FRONT));
+		assertFalse(cache.isComplete());
+	}
+
+	@Test
+	public void capabilities_chooseSupportedSettings()
+	{
+		int[] size = new int[2];
+
+		// the exact size when it is supported
+		assertTrue(frontCamera().choosePreviewSize(640, 480, size));
+		assertArrayEquals(new int[] { 640, 480 }, size);
+
+		// otherwise the same aspect ratio in preference to a nearer area
+		CameraCapabilities wide = new CameraCapabilities(0, CameraCapabilities.FACING_BACK, 90,
+				new int[] { 1280, 720, 800, 480, 320, 240, 1024, 768 }, new int[0]);
+		assertTrue(wide.choosePreviewSize(640, 480, size));
+		assertArrayEquals(new int[] { 320, 240 }, size);
+
+		// and the nearest area when no size has the ratio
+		CameraCapabilities odd = new CameraCapabilities(0, CameraCapabilities.FACING_BACK, 90,
+				new int[] { 1280, 720, 720, 480 }, new int[0]);
+		assertTrue(odd.choosePreviewSize(640, 480, size));
+		assertArrayEquals(new int[] { 720, 480 }, size);
+
+		// 30 fps is kept when a range reaches it, else lowered to the fastest supported
+		assertEquals(30.0f, frontCamera().chooseFps(30.0f), 0);
+		CameraCapabilities slow = new CameraCapabilities(0, 0, 0, new int[0], new int[] { 15000, 15000, 7500, 24000 });
+		assertEquals(24.0f, slow.chooseFps(30.0f), 0);
+	}
+
+	@Test
+	public void capabilities_fallBackToTheSettingsWantedWithoutParameters()
+	{
+		CameraCapabilities unknown = new CameraCapabilities(1, CameraCapabilities.FACING_FRONT, 270, new int[0], new int[0]);
+		int[] size = { -1, -1 };
+		assertFalse(unknown.choosePreviewSize(640, 480, size));
+		assertArrayEquals(new int[] { 640, 480 }, size);
+		assertEquals(30.0f, unknown.chooseFps(30.0f), 0);
+		assertEquals(12.5f, unknown.chooseFps(12.5f), 0);
+	}
+
+
+	private static CameraCapabilities backCamera()
+	{
+		return new CameraCapabilities(0, CameraCapabilities.FACING_BACK, 90,
+				new int[] { 1920, 1080, 1280, 720, 640, 480 }, new int[] { 15000, 30000, 30000, 30000 });
+	}
+
+	private static CameraCapabilities frontCamera()
+	{
+		return new CameraCapabilities(1, CameraCapabilities.FACING_FRONT, 270,
+				new int[] { 1280, 720, 640, 480, 320, 240 }, new int[] { 7500, 30000 });
+	}
+}
@@ -0,0 +1,315 @@
+package com.openbiometrix.capture.codec;
+
+import com.openbiometrix.capture.store.CaptureQuery;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LZ4 raw frame codec, BurstWriter and CaptureTranscoder.
+ */
+public class CaptureCodecTest
+{
+	@Test
+	public void lz4_roundTripsEdgeCases() throws Exception
+	{
+		int[] table = new int[Lz4.HASH_TABLE_SIZE];
+		Random random = new Random(3);
+		byte[][] inputs = {
+				new byte[0],
+				new byte[] { 1, 2, 3 },
+				new byte[13],
+				new byte[100000],
+				new byte[70000],
+		};
+		random.nextBytes(inputs[4]);
+		for (byte[] input : inputs)
+		{
+			byte[] compressed = new byte[Lz4.maxCompressedLength(input.length)];
+			int length = Lz4.compress(input, 0, input.length, compressed, 0, table);
+			byte[] output = new byte[input.length];
+			Lz4.decompress(compressed, 0, length, output, 0, output.length);
+			assertArrayEquals(input, output);
+		}
+
+		// a run of zeros compresses to almost nothing, and a truncated block is caught
+		byte[] compressed = new byte[Lz4.maxCompressedLength(100000)];
+		int length = Lz4.compress(inputs[3], 0, 100000, compressed, 0, table);
+		assertTrue(length < 500);
+		try
+		{
+			Lz4.decompress(compressed, 0, length - 1, new byte[100000], 0, 100000);
+			fail("Truncated block decompressed");
+		}
+		catch (IOException ex)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void codec_roundTripsFrames() throws Exception
+	{
+		for (boolean delta : new boolean[] { true, false })
+		{
+			Lz4Nv21Codec codec = new Lz4Nv21Codec(delta);
+			for (int format : new int[] { YuvFrame.NV21, YuvFrame.Y8 })
+			{
+				YuvFrame frame = frame(641, 479, format, 7);
+				frame.rotation = 3;
+				frame.timestamp = 123456789;
+				byte[] encoded = codec.encode(frame);
+
+				YuvFrame decoded = new YuvFrame();
+				codec.decode(encoded, 0, encoded.length, decoded);
+				assertEquals(641, decoded.width);
+				assertEquals(479, decoded.height);
+				assertEquals(format, decoded.format);
+				assertEquals(3, decoded.rotation);
+				assertEquals(123456789, decoded.timestamp);
+				assertArrayEquals(Arrays.copyOf(frame.data, frame.getLength()),
+						Arrays.copyOf(decoded.data, decoded.getLength()));
+			}
+		}
+		assertSame(CaptureCodecs.get(Lz4Nv21Codec.MEDIA_TYPE).getClass(), Lz4Nv21Codec.class);
+	}
+
+	@Test
+	public void codec_compressesCameraFrames() throws Exception
+	{
+		YuvFrame frame = frame(1280, 720, YuvFrame.NV21, 11);
+		YuvFrame decoded = new YuvFrame();
+		int[] lengths = new int[2];
+		for (boolean delta : new boolean[] { false, true })
+		{
+			Lz4Nv21Codec codec = new Lz4Nv21Codec(delta);
+			byte[] encoded = codec.encode(frame);
+			codec.decode(encoded, 0, encoded.length, decoded);
+			assertArrayEquals(Arrays.copyOf(frame.data, frame.getLength()),
+					Arrays.copyOf(decoded.data, decoded.getLength()));
+			lengths[delta ? 1 : 0] = encoded.length;
+		}
+
+		// a smooth image with sensor noise compresses, and better once neighbours are subtracted
+		assertTrue(lengths[0] < frame.getLength());
+		assertTrue(lengths[1] < lengths[0]);
+	}
+
+	@Test
+	public void burstWriter_savesFramesInOrder() throws Exception
+	{
+		final List<CaptureRecord> saved = new ArrayList<CaptureRecord>();
+		BurstWriter writer = new BurstWriter(new Lz4Nv21Codec(), 4, new BurstWriter.Sink()
+		{
+			@Override
+			public void save(byte[] data, CaptureRecord record)
+			{
+				synchronized (saved)
+				{
+					saved.add(record);
+				}
+			}
+		});
+
+		// every buffer in use, so the next frame is dropped
+		YuvFrame[] held = new YuvFrame[4];
+		for (int i = 0; i < held.length; i++)
+		{
+			held[i] = writer.obtainFrame();
+			assertNotNull(held[i]);
+		}
+		assertNull(writer.obtainFrame());
+		assertEquals(1, writer.getDroppedCount());
+		for (YuvFrame frame : held)
+		{
+			writer.releaseFrame(frame);
+		}
+
+		YuvFrame source = frame(640, 480, YuvFrame.NV21, 5);
+		for (int i = 0; i < 60; i++)
+		{
+			if (i % 4 == 0)
+			{
+				// wait for the buffers to come back, as a camera slower than the writer would
+				writer.flush();
+			}
+			YuvFrame frame = writer.obtainFrame();
+			frame.allocate(640, 480, YuvFrame.NV21);
+			System.arraycopy(source.data, 0, frame.data, 0, source.getLength());
+			frame.timestamp = i;
+			writer.submit(frame, new CaptureRecord());
+		}
+		writer.close();
+
+		assertEquals(60, writer.getSavedCount());
+		assertEquals(1, writer.getDroppedCount());
+		assertEquals(60, saved.size());
+		for (int i = 0; i < saved.size(); i++)
+		{
+			assertEquals(i, saved.get(i).timestamp);
+			assertEquals(Lz4Nv21Codec.MEDIA_TYPE, saved.get(i).mediaType);
+		}
+	}
+
+	@Test
+	public void burstWriter_survivesARuntimeExceptionFromTheSink() throws Exception
+	{
+		final List<Long> saved = new ArrayList<Long>();
+		BurstWriter writer = new BurstWriter(new Lz4Nv21Codec(), 2, new BurstWriter.Sink()
+		{
+			@Override
+			public void save(byte[] data, CaptureRecord record)
+			{
+				if (record.timestamp == 1)
+				{
+					throw new IllegalStateException("Sink failed");
+				}
+				synchronized (saved)
+				{
+					saved.add(record.timestamp);
+				}
+			}
+		});
+
+		for (int i = 0; i < 3; i++)
+		{
+			writer.flush();
+			YuvFrame frame = writer.obtainFrame();
+			frame.allocate(64, 48, YuvFrame.Y8);
+			frame.timestamp = i;
+			writer.submit(frame, new CaptureRecord());
+		}
+		writer.flush();
+
+		assertEquals(2, writer.getSavedCount());
+		assertEquals(1, writer.getFailedCount());
+		assertTrue(writer.getLastError().getCause() instanceof IllegalStateException);
+		assertEquals(Arrays.asList(0L, 2L), saved);
+
+		// the buffers all came back
+		assertNotNull(writer.obtainFrame());
+		assertNotNull(writer.obtainFrame());
+		writer.close();
+	}
+
+	@Test
+	public void transcoder_replacesRawCaptures() throws Exception
+	{
+		File directory = File.createTempFile("captures", "");
+		directory.delete();
+		CaptureStore store = new CaptureStore(directory);
+		try
+		{
+			Lz4Nv21Codec raw = new Lz4Nv21Codec();
+			for (int i = 0; i < 5; i++)
+			{
+				CaptureRecord record = new CaptureRecord();
+				record.mediaType = i == 2 ? "image/jpeg" : Lz4Nv21Codec.MEDIA_TYPE;
+				record.timestamp = 1000 + i;
+				record.quality = i;
+				store.save(raw.encode(frame(64, 48, YuvFrame.NV21, i)), record, null);
+			}
+
+			CaptureTranscoder transcoder = new CaptureTranscoder(store, new GrayCodec(), null);
+			assertEquals(4, transcoder.transcode(10));
+			assertEquals(0, transcoder.transcode(10));
+			assertEquals(4, transcoder.getTranscodedCount());
+
+			CaptureQuery query = new CaptureQuery();
+			query.setMediaType(GrayCodec.MEDIA_TYPE);
+			List<CaptureRecord> records = store.query(query, 0, 10).getRecords();
+			assertEquals(4, records.size());
+			for (CaptureRecord record : records)
+			{
+				// the entry keeps its place and metadata; only the file changes
+				assertEquals(1000 + record.index, record.timestamp);
+				assertEquals(record.index, (int) record.quality);
+				assertEquals(64 * 48, record.size);
+				assertArrayEquals(Arrays.copyOf(frame(64, 48, YuvFrame.NV21, record.index).data, 64 * 48),
+						store.read(record, null));
+			}
+			assertEquals(5, directory.list().length - 1);
+			assertEquals(5 * 64 * 48 + store.getFile(2).length() - 64 * 48, store.getIndex().getLiveBytes());
+		}
+		finally
+		{
+			store.close();
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+
+	/**
+	 * A test codec that keeps only the luminance.
+	 */
+	private static class GrayCodec implements CaptureCodec
+	{
+		final static String MEDIA_TYPE = "image/x-gray";
+
+		@Override
+		public String getMediaType()
+		{
+			return MEDIA_TYPE;
+		}
+
+		@Override
+		public boolean canDecode()
+		{
+			return false;
+		}
+
+		@Override
+		public byte[] encode(YuvFrame frame)
+		{
+			return Arrays.copyOf(frame.data, frame.width * frame.height);
+		}
+
+		@Override
+		public void decode(byte[] data, int offset, int length, YuvFrame out)
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * A frame that looks like a camera image: smooth shading, a few edges and a little noise.
+	 */
+	private static YuvFrame frame(int width, int height, int format, int seed)
+	{
+		Random random = new Random(seed);
+		YuvFrame frame = new YuvFrame();
+		frame.allocate(width, height, format);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int value = 60 + x * 100 / width + y * 60 / height + random.nextInt(3);
+				if ((x - width / 2) * (x - width / 2) + (y - height / 2) * (y - height / 2) < height * height / 9)
+				{
+					value += 40;
+				}
+				frame.data[y * width + x] = (byte) value;
+			}
+		}
+		for (int i = width * height; i < frame.getLength(); i += 2)
+		{
+			frame.data[i] = (byte) (128 + random.nextInt(2));
+			frame.data[i + 1] = (byte) (120 + (i / width) % 8);
+		}
+		return frame;
+	}
+}
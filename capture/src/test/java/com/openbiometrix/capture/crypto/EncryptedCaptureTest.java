@@ -0,0 +1,224 @@
+package com.openbiometrix.capture.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for EncryptedCaptureWriter and EncryptedCaptureReader.
+ */
+public class EncryptedCaptureTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		mFile = File.createTempFile("capture", ".enc");
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		mFile.delete();
+	}
+
+	@Test
+	public void roundTrip_inChunks() throws Exception
+	{
+		byte[] data = data(100000);
+		write(data, 4096);
+
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(mFile, KEY);
+		assertEquals(data.length, reader.getLength());
+		assertEquals(25, reader.getChunkCount());
+		assertArrayEquals(data, readAll(reader.openStream(), data.length));
+		reader.close();
+	}
+
+	@Test
+	public void roundTrip_emptyAndExactMultiple() throws Exception
+	{
+		write(new byte[0], 4096);
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(mFile, KEY);
+		assertEquals(0, reader.getLength());
+		assertEquals(-1, reader.openStream().read());
+		reader.close();
+
+		byte[] data = data(8192);
+		write(data, 4096);
+		reader = new EncryptedCaptureReader(mFile, KEY);
+		assertEquals(2, reader.getChunkCount());
+		assertArrayEquals(data, readAll(reader.openStream(), data.length));
+		reader.close();
+	}
+
+	@Test
+	public void randomAccess_readsOnlyNeededChunks() throws Exception
+	{
+		byte[] data = data(50000);
+		write(data, 1000);
+
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(mFile, KEY);
+		byte[] part = new byte[2500];
+		assertEquals(2500, reader.read(31500, part, 0, part.length));
+		for (int i = 0; i < part.length; i++)
+		{
+			assertEquals(data[31500 + i], part[i]);
+		}
+		assertEquals(100, reader.read(49900, part, 0, part.length));
+		assertEquals(-1, reader.read(50000, part, 0, part.length));
+		reader.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void tamperedChunk_failsAuthentication() throws Exception
+	{
+		write(data(10000), 1000);
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.seek(3000);
+		int b = file.read();
+		file.seek(3000);
+		file.write(b ^ 1);
+		file.close();
+
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(mFile, KEY);
+		try
+		{
+			reader.read(0, new byte[10000], 0, 10000);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void truncationAtChunkBoundary_isDetected() throws Exception
+	{
+		write(data(10000), 1000);
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.setLength(EncryptedCaptureFormat.HEADER_SIZE + 5 * (1000 + EncryptedCaptureFormat.TAG_SIZE));
+		file.close();
+
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(mFile, KEY);
+		try
+		{
+			assertEquals(5000, reader.getLength());
+			reader.readChunk(4, new byte[1000]);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	@Test
+	public void tamperedChunkSize_isRejectedBeforeAllocating() throws Exception
+	{
+		int[] sizes = { Integer.MAX_VALUE, EncryptedCaptureWriter.MAX_CHUNK_SIZE + 1, 0, -5 };
+		for (int size : sizes)
+		{
+			write(data(10000), 1000);
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			file.seek(8);
+			file.writeInt(size);
+			file.close();
+			try
+			{
+				new EncryptedCaptureReader(mFile, KEY).close();
+				fail("Chunk size " + size + " accepted");
+			}
+			catch (IOException ex)
+			{
+				// expected
+			}
+		}
+
+		// the writer keeps to the same bound
+		try
+		{
+			new EncryptedCaptureWriter(mFile, KEY, EncryptedCaptureWriter.MAX_CHUNK_SIZE + 1, null);
+			fail("Chunk size over the maximum accepted");
+		}
+		catch (IllegalArgumentException ex)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void largeCapture_roundTripsThroughManyChunksAtOnce() throws Exception
+	{
+		// many more chunks than buffers, so write() waits on the workers and reuses buffers
+		assertTrue(EncryptedCaptureWriter.isSupported());
+		byte[] data = data(4 * 1024 * 1024 + 123);
+		write(data, EncryptedCaptureWriter.DEFAULT_CHUNK_SIZE);
+
+		EncryptedCaptureReader reader = new EncryptedCaptureReader(mFile, KEY);
+		try
+		{
+			assertEquals(data.length, reader.getLength());
+			assertEquals(65, reader.getChunkCount());
+			assertArrayEquals(data, readAll(reader.openStream(), data.length));
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+
+	private void write(byte[] data, int chunkSize) throws IOException
+	{
+		EncryptedCaptureWriter writer = new EncryptedCaptureWriter(mFile, KEY, chunkSize,
+				EncryptedCaptureWriter.getDefaultExecutor());
+		// write in uneven pieces to cross chunk boundaries
+		int offset = 0;
+		int piece = 1;
+		while (offset < data.length)
+		{
+			int n = Math.min(piece, data.length - offset);
+			writer.write(data, offset, n);
+			offset += n;
+			piece = piece * 3 + 1;
+		}
+		writer.close();
+		assertEquals(data.length, writer.getLength());
+	}
+
+	private static byte[] readAll(InputStream in, int length) throws IOException
+	{
+		byte[] data = new byte[length];
+		int offset = 0;
+		int n;
+		while (offset < length && (n = in.read(data, offset, length - offset)) > 0)
+		{
+			offset += n;
+		}
+		assertEquals(-1, in.read());
+		return data;
+	}
+
+	private static byte[] data(int length)
+	{
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+
+	private final static SecretKey KEY = new SecretKeySpec(new byte[] {
+			1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES");
+
+	private File 	mFile;
+}
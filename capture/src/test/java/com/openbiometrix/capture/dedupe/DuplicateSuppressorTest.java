@@ -0,0 +1,118 @@
+package com.openbiometrix.capture.dedupe;
+
+import com.openbiometrix.capture.image.GrayImage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PerceptualHash and DuplicateSuppressor.
+ */
+public class DuplicateSuppressorTest
+{
+	@Test
+	public void hash_isCloseForSimilarImages()
+	{
+		PerceptualHash hash = new PerceptualHash();
+		long face = hash.compute(face(320, 240, 0, 0, 1), 80, 40, 160, 160);
+		assertNotEquals(0, face);
+		assertEquals(face, hash.compute(face(320, 240, 0, 0, 1), 80, 40, 160, 160));
+
+		// other noise, a little brighter, and moved by a pixel
+		long noisy = hash.compute(face(320, 240, 0, 10, 2), 80, 40, 160, 160);
+		long shifted = hash.compute(face(320, 240, 1, 0, 3), 80, 40, 160, 160);
+		assertTrue(PerceptualHash.distance(face, noisy) <= DuplicateSuppressor.DEFAULT_MAX_DISTANCE);
+		assertTrue(PerceptualHash.distance(face, shifted) <= DuplicateSuppressor.DEFAULT_MAX_DISTANCE);
+
+		// a different part of the image looks different
+		long other = hash.compute(face(320, 240, 0, 0, 1), 0, 0, 120, 120);
+		assertTrue(PerceptualHash.distance(face, other) > 3 * DuplicateSuppressor.DEFAULT_MAX_DISTANCE);
+
+		assertEquals(0, hash.compute(face(320, 240, 0, 0, 1), 400, 0, 100, 100));
+	}
+
+	@Test
+	public void suppressor_keepsBetterCapturesAndResetsPerSession()
+	{
+		DuplicateSuppressor suppressor = new DuplicateSuppressor();
+		long hash = 0x0123456789abcdefL;
+
+		assertFalse(suppressor.isDuplicate(1, hash, 100));
+		assertTrue(suppressor.isDuplicate(1, hash ^ 0x7, 105));
+		assertFalse(suppressor.isDuplicate(1, ~hash, 50));
+
+		// a clearly sharper shot of the same pose is kept, and then raises the bar
+		assertFalse(suppressor.isDuplicate(1, hash ^ 0x1, 120));
+		assertTrue(suppressor.isDuplicate(1, hash, 125));
+
+		// a new session starts with an empty window
+		assertFalse(suppressor.isDuplicate(2, hash, 10));
+
+		assertEquals(6, suppressor.getCheckedCount());
+		assertEquals(2, suppressor.getSuppressedCount());
+		assertEquals(2 / 6f, suppressor.getSuppressionRate(), 1e-6);
+	}
+
+	@Test
+	public void suppressor_forgetsCapturesOutsideTheWindow()
+	{
+		DuplicateSuppressor suppressor = new DuplicateSuppressor();
+		suppressor.setWindowSize(4);
+		suppressor.setMaxDistance(0);
+		for (int i = 0; i < 5; i++)
+		{
+			assertFalse(suppressor.isDuplicate(1, i + 1, 1));
+		}
+		assertFalse(suppressor.isDuplicate(1, 1, 1));
+		assertTrue(suppressor.isDuplicate(1, 5, 1));
+	}
+
+	@Test
+	public void suppressor_hashesAFaceInALargeFrame()
+	{
+		DuplicateSuppressor suppressor = new DuplicateSuppressor();
+		GrayImage image = face(1280, 720, 0, 0, 4);
+		long hash = suppressor.hash(image, 400, 120, 480, 480);
+		assertNotEquals(0, hash);
+		assertEquals(hash, suppressor.hash(image, 400, 120, 480, 480));
+		assertEquals(hash, new PerceptualHash().compute(image, 400, 120, 480, 480));
+		assertTrue(suppressor.getAverageHashTime() > 0);
+	}
+
+
+	/**
+	 * A shaded image with a face-like blob, eyes and a mouth, shifted by dx and brightened.
+	 */
+	private static GrayImage face(int width, int height, int dx, int brightness, int seed)
+	{
+		Random random = new Random(seed);
+		GrayImage image = new GrayImage(width, height);
+		int cx = width / 2 + dx;
+		int cy = height / 2;
+		int r = height / 3;
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int value = 40 + x * 60 / width + brightness + random.nextInt(5);
+				int fx = x - cx;
+				int fy = y - cy;
+				if (fx * fx + fy * fy < r * r)
+				{
+					value += 90;
+					int ex = Math.abs(fx) - r / 3;
+					int ey = fy + r / 3;
+					if (ex * ex + ey * ey < r * r / 36 || (Math.abs(fx) < r / 3 && Math.abs(fy - r / 2) < r / 12))
+					{
+						value -= 100;
+					}
+				}
+				image.put(x, y, Math.min(255, value));
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,97 @@
+package com.openbiometrix.capture.face;
+
+import com.openbiometrix.capture.image.GrayImage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the similarity transform and fixed point warp used by FaceAligner.
+ */
+public class FaceAlignerTest
+{
+	@Test
+	public void estimate_recoversKnownTransform() throws Exception
+	{
+		// rotate 30 degrees, scale by 2 and translate
+		double a = 2.0 * Math.cos(Math.PI / 6);
+		double b = 2.0 * Math.sin(Math.PI / 6);
+		float[] src = { 10, 20, 50, 20, 30, 60 };
+		float[] dst = new float[6];
+		for (int i = 0; i < 3; i++)
+		{
+			dst[2 * i] = (float) (a * src[2 * i] - b * src[2 * i + 1] + 5);
+			dst[2 * i + 1] = (float) (b * src[2 * i] + a * src[2 * i + 1] - 7);
+		}
+
+		SimilarityTransform transform = new SimilarityTransform();
+		assertTrue(transform.estimate(src, dst, 3));
+		assertEquals(2.0, transform.getScale(), 1e-4);
+		assertEquals(Math.PI / 6, transform.getRotation(), 1e-4);
+		assertEquals(5.0, transform.getTx(), 1e-3);
+		assertEquals(-7.0, transform.getTy(), 1e-3);
+	}
+
+	@Test
+	public void estimate_rejectsDegeneratePoints() throws Exception
+	{
+		float[] src = { 10, 10, 10, 10 };
+		float[] dst = { 0, 0, 5, 5 };
+		assertFalse(new SimilarityTransform().estimate(src, dst, 2));
+	}
+
+	@Test
+	public void align_placesEyesAtCanonicalPositions() throws Exception
+	{
+		// a 200x200 image with a bright dot at each "eye"
+		GrayImage src = new GrayImage(200, 200);
+		float[] eyes = { 80, 90, 120, 90 };
+		for (int i = 0; i < 2; i++)
+		{
+			int x = (int) eyes[2 * i];
+			int y = (int) eyes[2 * i + 1];
+			for (int dy = -1; dy <= 1; dy++)
+			{
+				for (int dx = -1; dx <= 1; dx++)
+				{
+					src.put(x + dx, y + dy, 255);
+				}
+			}
+		}
+
+		FaceAligner aligner = new FaceAligner(100, 100);
+		aligner.setCanonicalPoints(0.3f, 0.4f, 0.7f, 0.4f, 0.5f, 0.8f);
+		GrayImage dst = new GrayImage(100, 100);
+		assertTrue(aligner.align(src, eyes, 2, dst));
+
+		// eyes 40 pixels apart map to 40 pixels apart in the output
+		assertEquals(1.0, aligner.getTransform().getScale(), 1e-4);
+		assertEquals(255, dst.get(30, 40));
+		assertEquals(255, dst.get(70, 40));
+		assertEquals(0, dst.get(50, 40));
+	}
+
+	@Test
+	public void warp_identityCopiesImage() throws Exception
+	{
+		GrayImage src = new GrayImage(16, 16);
+		for (int y = 0; y < 16; y++)
+		{
+			for (int x = 0; x < 16; x++)
+			{
+				src.put(x, y, x * 16 + y);
+			}
+		}
+
+		GrayImage dst = new GrayImage(15, 15);
+		FaceAligner.warp(src, new SimilarityTransform(), dst);
+		for (int y = 0; y < 15; y++)
+		{
+			for (int x = 0; x < 15; x++)
+			{
+				assertEquals(src.get(x, y), dst.get(x, y));
+			}
+		}
+	}
+}
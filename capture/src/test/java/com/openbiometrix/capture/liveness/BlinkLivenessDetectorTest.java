@@ -0,0 +1,120 @@
+package com.openbiometrix.capture.liveness;
+
+import com.openbiometrix.capture.liveness.BlinkLivenessDetector.Liveness;
+import com.openbiometrix.capture.recording.FaceRecord;
+import com.openbiometrix.capture.recording.FaceRecordReader;
+
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BlinkLivenessDetector, including replays of recorded face streams.
+ */
+public class BlinkLivenessDetectorTest
+{
+	@Test
+	public void recordedBlink_isLive() throws Exception
+	{
+		final long[] decidedAt = { -1 };
+		BlinkLivenessDetector detector = new BlinkLivenessDetector();
+		detector.setListener(new BlinkLivenessDetector.Listener()
+		{
+			@Override
+			public void onLivenessDecision(int trackId, Liveness liveness, long timestamp)
+			{
+				assertEquals(3, trackId);
+				assertEquals(Liveness.LIVE, liveness);
+				decidedAt[0] = timestamp;
+			}
+		});
+
+		assertEquals(Liveness.LIVE, replay("live_blink.csv", detector));
+		// the blink starts at 2200 and lasts 150ms, so the decision comes as the eyes reopen
+		assertTrue(decidedAt[0] >= 2350 && decidedAt[0] < 2450);
+	}
+
+	@Test
+	public void recordedPhoto_isNotLiveAfterTimeout() throws Exception
+	{
+		BlinkLivenessDetector detector = new BlinkLivenessDetector();
+		detector.setDecisionTimeout(4000);
+		assertEquals(Liveness.NOT_LIVE, replay("photo_no_blink.csv", detector));
+	}
+
+	@Test
+	public void longClosure_isNotABlink() throws Exception
+	{
+		BlinkLivenessDetector detector = new BlinkLivenessDetector();
+		long t = 0;
+		for (; t < 500; t += 33)
+		{
+			detector.update(1, t, 0.9f, 0.9f);
+		}
+		for (; t < 1500; t += 33)
+		{
+			detector.update(1, t, 0.1f, 0.1f);
+		}
+		assertEquals(Liveness.PENDING, detector.update(1, t, 0.9f, 0.9f));
+	}
+
+	@Test
+	public void requiredBlinks_mustFallInWindow() throws Exception
+	{
+		BlinkLivenessDetector detector = new BlinkLivenessDetector();
+		detector.setRequiredBlinks(2, 1000);
+		detector.setDecisionTimeout(10000);
+
+		assertEquals(Liveness.PENDING, blink(detector, 0));
+		// second blink is more than a window after the first
+		assertEquals(Liveness.PENDING, blink(detector, 2000));
+		assertEquals(Liveness.LIVE, blink(detector, 2600));
+	}
+
+	@Test
+	public void tracks_areIndependent() throws Exception
+	{
+		BlinkLivenessDetector detector = new BlinkLivenessDetector();
+		blink(detector, 0);
+		assertEquals(Liveness.LIVE, detector.getLiveness(1));
+		assertEquals(Liveness.PENDING, detector.update(2, 400, 0.9f, 0.9f));
+
+		detector.removeTrack(1);
+		assertEquals(Liveness.PENDING, detector.getLiveness(1));
+	}
+
+
+	/**
+	 * Open, close for 100ms and reopen the eyes of track 1 starting at the given time.
+	 */
+	private static Liveness blink(BlinkLivenessDetector detector, long start)
+	{
+		detector.update(1, start, 0.9f, 0.9f);
+		detector.update(1, start + 33, 0.1f, 0.1f);
+		detector.update(1, start + 66, 0.1f, 0.1f);
+		return detector.update(1, start + 133, 0.9f, 0.9f);
+	}
+
+	private static Liveness replay(String name, BlinkLivenessDetector detector) throws Exception
+	{
+		FaceRecordReader reader = new FaceRecordReader(new InputStreamReader(
+				BlinkLivenessDetectorTest.class.getResourceAsStream("/liveness/" + name), "UTF-8"));
+		try
+		{
+			FaceRecord record = new FaceRecord();
+			Liveness liveness = Liveness.PENDING;
+			while (reader.read(record))
+			{
+				liveness = detector.update(record.trackId, record.timestamp,
+						record.leftEyeOpenProbability, record.rightEyeOpenProbability);
+			}
+			return liveness;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.openbiometrix.capture.quality;
+
+import com.openbiometrix.capture.image.GrayImage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FrameQualityAnalyzer.
+ */
+public class FrameQualityAnalyzerTest
+{
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+
+	@Test
+	public void sharpness_higherForSharpImage() throws Exception
+	{
+		GrayImage sharp = noiseImage(1);
+		GrayImage blurred = boxBlur(sharp);
+
+		FrameQualityAnalyzer analyzer = new FrameQualityAnalyzer();
+		FrameQuality sharpQuality = new FrameQuality();
+		FrameQuality blurredQuality = new FrameQuality();
+		analyzer.analyze(sharp, 100, 100, 300, 300, sharpQuality);
+		analyzer.analyze(blurred, 100, 100, 300, 300, blurredQuality);
+
+		assertTrue(sharpQuality.getSharpness() > 10 * blurredQuality.getSharpness());
+		assertTrue(analyzer.isAcceptable(sharpQuality));
+		assertFalse(analyzer.isAcceptable(blurredQuality));
+	}
+
+	@Test
+	public void exposure_detectsClipping() throws Exception
+	{
+		GrayImage image = noiseImage(2);
+		// blow out the top half of the region
+		for (int y = 0; y < 200; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				image.put(x, y, 255);
+			}
+		}
+
+		FrameQualityAnalyzer analyzer = new FrameQualityAnalyzer();
+		FrameQuality quality = new FrameQuality();
+		analyzer.analyze(image, 0, 100, WIDTH, 200, quality);
+
+		assertEquals(0.5f, quality.getBrightClipRatio(), 0.05f);
+		assertFalse(analyzer.isAcceptable(quality));
+	}
+
+	@Test
+	public void analyze_emptyRegionOutsideImage() throws Exception
+	{
+		FrameQuality quality = new FrameQuality();
+		new FrameQualityAnalyzer().analyze(noiseImage(3), WIDTH + 10, 0, 50, 50, quality);
+		assertEquals(0, quality.getSampleCount());
+	}
+
+	@Test
+	public void analyze_subsamplesAFullFrame() throws Exception
+	{
+		GrayImage image = noiseImage(4);
+		FrameQualityAnalyzer analyzer = new FrameQualityAnalyzer();
+		FrameQuality full = new FrameQuality();
+		FrameQuality face = new FrameQuality();
+		analyzer.analyze(image, 0, 0, WIDTH, HEIGHT, full);
+		analyzer.analyze(image, 100, 100, 100, 100, face);
+
+		// the work per frame is bounded whatever the size of the region
+		assertTrue(full.getSampleCount() <= FrameQualityAnalyzer.MAX_SAMPLES);
+		assertTrue(full.getSampleCount() > FrameQualityAnalyzer.MAX_SAMPLES / 4);
+		assertEquals(100 * 100, face.getSampleCount());
+
+		// and the measurements of a subsampled frame agree with a dense region of the same noise
+		assertEquals(face.getMeanLuminance(), full.getMeanLuminance(), 2.0f);
+		assertTrue(analyzer.isAcceptable(full));
+	}
+
+
+	private static GrayImage noiseImage(long seed)
+	{
+		Random random = new Random(seed);
+		GrayImage image = new GrayImage(WIDTH, HEIGHT);
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				image.put(x, y, 64 + random.nextInt(128));
+			}
+		}
+		return image;
+	}
+
+	private static GrayImage boxBlur(GrayImage src)
+	{
+		GrayImage dst = new GrayImage(WIDTH, HEIGHT);
+		int r = 3;
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				int sum = 0;
+				int n = 0;
+				for (int dy = -r; dy <= r; dy++)
+				{
+					for (int dx = -r; dx <= r; dx++)
+					{
+						int sx = Math.min(Math.max(x + dx, 0), WIDTH - 1);
+						int sy = Math.min(Math.max(y + dy, 0), HEIGHT - 1);
+						sum += src.get(sx, sy);
+						n++;
+					}
+				}
+				dst.put(x, y, sum / n);
+			}
+		}
+		return dst;
+	}
+}
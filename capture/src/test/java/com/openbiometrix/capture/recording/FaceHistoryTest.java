@@ -0,0 +1,168 @@
+package com.openbiometrix.capture.recording;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FaceHistory.
+ */
+public class FaceHistoryTest
+{
+	@Test
+	public void timeRange_isFoundByBinarySearch() throws Exception
+	{
+		FaceHistory history = new FaceHistory(100);
+		for (int i = 0; i < 50; i++)
+		{
+			add(history, i * 10, 1, 0);
+		}
+
+		assertEquals(0, history.indexOf(-5));
+		assertEquals(10, history.indexOf(100));
+		assertEquals(11, history.indexOf(101));
+		assertEquals(50, history.indexOf(1000));
+		assertEquals(10, history.query(FaceHistory.ANY_TRACK, 100, 200, new CountingVisitor()));
+	}
+
+	@Test
+	public void ring_dropsOldestFaces() throws Exception
+	{
+		FaceHistory history = new FaceHistory(16);
+		for (int i = 0; i < 40; i++)
+		{
+			add(history, i, i % 2, 0);
+		}
+
+		assertEquals(16, history.size());
+		assertEquals(40, history.getAddedCount());
+		assertEquals(24, history.getOldestTimestamp());
+		assertEquals(39, history.getNewestTimestamp());
+
+		FaceRecord record = new FaceRecord();
+		history.get(0, record);
+		assertEquals(24, record.timestamp);
+		assertEquals(0, history.query(FaceHistory.ANY_TRACK, 0, 24, new CountingVisitor()));
+		// only the faces of track 1 still in the ring
+		assertEquals(8, history.query(1, 0, 100, new CountingVisitor()));
+	}
+
+	@Test
+	public void trackQuery_visitsOnlyThatTrackInOrder() throws Exception
+	{
+		FaceHistory history = new FaceHistory(1000);
+		for (int i = 0; i < 300; i++)
+		{
+			add(history, i * 33, i % 3, 0);
+		}
+
+		final long[] last = { -1 };
+		int count = history.query(2, 1000, 5000, new FaceHistory.Visitor()
+		{
+			@Override
+			public void visit(FaceRecord record)
+			{
+				assertEquals(2, record.trackId);
+				assertTrue(record.timestamp >= 1000 && record.timestamp < 5000);
+				assertTrue(record.timestamp > last[0]);
+				last[0] = record.timestamp;
+			}
+		});
+		assertEquals(40, count);
+	}
+
+	@Test
+	public void manyTracks_areTracked() throws Exception
+	{
+		FaceHistory history = new FaceHistory(500);
+		for (int i = 0; i < 10000; i++)
+		{
+			add(history, i, i / 5, 0);
+		}
+		assertEquals(5, history.query(1999, 0, Long.MAX_VALUE, new CountingVisitor()));
+		assertEquals(0, history.query(3, 0, Long.MAX_VALUE, new CountingVisitor()));
+	}
+
+	@Test
+	public void dwellTime_skipsGaps() throws Exception
+	{
+		FaceHistory history = new FaceHistory(100);
+		for (int t = 0; t <= 1000; t += 100)
+		{
+			add(history, t, 7, 0);
+		}
+		for (int t = 5000; t <= 5500; t += 100)
+		{
+			add(history, t, 7, 0);
+		}
+
+		assertEquals(1500, history.getDwellTime(7, 0, 10000, 500));
+		assertEquals(500, history.getDwellTime(7, 5000, 10000, 500));
+		assertEquals(0, history.getDwellTime(8, 0, 10000, 500));
+	}
+
+	@Test
+	public void yawCoverage_countsBins() throws Exception
+	{
+		FaceHistory history = new FaceHistory(100);
+		add(history, 0, 1, -25);
+		add(history, 1, 1, -5);
+		add(history, 2, 1, 5);
+		add(history, 3, 1, 80);
+
+		int[] bins = new int[4];
+		assertEquals(3, history.getYawHistogram(1, 0, 10, -40, 40, bins));
+		assertArrayEquals(new int[] { 1, 1, 1, 0 }, bins);
+		assertEquals(0.75f, history.getYawCoverage(1, 0, 10, -40, 40, 4), 1e-6f);
+	}
+
+	@Test
+	public void export_writesRecording() throws Exception
+	{
+		FaceHistory history = new FaceHistory(100);
+		for (int i = 0; i < 10; i++)
+		{
+			add(history, i * 100, i % 2, i);
+		}
+
+		StringWriter out = new StringWriter();
+		FaceRecordWriter writer = new FaceRecordWriter(out);
+		assertEquals(5, history.export(0, 0, 1000, writer));
+		writer.close();
+
+		FaceRecordReader reader = new FaceRecordReader(new BufferedReader(new StringReader(out.toString())));
+		FaceRecord record = new FaceRecord();
+		int rows = 0;
+		while (reader.read(record))
+		{
+			assertEquals(0, record.trackId);
+			assertEquals(rows * 200, record.timestamp);
+			assertEquals(rows * 2, record.eulerY, 1e-6f);
+			rows++;
+		}
+		reader.close();
+		assertEquals(5, rows);
+	}
+
+
+	private static void add(FaceHistory history, long timestamp, int trackId, float eulerY)
+	{
+		FaceRecord record = new FaceRecord();
+		record.timestamp = timestamp;
+		record.trackId = trackId;
+		record.eulerY = eulerY;
+		history.add(record);
+	}
+
+	private static class CountingVisitor implements FaceHistory.Visitor
+	{
+		@Override
+		public void visit(FaceRecord record)
+		{
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.openbiometrix.capture.reprocess;
+
+import com.openbiometrix.capture.codec.Lz4Nv21Codec;
+import com.openbiometrix.capture.codec.YuvFrame;
+import com.openbiometrix.capture.dedupe.PerceptualHash;
+import com.openbiometrix.capture.image.GrayImage;
+import com.openbiometrix.capture.quality.FrameQuality;
+import com.openbiometrix.capture.quality.FrameQualityAnalyzer;
+import com.openbiometrix.capture.store.CaptureRecord;
+import com.openbiometrix.capture.store.CaptureStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BatchReprocessor.
+ */
+public class BatchReprocessorTest
+{
+	private final static int WIDTH = 96;
+	private final static int HEIGHT = 72;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("captures", "");
+		mDirectory.delete();
+		mDirectory.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		for (File file : mDirectory.listFiles())
+		{
+			file.delete();
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void run_rescoresEveryCapture() throws Exception
+	{
+		SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+		CaptureStore store = new CaptureStore(mDirectory);
+		try
+		{
+			save(store, 200, key);
+			// an unknown media type cannot be decoded, a deleted capture is left alone and a missing file fails
+			CaptureRecord unknown = new CaptureRecord();
+			unknown.mediaType = "image/x-unknown";
+			store.save(new byte[10], unknown, null);
+			CaptureRecord deleted = new CaptureRecord();
+			store.getIndex().get(5, deleted);
+			store.getIndex().setFlags(5, deleted.flags | CaptureRecord.FLAG_DELETED);
+			CaptureRecord missing = new CaptureRecord();
+			store.getIndex().get(7, missing);
+			assertTrue(store.toFile(missing).delete());
+
+			final ConcurrentHashMap<Integer, Long> hashes = new ConcurrentHashMap<Integer, Long>();
+			BatchReprocessor reprocessor = new BatchReprocessor(store, key, 4);
+			reprocessor.setChunkSize(16);
+			reprocessor.addStage(new DecodeStage());
+			reprocessor.addStage(new QualityStage());
+			reprocessor.addStage(new HashStage());
+			reprocessor.setListener(new BatchReprocessor.Listener()
+			{
+				@Override
+				public void onCaptureProcessed(ReprocessItem item)
+				{
+					hashes.put(item.record.index, item.record.perceptualHash);
+				}
+			});
+			assertTrue(reprocessor.run());
+
+			assertEquals(198, reprocessor.getProcessedCount());
+			assertEquals(2, reprocessor.getSkippedCount());
+			assertEquals(1, reprocessor.getFailedCount());
+			assertEquals(198, hashes.size());
+
+			// the results match scoring the face of each frame directly
+			FrameQualityAnalyzer analyzer = new FrameQualityAnalyzer();
+			FrameQuality quality = new FrameQuality();
+			PerceptualHash hash = new PerceptualHash();
+			CaptureRecord record = new CaptureRecord();
+			for (int i = 0; i < 200; i += 13)
+			{
+				store.getIndex().get(i, record);
+				if (i == 5 || i == 7)
+				{
+					assertEquals(-1, record.quality, 0);
+					continue;
+				}
+				GrayImage image = new GrayImage(frame(i).data, 0, WIDTH, HEIGHT, WIDTH);
+				analyzer.analyze(image, 20, 10, 40, 40, quality);
+				assertEquals(quality.getSharpness(), record.quality, 1e-3);
+				assertEquals(20, record.left, 0);
+				assertEquals(hash.compute(image, 20, 10, 40, 40), (long) hashes.get(i));
+			}
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void run_resumesFromCheckpoint() throws Exception
+	{
+		CaptureStore store = new CaptureStore(mDirectory);
+		try
+		{
+			save(store, 300, null);
+			File checkpoint = new File(mDirectory, "reprocess.checkpoint");
+
+			final AtomicIntegerArray runs = new AtomicIntegerArray(300);
+			final AtomicInteger stopAfter = new AtomicInteger(100);
+			final BatchReprocessor reprocessor = new BatchReprocessor(store, null, 3);
+			reprocessor.setChunkSize(10);
+			reprocessor.setCheckpointFile(checkpoint);
+			reprocessor.setCheckpointInterval(0);
+			reprocessor.addStage(new DecodeStage());
+			reprocessor.addStage(new CountStage(runs, stopAfter, reprocessor));
+
+			assertFalse(reprocessor.run());
+			assertTrue(checkpoint.exists());
+			int first = (int) reprocessor.getProcessedCount();
+			assertTrue(first >= 100 && first < 150);
+
+			stopAfter.set(Integer.MAX_VALUE);
+			assertTrue(reprocessor.run());
+			assertFalse(checkpoint.exists());
+
+			// only the chunks that were part way through are processed twice
+			int total = 0;
+			for (int i = 0; i < 300; i++)
+			{
+				assertTrue(runs.get(i) >= 1);
+				total += runs.get(i);
+			}
+			assertEquals(first + reprocessor.getProcessedCount(), total);
+			assertTrue(total < 300 + 3 * 10);
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void stop_beforeRunIsNotLost() throws Exception
+	{
+		CaptureStore store = new CaptureStore(mDirectory);
+		try
+		{
+			save(store, 500, null);
+			BatchReprocessor reprocessor = new BatchReprocessor(store, null, 0);
+			reprocessor.addStage(new DecodeStage());
+			reprocessor.addStage(new QualityStage());
+			reprocessor.addStage(new HashStage());
+
+			reprocessor.stop();
+			assertFalse(reprocessor.run());
+			assertEquals(0, reprocessor.getProcessedCount());
+
+			// the stop applied to that run only
+			assertTrue(reprocessor.run());
+			assertEquals(500, reprocessor.getProcessedCount());
+			long bytes = 0;
+			CaptureRecord record = new CaptureRecord();
+			for (int i = 0; i < 500; i++)
+			{
+				store.getIndex().get(i, record);
+				bytes += store.toFile(record).length();
+			}
+			assertEquals(bytes, reprocessor.getBytesRead());
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	/**
+	 * Counts how often each capture is processed, and stops the run after a number of captures.
+	 */
+	private static class CountStage implements ReprocessStage
+	{
+		CountStage(AtomicIntegerArray runs, AtomicInteger stopAfter, BatchReprocessor reprocessor)
+		{
+			mRuns = runs;
+			mStopAfter = stopAfter;
+			mReprocessor = reprocessor;
+		}
+
+		@Override
+		public ReprocessStage copy()
+		{
+			return this;
+		}
+
+		@Override
+		public boolean process(ReprocessItem item)
+		{
+			mRuns.incrementAndGet(item.record.index);
+			if (mStopAfter.decrementAndGet() == 0)
+			{
+				mReprocessor.stop();
+			}
+			return true;
+		}
+
+		private final AtomicIntegerArray 	mRuns;
+		private final AtomicInteger 		mStopAfter;
+		private final BatchReprocessor 		mReprocessor;
+	}
+
+	private static void save(CaptureStore store, int count, SecretKeySpec key) throws IOException
+	{
+		Lz4Nv21Codec codec = new Lz4Nv21Codec();
+		for (int i = 0; i < count; i++)
+		{
+			CaptureRecord record = new CaptureRecord();
+			record.timestamp = 1000 + i;
+			record.mediaType = Lz4Nv21Codec.MEDIA_TYPE;
+			record.setBounds(20, 10, 40, 40);
+			record.quality = -1;
+			store.save(codec.encode(frame(i)), record, i % 3 == 0 ? key : null);
+		}
+	}
+
+	/**
+	 * An upright Y8 frame with a noisy square where the face is.
+	 */
+	private static YuvFrame frame(int seed)
+	{
+		Random random = new Random(seed);
+		YuvFrame frame = new YuvFrame();
+		frame.allocate(WIDTH, HEIGHT, YuvFrame.Y8);
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				boolean face = x >= 20 && x < 60 && y >= 10 && y < 50;
+				frame.data[y * WIDTH + x] = (byte) (face ? 100 + random.nextInt(seed % 50 + 1) : 50);
+			}
+		}
+		return frame;
+	}
+
+
+	private File 	mDirectory;
+}
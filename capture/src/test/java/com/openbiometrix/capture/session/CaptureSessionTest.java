@@ -0,0 +1,240 @@
+package com.openbiometrix.capture.session;
+
+import android.content.Context;
+
+import com.openbiometrix.capture.CaptureBuffer;
+import com.openbiometrix.capture.CaptureDevice;
+import com.openbiometrix.capture.ui.CaptureView;
+
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CaptureSession: merging device streams by the session clock, and starting and
+ * stopping devices in parallel.
+ */
+public class CaptureSessionTest
+{
+	@Test
+	public void session_mergesDevicesInTimestampOrder() throws Exception
+	{
+		CaptureSession session = new CaptureSession();
+		session.setReorderWindow(10000);
+		FakeDevice face = new FakeDevice(null, null);
+		FakeDevice voice = new FakeDevice(null, null);
+		session.addDevice(face);
+		session.addDevice(voice);
+		assertSame(session, face.getCaptureSession());
+
+		// face samples arrive later than the voice chunks they go with
+		long t = System.nanoTime();
+		session.offer(voice, t + ms(0), "v0");
+		session.offer(voice, t + ms(20), "v20");
+		session.offer(face, t + ms(10), "f10");
+		session.offer(voice, t + ms(40), "v40");
+		session.offer(face, t + ms(30), "f30");
+
+		// everything up to the oldest of the newest samples of each device is ready
+		CaptureBuffer<SessionSample> output = session.getOutputBuffer();
+		assertEquals("v0", output.poll().data);
+		assertEquals("f10", output.poll().data);
+		assertEquals("v20", output.poll().data);
+		SessionSample sample = output.poll();
+		assertEquals("f30", sample.data);
+		assertSame(face, sample.device);
+		assertEquals(ms(30), sample.timestamp - session.toSessionTime(t));
+		assertTrue(output.isEmpty());
+		assertEquals(1, session.getPendingCount());
+
+		// a sample older than one passed on is late
+		session.offer(face, t + ms(25), "f25");
+		assertEquals(1, session.getLateCount());
+
+		session.offer(face, t + ms(50), "f50");
+		assertEquals("v40", output.poll().data);
+		session.stop();
+		assertEquals("f50", output.poll().data);
+		assertEquals(6, session.getMergedCount());
+		session.release();
+		assertNull(face.getCaptureSession());
+	}
+
+	@Test
+	public void session_passesOnSamplesOfAQuietDeviceAfterTheWindow() throws Exception
+	{
+		CaptureSession session = new CaptureSession();
+		session.setReorderWindow(50);
+		FakeDevice face = new FakeDevice(null, null);
+		FakeDevice voice = new FakeDevice(null, null);
+		session.addDevice(face);
+		session.addDevice(voice);
+		session.startPreview();
+
+		// the face device never delivers, so the voice chunk is held until the window passes
+		session.offer(voice, System.nanoTime(), "v0");
+		assertTrue(session.getOutputBuffer().isEmpty());
+		assertEquals(1, session.getPendingCount());
+		SessionSample sample = session.getOutputBuffer().poll(5000);
+		assertNotNull(sample);
+		assertEquals("v0", sample.data);
+		assertEquals(0, session.getPendingCount());
+		session.release();
+	}
+
+	@Test
+	public void session_startsAndStopsDevicesInParallel() throws Exception
+	{
+		// each device waits for the others inside its start and stop, which only works if they
+		// are called at the same time
+		CaptureSession session = new CaptureSession();
+		CyclicBarrier barrier = new CyclicBarrier(3);
+		AtomicInteger failures = new AtomicInteger();
+		FakeDevice[] devices = new FakeDevice[3];
+		for (int i = 0; i < devices.length; i++)
+		{
+			devices[i] = new FakeDevice(barrier, failures);
+			session.addDevice(devices[i]);
+		}
+
+		session.startCapture();
+		for (FakeDevice device : devices)
+		{
+			assertEquals(CaptureDevice.State.CAPTURE_STARTED, device.getState());
+			// an unreleased session must not keep the process alive
+			assertTrue(device.mDaemon);
+		}
+		session.stop();
+		for (FakeDevice device : devices)
+		{
+			assertEquals(CaptureDevice.State.STOPPED, device.getState());
+		}
+		session.release();
+		assertEquals(0, failures.get());
+	}
+
+
+	private static long ms(long millis)
+	{
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * A device that meets the others at a barrier when it starts and stops.  It keeps its own
+	 * state, so it never reaches the platform log.
+	 */
+	private static class FakeDevice extends CaptureDevice
+	{
+		FakeDevice(CyclicBarrier barrier, AtomicInteger failures)
+		{
+			mBarrier = barrier;
+			mFailures = failures;
+		}
+
+		@Override
+		public String getId()
+		{
+			return "FakeDevice";
+		}
+
+		@Override
+		public String getName()
+		{
+			return "Fake Device";
+		}
+
+		@Override
+		public String getVersion()
+		{
+			return "1.0";
+		}
+
+		@Override
+		public String getVendor()
+		{
+			return "Test";
+		}
+
+		@Override
+		public Type getType()
+		{
+			return Type.UNKNOWN;
+		}
+
+		@Override
+		public void addViewer(CaptureView viewer)
+		{
+			mViewerList.add(viewer);
+		}
+
+		@Override
+		public boolean initialize(Context ctx)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean initialize(Context ctx, String config)
+		{
+			return true;
+		}
+
+		@Override
+		public void destroy()
+		{
+		}
+
+		@Override
+		public void startPreview()
+		{
+			meet();
+			mFakeState = State.PREVIEW_STARTED;
+		}
+
+		@Override
+		public void startCapture()
+		{
+			mDaemon = Thread.currentThread().isDaemon();
+			meet();
+			mFakeState = State.CAPTURE_STARTED;
+		}
+
+		@Override
+		public void stop()
+		{
+			meet();
+			mFakeState = State.STOPPED;
+		}
+
+		@Override
+		public State getState()
+		{
+			return mFakeState;
+		}
+
+		private void meet()
+		{
+			if (mBarrier == null)
+			{
+				return;
+			}
+			try
+			{
+				mBarrier.await(5, TimeUnit.SECONDS);
+			}
+			catch (Exception ex)
+			{
+				mFailures.incrementAndGet();
+			}
+		}
+
+		private final CyclicBarrier 	mBarrier;
+		private final AtomicInteger 	mFailures;
+		private volatile State 			mFakeState = State.UNINITIALIZED;
+		volatile boolean 				mDaemon = false;
+	}
+}
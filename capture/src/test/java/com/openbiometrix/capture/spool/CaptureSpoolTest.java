@@ -0,0 +1,203 @@
+package com.openbiometrix.capture.spool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CaptureSpool.
+ */
+public class CaptureSpoolTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("spool", "");
+		mDirectory.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		File[] files = mDirectory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void append_survivesReopen() throws Exception
+	{
+		CaptureSpool spool = new CaptureSpool(mDirectory);
+		String id = spool.getId();
+		for (int i = 0; i < 10; i++)
+		{
+			spool.append(capture(i, 1000), "image/jpeg");
+		}
+		spool.close();
+
+		spool = new CaptureSpool(mDirectory);
+		assertEquals(id, spool.getId());
+		assertEquals(10, spool.getPendingCount());
+		assertEquals(10000, spool.getPendingBytes());
+
+		List<SpoolEntry> entries = spool.peek(100, Long.MAX_VALUE);
+		for (int i = 0; i < entries.size(); i++)
+		{
+			assertEquals(i, entries.get(i).getSequence());
+			assertEquals("image/jpeg", entries.get(i).getMediaType());
+			assertArrayEquals(capture(i, 1000), spool.read(entries.get(i)));
+		}
+		spool.close();
+	}
+
+	@Test
+	public void appendFile_copiesItAndStagedFilesAreCleanedUp() throws Exception
+	{
+		CaptureSpool spool = new CaptureSpool(mDirectory);
+		File staged = spool.createTempFile("capture");
+		byte[] data = capture(7, 200000);
+		FileOutputStream out = new FileOutputStream(staged);
+		out.write(data);
+		out.close();
+
+		SpoolEntry entry = spool.append(staged, "audio/wav");
+		assertEquals(data.length, entry.getLength());
+		assertArrayEquals(data, spool.read(entry));
+		spool.append(capture(8, 100), "image/jpeg");
+		spool.close();
+
+		// a staged file left behind is removed when the spool is opened again
+		spool = new CaptureSpool(mDirectory);
+		assertFalse(staged.exists());
+		List<SpoolEntry> entries = spool.peek(100, Long.MAX_VALUE);
+		assertEquals(2, entries.size());
+		assertArrayEquals(data, spool.read(entries.get(0)));
+		assertArrayEquals(capture(8, 100), spool.read(entries.get(1)));
+		spool.close();
+	}
+
+	@Test
+	public void acknowledge_survivesReopenAndFreesSegments() throws Exception
+	{
+		CaptureSpool spool = new CaptureSpool(mDirectory, 4096);
+		for (int i = 0; i < 20; i++)
+		{
+			spool.append(capture(i, 1500), "application/octet-stream");
+		}
+		int segments = countSegments();
+		assertTrue(segments > 5);
+
+		spool.acknowledge(spool.peek(15, Long.MAX_VALUE));
+		assertEquals(5, spool.getPendingCount());
+		assertTrue(countSegments() < segments);
+		spool.close();
+
+		spool = new CaptureSpool(mDirectory, 4096);
+		List<SpoolEntry> entries = spool.peek(100, Long.MAX_VALUE);
+		assertEquals(5, entries.size());
+		assertEquals(15, entries.get(0).getSequence());
+		assertArrayEquals(capture(15, 1500), spool.read(entries.get(0)));
+
+		// sequence numbers carry on after a reopen
+		assertEquals(20, spool.append(capture(20, 10), "x/y").getSequence());
+		spool.close();
+	}
+
+	@Test
+	public void peek_limitsBatchBytes() throws Exception
+	{
+		CaptureSpool spool = new CaptureSpool(mDirectory);
+		for (int i = 0; i < 10; i++)
+		{
+			spool.append(capture(i, 100), "x/y");
+		}
+		assertEquals(3, spool.peek(100, 350).size());
+		assertEquals(1, spool.peek(100, 10).size());
+		assertEquals(2, spool.peek(2, Long.MAX_VALUE).size());
+		spool.close();
+	}
+
+	@Test
+	public void tornIndexRecord_isDropped() throws Exception
+	{
+		CaptureSpool spool = new CaptureSpool(mDirectory);
+		spool.append(capture(0, 100), "x/y");
+		spool.append(capture(1, 100), "x/y");
+		spool.close();
+
+		// simulate a crash part way through writing the last index record
+		RandomAccessFile index = new RandomAccessFile(new File(mDirectory, "spool.idx"), "rw");
+		index.setLength(index.length() - 10);
+		index.close();
+
+		spool = new CaptureSpool(mDirectory);
+		assertEquals(1, spool.getPendingCount());
+		SpoolEntry entry = spool.append(capture(2, 100), "x/y");
+		spool.close();
+
+		spool = new CaptureSpool(mDirectory);
+		assertEquals(2, spool.getPendingCount());
+		assertArrayEquals(capture(2, 100), spool.read(spool.peek(2, Long.MAX_VALUE).get(1)));
+		assertEquals(entry.getSequence(), spool.peek(2, Long.MAX_VALUE).get(1).getSequence());
+		spool.close();
+	}
+
+	@Test
+	public void index_isCompacted() throws Exception
+	{
+		CaptureSpool spool = new CaptureSpool(mDirectory, 64 * 1024);
+		spool.setSyncOnAppend(false);
+		for (int i = 0; i < 8000; i++)
+		{
+			List<SpoolEntry> entries = java.util.Collections.singletonList(spool.append(capture(i, 16), "x/y"));
+			spool.acknowledge(entries);
+		}
+		assertTrue(new File(mDirectory, "spool.idx").length() < 300 * 1024);
+		spool.close();
+
+		spool = new CaptureSpool(mDirectory, 64 * 1024);
+		assertEquals(0, spool.getPendingCount());
+		assertEquals(8000, spool.append(capture(0, 16), "x/y").getSequence());
+		spool.close();
+	}
+
+
+	private int countSegments()
+	{
+		int count = 0;
+		for (String name : mDirectory.list())
+		{
+			if (name.startsWith("segment-"))
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static byte[] capture(int n, int length)
+	{
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			data[i] = (byte) (n * 31 + i);
+		}
+		return data;
+	}
+
+
+	private File 	mDirectory;
+}
@@ -0,0 +1,270 @@
+package com.openbiometrix.capture.spool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests SpoolUploader against a local stand-in for the ingest endpoint.
+ */
+public class SpoolUploaderTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("spool", "");
+		mDirectory.delete();
+		mSpool = new CaptureSpool(mDirectory);
+
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.createContext("/ingest", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				int status = 200;
+				try
+				{
+					receive(exchange);
+				}
+				catch (IOException ex)
+				{
+					status = 400;
+				}
+				synchronized (SpoolUploaderTest.this)
+				{
+					if (mFailNext > 0)
+					{
+						mFailNext--;
+						status = 503;
+					}
+				}
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		mServer.start();
+		mEndpoint = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/ingest");
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		mServer.stop(0);
+		mSpool.close();
+		for (File file : mDirectory.listFiles())
+		{
+			file.delete();
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void uploadBatch_sendsAndAcknowledges() throws Exception
+	{
+		for (int i = 0; i < 25; i++)
+		{
+			mSpool.append(new byte[2000], "image/jpeg");
+		}
+
+		SpoolUploader uploader = new SpoolUploader(mSpool, mEndpoint);
+		uploader.setMaxBatch(10, Long.MAX_VALUE);
+		assertEquals(10, uploader.uploadBatch());
+		assertEquals(10, uploader.uploadBatch());
+		assertEquals(5, uploader.uploadBatch());
+		assertEquals(0, uploader.uploadBatch());
+
+		assertEquals(0, mSpool.getPendingCount());
+		assertEquals(25, received());
+		assertEquals(3, uploader.getBatchCount());
+		assertEquals(50000, uploader.getUploadedBytes());
+		assertTrue(uploader.getThroughput() > 0);
+	}
+
+	@Test
+	public void failedBatch_isRetriedInBackground() throws Exception
+	{
+		synchronized (this)
+		{
+			mFailNext = 2;
+		}
+		for (int i = 0; i < 40; i++)
+		{
+			mSpool.append(new byte[500], "x/y");
+		}
+
+		SpoolUploader uploader = new SpoolUploader(mSpool, mEndpoint);
+		uploader.setBackoff(10, 50);
+		uploader.start();
+		awaitEmpty();
+		uploader.stop();
+
+		assertEquals(0, uploader.getBacklogCount());
+		assertEquals(2, uploader.getFailureCount());
+		assertEquals(40, uploader.getUploadedCount());
+		assertEquals(40, received());
+	}
+
+	@Test
+	public void corruptCapture_isDiscardedWithoutBlockingTheRest() throws Exception
+	{
+		mSpool.append(new byte[1000], "x/y");
+		SpoolEntry corrupt = mSpool.append(new byte[1000], "x/y");
+		mSpool.append(new byte[1000], "x/y");
+
+		// flip a byte of the second capture on disk
+		File segment = null;
+		for (File file : mDirectory.listFiles())
+		{
+			if (file.getName().endsWith(".dat"))
+			{
+				segment = file;
+			}
+		}
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try
+		{
+			file.seek(corrupt.getOffset());
+			file.write(1);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		SpoolUploader uploader = new SpoolUploader(mSpool, mEndpoint);
+		try
+		{
+			uploader.uploadBatch();
+			fail("Expected a CorruptCaptureException");
+		}
+		catch (CorruptCaptureException ex)
+		{
+			assertEquals(corrupt.getSequence(), ex.getEntry().getSequence());
+		}
+		assertEquals(2, mSpool.getPendingCount());
+		assertEquals(1, uploader.getCorruptCount());
+
+		assertEquals(2, uploader.uploadBatch());
+		assertEquals(0, mSpool.getPendingCount());
+		assertEquals(2, received());
+	}
+
+	@Test
+	public void runtimeError_doesNotEndTheUploadThread() throws Exception
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			mSpool.append(new byte[100], "x/y");
+		}
+
+		// the first two connections fail with a runtime error, as a broken transport might
+		final AtomicInteger opened = new AtomicInteger();
+		URL endpoint = new URL(null, mEndpoint.toString(), new URLStreamHandler()
+		{
+			@Override
+			protected URLConnection openConnection(URL url) throws IOException
+			{
+				if (opened.incrementAndGet() <= 2)
+				{
+					throw new IllegalStateException("Transport failed");
+				}
+				return mEndpoint.openConnection();
+			}
+		});
+
+		SpoolUploader uploader = new SpoolUploader(mSpool, endpoint);
+		uploader.setBackoff(10, 50);
+		uploader.start();
+		awaitEmpty();
+		uploader.stop();
+
+		assertEquals(0, uploader.getBacklogCount());
+		assertEquals(2, uploader.getFailureCount());
+		assertEquals(5, uploader.getUploadedCount());
+		assertNull(uploader.getLastError());
+	}
+
+
+	/**
+	 * Decode a batch the way an ingest server would and remember the captures it holds.
+	 */
+	private void receive(HttpExchange exchange) throws IOException
+	{
+		InputStream raw = exchange.getRequestBody();
+		InputStream body = raw;
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+		{
+			body = new GZIPInputStream(raw);
+		}
+		DataInputStream in = new DataInputStream(body);
+		if (in.readInt() != SpoolUploader.BATCH_MAGIC)
+		{
+			throw new IOException("Bad batch");
+		}
+		String spoolId = in.readUTF();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			long sequence = in.readLong();
+			in.readLong();
+			in.readUTF();
+			in.readFully(new byte[in.readInt()]);
+			synchronized (this)
+			{
+				mReceived.add(spoolId + "/" + sequence);
+			}
+		}
+
+		// read the rest of the request so the connection can be reused
+		byte[] rest = new byte[1024];
+		while (raw.read(rest) >= 0)
+		{
+		}
+	}
+
+	/**
+	 * Wait for the background upload to empty the spool.
+	 */
+	private void awaitEmpty() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (mSpool.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(20);
+		}
+	}
+
+	private synchronized int received()
+	{
+		return mReceived.size();
+	}
+
+
+	private File 			mDirectory;
+	private CaptureSpool 	mSpool;
+	private HttpServer 		mServer;
+	private URL 			mEndpoint;
+	private int 			mFailNext = 0;
+	private final Set<String> mReceived = new HashSet<String>();
+}
@@ -0,0 +1,220 @@
+package com.openbiometrix.capture.store;
+
+import com.openbiometrix.capture.CaptureFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CaptureIndex and CaptureStore.
+ */
+public class CaptureIndexTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("captures", "");
+		mDirectory.delete();
+		mDirectory.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		for (File file : mDirectory.listFiles())
+		{
+			file.delete();
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void pagedQuery_filtersBySessionAndQuality() throws Exception
+	{
+		CaptureIndex index = fill(new CaptureIndex(new File(mDirectory, "test.idx")), 20000);
+
+		CaptureQuery query = new CaptureQuery();
+		query.setSession(3);
+		query.setMinQuality(50);
+
+		int total = 0;
+		int pages = 0;
+		int next = 0;
+		do
+		{
+			CapturePage page = index.query(query, next, 100);
+			for (CaptureRecord record : page.getRecords())
+			{
+				assertEquals(3, record.sessionId);
+				assertTrue(record.quality >= 50);
+			}
+			total += page.getRecords().size();
+			pages++;
+			next = page.getNextStart();
+		}
+		while (next >= 0);
+
+		// sessions 0-4 in turn, quality 0-99 in turn, so a quarter of session 3 passes
+		assertEquals(2000, total);
+		// the twentieth page is full, so one more finds the rest of the index holds no matches
+		assertEquals(21, pages);
+		assertEquals(2000, index.count(query));
+		index.close();
+	}
+
+	@Test
+	public void timeRange_andMediaType() throws Exception
+	{
+		CaptureIndex index = fill(new CaptureIndex(new File(mDirectory, "test.idx")), 1000);
+
+		CaptureQuery query = new CaptureQuery();
+		query.setTimeRange(1000 + 100 * 10, 1000 + 200 * 10);
+		CapturePage page = index.query(query, 0, 1000);
+		assertEquals(100, page.getRecords().size());
+		assertEquals(100, page.getRecords().get(0).index);
+		assertFalse(page.hasMore());
+
+		query.setMediaType("audio/wav");
+		assertEquals(1, index.count(query));
+		index.close();
+	}
+
+	@Test
+	public void reopen_keepsEntriesAndDropsTornEntry() throws Exception
+	{
+		File file = new File(mDirectory, "test.idx");
+		fill(new CaptureIndex(file), 10).close();
+
+		// damage the last entry as if the device lost power while writing it
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(64 + 9 * 128 + 20);
+		raw.write(0x55);
+		raw.close();
+
+		CaptureIndex index = new CaptureIndex(file);
+		assertEquals(9, index.size());
+		CaptureRecord record = new CaptureRecord();
+		index.get(8, record);
+		assertEquals("capture-8.jpg", record.fileName);
+		assertEquals(1080, record.timestamp);
+
+		// deleting is a flag change that survives a reopen
+		index.setFlags(2, record.flags | CaptureRecord.FLAG_DELETED);
+		index.close();
+		index = new CaptureIndex(file);
+		assertEquals(8, index.count(new CaptureQuery()));
+		index.close();
+	}
+
+	@Test
+	public void store_savesFilesAndListsThemLazily() throws Exception
+	{
+		CaptureStore store = new CaptureStore(mDirectory);
+		CaptureRecord record = new CaptureRecord();
+		record.mediaType = "image/jpeg";
+		record.sessionId = 42;
+		record.timestamp = 5000;
+		CaptureFile saved = store.save(new byte[] { 1, 2, 3 }, record, null);
+		assertTrue(saved.exists());
+		assertEquals(3, saved.length());
+		assertEquals(0, record.index);
+
+		List<CaptureFile> files = store.getFiles();
+		assertEquals(1, files.size());
+		store.save(new byte[10], new CaptureRecord(), null);
+		assertEquals(2, files.size());
+		assertEquals(saved, files.get(0));
+		assertEquals("image/jpeg", files.get(0).getMediaType());
+		store.close();
+	}
+
+
+	@Test
+	public void compact_removesDeletedEntriesWhileAdding() throws Exception
+	{
+		File file = new File(mDirectory, "test.idx");
+		final CaptureIndex index = fill(new CaptureIndex(file), 5000);
+		for (int i = 0; i < 5000; i += 2)
+		{
+			index.setFlags(i, CaptureRecord.FLAG_DELETED);
+		}
+		assertEquals(2500, index.getLiveCount());
+
+		Thread adder = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				CaptureRecord record = new CaptureRecord();
+				for (int i = 0; i < 1000; i++)
+				{
+					record.timestamp = 100000 + i;
+					record.size = 1;
+					record.fileName = "added-" + i;
+					try
+					{
+						index.add(record);
+					}
+					catch (Exception ex)
+					{
+						throw new RuntimeException(ex);
+					}
+				}
+			}
+		});
+		adder.start();
+		int removed = index.compact(100, 0);
+		adder.join();
+
+		assertEquals(2500, removed);
+		assertEquals(3500, index.size());
+		assertEquals(3500, index.getLiveCount());
+		assertEquals(1, index.getGeneration());
+		assertEquals(0, index.count(new CaptureQuery()) - 3500);
+		index.close();
+
+		// the compacted file is what is opened next time, in the same order
+		CaptureIndex reopened = new CaptureIndex(file);
+		assertEquals(3500, reopened.size());
+		CaptureRecord record = new CaptureRecord();
+		reopened.get(0, record);
+		assertEquals("capture-1.jpg", record.fileName);
+		reopened.get(3499, record);
+		assertEquals("added-999", record.fileName);
+		long bytes = 0;
+		for (int i = 1; i < 5000; i += 2)
+		{
+			bytes += 1000 + i;
+		}
+		assertEquals(bytes + 1000, reopened.getLiveBytes());
+		reopened.close();
+	}
+
+
+	private static CaptureIndex fill(CaptureIndex index, int count) throws Exception
+	{
+		CaptureRecord record = new CaptureRecord();
+		for (int i = 0; i < count; i++)
+		{
+			record.sessionId = i % 5;
+			record.timestamp = 1000 + i * 10;
+			record.quality = i % 100;
+			record.size = 1000 + i;
+			record.setBounds(i, i, 100, 120);
+			record.mediaType = i % 100 == 7 ? "audio/wav" : "image/jpeg";
+			record.fileName = "capture-" + i + ".jpg";
+			index.add(record);
+		}
+		return index;
+	}
+
+
+	private File 	mDirectory;
+}
@@ -0,0 +1,180 @@
+package com.openbiometrix.capture.store;
+
+import com.openbiometrix.capture.CaptureFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for RetentionManager.
+ */
+public class RetentionManagerTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("captures", "");
+		mDirectory.delete();
+		mDirectory.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		for (File file : mDirectory.listFiles())
+		{
+			file.delete();
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void evict_removesLowQualityFirstAndKeepsPinned() throws Exception
+	{
+		CaptureStore store = new CaptureStore(mDirectory);
+		CaptureRecord record = new CaptureRecord();
+		for (int i = 0; i < 100; i++)
+		{
+			record.timestamp = 1000 + i;
+			record.quality = i % 2 == 0 ? 10 : 90;
+			store.save(new byte[100], record, null);
+		}
+		for (int i = 0; i < 5; i++)
+		{
+			store.setPinned(i, true);
+		}
+
+		RetentionManager manager = new RetentionManager(store);
+		manager.setMaxCount(50);
+		manager.setKeepQuality(50);
+		assertEquals(55, manager.evict());
+		assertEquals(45, store.getIndex().getLiveCount());
+		assertEquals(4500, store.getIndex().getLiveBytes());
+		assertEquals(55, manager.getPendingDeleteCount());
+
+		// the store lists only the captures that are kept
+		assertEquals(45, store.size());
+		List<CaptureFile> files = store.getFiles();
+		assertEquals(45, files.size());
+		for (int i = 0, position = 0; i < files.size(); i++, position++)
+		{
+			while (store.getIndex().getFlags(position) == CaptureRecord.FLAG_DELETED)
+			{
+				position++;
+			}
+			assertEquals(store.getFile(position), files.get(i));
+		}
+		assertEquals(store.getFile(99), files.get(44));
+		assertEquals(store.getFile(0), files.get(0));
+
+		// the pinned captures and every high quality capture are kept
+		int pinned = 0;
+		for (int i = 0; i < 100; i++)
+		{
+			store.getIndex().get(i, record);
+			if (record.isPinned())
+			{
+				pinned++;
+				assertFalse(record.isDeleted());
+			}
+			else if (record.quality > 50)
+			{
+				assertEquals(i < 20, record.isDeleted());
+			}
+			else
+			{
+				assertTrue(record.isDeleted());
+			}
+		}
+		assertEquals(5, pinned);
+		assertFalse(manager.isQuotaExceeded());
+
+		// nothing left to remove once only pinned captures would go
+		manager.setMaxCount(2);
+		manager.evict();
+		assertEquals(5, store.getIndex().getLiveCount());
+		assertTrue(manager.isQuotaExceeded());
+		store.close();
+	}
+
+	@Test
+	public void background_keepsUpWithBurstCapture() throws Exception
+	{
+		CaptureStore store = new CaptureStore(mDirectory);
+		RetentionManager manager = new RetentionManager(store);
+		manager.setMaxCount(200);
+		manager.setMaxBytes(200 * 1024);
+		manager.setCompactThreshold(200);
+		manager.start();
+
+		CaptureRecord record = new CaptureRecord();
+		record.mediaType = "image/jpeg";
+		byte[] data = new byte[1024];
+		for (int i = 0; i < 1200; i++)
+		{
+			record.timestamp = System.currentTimeMillis();
+			store.save(data, record, null);
+		}
+
+		long deadline = System.currentTimeMillis() + 30000;
+		while ((manager.getPendingDeleteCount() > 0 || manager.getCompactionCount() == 0
+				|| store.getIndex().getLiveCount() > 200) && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(50);
+		}
+		manager.stop();
+
+		int live = store.getIndex().getLiveCount();
+		assertTrue(live <= 200);
+		assertEquals(1200 - live, manager.getEvictedCount());
+		assertEquals(manager.getEvictedCount(), manager.getDeletedFileCount());
+		assertTrue(manager.getCompactionCount() >= 1);
+		assertEquals(live + 1, mDirectory.listFiles().length);
+		assertEquals(live, store.getFiles().size());
+		store.close();
+	}
+
+	@Test
+	public void unsentCaptures_areKeptUntilMarkedSent() throws Exception
+	{
+		CaptureStore store = new CaptureStore(mDirectory);
+		CaptureRecord[] unsent = new CaptureRecord[3];
+		for (int i = 0; i < 10; i++)
+		{
+			CaptureRecord record = new CaptureRecord();
+			record.timestamp = 1000 + i;
+			record.flags = i < 3 ? CaptureRecord.FLAG_UNSENT : 0;
+			store.save(new byte[100], record, null);
+			if (i < 3)
+			{
+				unsent[i] = record;
+			}
+		}
+
+		RetentionManager manager = new RetentionManager(store);
+		manager.setMaxCount(2);
+		assertEquals(7, manager.evict());
+		assertEquals(3, store.size());
+		assertTrue(manager.isQuotaExceeded());
+
+		// found again by file name after compaction moves the entries
+		store.getIndex().compact(4, 0);
+		assertTrue(store.markSent(unsent[0]));
+		assertEquals(2, store.markAllSent());
+		assertEquals(2, manager.evict());
+		assertEquals(1, store.size());
+		store.getIndex().compact(4, 0);
+		assertFalse(store.markSent(unsent[0]));
+		assertTrue(store.markSent(unsent[2]));
+		store.close();
+	}
+
+
+	private File 	mDirectory;
+}
@@ -0,0 +1,237 @@
+package com.openbiometrix.capture.stream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CapturePublisher: demand, the drop and latest strategies, references on kept
+ * items, and serial delivery when publishing and requesting race.
+ */
+public class CapturePublisherTest
+{
+	@Test
+	public void publisher_deliversOnlyWhatWasRequested()
+	{
+		CountingPublisher publisher = new CountingPublisher(CapturePublisher.Strategy.DROP);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		assertTrue(publisher.hasSubscribers());
+
+		publisher.publish(1);
+		assertTrue(subscriber.mItems.isEmpty());
+
+		subscriber.mSubscription.request(2);
+		for (int i = 2; i <= 5; i++)
+		{
+			publisher.publish(i);
+		}
+		assertEquals(list(2, 3), subscriber.mItems);
+		assertEquals(2, publisher.getDeliveredCount());
+		assertEquals(3, publisher.getDroppedCount());
+
+		// unbounded demand
+		subscriber.mSubscription.request(Long.MAX_VALUE);
+		subscriber.mSubscription.request(Long.MAX_VALUE);
+		for (int i = 6; i <= 8; i++)
+		{
+			publisher.publish(i);
+		}
+		assertEquals(list(2, 3, 6, 7, 8), subscriber.mItems);
+
+		subscriber.mSubscription.cancel();
+		publisher.publish(9);
+		assertFalse(publisher.hasSubscribers());
+		assertEquals(5, subscriber.mItems.size());
+
+		// the only references left are those passed to the subscriber with the items
+		assertEquals(5, publisher.mHeld.get());
+	}
+
+	@Test
+	public void publisher_keepsTheLatestItemUntilRequested()
+	{
+		CountingPublisher publisher = new CountingPublisher(CapturePublisher.Strategy.LATEST);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		RecordingSubscriber dropper = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		publisher.subscribe(dropper, CapturePublisher.Strategy.DROP);
+
+		for (int i = 1; i <= 3; i++)
+		{
+			publisher.publish(i);
+		}
+		assertEquals(1, publisher.mHeld.get());
+
+		// the newest is delivered on the request
+		subscriber.mSubscription.request(1);
+		dropper.mSubscription.request(1);
+		assertEquals(list(3), subscriber.mItems);
+		assertTrue(dropper.mItems.isEmpty());
+		assertEquals(1, publisher.mHeld.get());
+
+		// completing drops what is kept and ends the subscriptions
+		publisher.publish(4);
+		assertEquals(list(4), dropper.mItems);
+		publisher.publish(5);
+		assertEquals(3, publisher.mHeld.get());
+		publisher.complete();
+		assertEquals(2, publisher.mHeld.get());
+		assertTrue(subscriber.mComplete);
+		assertTrue(dropper.mComplete);
+		assertFalse(publisher.hasSubscribers());
+	}
+
+	@Test
+	public void publisher_endsASubscriptionOnABadRequest()
+	{
+		CapturePublisher<Integer> publisher = new CapturePublisher<Integer>();
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.mSubscription.request(0);
+		assertTrue(subscriber.mError instanceof IllegalArgumentException);
+		assertFalse(publisher.hasSubscribers());
+	}
+
+	@Test
+	public void publisher_deliversOneAtATimeWhilePublishingAndRequestingRace() throws Exception
+	{
+		final CountingPublisher publisher = new CountingPublisher(CapturePublisher.Strategy.LATEST);
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		final Subscription[] subscription = new Subscription[1];
+		publisher.subscribe(new Subscriber<Integer>()
+		{
+			@Override
+			public void onSubscribe(Subscription s)
+			{
+				subscription[0] = s;
+			}
+
+			@Override
+			public void onNext(Integer item)
+			{
+				if (inside.incrementAndGet() != 1)
+				{
+					overlaps.incrementAndGet();
+				}
+				received.add(item);
+				inside.decrementAndGet();
+			}
+
+			@Override
+			public void onError(Throwable error)
+			{
+			}
+
+			@Override
+			public void onComplete()
+			{
+			}
+		});
+
+		Thread requester = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < 100000; i++)
+				{
+					subscription[0].request(1);
+				}
+			}
+		});
+		requester.start();
+		int published = 0;
+		while (requester.isAlive())
+		{
+			publisher.publish(++published);
+		}
+		requester.join();
+		publisher.publish(++published);
+
+		assertEquals(0, overlaps.get());
+		assertTrue(received.size() <= 100000);
+		for (int i = 1; i < received.size(); i++)
+		{
+			assertTrue(received.get(i) > received.get(i - 1));
+		}
+		// each item was delivered, dropped or is still kept
+		assertEquals(published, publisher.getDroppedCount() + publisher.mHeld.get());
+		assertTrue(publisher.mHeld.get() - received.size() <= 1);
+	}
+
+
+	private static List<Integer> list(Integer... items)
+	{
+		List<Integer> list = new ArrayList<Integer>();
+		Collections.addAll(list, items);
+		return list;
+	}
+
+	/**
+	 * Counts the references held on items, by the publisher or passed on to subscribers.
+	 */
+	private static class CountingPublisher extends CapturePublisher<Integer>
+	{
+		CountingPublisher(Strategy strategy)
+		{
+			super(strategy);
+		}
+
+		@Override
+		protected void onRetain(Integer item)
+		{
+			mHeld.incrementAndGet();
+		}
+
+		@Override
+		protected void onDiscard(Integer item)
+		{
+			mHeld.decrementAndGet();
+		}
+
+		final AtomicInteger mHeld = new AtomicInteger();
+	}
+
+	/**
+	 * Keeps what it receives; the references passed with the items are its to keep.
+	 */
+	private static class RecordingSubscriber implements Subscriber<Integer>
+	{
+		@Override
+		public void onSubscribe(Subscription subscription)
+		{
+			mSubscription = subscription;
+		}
+
+		@Override
+		public void onNext(Integer item)
+		{
+			mItems.add(item);
+		}
+
+		@Override
+		public void onError(Throwable error)
+		{
+			mError = error;
+		}
+
+		@Override
+		public void onComplete()
+		{
+			mComplete = true;
+		}
+
+		Subscription 			mSubscription;
+		final List<Integer> 	mItems = new ArrayList<Integer>();
+		Throwable 				mError;
+		boolean 				mComplete;
+	}
+}
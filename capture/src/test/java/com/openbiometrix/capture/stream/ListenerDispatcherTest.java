@@ -0,0 +1,239 @@
+package com.openbiometrix.capture.stream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ListenerDispatcher: direct calls, ordered calls on a pool, references on
+ * queued items, and listeners that throw.
+ */
+public class ListenerDispatcherTest
+{
+	@Test
+	public void dispatcher_callsDirectListenersOnTheCapturingThread()
+	{
+		CountingDispatcher dispatcher = new CountingDispatcher();
+		final List<Thread> threads = new ArrayList<Thread>();
+		CaptureListener<Integer> listener = new CaptureListener<Integer>()
+		{
+			@Override
+			public void onCapture(Integer item)
+			{
+				threads.add(Thread.currentThread());
+			}
+		};
+		ListenerDispatcher<Integer>.Registration registration =
+				dispatcher.addListener(listener, ListenerDispatcher.DIRECT, true);
+		assertTrue(dispatcher.hasListeners());
+
+		dispatcher.dispatch(1);
+		dispatcher.dispatch(2);
+		assertEquals(2, threads.size());
+		assertSame(Thread.currentThread(), threads.get(0));
+		assertEquals(2, registration.getCallCount());
+		assertTrue(registration.getMaxLatency() >= registration.getAverageLatency());
+		// nothing is retained for a direct call
+		assertEquals(0, dispatcher.mRetained.get());
+
+		dispatcher.removeListener(listener);
+		assertFalse(dispatcher.hasListeners());
+		dispatcher.dispatch(3);
+		assertEquals(2, threads.size());
+	}
+
+	@Test
+	public void dispatcher_keepsTheOrderOnAPoolWhenAsked() throws Exception
+	{
+		final int items = 2000;
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		CountingDispatcher dispatcher = new CountingDispatcher();
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		ListenerDispatcher<Integer>.Registration registration = dispatcher.addListener(
+				new CaptureListener<Integer>()
+				{
+					@Override
+					public void onCapture(Integer item)
+					{
+						if (inside.incrementAndGet() != 1)
+						{
+							overlaps.incrementAndGet();
+						}
+						received.add(item);
+						inside.decrementAndGet();
+					}
+				}, pool, true);
+
+		for (int i = 0; i < items; i++)
+		{
+			dispatcher.dispatch(i);
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(0, overlaps.get());
+		assertEquals(items, received.size());
+		for (int i = 0; i < items; i++)
+		{
+			assertEquals(Integer.valueOf(i), received.get(i));
+		}
+		assertEquals(items, registration.getCallCount());
+		// every item retained for a queued call was released after it
+		assertEquals(items, dispatcher.mRetained.get());
+		assertEquals(0, dispatcher.mHeld.get());
+
+		// a rejected call is counted and its item released
+		dispatcher.dispatch(items);
+		assertEquals(1, registration.getRejectedCount());
+		assertEquals(0, dispatcher.mHeld.get());
+	}
+
+	@Test
+	public void dispatcher_callsDirectListenersBeforeDispatchReturns()
+	{
+		// a direct listener has its item when dispatch() returns; a queued one only once its
+		// executor gets to the call, and the item is held until then
+		CountingDispatcher dispatcher = new CountingDispatcher();
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		final List<Integer> direct = new ArrayList<Integer>();
+		final List<Integer> later = new ArrayList<Integer>();
+		dispatcher.addListener(new CaptureListener<Integer>()
+		{
+			@Override
+			public void onCapture(Integer item)
+			{
+				direct.add(item);
+			}
+		}, ListenerDispatcher.DIRECT, false);
+		dispatcher.addListener(new CaptureListener<Integer>()
+		{
+			@Override
+			public void onCapture(Integer item)
+			{
+				later.add(item);
+			}
+		}, new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				queued.add(command);
+			}
+		}, false);
+
+		for (int i = 0; i < 3; i++)
+		{
+			dispatcher.dispatch(i);
+			assertEquals(i + 1, direct.size());
+			assertEquals(Integer.valueOf(i), direct.get(i));
+		}
+		assertTrue(later.isEmpty());
+		assertEquals(3, queued.size());
+		assertEquals(3, dispatcher.mHeld.get());
+
+		for (Runnable command : queued)
+		{
+			command.run();
+		}
+		assertEquals(direct, later);
+		assertEquals(0, dispatcher.mHeld.get());
+	}
+
+	@Test
+	public void dispatcher_keepsCallingListenersAfterOneThrows()
+	{
+		CountingDispatcher dispatcher = new CountingDispatcher();
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		final List<Integer> received = new ArrayList<Integer>();
+		CaptureListener<Integer> failing = new CaptureListener<Integer>()
+		{
+			@Override
+			public void onCapture(Integer item)
+			{
+				if (item == 1)
+				{
+					throw new IllegalStateException("Listener failed");
+				}
+			}
+		};
+		ListenerDispatcher<Integer>.Registration direct =
+				dispatcher.addListener(failing, ListenerDispatcher.DIRECT, false);
+		ListenerDispatcher<Integer>.Registration queuedFailing =
+				dispatcher.addListener(failing, new Executor()
+				{
+					@Override
+					public void execute(Runnable command)
+					{
+						queued.add(command);
+					}
+				}, false);
+		dispatcher.addListener(new CaptureListener<Integer>()
+		{
+			@Override
+			public void onCapture(Integer item)
+			{
+				received.add(item);
+			}
+		}, ListenerDispatcher.DIRECT, false);
+
+		for (int i = 0; i < 3; i++)
+		{
+			dispatcher.dispatch(i);
+		}
+		for (Runnable command : queued)
+		{
+			command.run();
+		}
+
+		// the listener after the failing one got every item, and every held item was released
+		assertEquals(3, received.size());
+		assertEquals(3, direct.getCallCount());
+		assertEquals(1, direct.getErrorCount());
+		assertEquals(1, queuedFailing.getErrorCount());
+		assertEquals(2, dispatcher.mErrors.get());
+		assertEquals(0, dispatcher.mHeld.get());
+	}
+
+
+	/**
+	 * Counts the references held on items while calls with them are queued, and the listeners
+	 * that threw.
+	 */
+	private static class CountingDispatcher extends ListenerDispatcher<Integer>
+	{
+		@Override
+		protected void onRetain(Integer item)
+		{
+			mRetained.incrementAndGet();
+			mHeld.incrementAndGet();
+		}
+
+		@Override
+		protected void onRelease(Integer item)
+		{
+			mHeld.decrementAndGet();
+		}
+
+		@Override
+		protected void onListenerError(CaptureListener<? super Integer> listener, RuntimeException error)
+		{
+			assertTrue(error instanceof IllegalStateException);
+			mErrors.incrementAndGet();
+		}
+
+		final AtomicInteger mRetained = new AtomicInteger();
+		final AtomicInteger mHeld = new AtomicInteger();
+		final AtomicInteger mErrors = new AtomicInteger();
+	}
+}
@@ -0,0 +1,175 @@
+package com.openbiometrix.capture.template;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TemplateIndex.
+ */
+public class TemplateIndexTest
+{
+	private static final int DIM = 64;
+
+	@Test
+	public void search_findsExactMatch() throws Exception
+	{
+		TemplateIndex index = fill(new TemplateIndex(DIM, 16), 1000, 1);
+		float[] query = vector(1, 500);
+
+		SearchResults results = new SearchResults(5);
+		index.search(query, results);
+		assertEquals(5, results.size());
+		assertEquals(500L, results.getId(0));
+		assertEquals(1.0f, results.getScore(0), 1e-4f);
+		for (int i = 1; i < results.size(); i++)
+		{
+			assertTrue(results.getScore(i - 1) >= results.getScore(i));
+		}
+		index.release();
+	}
+
+	@Test
+	public void parallelSearch_matchesSerialOrder() throws Exception
+	{
+		TemplateIndex index = fill(new TemplateIndex(DIM), 20000, 2);
+		float[] query = vector(2, 12345);
+		for (int i = 0; i < DIM; i++)
+		{
+			query[i] += 0.01f;
+		}
+
+		SearchResults results = new SearchResults(10);
+		index.search(query, results);
+		assertEquals(12345L, results.getId(0));
+		index.release();
+	}
+
+	@Test
+	public void ivf_findsNearDuplicates() throws Exception
+	{
+		int count = 20000;
+		TemplateIndex index = new TemplateIndex(DIM);
+		fill(index, count, 3);
+		// plant 50 near duplicates
+		for (int i = 0; i < 50; i++)
+		{
+			float[] v = vector(3, i * 100);
+			v[0] += 0.02f;
+			index.add(count + i, v);
+		}
+		index.buildIvf(141, TemplateIndex.DEFAULT_KMEANS_ITERATIONS);
+		assertTrue(index.hasIvf());
+
+		final AtomicInteger pairs = new AtomicInteger();
+		index.findDuplicates(0.99f, 2, new TemplateIndex.DuplicateListener()
+		{
+			@Override
+			public void onDuplicate(long idA, long idB, float score)
+			{
+				pairs.incrementAndGet();
+			}
+		});
+		assertTrue(pairs.get() >= 45);
+
+		SearchResults results = new SearchResults(1);
+		index.searchApproximate(vector(3, 700), 4, results);
+		assertEquals(700L, results.getId(0));
+		index.release();
+	}
+
+	@Test
+	public void ivf_rejectsProbesBelowOne() throws Exception
+	{
+		TemplateIndex index = fill(new TemplateIndex(DIM), 1000, 5);
+		index.buildIvf(10, 2);
+		TemplateIndex.DuplicateListener listener = new TemplateIndex.DuplicateListener()
+		{
+			@Override
+			public void onDuplicate(long idA, long idB, float score)
+			{
+			}
+		};
+		for (int probes : new int[] { 0, -1 })
+		{
+			try
+			{
+				index.findDuplicates(0.99f, probes, listener);
+				fail("probes " + probes);
+			}
+			catch (IllegalArgumentException ex)
+			{
+				// expected
+			}
+			try
+			{
+				index.searchApproximate(vector(5, 1), probes, new SearchResults(1));
+				fail("probes " + probes);
+			}
+			catch (IllegalArgumentException ex)
+			{
+				// expected
+			}
+		}
+		index.release();
+	}
+
+	@Test
+	public void saveAndLoad_roundTrip() throws Exception
+	{
+		TemplateIndex index = fill(new TemplateIndex(DIM), 5000, 4);
+		index.buildIvf(50, 4);
+
+		File file = File.createTempFile("templates", ".idx");
+		try
+		{
+			index.save(file);
+			TemplateIndex loaded = TemplateIndex.load(file);
+			assertEquals(5000, loaded.size());
+			assertTrue(loaded.hasIvf());
+
+			float[] query = vector(4, 4321);
+			SearchResults results = new SearchResults(1);
+			loaded.searchApproximate(query, 3, results);
+			assertEquals(4321L, results.getId(0));
+
+			// adding to a mapped index copies it into memory
+			loaded.add(99999, query);
+			assertEquals(5001, loaded.size());
+			loaded.release();
+		}
+		finally
+		{
+			file.delete();
+			index.release();
+		}
+	}
+
+
+	private static TemplateIndex fill(TemplateIndex index, int count, long seed)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			index.add(i, vector(seed, i));
+		}
+		return index;
+	}
+
+	/**
+	 * Produce the nth random vector of a seeded sequence.
+	 */
+	private static float[] vector(long seed, int n)
+	{
+		Random random = new Random(seed * 1000003L + n);
+		float[] v = new float[DIM];
+		for (int i = 0; i < DIM; i++)
+		{
+			v[i] = (float) random.nextGaussian();
+		}
+		return v;
+	}
+}
@@ -0,0 +1,126 @@
+package com.openbiometrix.capture.thumbnail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ThumbnailDiskCache.
+ */
+public class ThumbnailDiskCacheTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		mDirectory = File.createTempFile("thumbnails", "");
+		mDirectory.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		for (File file : mDirectory.listFiles())
+		{
+			file.delete();
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void put_evictsLeastRecentlyUsed() throws Exception
+	{
+		ThumbnailDiskCache cache = new ThumbnailDiskCache(mDirectory, 3000, null);
+		cache.put("a", new byte[1000]);
+		cache.put("b", new byte[1000]);
+		cache.put("c", new byte[1000]);
+		assertNotNull(cache.get("a"));
+
+		// b is now the least recently used
+		cache.put("d", new byte[1000]);
+		assertEquals(3000, cache.getTotalBytes());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get("b"));
+		assertFalse(new File(mDirectory, "b").exists());
+		assertEquals(1000, cache.get("a").length);
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// replacing a file counts only its new size
+		cache.put("c", new byte[500]);
+		assertEquals(2500, cache.getTotalBytes());
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void reopen_keepsFilesWithinLimit() throws Exception
+	{
+		ThumbnailDiskCache cache = new ThumbnailDiskCache(mDirectory, 10000, null);
+		for (int i = 0; i < 5; i++)
+		{
+			cache.put("thumb-" + i, new byte[1000]);
+			new File(mDirectory, "thumb-" + i).setLastModified(1000000000000L + i * 1000);
+		}
+
+		// a smaller limit drops the oldest files
+		cache = new ThumbnailDiskCache(mDirectory, 3000, null);
+		assertEquals(3, cache.size());
+		assertFalse(cache.contains("thumb-0"));
+		assertFalse(cache.contains("thumb-1"));
+		assertTrue(cache.contains("thumb-4"));
+	}
+
+	@Test
+	public void key_encryptsFiles() throws Exception
+	{
+		SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+		ThumbnailDiskCache cache = new ThumbnailDiskCache(mDirectory, 100000, key);
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte) i;
+		}
+		cache.put("face.thumb", data);
+		assertArrayEquals(data, cache.get("face.thumb"));
+
+		// the file on the disk is not the plain data
+		File file = new File(mDirectory, "face.thumb");
+		byte[] raw = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		in.read(raw);
+		in.close();
+		assertTrue(raw.length > data.length);
+		assertNull(new ThumbnailDiskCache(mDirectory, 100000, new SecretKeySpec(new byte[] {
+				1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES")).get("face.thumb"));
+	}
+
+
+	@Test
+	public void failedPut_leavesNoTemporaryFile() throws Exception
+	{
+		// a 5 byte key is not a valid AES key, so every chunk fails to encrypt
+		ThumbnailDiskCache cache = new ThumbnailDiskCache(mDirectory, 100000,
+				new SecretKeySpec(new byte[5], "AES"));
+		try
+		{
+			cache.put("face.thumb", new byte[5000]);
+			fail("Expected an IOException");
+		}
+		catch (IOException ex)
+		{
+			// expected
+		}
+		assertEquals(0, mDirectory.listFiles().length);
+		assertEquals(0, cache.size());
+	}
+
+
+	private File 	mDirectory;
+}
@@ -0,0 +1,205 @@
+package com.openbiometrix.capture.work;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for WorkerPool: weighted fair sharing by run time, idle lanes not catching up, and
+ * a light lane not waiting behind a flood of heavy work.  The tests check the order tasks run
+ * in rather than how long they take.
+ */
+public class WorkerPoolTest
+{
+	@Test
+	public void pool_sharesWorkersByWeight() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(1, "Test");
+		WorkerPool.Lane gate = pool.createLane("gate", 1000);
+		WorkerPool.Lane heavy = pool.createLane("heavy", 3);
+		WorkerPool.Lane light = pool.createLane("light", 1);
+
+		// both lanes have work queued before the worker is free, and tasks of the same length
+		CountDownLatch open = block(gate);
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch done = new CountDownLatch(120);
+		for (int i = 0; i < 60; i++)
+		{
+			heavy.execute(new Record("heavy", order, done));
+			light.execute(new Record("light", order, done));
+		}
+		open.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(1000));
+
+		// while both are waiting, the heavy lane runs three tasks for each of the light lane's
+		int heavyCount = Collections.frequency(order.subList(0, 40), "heavy");
+		assertTrue("heavy ran " + heavyCount + " of 40", heavyCount >= 26 && heavyCount <= 34);
+		assertEquals(60, heavy.getCompletedCount());
+		assertEquals(60, light.getCompletedCount());
+	}
+
+	@Test
+	public void pool_doesNotLetAnIdleLaneCatchUp() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(1, "Test");
+		WorkerPool.Lane gate = pool.createLane("gate", 1000);
+		WorkerPool.Lane busy = pool.createLane("busy", 1);
+		WorkerPool.Lane late = pool.createLane("late", 1);
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+		// the busy lane runs alone for a while
+		CountDownLatch done = new CountDownLatch(20);
+		for (int i = 0; i < 20; i++)
+		{
+			busy.execute(new Record("busy", order, done));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		// the late lane gets half the worker from now on, not all of it until it has caught up
+		order.clear();
+		CountDownLatch open = block(gate);
+		done = new CountDownLatch(40);
+		for (int i = 0; i < 20; i++)
+		{
+			busy.execute(new Record("busy", order, done));
+			late.execute(new Record("late", order, done));
+		}
+		open.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		pool.shutdown();
+
+		int lateCount = Collections.frequency(order.subList(0, 20), "late");
+		assertTrue("late ran " + lateCount + " of 20", lateCount >= 7 && lateCount <= 13);
+	}
+
+	@Test
+	public void pool_keepsALightLaneResponsiveUnderAFlood() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(1, "Test");
+		WorkerPool.Lane gate = pool.createLane("gate", 1000);
+		final WorkerPool.Lane preview = pool.createLane("preview", 4);
+		final WorkerPool.Lane storage = pool.createLane("storage", 1);
+		CountDownLatch open = block(gate);
+		for (int i = 0; i < 40; i++)
+		{
+			storage.execute(new Spin(5));
+		}
+		open.countDown();
+
+		// each preview frame runs as soon as the storage task that is running ends
+		for (int i = 0; i < 5; i++)
+		{
+			final long submitted = storage.getCompletedCount();
+			final AtomicLong ran = new AtomicLong(-1);
+			final CountDownLatch done = new CountDownLatch(1);
+			preview.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ran.set(storage.getCompletedCount());
+					done.countDown();
+				}
+			});
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertTrue("waited for " + (ran.get() - submitted) + " storage tasks", ran.get() - submitted <= 1);
+		}
+		assertTrue(storage.getQueueLength() > 0);
+		pool.shutdown();
+		try
+		{
+			preview.execute(new Spin(1));
+			fail();
+		}
+		catch (java.util.concurrent.RejectedExecutionException ex)
+		{
+			// shut down
+		}
+	}
+
+
+	/**
+	 * Hold the worker with a task on the gate lane until the returned latch is opened, so the
+	 * tasks queued meanwhile all wait for it.
+	 */
+	private static CountDownLatch block(WorkerPool.Lane gate) throws InterruptedException
+	{
+		final CountDownLatch open = new CountDownLatch(1);
+		final CountDownLatch held = new CountDownLatch(1);
+		gate.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				held.countDown();
+				try
+				{
+					open.await();
+				}
+				catch (InterruptedException ex)
+				{
+					// let the worker go
+				}
+			}
+		});
+		assertTrue(held.await(10, TimeUnit.SECONDS));
+		return open;
+	}
+
+	/**
+	 * Keeps the worker busy for 2 ms and records the lane it ran for.
+	 */
+	private static class Record implements Runnable
+	{
+		Record(String lane, List<String> order, CountDownLatch done)
+		{
+			mLane = lane;
+			mOrder = order;
+			mDone = done;
+		}
+
+		@Override
+		public void run()
+		{
+			new Spin(2).run();
+			mOrder.add(mLane);
+			mDone.countDown();
+		}
+
+		private final String 			mLane;
+		private final List<String> 		mOrder;
+		private final CountDownLatch 	mDone;
+	}
+
+	/**
+	 * Keeps the worker busy for a time.
+	 */
+	private static class Spin implements Runnable
+	{
+		Spin(long millis)
+		{
+			mNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		@Override
+		public void run()
+		{
+			long end = System.nanoTime() + mNanos;
+			while (System.nanoTime() < end)
+			{
+				// spin
+			}
+		}
+
+		private final long 	mNanos;
+	}
+}